@@ -59,7 +59,7 @@ public interface Index {
     boolean writePlainIndex(Path indexFile, String encoding);
 
     /**
-     * WIll write the posting list to file using compression.
+     * Will write the posting list to file in a compact binary format.
      * @param indexFile The file to write the posting list to
      * @param encoding The file's text encoding
      * @return true if operation completed  successfully
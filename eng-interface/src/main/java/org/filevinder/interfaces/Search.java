@@ -19,6 +19,10 @@ package org.filevinder.interfaces;
 import java.nio.charset.Charset;
 import java.nio.file.Path;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Stream;
+import org.filevinder.types.Match;
 
 /**
  *
@@ -27,9 +31,10 @@ import java.util.List;
 public interface Search {
 
     /**
-     * Search the specified file for the String specified. Uses a fwd linear
-     * scan and searches char by char. Algorithms like 'boyer moore' don't seem
-     * to not work well on a file map stream.
+     * Search the specified file for the String specified. The pattern is
+     * matched against the raw bytes of the file by a matcher chosen for its
+     * length and structure, e.g. a word-at-a-time scan for short patterns and
+     * Boyer-Moore skips for longer ones.
      *
      * For most operating systems, mapping a file into memory is more expensive
      * than reading or writing a few tens of kilobytes of data via the usual
@@ -46,9 +51,35 @@ public interface Search {
             Charset charset);
 
     /**
-     * Search the files in the root path for the String specified using a file
-     * map stream. Uses a fwd linear scan and searches char by char. Algorithms
-     * like 'boyer moore' don't seem to work well on a file map stream.
+     * Search the specified file for every occurrence of the String specified,
+     * including overlapping occurrences, in file order. The line and column of
+     * each match are worked out in the same pass as the search, which
+     * advances as the stream is consumed. A stream that is not read to the
+     * end should be closed.
+     *
+     * @param filePath The file to search
+     * @param pattern The text to search for in the file
+     * @param charset The character set to use for reading the file content
+     * @return The matches in the file
+     */
+    Stream<Match> searchMatches(Path filePath, String pattern, Charset charset);
+
+    /**
+     * Search the files in the root path for every occurrence of the String
+     * specified. Files are searched lazily, one at a time, as the returned
+     * stream is consumed.
+     *
+     * @param rootPath The folder to search
+     * @param pattern The text to search for
+     * @param charset The character set to use for reading the file content
+     * @return The matches in every file
+     */
+    Stream<Match> findMatches(String rootPath, String pattern, Charset charset);
+
+    /**
+     * Search the files in the root path for the String specified. The pattern
+     * is compiled once and the same matcher searches every file, see
+     * searchFile.
      *
      * @param rootPath The file to search
      * @param pattern The text to search for in the file
@@ -58,6 +89,43 @@ public interface Search {
     List<Path> findPattern(String rootPath, String pattern,
             Charset charset);
 
+    /**
+     * Search the files in the root path for any number of literal patterns in
+     * a single pass over each file.
+     *
+     * @param rootPath The folder to search
+     * @param patterns The texts to search for
+     * @param charset The character set to use for reading the file content
+     * @return The patterns found in each file, files with no match are omitted
+     */
+    Map<Path, Set<String>> findPatterns(String rootPath, Set<String> patterns,
+            Charset charset);
+
+    /**
+     * Search the files in the root path for text matching a regular
+     * expression. Literals the expression requires are used to discard files
+     * cheaply before the expression itself is evaluated.
+     *
+     * @param rootPath The folder to search
+     * @param regex The regular expression, in java.util.regex syntax
+     * @param charset The character set to use for reading the file content
+     * @return The files containing a match
+     */
+    List<Path> findRegex(String rootPath, String regex, Charset charset);
+
+    /**
+     * Search the indexed files in the root path for the String specified,
+     * using the trigram index to narrow down the files that are read.
+     *
+     * @param rootPath The folder to search
+     * @param pattern The text to search for
+     * @param indexFiles The index files covering the root path
+     * @param charset The character set of the indexed files
+     * @return The matches in every file
+     */
+    List<Match> findIndexedPattern(String rootPath, String pattern,
+            List<Path> indexFiles, Charset charset);
+
     /**
      * Will search for files matching the given glob pattern.
      *
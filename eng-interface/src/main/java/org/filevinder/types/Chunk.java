@@ -18,13 +18,15 @@ package org.filevinder.types;
 
 
 /**
- * A Chunk represents a portion of text in a file at a specified location.
+ * A Chunk represents a portion of text in a file at a specified location. The
+ * portion is held either as decoded text or as the raw bytes of the file.
  *
  * @author Gregory Clarke
  */
 public final class Chunk {
 
     private final String text;
+    private final byte[] bytes;
     private final int location;
     private final int fileId;
 
@@ -37,14 +39,39 @@ public final class Chunk {
      */
     public Chunk(final String textVal, final int locationVal, final int fileIdVal) {
         text = textVal;
+        bytes = null;
         location = locationVal;
         fileId = fileIdVal;
     }
 
+    /**
+     * Constructs a Chunk object holding the raw bytes of a piece of a file.
+     *
+     * @param bytesVal The bytes read from the file
+     * @param locationVal The byte offset of the first byte in the file
+     * @param fileIdVal The ID of the file.
+     */
+    public Chunk(final byte[] bytesVal, final int locationVal, final int fileIdVal) {
+        text = null;
+        bytes = bytesVal;
+        location = locationVal;
+        fileId = fileIdVal;
+    }
+
+    /**
+     * @return The text, or null if the chunk holds raw bytes
+     */
     public String getText() {
         return text;
     }
 
+    /**
+     * @return The raw bytes, or null if the chunk holds decoded text
+     */
+    public byte[] getBytes() {
+        return bytes;
+    }
+
     public int getLocation() {
         return location;
     }
@@ -55,6 +82,9 @@ public final class Chunk {
 
     @Override
     public String toString() {
+        if (text == null) {
+            return String.format("%d: %d bytes", location, bytes.length);
+        }
         return String.format("%d: %s", location, text);
     }
 }
@@ -6,32 +6,106 @@
 package org.filevinder.types;
 
 import java.io.Serializable;
-import java.util.ArrayList;
-import java.util.Objects;
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.List;
 
 /**
- * A List of positions within a file(ID).
+ * A List of positions within a file(ID). Positions are held in a primitive
+ * array in ascending order, getPositions offers a List view of them.
  *
  * @author Gregory Clarke
  */
 public final class FileRef implements Serializable {
 
-    private static final long serialVersionUID = 1L;
+    private static final long serialVersionUID = 2L;
     private static final int PRIME_A = 3, PRIME_B = 41;
-    private Integer fileId;
-    private ArrayList<Integer> positions;
+    private static final int INITIAL_CAPACITY = 4;
+    private int fileId;
+    private int[] positions;
+    private int count;
 
     /**
      * Returns an instance of the list of positions within a file.
      * @param fileIdVar the file id
      */
-    public FileRef(final Integer fileIdVar) {
+    public FileRef(final int fileIdVar) {
+        this(fileIdVar, new int[INITIAL_CAPACITY], 0);
+    }
+
+    /**
+     * Returns an instance of the list of positions within a file, backed by
+     * the given array.
+     * @param fileIdVar the file id
+     * @param positionsVar the positions, in ascending order
+     * @param countVar the number of positions used
+     */
+    public FileRef(final int fileIdVar, final int[] positionsVar, final int countVar) {
         fileId = fileIdVar;
-        this.positions = new ArrayList<>();
+        positions = positionsVar;
+        count = countVar;
+    }
+
+    /**
+     * A List view of the positions, boxing on access. Prefer positionCount,
+     * getPosition and hasPosition on hot paths.
+     *
+     * @return the positions
+     */
+    public List<Integer> getPositions() {
+        return new AbstractList<Integer>() {
+            @Override
+            public Integer get(final int index) {
+                return getPosition(index);
+            }
+
+            @Override
+            public int size() {
+                return count;
+            }
+
+            @Override
+            public boolean add(final Integer pos) {
+                addPosition(pos);
+                return true;
+            }
+        };
     }
 
-    public ArrayList<Integer> getPositions() {
-        return positions;
+    /**
+     * @param pos the position to append, at least the last position
+     */
+    public void addPosition(final int pos) {
+        if (count == positions.length) {
+            positions = Arrays.copyOf(positions, Math.max(INITIAL_CAPACITY, count * 2));
+        }
+        positions[count++] = pos;
+    }
+
+    /**
+     * @param index the index of the position
+     * @return the position
+     */
+    public int getPosition(final int index) {
+        if (index >= count) {
+            throw new IndexOutOfBoundsException(index);
+        }
+        return positions[index];
+    }
+
+    /**
+     * @return the number of positions
+     */
+    public int positionCount() {
+        return count;
+    }
+
+    /**
+     * @param pos a position
+     * @return true if the file holds the trigram at the position
+     */
+    public boolean hasPosition(final int pos) {
+        return Arrays.binarySearch(positions, 0, count, pos) >= 0;
     }
 
     @Override
@@ -43,7 +117,7 @@ public final class FileRef implements Serializable {
 
         try {
             FileRef ref = (FileRef) o;
-            return ref.getFileId().equals(getFileId());
+            return ref.getFileId() == getFileId();
         } catch (ClassCastException e) {
             return false;
         }
@@ -51,27 +125,28 @@ public final class FileRef implements Serializable {
 
     @Override
     public int hashCode() {
-        return PRIME_B * PRIME_A + Objects.hashCode(this.getFileId());
+        return PRIME_B * PRIME_A + Integer.hashCode(this.getFileId());
     }
 
     /**
      * @return the fileId
      */
-    public Integer getFileId() {
+    public int getFileId() {
         return fileId;
     }
 
     /**
      * @param fileIdVal the fileId to set
      */
-    public void setFileId(final Integer fileIdVal) {
+    public void setFileId(final int fileIdVal) {
         this.fileId = fileIdVal;
     }
 
     /**
-     * @param positionsVal the positions to set
+     * @param positionsVal the positions to set, in ascending order
      */
-    public void setPositions(final ArrayList<Integer> positionsVal) {
-        this.positions = positionsVal;
+    public void setPositions(final int[] positionsVal) {
+        this.positions = positionsVal.clone();
+        this.count = positionsVal.length;
     }
 }
@@ -0,0 +1,107 @@
+/*
+ * Copyright (C) 2017 Gregory Clarke
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.filevinder.types;
+
+import java.util.Objects;
+
+/**
+ * This class encapsulates a location in a file matching a search pattern.
+ * The location is the byte offset of the start of the match, the line and
+ * column are both 1 based and the column is counted in bytes from the start
+ * of the line.
+ *
+ * @author Gregory Clarke
+ */
+public final class Match {
+
+    private static final int PRIME = 31;
+    private String path;
+    private long location;
+    private long line;
+    private long column;
+
+    /**
+     * Construct a new instance of the Match object.
+     *
+     * @param pathVar The path of the matching file
+     * @param locationVar The byte offset of the match in the file
+     * @param lineVar The line number of the match
+     * @param columnVar The byte offset of the match within its line
+     */
+    public Match(final String pathVar, final long locationVar,
+            final long lineVar, final long columnVar) {
+        path = pathVar;
+        location = locationVar;
+        line = lineVar;
+        column = columnVar;
+    }
+
+    public String getPath() {
+        return path;
+    }
+
+    public void setPath(final String pathVar) {
+        path = pathVar;
+    }
+
+    public long getLocation() {
+        return location;
+    }
+
+    public void setLocation(final long locationVar) {
+        location = locationVar;
+    }
+
+    public long getLine() {
+        return line;
+    }
+
+    public void setLine(final long lineVar) {
+        line = lineVar;
+    }
+
+    public long getColumn() {
+        return column;
+    }
+
+    public void setColumn(final long columnVar) {
+        column = columnVar;
+    }
+
+    @Override
+    public boolean equals(final Object o) {
+
+        if (!(o instanceof Match)) {
+            return false;
+        }
+
+        Match m = (Match) o;
+        return Objects.equals(path, m.path) && location == m.location
+                && line == m.line && column == m.column;
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hashCode(path) * PRIME + Long.hashCode(location);
+    }
+
+    @Override
+    public String toString() {
+        return path + ":" + line + ":" + column + " (" + location + ")";
+    }
+
+}
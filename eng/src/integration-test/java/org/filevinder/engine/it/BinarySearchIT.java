@@ -114,7 +114,7 @@ public final class BinarySearchIT {
         String line = findLine(pat, UTF8, file);
 
         assertTrue(line.startsWith(pat));
-        assertTrue("Line not ended with expected value", line.endsWith("(100)405"));
+        assertTrue("Line not ended with expected value", line.endsWith("(100)1261"));
     }
 
     @Test
@@ -123,7 +123,7 @@ public final class BinarySearchIT {
         String line = findLine(pat, UTF8, file);
 
         assertTrue(line.startsWith(pat));
-        assertTrue("Line not ended with expected value", line.endsWith("(100)406"));
+        assertTrue("Line not ended with expected value", line.endsWith("(100)1264"));
     }
 
     @Test
@@ -132,7 +132,7 @@ public final class BinarySearchIT {
         String line = findLine(pat, UTF8, file);
 
         assertTrue(line.startsWith(pat));
-        assertTrue("Line not ended with expected value", line.endsWith("(100)225"));
+        assertTrue("Line not ended with expected value", line.endsWith("(100)699"));
     }
 
     @Test
@@ -294,34 +294,20 @@ public final class IndexIT{
         assertTrue(isValid);
     }
 
-    private static HashSet<String> getTrigrams(final String str) {
+    /**
+     * Every overlapping trigram of each line, trigrams never span a line break.
+     */
+    private static HashSet<String> getTrigrams(final List<String> strList) {
         final int tri = 3;
-        out.println("");
         HashSet<String> set = new HashSet<>();
-        for (int i = 0; i < str.length(); i += tri) {
-            int end = i + tri < str.length() ? i + tri : str.length();
-            String token = str.substring(i, end);
-
-            boolean lastToken = i + tri >= str.length();
-            if (lastToken) {
-                if (token.length() == 1) {
-                    token = token + "  ";
-                }
-                if (token.length() == 2) {
-                    token = token + " ";
-                }
+        for (String line : strList) {
+            for (int i = 0; i + tri <= line.length(); i++) {
+                set.add(line.substring(i, i + tri));
             }
-
-            set.add(token);
         }
-
         return set;
     }
 
-    private static HashSet<String> getTrigrams(final List<String> strList) {
-        return getTrigrams(strList.stream().collect(Collectors.joining()));
-    }
-
     private int checkIndexVals(final HashSet<String> reference, final List<Trigram> index) {
         int errCnt = 0;
         for (String s : reference) {
@@ -17,22 +17,39 @@
 package org.filevinder.engine.it;
 
 import static java.lang.System.out;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
 import java.nio.charset.Charset;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+import org.filevinder.core.FileIdSet;
 import org.filevinder.core.InMemoryIndex;
+import org.filevinder.core.IndexReader;
+import org.filevinder.core.IndexRegister;
+import org.filevinder.core.PostingListImpl;
+import org.filevinder.core.ShardedIndexer;
+import org.filevinder.core.Trigrams;
 import org.filevinder.interfaces.Index;
+import org.filevinder.types.FileRef;
+import org.filevinder.types.Trigram;
 import static org.filevinder.common.Utils.getFiles;
 import static org.junit.Assert.assertTrue;
 import org.junit.Ignore;
 import org.junit.Test;
 import static org.filevinder.common.Utils.readEntireFile;
+import org.filevinder.core.ByteScanner;
 import org.filevinder.core.SearchImpl;
 import static org.filevinder.engine.it.Constants.IDX_ON_DISK;
 import static org.filevinder.engine.it.Constants.TEST_FOLDER1;
+import static org.filevinder.engine.it.Constants.TXT;
 
 /**
  *
@@ -76,6 +93,82 @@ public final class NftIT {
         assertTrue("Ensure average file search time under 150ms", avg < 150);
     }
 
+    @Test
+    public void nftWordScanVersusByteLoop() {
+        final int size = 256 * 1024 * 1024;
+        final byte[] pat = "foobar".getBytes(StandardCharsets.ISO_8859_1);
+        final byte[] txt = String.join("", TXT).getBytes(StandardCharsets.ISO_8859_1);
+        ByteBuffer buf = ByteBuffer.allocateDirect(size);
+        while (buf.remaining() > txt.length) {
+            buf.put(txt);
+        }
+        buf.position(buf.limit() - pat.length);
+        buf.put(pat);
+
+        final int iters = 10;
+        long loopSum = 0, scanSum = 0;
+        final int anchor = ByteScanner.rareByteOffset(pat);
+        for (int i = 0; i < iters; i++) {
+            buf.position(0);
+            long start = System.nanoTime();
+            assertTrue(byteLoopSearch(buf, pat));
+            loopSum += System.nanoTime() - start;
+
+            start = System.nanoTime();
+            assertTrue(ByteScanner.indexOf(buf, pat, anchor, 0, size) >= 0);
+            scanSum += System.nanoTime() - start;
+        }
+
+        final double mb = (double) size * iters / (1024 * 1024);
+        out.printf("Byte loop: %.0f MB/s, word scan: %.0f MB/s%n",
+                mb / (loopSum / 1e9), mb / (scanSum / 1e9));
+        assertTrue("Ensure word scan is faster than the byte loop", scanSum < loopSum);
+    }
+
+    //The search loop SearchImpl used prior to the word-at-a-time scan
+    @SuppressWarnings("empty-statement")
+    private static boolean byteLoopSearch(final ByteBuffer buf, final byte[] pat) {
+        while (buf.hasRemaining()) {
+            try {
+                while (buf.get() != pat[0]) {
+                }
+                for (int j = 1; j < pat.length; j++) {
+                    if (buf.get() != pat[j]) {
+                        break;
+                    } else if (j == pat.length - 1) {
+                        return true;
+                    }
+                }
+            } catch (BufferUnderflowException e) {
+                break;
+            }
+        }
+        return false;
+    }
+
+    @Test
+    public void nftAverageTimeToMergeIndex() {
+        final int iterations = 10;
+        long sum = 0;
+
+        for (int i = 0; i < iterations; i++) {
+            Index parser = new InMemoryIndex();
+            long start = System.currentTimeMillis();
+
+            getFiles(TEST_FOLDER1, true)
+                    .map(path -> readEntireFile(path, Charset.defaultCharset()))
+                    .filter(x -> x != null)
+                    .forEach(chunk -> parser.mergeIndex(chunk));
+
+            sum += System.currentTimeMillis() - start;
+        }
+
+        long avg = sum / iterations;
+        out.printf("%n%nIndex merge NFT Average Duration %s ms%n%n", avg);
+
+        assertTrue("Ensure avg merge duration is under 100ms", avg < 100);
+    }
+
     @Test
     public void nftAverageTimeToWriteNewIndex() {
         Index parser = new InMemoryIndex();
@@ -110,4 +203,248 @@ public final class NftIT {
         assertTrue("Ensure avg durations is under 300ms", avg < 300);
     }
 
+    @Test
+    public void nftHeapPerIndexedByte() {
+        final long before = usedHeap();
+        InMemoryIndex index = new InMemoryIndex();
+        AtomicLong indexed = new AtomicLong();
+        getFiles(TEST_FOLDER1, true)
+                .map(path -> readEntireFile(path, Charset.defaultCharset()))
+                .filter(x -> x != null)
+                .forEach(chunk -> {
+                    indexed.addAndGet(chunk.getBytes().length);
+                    index.mergeIndex(chunk);
+                });
+        final long packed = usedHeap() - before;
+
+        //the boxed object graph the index was held in prior to the columnar blocks
+        ArrayList<LegacyTrigram> legacy = new ArrayList<>();
+        for (Trigram trig : index.getPostingList().getIndex()) {
+            LegacyTrigram lt = new LegacyTrigram(trig.getName());
+            for (FileRef ref : trig.getFileRefs()) {
+                LegacyFileRef lr = new LegacyFileRef(ref.getFileId());
+                for (int i = 0; i < ref.positionCount(); i++) {
+                    lr.positions.add(ref.getPosition(i));
+                }
+                lt.fileRefs.add(lr);
+            }
+            legacy.add(lt);
+        }
+        final long boxed = usedHeap() - before - packed;
+
+        out.printf("Heap per indexed byte: packed %.1f, boxed %.1f (%s bytes indexed)%n",
+                (double) packed / indexed.get(), (double) boxed / indexed.get(), indexed.get());
+        assertTrue("Ensure the packed index takes a fifth of the boxed heap", packed * 5 <= boxed);
+        assertTrue(legacy.size() == index.getPostingList().getIndex().size());
+    }
+
+    @Test
+    public void nftColdLookupVersusFullLoad() throws Exception {
+        final int copies = 200;
+        PostingListImpl postings = new PostingListImpl();
+        InMemoryIndex index = new InMemoryIndex(postings);
+        List<byte[]> texts = new ArrayList<>();
+        getFiles(TEST_FOLDER1, true)
+                .map(path -> readEntireFile(path, Charset.defaultCharset()))
+                .filter(x -> x != null)
+                .forEach(chunk -> texts.add(chunk.getBytes()));
+        for (int fid = 0; fid < copies * texts.size(); fid++) {
+            byte[] text = texts.get(fid % texts.size());
+            int[] trigrams = new int[text.length];
+            int[] positions = new int[text.length];
+            int count = Trigrams.extract(text, 0, text.length, 0, trigrams, positions);
+            postings.appendAll(trigrams, positions, count, fid);
+        }
+        Path file = Paths.get(IDX_ON_DISK);
+        assertTrue(index.writeCompressedIndex(file, "UTF-8"));
+
+        long start = System.nanoTime();
+        int[] files = new int[1];
+        try (IndexReader reader = new IndexReader(file)) {
+            reader.read(Trigrams.code("Nam"), (t, f, p, n) -> files[0]++);
+        }
+        final long lookup = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        new InMemoryIndex().memoizeIndexFile(file, "UTF-8");
+        final long load = System.nanoTime() - start;
+
+        out.printf("Lookup of 1 trigram (%s files): %.1f ms, full load: %.1f ms%n",
+                files[0], lookup / 1e6, load / 1e6);
+        assertTrue("Ensure a lookup costs a fraction of a full load", lookup * 20 < load);
+    }
+
+    @Test
+    public void nftShardedIndexScaling() throws Exception {
+        final int fileCount = 2000;
+        final int lines = 300;
+        Path dir = Files.createTempDirectory("fv-scaling");
+        Random rnd = new Random(1);
+        List<Path> files = new ArrayList<>();
+        long bytes = 0;
+        for (int f = 0; f < fileCount; f++) {
+            StringBuilder sb = new StringBuilder();
+            for (int l = 0; l < lines; l++) {
+                sb.append(TXT.get(rnd.nextInt(TXT.size()))).append(rnd.nextInt(100)).append('\n');
+            }
+            Path file = dir.resolve(f + ".txt");
+            Files.write(file, sb.toString().getBytes(StandardCharsets.UTF_8));
+            files.add(file);
+            bytes += Files.size(file);
+        }
+
+        final int cores = Runtime.getRuntime().availableProcessors();
+        long single = 0;
+        for (int threads : new int[]{1, 2, 4, 8, 16}) {
+            new ShardedIndexer(threads).index(files, StandardCharsets.UTF_8);
+            long start = System.nanoTime();
+            InMemoryIndex index = new ShardedIndexer(threads).index(files, StandardCharsets.UTF_8);
+            final long elapsed = System.nanoTime() - start;
+            if (threads == 1) {
+                single = elapsed;
+            }
+
+            final double speedup = (double) single / elapsed;
+            out.printf("%2d threads: %.0f MB/s, speedup %.2f (%s postings, %s cores)%n", threads,
+                    bytes / (elapsed / 1e9) / (1024 * 1024), speedup, index.getPostingList().size(), cores);
+            assertTrue("Ensure indexing scales with the cores available",
+                    threads > cores || speedup >= threads * 0.6);
+        }
+
+        for (Path file : files) {
+            Files.delete(file);
+        }
+        Files.delete(dir);
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void nftRegisterThousandsOfIndexes() throws Exception {
+        final int indexes = 2000;
+        final int sample = 100;
+        Path dir = Files.createTempDirectory("fv-register");
+
+        //the serialized register, read and rewritten on every add
+        Path legacy = dir.resolve("legacy.regf");
+        long start = System.nanoTime();
+        for (int i = 0; i < indexes; i++) {
+            ArrayList<String> reg = new ArrayList<>();
+            if (Files.exists(legacy)) {
+                try (ObjectInputStream in = new ObjectInputStream(Files.newInputStream(legacy))) {
+                    reg = (ArrayList<String>) in.readObject();
+                }
+            }
+            String entry = dir.resolve("dir" + i).resolve("index.byte").toString();
+            if (!reg.contains(entry)) {
+                reg.add(entry);
+                try (ObjectOutputStream o = new ObjectOutputStream(Files.newOutputStream(legacy))) {
+                    o.writeObject(reg);
+                }
+            }
+        }
+        final long serialized = System.nanoTime() - start;
+
+        IndexRegister register = IndexRegister.open(dir.resolve(IndexRegister.FILE_NAME));
+        long first = 0;
+        long last = 0;
+        start = System.nanoTime();
+        for (int i = 0; i < indexes; i++) {
+            long t = System.nanoTime();
+            register.add(dir.resolve("dir" + i).resolve("index.byte"));
+            t = System.nanoTime() - t;
+            if (i < sample) {
+                first += t;
+            } else if (i >= indexes - sample) {
+                last += t;
+            }
+        }
+        final long appended = System.nanoTime() - start;
+
+        out.printf("%s registrations: serialized %.0f ms, append-only %.0f ms"
+                + " (first %s %.1f us/add, last %s %.1f us/add)%n", indexes, serialized / 1e6, appended / 1e6,
+                sample, first / 1e3 / sample, sample, last / 1e3 / sample);
+        assertTrue("Ensure registering is faster than rewriting the register", appended < serialized);
+        assertTrue("Ensure the cost of an add does not grow with the register", last < first * 3);
+
+        Files.delete(legacy);
+        Files.delete(dir.resolve(IndexRegister.FILE_NAME));
+        Files.delete(dir);
+    }
+
+    private static long usedHeap() {
+        final int passes = 4;
+        Runtime rt = Runtime.getRuntime();
+        for (int i = 0; i < passes; i++) {
+            System.gc();
+        }
+        return rt.totalMemory() - rt.freeMemory();
+    }
+
+    private static final class LegacyTrigram {
+
+        private final String name;
+        private final ArrayList<LegacyFileRef> fileRefs = new ArrayList<>();
+
+        private LegacyTrigram(final String nameVar) {
+            name = nameVar;
+        }
+    }
+
+    private static final class LegacyFileRef {
+
+        private final Integer fileId;
+        private final ArrayList<Integer> positions = new ArrayList<>();
+
+        private LegacyFileRef(final Integer fileIdVar) {
+            fileId = fileIdVar;
+        }
+    }
+
+    @Test
+    public void nftFileIdSetOperations() {
+        final int files = 4_000_000;
+        final int rounds = 20;
+        Random rnd = new Random(1);
+        FileIdSet common = new FileIdSet();
+        FileIdSet half = new FileIdSet();
+        FileIdSet rare = new FileIdSet();
+        for (int fid = 0; fid < files; fid++) {
+            if (rnd.nextInt(10) != 0) {
+                common.add(fid);
+            }
+            if (rnd.nextBoolean()) {
+                half.add(fid);
+            }
+            if (rnd.nextInt(1000) == 0) {
+                rare.add(fid);
+            }
+        }
+
+        long[] and = new long[2];
+        long[] or = new long[2];
+        long[] andNot = new long[2];
+        long[] sparse = new long[2];
+        for (int r = 0; r < rounds; r++) {
+            final int run = r < rounds / 2 ? 0 : 1;
+            long start = System.nanoTime();
+            assertTrue(FileIdSet.and(common, half).cardinality() > 0);
+            and[run] += System.nanoTime() - start;
+            start = System.nanoTime();
+            assertTrue(FileIdSet.or(common, half).cardinality() > 0);
+            or[run] += System.nanoTime() - start;
+            start = System.nanoTime();
+            assertTrue(FileIdSet.andNot(common, half).cardinality() > 0);
+            andNot[run] += System.nanoTime() - start;
+            start = System.nanoTime();
+            assertTrue(FileIdSet.and(rare, common).cardinality() > 0);
+            sparse[run] += System.nanoTime() - start;
+        }
+
+        //the first half of the rounds warms up
+        final double per = rounds / 2 * 1e3;
+        out.printf("%s files: AND %.0f us, OR %.0f us, ANDNOT %.0f us, rare AND common %.0f us%n",
+                files, and[1] / per, or[1] / per, andNot[1] / per, sparse[1] / per);
+        assertTrue("Ensure dense sets intersect in low milliseconds", and[1] / per < 5000);
+        assertTrue("Ensure a rare set intersects faster than dense sets", sparse[1] < and[1]);
+    }
 }
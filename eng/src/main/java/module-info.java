@@ -17,4 +17,5 @@
 
 module org.filevinder.eng {
     requires org.filevinder.eng.interf;
+    requires jdk.unsupported;
 }
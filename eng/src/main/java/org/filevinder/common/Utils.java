@@ -393,7 +393,9 @@ public final class Utils {
 
     /**
      * Return the content of the specified file as a Chunk object, this method
-     * will read into memory and and return the full content of the file.
+     * will read into memory and and return the full content of the file. The
+     * chunk holds the raw bytes, the charset is only used to validate the
+     * file.
      *
      * @param path The file to read.
      * @param charset The character set of the file's content
@@ -406,8 +408,7 @@ public final class Utils {
 
         try {
             byte[] encoded = Files.readAllBytes(path);
-            String text = new String(encoded, charset);
-            return new Chunk(text, 0, FileIdMap.getInstance().getFileId(path));
+            return new Chunk(encoded, 0, FileIdMap.getInstance().getFileId(path));
 
         } catch (IOException ioe) {
             recordErr("Error splitting file", ioe);
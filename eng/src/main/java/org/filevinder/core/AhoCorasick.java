@@ -0,0 +1,219 @@
+/*
+ * Copyright (C) 2017 Gregory Clarke
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.filevinder.core;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+
+/**
+ * An Aho-Corasick automaton over bytes, used to find any number of literal
+ * patterns in a single pass over a file.
+ *
+ * The automaton is compiled to a dense DFA held in a single int array. To
+ * keep the table small the byte alphabet is first reduced to equivalence
+ * classes: every byte that occurs in a pattern gets its own class and all
+ * other bytes share class 0. Transitions store the pre-multiplied row offset
+ * of the target state, with the sign bit flagging targets that complete at
+ * least one pattern, so the inner loop is a table lookup and a sign test.
+ *
+ * The compiled automaton is immutable and can be shared between threads, the
+ * scan state is an int handed back to the caller so that a file can be fed
+ * through in any number of windows.
+ *
+ * @author Gregory Clarke
+ */
+public final class AhoCorasick {
+
+    /**
+     * The scan state to start each file with.
+     */
+    public static final int START = 0;
+
+    private static final int ALPHABET = 256;
+    private static final int BYTE_MASK = 0xFF;
+
+    private final int patternCount;
+    private final int[] classOf = new int[ALPHABET];
+    private final int classes;
+    private final int[] delta;
+    private final int[] patternAt;
+    private final int[] outLink;
+    private final int[] nextSame;
+
+    /**
+     * Compiles the automaton for the given patterns, the index of a pattern in
+     * the list is the id reported for it by scan.
+     *
+     * @param patterns The byte patterns to search for, none may be empty
+     */
+    public AhoCorasick(final List<byte[]> patterns) {
+        patternCount = patterns.size();
+
+        //reduce the alphabet to the bytes that occur in the patterns
+        int cls = 1;
+        for (byte[] pat : patterns) {
+            if (pat.length == 0) {
+                throw new IllegalArgumentException("Empty pattern");
+            }
+            for (byte b : pat) {
+                if (classOf[b & BYTE_MASK] == 0) {
+                    classOf[b & BYTE_MASK] = cls++;
+                }
+            }
+        }
+        classes = cls;
+
+        //build the trie, -1 marks a missing edge
+        int maxStates = 1;
+        for (byte[] pat : patterns) {
+            maxStates += pat.length;
+        }
+        int[] trie = new int[maxStates * classes];
+        Arrays.fill(trie, -1);
+        int[] pats = new int[maxStates];
+        Arrays.fill(pats, -1);
+        nextSame = new int[patternCount];
+        int states = 1;
+
+        for (int p = 0; p < patterns.size(); p++) {
+            int s = 0;
+            for (byte b : patterns.get(p)) {
+                int edge = s * classes + classOf[b & BYTE_MASK];
+                if (trie[edge] < 0) {
+                    trie[edge] = states++;
+                }
+                s = trie[edge];
+            }
+            //duplicate patterns share a state and are chained together
+            nextSame[p] = pats[s];
+            pats[s] = p;
+        }
+
+        patternAt = Arrays.copyOf(pats, states);
+        outLink = new int[states];
+        delta = new int[states * classes];
+        link(trie, states);
+    }
+
+    /**
+     * Computes failure links breadth first and fills in the DFA, a missing
+     * edge takes the transition of the failure state.
+     */
+    private void link(final int[] trie, final int states) {
+        int[] fail = new int[states];
+        ArrayDeque<Integer> queue = new ArrayDeque<>();
+        outLink[0] = -1;
+
+        for (int c = 0; c < classes; c++) {
+            int t = trie[c];
+            if (t < 0) {
+                delta[c] = 0;
+            } else {
+                fail[t] = 0;
+                outLink[t] = -1;
+                delta[c] = t;
+                queue.add(t);
+            }
+        }
+
+        while (!queue.isEmpty()) {
+            final int s = queue.poll();
+            for (int c = 0; c < classes; c++) {
+                int t = trie[s * classes + c];
+                if (t < 0) {
+                    delta[s * classes + c] = delta[fail[s] * classes + c];
+                } else {
+                    final int f = delta[fail[s] * classes + c];
+                    fail[t] = f;
+                    outLink[t] = patternAt[f] >= 0 ? f : outLink[f];
+                    delta[s * classes + c] = t;
+                    queue.add(t);
+                }
+            }
+        }
+
+        //pre-multiply the targets and flag those that emit a match
+        for (int i = 0; i < delta.length; i++) {
+            final int t = delta[i];
+            final int row = t * classes;
+            delta[i] = hasOutput(t) ? ~row : row;
+        }
+    }
+
+    private boolean hasOutput(final int state) {
+        return patternAt[state] >= 0 || outLink[state] >= 0;
+    }
+
+    /**
+     * Feeds the range [from, to) of the buffer through the automaton, adding
+     * the id of every pattern that ends within the range to found.
+     *
+     * @param buf The buffer to scan
+     * @param from The first index to scan
+     * @param to The index after the last index to scan
+     * @param state The state returned by the previous call, or START
+     * @param found The set of pattern ids found so far
+     * @return The state to pass to the next call for the same file, or -1
+     * once every pattern has been found
+     */
+    public int scan(final ByteBuffer buf, final int from, final int to,
+            final int state, final BitSet found) {
+
+        int s = state * classes;
+        for (int i = from; i < to; i++) {
+            int t = delta[s + classOf[buf.get(i) & BYTE_MASK]];
+            if (t < 0) {
+                t = ~t;
+                emit(t / classes, found);
+                if (found.cardinality() == patternCount) {
+                    return -1;
+                }
+            }
+            s = t;
+        }
+        return s / classes;
+    }
+
+    private void emit(final int state, final BitSet found) {
+        for (int s = patternAt[state] >= 0 ? state : outLink[state]; s >= 0; s = outLink[s]) {
+            for (int p = patternAt[s]; p >= 0; p = nextSame[p]) {
+                found.set(p);
+            }
+        }
+    }
+
+    /**
+     * Returns the number of patterns compiled into the automaton.
+     *
+     * @return The pattern count
+     */
+    public int size() {
+        return patternCount;
+    }
+
+    /**
+     * Returns the number of states in the automaton.
+     *
+     * @return The state count
+     */
+    public int states() {
+        return patternAt.length;
+    }
+}
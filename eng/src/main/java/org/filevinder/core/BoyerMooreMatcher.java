@@ -0,0 +1,129 @@
+/*
+ * Copyright (C) 2017 Gregory Clarke
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.filevinder.core;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A byte level Boyer-Moore matcher using both the bad character and the good
+ * suffix rules. The larger of the two shifts is taken on a mismatch, which
+ * gives long sublinear skips for long patterns.
+ *
+ * @author Gregory Clarke
+ */
+public final class BoyerMooreMatcher implements Matcher {
+
+    private static final int ALPHABET = 256;
+    private static final int BYTE_MASK = 0xFF;
+
+    private final byte[] pat;
+    private final int[] charTable;
+    private final int[] offsetTable;
+
+    /**
+     * Compiles the jump tables for the given pattern.
+     *
+     * @param patVar The bytes to search for, must not be empty
+     */
+    public BoyerMooreMatcher(final byte[] patVar) {
+        if (patVar.length == 0) {
+            throw new IllegalArgumentException("Empty pattern");
+        }
+        pat = patVar.clone();
+        charTable = makeCharTable(pat);
+        offsetTable = makeOffsetTable(pat);
+    }
+
+    @Override
+    public int indexOf(final ByteBuffer text, final int from, final int to) {
+        final int last = pat.length - 1;
+        int i = from + last, j;
+
+        while (i < to) {
+            byte b = text.get(i);
+            for (j = last; pat[j] == b; b = text.get(--i), --j) {
+                if (j == 0) {
+                    return i;
+                }
+            }
+            i += Math.max(offsetTable[last - j], charTable[b & BYTE_MASK]);
+        }
+        return -1;
+    }
+
+    @Override
+    public int length() {
+        return pat.length;
+    }
+
+    /**
+     * Makes the jump table based on the mismatched byte information.
+     */
+    private static int[] makeCharTable(final byte[] needle) {
+        int[] table = new int[ALPHABET];
+        for (int i = 0; i < table.length; ++i) {
+            table[i] = needle.length;
+        }
+        for (int i = 0; i < needle.length - 1; ++i) {
+            table[needle[i] & BYTE_MASK] = needle.length - 1 - i;
+        }
+        return table;
+    }
+
+    /**
+     * Makes the jump table based on the scan offset which mismatch occurs.
+     */
+    private static int[] makeOffsetTable(final byte[] needle) {
+        int[] table = new int[needle.length];
+        int lastPrefixPosition = needle.length;
+        for (int i = needle.length; i > 0; --i) {
+            if (isPrefix(needle, i)) {
+                lastPrefixPosition = i;
+            }
+            table[needle.length - i] = lastPrefixPosition - i + needle.length;
+        }
+        for (int i = 0; i < needle.length - 1; ++i) {
+            int slen = suffixLength(needle, i);
+            table[slen] = needle.length - 1 - i + slen;
+        }
+        return table;
+    }
+
+    /**
+     * Is needle[p:end] a prefix of needle?
+     */
+    private static boolean isPrefix(final byte[] needle, final int p) {
+        for (int i = p, j = 0; i < needle.length; ++i, ++j) {
+            if (needle[i] != needle[j]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns the maximum length of the substring ends at p and is a suffix.
+     */
+    private static int suffixLength(final byte[] needle, final int p) {
+        int len = 0;
+        for (int i = p, j = needle.length - 1;
+                i >= 0 && needle[i] == needle[j]; --i, --j) {
+            len += 1;
+        }
+        return len;
+    }
+}
@@ -0,0 +1,364 @@
+/*
+ * Copyright (C) 2017 Gregory Clarke
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.filevinder.core;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Word-at-a-time (SWAR) byte scanning over a ByteBuffer. Instead of fetching
+ * and comparing one byte per iteration, eight bytes are read with a single
+ * getLong and tested for the target byte with a handful of arithmetic
+ * operations, so the candidate scan runs at close to memory bandwidth.
+ *
+ * All methods use absolute indexes and leave the buffer position untouched.
+ *
+ * @author Gregory Clarke
+ */
+public final class ByteScanner {
+
+    private static final long ONES = 0x0101010101010101L;
+    private static final long LOW7 = 0x7F7F7F7F7F7F7F7FL;
+    private static final int WORD = Long.BYTES;
+    private static final int BYTE_SHIFT = 3;
+    private static final int BYTE_MASK = 0xFF;
+    private static final int CASE_BIT = 0x20;
+    private static final long CASE_BITS = ONES * CASE_BIT;
+
+    /**
+     * Bytes ordered from most to least frequent in typical source and prose,
+     * any byte not listed is treated as rarer than all of these.
+     */
+    private static final String COMMON = " etaoinsrlhdcumpfgy.,;()\n\r\t=_-/\"'bwvkxjqz"
+            + "ETAOINSRLHDCUMPFGYBWVKXJQZ0123456789{}[]<>:*+&!#$%?@\\|^~`";
+
+    private static final int[] RANK = new int[BYTE_MASK + 1];
+
+    /**
+     * Each byte folded to lower case, ASCII upper case letters map to their
+     * lower case letter and every other byte to itself.
+     */
+    private static final byte[] FOLD = new byte[BYTE_MASK + 1];
+
+    static {
+        for (int i = 0; i < RANK.length; i++) {
+            RANK[i] = COMMON.length();
+        }
+        for (int i = 0; i < COMMON.length(); i++) {
+            RANK[COMMON.charAt(i)] = i;
+        }
+        for (int i = 0; i < FOLD.length; i++) {
+            FOLD[i] = (byte) (i >= 'A' && i <= 'Z' ? i | CASE_BIT : i);
+        }
+    }
+
+    private ByteScanner() {
+    }
+
+    /**
+     * Returns the index of the first occurrence of the byte b in the range
+     * [from, to) of the buffer.
+     *
+     * @param buf The buffer to scan
+     * @param b The byte to look for
+     * @param from The first index to inspect
+     * @param to The index after the last index to inspect
+     * @return The absolute index of the byte or -1 if not present
+     */
+    public static int indexOf(final ByteBuffer buf, final byte b,
+            final int from, final int to) {
+
+        final long pattern = ONES * (b & BYTE_MASK);
+        final boolean bigEndian = buf.order() == ByteOrder.BIG_ENDIAN;
+        int i = from;
+
+        for (final int last = to - WORD; i <= last; i += WORD) {
+            long hits = zeroBytes(buf.getLong(i) ^ pattern);
+            if (hits != 0) {
+                int zeros = bigEndian ? Long.numberOfLeadingZeros(hits)
+                        : Long.numberOfTrailingZeros(hits);
+                return i + (zeros >>> BYTE_SHIFT);
+            }
+        }
+
+        //tail - fewer than a word left
+        for (; i < to; i++) {
+            if (buf.get(i) == b) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Returns the index of the last occurrence of the byte b in the range
+     * [from, to) of the buffer.
+     *
+     * @param buf The buffer to scan
+     * @param b The byte to look for
+     * @param from The first index to inspect
+     * @param to The index after the last index to inspect
+     * @return The absolute index of the byte or -1 if not present
+     */
+    public static int lastIndexOf(final ByteBuffer buf, final byte b,
+            final int from, final int to) {
+
+        final long pattern = ONES * (b & BYTE_MASK);
+        final boolean bigEndian = buf.order() == ByteOrder.BIG_ENDIAN;
+        int i = to;
+
+        for (; i - WORD >= from; i -= WORD) {
+            long hits = zeroBytes(buf.getLong(i - WORD) ^ pattern);
+            if (hits != 0) {
+                int zeros = bigEndian ? Long.numberOfTrailingZeros(hits)
+                        : Long.numberOfLeadingZeros(hits);
+                return i - 1 - (zeros >>> BYTE_SHIFT);
+            }
+        }
+
+        for (i--; i >= from; i--) {
+            if (buf.get(i) == b) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Counts the occurrences of the byte b in the range [from, to) of the
+     * buffer, a word at a time.
+     *
+     * @param buf The buffer to scan
+     * @param b The byte to count
+     * @param from The first index to inspect
+     * @param to The index after the last index to inspect
+     * @return The number of occurrences
+     */
+    public static int count(final ByteBuffer buf, final byte b,
+            final int from, final int to) {
+
+        final long pattern = ONES * (b & BYTE_MASK);
+        int n = 0;
+        int i = from;
+
+        for (final int last = to - WORD; i <= last; i += WORD) {
+            n += Long.bitCount(zeroBytes(buf.getLong(i) ^ pattern));
+        }
+
+        for (; i < to; i++) {
+            if (buf.get(i) == b) {
+                n++;
+            }
+        }
+        return n;
+    }
+
+    /**
+     * Returns the index of the first occurrence of the pattern in the range
+     * [from, to) of the buffer. Candidates are located by scanning for the
+     * byte at the anchor offset of the pattern (see rareByteOffset) and are
+     * then verified with a forward comparison, starting with the first byte.
+     *
+     * @param buf The buffer to scan
+     * @param pat The pattern to look for
+     * @param anchor The offset of the pattern byte used to find candidates
+     * @param from The first index at which a match may start
+     * @param to The index after the last byte a match may occupy
+     * @return The absolute index of the start of the match or -1
+     */
+    public static int indexOf(final ByteBuffer buf, final byte[] pat,
+            final int anchor, final int from, final int to) {
+
+        final int patLen = pat.length;
+        final byte anchorByte = pat[anchor];
+        final int lastStart = to - patLen;
+        int i = from + anchor;
+
+        while (i - anchor <= lastStart) {
+            i = indexOf(buf, anchorByte, i, lastStart + anchor + 1);
+            if (i < 0) {
+                return -1;
+            }
+            final int start = i - anchor;
+            if (regionMatches(buf, start, pat)) {
+                return start;
+            }
+            i++;
+        }
+        return -1;
+    }
+
+    /**
+     * Compares the pattern with the buffer content starting at index start.
+     *
+     * @param buf The buffer to compare against
+     * @param start The absolute index in the buffer
+     * @param pat The pattern to compare
+     * @return True if every byte of the pattern matches
+     */
+    public static boolean regionMatches(final ByteBuffer buf, final int start,
+            final byte[] pat) {
+        for (int j = 0; j < pat.length; j++) {
+            if (buf.get(start + j) != pat[j]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Folds an ASCII upper case letter to lower case, any other byte is
+     * returned unchanged. The byte is looked up in a 256 entry table, so
+     * folding does not branch on the byte.
+     *
+     * @param b The byte to fold
+     * @return The folded byte
+     */
+    public static byte toLower(final byte b) {
+        return FOLD[b & BYTE_MASK];
+    }
+
+    /**
+     * @param b A byte
+     * @return True if the byte is an ASCII letter of either case
+     */
+    public static boolean isLetter(final byte b) {
+        final int lower = b | CASE_BIT;
+        return lower >= 'a' && lower <= 'z';
+    }
+
+    /**
+     * Returns the index of the first occurrence of the byte b in the range
+     * [from, to) of the buffer, ignoring ASCII case. The case bit is set in
+     * each word as it is read, which maps both cases of a letter, and only
+     * them, onto the lower case letter, so no folded copy of the text is
+     * made.
+     *
+     * @param buf The buffer to scan
+     * @param b The byte to look for, a letter must be lower case
+     * @param from The first index to inspect
+     * @param to The index after the last index to inspect
+     * @return The absolute index of the byte or -1 if not present
+     */
+    public static int indexOfIgnoreCase(final ByteBuffer buf, final byte b,
+            final int from, final int to) {
+
+        if (!isLetter(b)) {
+            return indexOf(buf, b, from, to);
+        }
+        final long pattern = ONES * (b & BYTE_MASK);
+        final boolean bigEndian = buf.order() == ByteOrder.BIG_ENDIAN;
+        int i = from;
+
+        for (final int last = to - WORD; i <= last; i += WORD) {
+            long hits = zeroBytes((buf.getLong(i) | CASE_BITS) ^ pattern);
+            if (hits != 0) {
+                int zeros = bigEndian ? Long.numberOfLeadingZeros(hits)
+                        : Long.numberOfTrailingZeros(hits);
+                return i + (zeros >>> BYTE_SHIFT);
+            }
+        }
+
+        for (; i < to; i++) {
+            if ((buf.get(i) | CASE_BIT) == b) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Returns the index of the first occurrence of the pattern in the range
+     * [from, to) of the buffer ignoring ASCII case, see
+     * indexOf(ByteBuffer, byte[], int, int, int).
+     *
+     * @param buf The buffer to scan
+     * @param pat The pattern to look for, with its letters in lower case
+     * @param anchor The offset of the pattern byte used to find candidates
+     * @param from The first index at which a match may start
+     * @param to The index after the last byte a match may occupy
+     * @return The absolute index of the start of the match or -1
+     */
+    public static int indexOfIgnoreCase(final ByteBuffer buf, final byte[] pat,
+            final int anchor, final int from, final int to) {
+
+        final int patLen = pat.length;
+        final byte anchorByte = pat[anchor];
+        final int lastStart = to - patLen;
+        int i = from + anchor;
+
+        while (i - anchor <= lastStart) {
+            i = indexOfIgnoreCase(buf, anchorByte, i, lastStart + anchor + 1);
+            if (i < 0) {
+                return -1;
+            }
+            final int start = i - anchor;
+            if (regionMatchesIgnoreCase(buf, start, pat)) {
+                return start;
+            }
+            i++;
+        }
+        return -1;
+    }
+
+    /**
+     * Compares the pattern with the buffer content starting at index start,
+     * folding the content through the table of toLower as it is read.
+     *
+     * @param buf The buffer to compare against
+     * @param start The absolute index in the buffer
+     * @param pat The pattern to compare, with its letters in lower case
+     * @return True if every byte of the pattern matches
+     */
+    public static boolean regionMatchesIgnoreCase(final ByteBuffer buf, final int start,
+            final byte[] pat) {
+        for (int j = 0; j < pat.length; j++) {
+            if (FOLD[buf.get(start + j) & BYTE_MASK] != pat[j]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Selects the offset of the pattern byte that is least likely to occur in
+     * text, scanning for a rare byte yields far fewer false candidates than
+     * scanning for the first byte (e.g. the 'q' in "quux" rather than a space).
+     *
+     * @param pat The search pattern
+     * @return The offset within the pattern of the rarest byte
+     */
+    public static int rareByteOffset(final byte[] pat) {
+        int best = 0;
+        for (int i = 1; i < pat.length; i++) {
+            if (RANK[pat[i] & BYTE_MASK] > RANK[pat[best] & BYTE_MASK]) {
+                best = i;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Sets the high bit of every byte in the word that is zero and clears all
+     * other bits. Unlike the common (x - 0x01..) &amp; ~x variant this does not
+     * propagate a borrow between bytes, so the result is exact for both byte
+     * orders.
+     */
+    private static long zeroBytes(final long x) {
+        return ~(((x & LOW7) + LOW7) | x | LOW7);
+    }
+}
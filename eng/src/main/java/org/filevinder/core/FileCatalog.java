@@ -0,0 +1,332 @@
+/*
+ * Copyright (C) 2017 Gregory Clarke
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.filevinder.core;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The files an index was built from, persisted alongside the index, see
+ * pathFor. Each entry records the file's id, size, modification time and a
+ * hash of its content, so that an update need only read files whose size or
+ * modification time changed, and only re-index those whose content changed,
+ * see IndexUpdater.
+ *
+ * The hash is the first 64 bits of the SHA-256 of the content. An edit that
+ * keeps the size and hash of a file is never indexed, so the hash is wide
+ * enough that this is not expected to happen by chance, as it might with a
+ * 32 bit checksum across many edits of many files.
+ *
+ * A deleted file is kept as a tombstone until the update commits a segment
+ * masking its postings, see SegmentedIndex.commit.
+ *
+ * @author Gregory Clarke
+ */
+public final class FileCatalog {
+
+    /**
+     * Appended to the name of an index file to name its catalog.
+     */
+    public static final String SUFFIX = ".cat";
+
+    /**
+     * The name of the catalog in the directory of a segmented index.
+     */
+    public static final String CATALOG = "files" + SUFFIX;
+
+    private static final int MAGIC = 0x46564354;
+    private static final int VERSION = 3;
+    private static final int CRC_VERSION = 2;
+    private static final int HASH_BUFFER = 1 << 16;
+    private static final ThreadLocal<MessageDigest> DIGESTS = ThreadLocal.withInitial(() -> {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    });
+
+    private final Map<Path, Entry> entries = new ConcurrentHashMap<>();
+
+    /**
+     * The details recorded for one file.
+     */
+    public static final class Entry {
+
+        private final int fileId;
+        private final long size;
+        private final long modified;
+        private final long hash;
+        private final boolean deleted;
+
+        private Entry(final int fileIdVar, final long sizeVar, final long modifiedVar,
+                final long hashVar, final boolean deletedVar) {
+            fileId = fileIdVar;
+            size = sizeVar;
+            modified = modifiedVar;
+            hash = hashVar;
+            deleted = deletedVar;
+        }
+
+        /**
+         * @return the file id
+         */
+        public int getFileId() {
+            return fileId;
+        }
+
+        /**
+         * @return the file size in bytes
+         */
+        public long getSize() {
+            return size;
+        }
+
+        /**
+         * @return the modification time in milliseconds since the epoch
+         */
+        public long getModified() {
+            return modified;
+        }
+
+        /**
+         * @return the hash of the file content, see hash
+         */
+        public long getHash() {
+            return hash;
+        }
+
+        /**
+         * @return true if the file has been deleted
+         */
+        public boolean isDeleted() {
+            return deleted;
+        }
+    }
+
+    /**
+     * @param indexFile An index file, or the directory of a segmented index
+     * which holds its catalog, see SegmentedIndex
+     * @return The catalog file of the index
+     */
+    public static Path pathFor(final Path indexFile) {
+        if (Files.isDirectory(indexFile)) {
+            return indexFile.resolve(CATALOG);
+        }
+        return indexFile.resolveSibling(indexFile.getFileName() + SUFFIX);
+    }
+
+    /**
+     * Reads a catalog file, a missing file reads as an empty catalog. A
+     * catalog written with 32 bit checksums is read with its checksums as
+     * hashes, these do not match the hash of any content, so each file is
+     * re-indexed once it is next touched.
+     *
+     * @param catalogFile The file to read
+     * @return The catalog
+     * @throws IOException on error, or if the file is not a catalog
+     */
+    public static FileCatalog load(final Path catalogFile) throws IOException {
+        FileCatalog catalog = new FileCatalog();
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(catalogFile)))) {
+            final int magic = in.readInt();
+            final int version = in.readInt();
+            if (magic != MAGIC || version != VERSION && version != CRC_VERSION) {
+                throw new IOException("Not a version " + VERSION + " catalog file: " + catalogFile);
+            }
+            String previous = "";
+            for (int i = in.readInt(); i > 0; i--) {
+                previous = FrontCoder.read(in, previous);
+                catalog.entries.put(Paths.get(previous), new Entry(in.readInt(), in.readLong(), in.readLong(),
+                        version == VERSION ? in.readLong() : in.readInt(), in.readBoolean()));
+            }
+        } catch (NoSuchFileException e) {
+            return catalog;
+        }
+        return catalog;
+    }
+
+    /**
+     * Writes the catalog to a temporary file which then replaces the
+     * catalog file, so a failed write leaves the previous catalog intact.
+     *
+     * @param catalogFile The file to write
+     * @throws IOException on error
+     */
+    public void save(final Path catalogFile) throws IOException {
+        Path tmp = catalogFile.resolveSibling(catalogFile.getFileName() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            List<Map.Entry<String, Entry>> snapshot = new ArrayList<>();
+            entries.forEach((path, entry) -> snapshot.add(Map.entry(path.toString(), entry)));
+            snapshot.sort(Map.Entry.comparingByKey());
+            out.writeInt(snapshot.size());
+            String previous = "";
+            for (Map.Entry<String, Entry> e : snapshot) {
+                Entry entry = e.getValue();
+                FrontCoder.write(out, previous, e.getKey());
+                previous = e.getKey();
+                out.writeInt(entry.fileId);
+                out.writeLong(entry.size);
+                out.writeLong(entry.modified);
+                out.writeLong(entry.hash);
+                out.writeBoolean(entry.deleted);
+            }
+        }
+        Files.move(tmp, catalogFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * @param path A file path, as recorded
+     * @return The entry for the file, or null if it is not recorded
+     */
+    public Entry get(final Path path) {
+        return entries.get(path);
+    }
+
+    /**
+     * Records the details of a file, replacing any previous entry.
+     *
+     * @param path The file path
+     * @param fileId The file id
+     * @param size The file size in bytes
+     * @param modified The modification time in milliseconds since the epoch
+     * @param hash The hash of the file content, see hash
+     */
+    public void put(final Path path, final int fileId, final long size, final long modified, final long hash) {
+        entries.put(path, new Entry(fileId, size, modified, hash, false));
+    }
+
+    /**
+     * Marks a file as deleted.
+     *
+     * @param path The file path
+     * @return The id of the file, or -1 if it is not recorded
+     */
+    public int tombstone(final Path path) {
+        Entry entry = entries.computeIfPresent(path, (p, e) -> new Entry(e.fileId, e.size, e.modified, e.hash, true));
+        return entry == null ? -1 : entry.fileId;
+    }
+
+    /**
+     * Drops the tombstones, once the index masks their postings.
+     *
+     * @return The paths of the deleted files
+     */
+    public List<Path> purgeTombstones() {
+        List<Path> purged = new ArrayList<>();
+        entries.forEach((path, entry) -> {
+            if (entry.deleted && entries.remove(path, entry)) {
+                purged.add(path);
+            }
+        });
+        return purged;
+    }
+
+    /**
+     * @return The paths of the files that have not been deleted
+     */
+    public List<Path> livePaths() {
+        List<Path> paths = new ArrayList<>();
+        entries.forEach((path, entry) -> {
+            if (!entry.deleted) {
+                paths.add(path);
+            }
+        });
+        return paths;
+    }
+
+    /**
+     * @return The ids of the deleted files
+     */
+    public List<Integer> tombstones() {
+        List<Integer> ids = new ArrayList<>();
+        entries.forEach((path, entry) -> {
+            if (entry.deleted) {
+                ids.add(entry.fileId);
+            }
+        });
+        return ids;
+    }
+
+    /**
+     * Registers the id of every file that has not been deleted, so that the
+     * ids held in the index resolve to their paths. A file whose id the map
+     * holds for another file, or which the map holds under another id, is
+     * not registered, see FileIdMap.register.
+     *
+     * @param fileIds The map to register the files with
+     * @return The files that were not registered
+     */
+    public List<Path> register(final FileIdMap fileIds) {
+        List<Path> refused = new ArrayList<>();
+        entries.forEach((path, entry) -> {
+            if (!entry.deleted && !fileIds.register(path, entry.fileId)) {
+                refused.add(path);
+            }
+        });
+        return refused;
+    }
+
+    /**
+     * Hashes a file as a stream, see hash(byte[]).
+     *
+     * @param file The file
+     * @return The hash of the file's content
+     * @throws IOException on error
+     */
+    public static long hash(final Path file) throws IOException {
+        MessageDigest digest = DIGESTS.get();
+        digest.reset();
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            ByteBuffer buf = ByteBuffer.allocate(HASH_BUFFER);
+            while (channel.read(buf) >= 0) {
+                digest.update(buf.flip());
+                buf.clear();
+            }
+        }
+        return ByteBuffer.wrap(digest.digest()).getLong();
+    }
+
+    /**
+     * @param content File content
+     * @return The first 64 bits of the SHA-256 of the content
+     */
+    public static long hash(final byte[] content) {
+        MessageDigest digest = DIGESTS.get();
+        digest.reset();
+        return ByteBuffer.wrap(digest.digest(content)).getLong();
+    }
+}
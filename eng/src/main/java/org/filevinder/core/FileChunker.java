@@ -0,0 +1,179 @@
+/*
+ * Copyright (C) 2017 Gregory Clarke
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.filevinder.core;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import static java.nio.channels.FileChannel.MapMode.READ_ONLY;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.function.Consumer;
+import org.filevinder.common.Utils;
+import static org.filevinder.core.ErrorHandler.recordErr;
+import org.filevinder.types.Chunk;
+
+/**
+ * Streams files to be indexed as Chunks of raw bytes, so that the memory
+ * used to read a file does not depend on its size. A file is cut into
+ * windows of a fixed size, each read through a mapping of the window which
+ * is released before the next is mapped. Every chunk but the last carries
+ * OVERLAP bytes beyond its window, so that the trigrams starting in a
+ * window are all held by its chunk, and each trigram is held by exactly one
+ * chunk, see InMemoryIndex.mergeIndex. A file that fits in one window is
+ * read without being mapped.
+ *
+ * Positions are ints, so a file larger than RANGE_SIZE bytes is indexed as
+ * a series of ranges of that size, each chunked as above with positions
+ * counted from the start of its range. Consecutive ranges overlap by
+ * RANGE_OVERLAP bytes, so a pattern no longer than that is wholly within
+ * one range wherever it occurs. The positions of such a file are ambiguous,
+ * which the index only uses to narrow the files that are read.
+ *
+ * @author Gregory Clarke
+ */
+public final class FileChunker {
+
+    /**
+     * The default window size in bytes.
+     */
+    public static final int WINDOW_SIZE = 16 * 1024 * 1024;
+
+    /**
+     * The bytes each chunk repeats of the next window.
+     */
+    public static final int OVERLAP = Trigrams.SIZE - 1;
+
+    /**
+     * The default bytes of a file indexed with positions from its start, the
+     * positions of larger files repeat for each range.
+     */
+    public static final int RANGE_SIZE = Integer.MAX_VALUE;
+
+    /**
+     * The bytes each range repeats of the next, or half a range if less.
+     */
+    public static final int RANGE_OVERLAP = 1 << 20;
+
+    private final int windowSize;
+    private final int rangeSize;
+
+    /**
+     * Constructs a chunker with windows of WINDOW_SIZE bytes.
+     */
+    public FileChunker() {
+        this(WINDOW_SIZE);
+    }
+
+    /**
+     * @param windowSizeVar The bytes in each window
+     */
+    public FileChunker(final int windowSizeVar) {
+        this(windowSizeVar, RANGE_SIZE);
+    }
+
+    /**
+     * @param windowSizeVar The bytes in each window
+     * @param rangeSizeVar The bytes of a file indexed with positions from
+     * its start, see RANGE_SIZE
+     */
+    public FileChunker(final int windowSizeVar, final int rangeSizeVar) {
+        if (windowSizeVar < 1 || windowSizeVar > Integer.MAX_VALUE - OVERLAP) {
+            throw new IllegalArgumentException("Invalid window size: " + windowSizeVar);
+        }
+        if (rangeSizeVar < 2 * Trigrams.SIZE) {
+            throw new IllegalArgumentException("Invalid range size: " + rangeSizeVar);
+        }
+        windowSize = windowSizeVar;
+        rangeSize = rangeSizeVar;
+    }
+
+    /**
+     * @return The bytes in each window
+     */
+    public int getWindowSize() {
+        return windowSize;
+    }
+
+    /**
+     * @return The bytes of a file indexed with positions from its start
+     */
+    public int getRangeSize() {
+        return rangeSize;
+    }
+
+    /**
+     * Passes the chunks of a file to the sink in file order. Files that are
+     * not valid text (see Utils.validateFile) or cannot be read are
+     * skipped.
+     *
+     * @param path The file to read
+     * @param charset The character set of the file's content
+     * @param sink Receives each chunk
+     * @return False if the file was skipped, if the file could not be read
+     * after the first chunk some chunks will have been passed to the sink
+     */
+    public boolean read(final Path path, final Charset charset, final Consumer<Chunk> sink) {
+        if (!Utils.validateFile(path, charset)) {
+            return false;
+        }
+
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            final long size = channel.size();
+            final int fileId = FileIdMap.getInstance().getFileId(path);
+            if (size <= Math.min(windowSize, rangeSize)) {
+                sink.accept(new Chunk(Files.readAllBytes(path), 0, fileId));
+                return true;
+            }
+
+            final int stride = rangeSize - Math.min(RANGE_OVERLAP, rangeSize / 2);
+            for (long range = 0;; range += stride) {
+                final long end = Math.min(size, range + rangeSize);
+                readRange(channel, range, end, fileId, sink);
+                if (end == size) {
+                    break;
+                }
+            }
+            return true;
+
+        } catch (IOException ioe) {
+            recordErr("Error reading file " + path, ioe);
+            return false;
+        }
+    }
+
+    //passes the windows of the range [range, end) with positions from the start of the range
+    private void readRange(final FileChannel channel, final long range, final long end, final int fileId,
+            final Consumer<Chunk> sink) throws IOException {
+        for (long start = range; start < end; start += windowSize) {
+            final int len = (int) Math.min(end - start, (long) windowSize + OVERLAP);
+            byte[] bytes = new byte[len];
+            MappedByteBuffer window = channel.map(READ_ONLY, start, len);
+            try {
+                window.get(bytes);
+            } finally {
+                SearchImpl.closeDirectBuffer(window);
+            }
+            sink.accept(new Chunk(bytes, (int) (start - range), fileId));
+            if (start + len == end) {
+                break;
+            }
+        }
+    }
+}
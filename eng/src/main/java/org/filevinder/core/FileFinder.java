@@ -51,6 +51,34 @@ public final class FileFinder {
         return finder.matches;
     }
 
+    /**
+     * Lists a folder and its subfolders.
+     *
+     * @param rootDir The root folder
+     * @return The folders, parents before their subfolders
+     * @throws IOException if FS error occurs
+     */
+    public List<Path> findDirectories(final Path rootDir) throws IOException {
+        List<Path> dirs = new ArrayList<>();
+        Files.walkFileTree(rootDir, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult preVisitDirectory(final Path dir,
+                    final BasicFileAttributes attrs) {
+                dirs.add(dir);
+                return CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFileFailed(final Path file,
+                    final IOException exc) {
+                err.println("Error occured in Finder");
+                exc.printStackTrace(err);
+                return CONTINUE;
+            }
+        });
+        return dirs;
+    }
+
     /**
      * An implementation of the visitor from the visitor pattern.
      * A matcher is used to filter file names using the specified GLOB.
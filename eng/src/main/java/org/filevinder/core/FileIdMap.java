@@ -16,19 +16,54 @@
  */
 package org.filevinder.core;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
 /**
  * A map of file ID's to file paths for use in he posting list index where
  * file ID's are stored alongside the trigram/ location data.
+ *
+ * IDs are dense, from a counter, and the paths are held in an array indexed
+ * by ID so that results are resolved to paths in constant time. The IDs of
+ * deleted files are reused once no index holds their postings, see
+ * release. The map is saved alongside index files so their IDs can be
+ * resolved by another process, see save.
+ *
+ * IDs are only unique within the process that assigned them, so the IDs of
+ * an index written by another process are resolved with a map of their own,
+ * see create and load, and a mapping is never rebound to another file.
  * @author Gregory Clarke
  */
 public final class FileIdMap {
 
+    /**
+     * Appended to the name of an index file to name its saved ID map.
+     */
+    public static final String SUFFIX = ".ids";
+
+    private static final int MAGIC = 0x46564944;
+    private static final int VERSION = 1;
+    private static final int INITIAL_CAPACITY = 1024;
+
     private static final FileIdMap SINGLETON = new FileIdMap();
     private final Map<Path, Integer> fileId;
+    private final AtomicInteger lastId = new AtomicInteger();
+    private volatile AtomicReferenceArray<Path> paths = new AtomicReferenceArray<>(INITIAL_CAPACITY);
+    private final BitSet free = new BitSet();
 
     private FileIdMap() {
         fileId = new ConcurrentHashMap<>();
@@ -38,15 +73,114 @@ public final class FileIdMap {
         return SINGLETON;
     }
 
+    /**
+     * @return An empty map of its own, not shared with getInstance, e.g. to
+     * resolve the IDs saved with one index, see load
+     */
+    public static FileIdMap create() {
+        return new FileIdMap();
+    }
+
+    /**
+     * @param indexFile An index file
+     * @return The file the ID map is saved to alongside the index file
+     */
+    public static Path pathFor(final Path indexFile) {
+        return indexFile.resolveSibling(indexFile.getFileName() + SUFFIX);
+    }
+
     /**
      * Returns the ID matching the specified file path.
      * Getting the ID is he more frequent operation, hence Path is used as the key.
+     * New IDs come from a counter so that files indexed concurrently never
+     * share an ID, the lowest released ID is used first.
      * @param path The path to the file
      * @return The Id matching the file
      */
     public Integer getFileId(final Path path) {
-        fileId.putIfAbsent(path, fileId.size() + 1);
-        return fileId.get(path);
+        return fileId.computeIfAbsent(path, this::allocate);
+    }
+
+    //called while the map holds the path's bin, so must not update the map
+    private synchronized int allocate(final Path path) {
+        int id = free.nextSetBit(1);
+        if (id < 0) {
+            id = lastId.incrementAndGet();
+        } else {
+            free.clear(id);
+        }
+        store(id, path);
+        return id;
+    }
+
+    private void store(final int id, final Path path) {
+        AtomicReferenceArray<Path> current = paths;
+        if (id >= current.length()) {
+            AtomicReferenceArray<Path> grown = new AtomicReferenceArray<>(Math.max(id + 1, current.length() * 2));
+            for (int i = 0; i < current.length(); i++) {
+                grown.set(i, current.get(i));
+            }
+            paths = grown;
+            current = grown;
+        }
+        current.set(id, path);
+    }
+
+    /**
+     * Maps the file to an ID assigned earlier, e.g. by a previous process as
+     * recorded in a FileCatalog. New IDs will be greater than the ID. The
+     * mapping is refused if the ID is mapped to another file or the file to
+     * another ID, e.g. by an index written by another process.
+     * @param path The path to the file
+     * @param fid The file ID
+     * @return false if the file or ID was mapped already to another
+     */
+    public boolean register(final Path path, final int fid) {
+        synchronized (this) {
+            Path mapped = getPath(fid);
+            Integer previous = fileId.get(path);
+            if (mapped != null && !mapped.equals(path) || previous != null && previous != fid) {
+                return false;
+            }
+            store(fid, path);
+            free.clear(fid);
+            lastId.accumulateAndGet(fid, Math::max);
+        }
+        //outside the lock, as getFileId locks the map's bin then this, the
+        //file may have been given an id since it was checked
+        Integer previous = fileId.putIfAbsent(path, fid);
+        if (previous != null && previous != fid) {
+            synchronized (this) {
+                paths.compareAndSet(fid, path, null);
+            }
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Unmaps a deleted file. Its ID is not reused until released, as indexes
+     * may still hold its postings.
+     * @param path The path to the file
+     */
+    public void remove(final Path path) {
+        Integer id = fileId.remove(path);
+        if (id != null) {
+            synchronized (this) {
+                paths.compareAndSet(id, path, null);
+            }
+        }
+    }
+
+    /**
+     * Allows the ID of a removed file to be reused, once no index holds
+     * postings for it. IDs still mapped to a file are not released.
+     * @param fid The file ID
+     */
+    public synchronized void release(final int fid) {
+        if (fid > 0 && fid <= lastId.get() && getPath(fid) == null) {
+            free.set(fid);
+        }
     }
 
     /**
@@ -55,11 +189,65 @@ public final class FileIdMap {
      * @return The path mapped to the ID
      */
     public Path getPath(final Integer fid) {
-        for (Map.Entry<Path, Integer> entry : fileId.entrySet()) {
-            if (entry.getValue().equals(fid)) {
-                return entry.getKey();
+        AtomicReferenceArray<Path> current = paths;
+        return fid != null && fid >= 0 && fid < current.length() ? current.get(fid) : null;
+    }
+
+    /**
+     * Writes the mappings of some IDs, e.g. those held by an index, to a
+     * temporary file which then replaces the file. The paths are sorted and
+     * front coded, so the folders they share are written once.
+     * @param file The file to write, see pathFor
+     * @param ids The IDs to write, unmapped IDs are skipped
+     * @throws IOException on error
+     */
+    public void save(final Path file, final BitSet ids) throws IOException {
+        List<Map.Entry<String, Integer>> entries = new ArrayList<>();
+        ids.stream().forEach(id -> {
+            Path path = getPath(id);
+            if (path != null) {
+                entries.add(Map.entry(path.toString(), id));
+            }
+        });
+        entries.sort(Map.Entry.comparingByKey());
+
+        Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(entries.size());
+            String previous = "";
+            for (Map.Entry<String, Integer> entry : entries) {
+                FrontCoder.write(out, previous, entry.getKey());
+                out.writeInt(entry.getValue());
+                previous = entry.getKey();
+            }
+        }
+        Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Registers every mapping saved to a file, see save and register. The
+     * IDs saved by another process should be loaded into a map of their own,
+     * see create.
+     * @param file The file to read
+     * @throws IOException on error, if the file is not an ID map, or if it
+     * maps a file or ID that is mapped already to another
+     */
+    public void load(final Path file) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                throw new IOException("Not a version " + VERSION + " file id map: " + file);
+            }
+            String previous = "";
+            for (int i = in.readInt(); i > 0; i--) {
+                previous = FrontCoder.read(in, previous);
+                final int fid = in.readInt();
+                if (!register(Paths.get(previous), fid)) {
+                    throw new IOException("File id " + fid + " of " + previous + " in " + file
+                            + " is mapped already");
+                }
             }
         }
-        return null;
     }
 }
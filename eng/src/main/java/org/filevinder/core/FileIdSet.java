@@ -0,0 +1,557 @@
+/*
+ * Copyright (C) 2017 Gregory Clarke
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.filevinder.core;
+
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.function.IntConsumer;
+
+/**
+ * A compressed set of file ids in the manner of a roaring bitmap. Ids are
+ * split on their high 16 bits into containers, in key order, each holding
+ * the low 16 bits of its ids either as a sorted array, while there are at
+ * most ARRAY_MAX of them, or as a bitmap of 65536 bits. So a sparse set
+ * takes two bytes per id and a dense set a bit per id, and AND, OR and
+ * ANDNOT work a container at a time, on words where both sides are bitmaps.
+ *
+ * The index holds the set of files of each trigram alongside its postings,
+ * see IndexFormat, for queries that need only the files holding a trigram
+ * and not its positions.
+ *
+ * Ids are compared as unsigned ints. An instance is not thread safe.
+ *
+ * @author Gregory Clarke
+ */
+public final class FileIdSet {
+
+    /**
+     * The most ids held in an array container, at which it is as large as a
+     * bitmap container.
+     */
+    private static final int ARRAY_MAX = 4096;
+
+    private static final int KEY_SHIFT = 16;
+    private static final int LOW_MASK = 0xFFFF;
+    private static final int CONTAINER_IDS = 1 << KEY_SHIFT;
+    private static final int WORDS = CONTAINER_IDS / Long.SIZE;
+    private static final int WORD_SHIFT = 6;
+    private static final int INITIAL_CAPACITY = 4;
+
+    private char[] keys;
+    private char[][] arrays;
+    private long[][] bitmaps;
+    private int[] counts;
+    private int size;
+
+    /**
+     * Creates an empty set.
+     */
+    public FileIdSet() {
+        this(INITIAL_CAPACITY);
+    }
+
+    private FileIdSet(final int capacity) {
+        final int n = Math.max(capacity, 1);
+        keys = new char[n];
+        arrays = new char[n][];
+        bitmaps = new long[n][];
+        counts = new int[n];
+    }
+
+    /**
+     * Adds an id, adding ids in ascending order is fastest.
+     *
+     * @param id The file id
+     */
+    public void add(final int id) {
+        final char key = (char) (id >>> KEY_SHIFT);
+        final char low = (char) (id & LOW_MASK);
+        int c = size > 0 && keys[size - 1] == key ? size - 1 : find(key);
+        if (c < 0) {
+            c = -c - 1;
+            insert(c, key, new char[INITIAL_CAPACITY], null, 0);
+        }
+
+        if (bitmaps[c] != null) {
+            final long bit = 1L << low;
+            if ((bitmaps[c][low >>> WORD_SHIFT] & bit) == 0) {
+                bitmaps[c][low >>> WORD_SHIFT] |= bit;
+                counts[c]++;
+            }
+            return;
+        }
+
+        final int n = counts[c];
+        int at = n > 0 && arrays[c][n - 1] < low ? -n - 1 : Arrays.binarySearch(arrays[c], 0, n, low);
+        if (at >= 0) {
+            return;
+        }
+        if (n == ARRAY_MAX) {
+            bitmaps[c] = toBitmap(arrays[c], n);
+            arrays[c] = null;
+            add(id);
+            return;
+        }
+        at = -at - 1;
+        if (n == arrays[c].length) {
+            arrays[c] = Arrays.copyOf(arrays[c], Math.min(ARRAY_MAX, n * 2));
+        }
+        System.arraycopy(arrays[c], at, arrays[c], at + 1, n - at);
+        arrays[c][at] = low;
+        counts[c] = n + 1;
+    }
+
+    /**
+     * @param id The file id
+     * @return True if the set holds the id
+     */
+    public boolean contains(final int id) {
+        final int c = find((char) (id >>> KEY_SHIFT));
+        if (c < 0) {
+            return false;
+        }
+        final char low = (char) (id & LOW_MASK);
+        if (bitmaps[c] != null) {
+            return (bitmaps[c][low >>> WORD_SHIFT] & 1L << low) != 0;
+        }
+        return Arrays.binarySearch(arrays[c], 0, counts[c], low) >= 0;
+    }
+
+    /**
+     * @return The number of ids in the set
+     */
+    public long cardinality() {
+        long n = 0;
+        for (int c = 0; c < size; c++) {
+            n += counts[c];
+        }
+        return n;
+    }
+
+    /**
+     * @return True if the set holds no ids
+     */
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * Passes every id to the consumer, in ascending order.
+     *
+     * @param consumer Receives the ids
+     */
+    public void forEach(final IntConsumer consumer) {
+        for (int c = 0; c < size; c++) {
+            final int base = keys[c] << KEY_SHIFT;
+            if (bitmaps[c] != null) {
+                for (int w = 0; w < WORDS; w++) {
+                    long word = bitmaps[c][w];
+                    while (word != 0) {
+                        consumer.accept(base | w << WORD_SHIFT | Long.numberOfTrailingZeros(word));
+                        word &= word - 1;
+                    }
+                }
+            } else {
+                for (int i = 0; i < counts[c]; i++) {
+                    consumer.accept(base | arrays[c][i]);
+                }
+            }
+        }
+    }
+
+    /**
+     * @return The ids in ascending order
+     */
+    public int[] toArray() {
+        int[] ids = new int[Math.toIntExact(cardinality())];
+        int[] n = {0};
+        forEach(id -> ids[n[0]++] = id);
+        return ids;
+    }
+
+    /**
+     * @param a A set
+     * @param b A set
+     * @return A new set of the ids held by both a and b
+     */
+    public static FileIdSet and(final FileIdSet a, final FileIdSet b) {
+        FileIdSet out = new FileIdSet(Math.min(a.size, b.size));
+        int i = 0;
+        int j = 0;
+        while (i < a.size && j < b.size) {
+            if (a.keys[i] < b.keys[j]) {
+                i++;
+            } else if (a.keys[i] > b.keys[j]) {
+                j++;
+            } else {
+                if (a.bitmaps[i] != null && b.bitmaps[j] != null) {
+                    long[] words = new long[WORDS];
+                    int n = 0;
+                    for (int w = 0; w < WORDS; w++) {
+                        words[w] = a.bitmaps[i][w] & b.bitmaps[j][w];
+                        n += Long.bitCount(words[w]);
+                    }
+                    out.append(a.keys[i], null, words, n);
+                } else if (a.bitmaps[i] != null) {
+                    out.append(a.keys[i], filter(b.arrays[j], b.counts[j], a.bitmaps[i], true));
+                } else if (b.bitmaps[j] != null) {
+                    out.append(a.keys[i], filter(a.arrays[i], a.counts[i], b.bitmaps[j], true));
+                } else {
+                    out.append(a.keys[i], intersect(a.arrays[i], a.counts[i], b.arrays[j], b.counts[j]));
+                }
+                i++;
+                j++;
+            }
+        }
+        return out;
+    }
+
+    /**
+     * @param a A set
+     * @param b A set
+     * @return A new set of the ids held by either a or b
+     */
+    public static FileIdSet or(final FileIdSet a, final FileIdSet b) {
+        FileIdSet out = new FileIdSet(a.size + b.size);
+        int i = 0;
+        int j = 0;
+        while (i < a.size || j < b.size) {
+            if (j == b.size || i < a.size && a.keys[i] < b.keys[j]) {
+                out.copy(a, i++);
+            } else if (i == a.size || a.keys[i] > b.keys[j]) {
+                out.copy(b, j++);
+            } else {
+                if (a.bitmaps[i] != null || b.bitmaps[j] != null) {
+                    long[] words = a.bitmaps[i] != null ? a.bitmaps[i].clone() : toBitmap(a.arrays[i], a.counts[i]);
+                    int n = 0;
+                    if (b.bitmaps[j] != null) {
+                        for (int w = 0; w < WORDS; w++) {
+                            words[w] |= b.bitmaps[j][w];
+                            n += Long.bitCount(words[w]);
+                        }
+                    } else {
+                        n = a.counts[i];
+                        for (int k = 0; k < b.counts[j]; k++) {
+                            final char low = b.arrays[j][k];
+                            final long bit = 1L << low;
+                            if ((words[low >>> WORD_SHIFT] & bit) == 0) {
+                                words[low >>> WORD_SHIFT] |= bit;
+                                n++;
+                            }
+                        }
+                    }
+                    out.append(a.keys[i], null, words, n);
+                } else {
+                    out.append(a.keys[i], union(a.arrays[i], a.counts[i], b.arrays[j], b.counts[j]));
+                }
+                i++;
+                j++;
+            }
+        }
+        return out;
+    }
+
+    /**
+     * @param a A set
+     * @param b A set
+     * @return A new set of the ids held by a and not by b
+     */
+    public static FileIdSet andNot(final FileIdSet a, final FileIdSet b) {
+        FileIdSet out = new FileIdSet(a.size);
+        int j = 0;
+        for (int i = 0; i < a.size; i++) {
+            while (j < b.size && b.keys[j] < a.keys[i]) {
+                j++;
+            }
+            if (j == b.size || b.keys[j] != a.keys[i]) {
+                out.copy(a, i);
+            } else if (a.bitmaps[i] != null) {
+                long[] words = a.bitmaps[i].clone();
+                int n = 0;
+                if (b.bitmaps[j] != null) {
+                    for (int w = 0; w < WORDS; w++) {
+                        words[w] &= ~b.bitmaps[j][w];
+                        n += Long.bitCount(words[w]);
+                    }
+                } else {
+                    n = a.counts[i];
+                    for (int k = 0; k < b.counts[j]; k++) {
+                        final char low = b.arrays[j][k];
+                        final long bit = 1L << low;
+                        if ((words[low >>> WORD_SHIFT] & bit) != 0) {
+                            words[low >>> WORD_SHIFT] &= ~bit;
+                            n--;
+                        }
+                    }
+                }
+                out.append(a.keys[i], null, words, n);
+            } else if (b.bitmaps[j] != null) {
+                out.append(a.keys[i], filter(a.arrays[i], a.counts[i], b.bitmaps[j], false));
+            } else {
+                out.append(a.keys[i], difference(a.arrays[i], a.counts[i], b.arrays[j], b.counts[j]));
+            }
+        }
+        return out;
+    }
+
+    /**
+     * Writes the set as its container count (int) then each container as its
+     * key (char), id count (int) and either the sorted low bits (chars) or,
+     * above ARRAY_MAX ids, the bitmap (longs).
+     *
+     * @param out The destination
+     * @throws IOException on error
+     */
+    public void write(final DataOutput out) throws IOException {
+        out.writeInt(size);
+        for (int c = 0; c < size; c++) {
+            out.writeChar(keys[c]);
+            out.writeInt(counts[c]);
+            if (bitmaps[c] != null) {
+                for (long word : bitmaps[c]) {
+                    out.writeLong(word);
+                }
+            } else {
+                for (int i = 0; i < counts[c]; i++) {
+                    out.writeChar(arrays[c][i]);
+                }
+            }
+        }
+    }
+
+    /**
+     * Reads a set written by write from the buffer position.
+     *
+     * @param in The source
+     * @return The set
+     * @throws IOException if the set is not valid
+     */
+    public static FileIdSet read(final ByteBuffer in) throws IOException {
+        try {
+            final int containers = in.getInt();
+            if (containers < 0 || containers > CONTAINER_IDS) {
+                throw new IOException("Corrupt file id set");
+            }
+            FileIdSet set = new FileIdSet(containers);
+            for (int c = 0; c < containers; c++) {
+                final char key = in.getChar();
+                final int n = in.getInt();
+                if (n < 1 || n > CONTAINER_IDS || c > 0 && key <= set.keys[c - 1]) {
+                    throw new IOException("Corrupt file id set");
+                }
+                if (n > ARRAY_MAX) {
+                    long[] words = new long[WORDS];
+                    in.asLongBuffer().get(words);
+                    in.position(in.position() + WORDS * Long.BYTES);
+                    int bits = 0;
+                    for (long word : words) {
+                        bits += Long.bitCount(word);
+                    }
+                    if (bits != n) {
+                        throw new IOException("Corrupt file id set");
+                    }
+                    set.append(key, null, words, n);
+                } else {
+                    char[] values = new char[n];
+                    in.asCharBuffer().get(values);
+                    in.position(in.position() + n * Character.BYTES);
+                    set.append(key, values, null, n);
+                }
+            }
+            return set;
+        } catch (BufferUnderflowException e) {
+            throw new IOException("Truncated file id set", e);
+        }
+    }
+
+    @Override
+    public boolean equals(final Object o) {
+        if (!(o instanceof FileIdSet)) {
+            return false;
+        }
+        FileIdSet other = (FileIdSet) o;
+        if (size != other.size) {
+            return false;
+        }
+        for (int c = 0; c < size; c++) {
+            if (keys[c] != other.keys[c] || counts[c] != other.counts[c]
+                    || !(bitmaps[c] != null ? Arrays.equals(bitmaps[c], other.bitmaps[c])
+                    : Arrays.equals(arrays[c], 0, counts[c], other.arrays[c], 0, counts[c]))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public int hashCode() {
+        int[] hash = {1};
+        forEach(id -> hash[0] = 31 * hash[0] + id);
+        return hash[0];
+    }
+
+    @Override
+    public String toString() {
+        return Arrays.toString(toArray());
+    }
+
+    private int find(final char key) {
+        return Arrays.binarySearch(keys, 0, size, key);
+    }
+
+    private void insert(final int c, final char key, final char[] values, final long[] words, final int n) {
+        if (size == keys.length) {
+            final int capacity = Math.min(size * 2, CONTAINER_IDS);
+            keys = Arrays.copyOf(keys, capacity);
+            arrays = Arrays.copyOf(arrays, capacity);
+            bitmaps = Arrays.copyOf(bitmaps, capacity);
+            counts = Arrays.copyOf(counts, capacity);
+        }
+        System.arraycopy(keys, c, keys, c + 1, size - c);
+        System.arraycopy(arrays, c, arrays, c + 1, size - c);
+        System.arraycopy(bitmaps, c, bitmaps, c + 1, size - c);
+        System.arraycopy(counts, c, counts, c + 1, size - c);
+        keys[c] = key;
+        arrays[c] = values;
+        bitmaps[c] = words;
+        counts[c] = n;
+        size++;
+    }
+
+    //appends a container after the last, in the form its count calls for
+    private void append(final char key, final char[] values, final long[] words, final int n) {
+        if (n == 0) {
+            return;
+        }
+        if (words != null && n <= ARRAY_MAX) {
+            insert(size, key, toArray(words, n), null, n);
+        } else if (values != null && n > ARRAY_MAX) {
+            insert(size, key, null, toBitmap(values, n), n);
+        } else {
+            insert(size, key, values, words, n);
+        }
+    }
+
+    private void append(final char key, final Values values) {
+        append(key, values.values, null, values.count);
+    }
+
+    private void copy(final FileIdSet from, final int c) {
+        insert(size, from.keys[c], from.arrays[c] == null ? null : Arrays.copyOf(from.arrays[c], from.counts[c]),
+                from.bitmaps[c] == null ? null : from.bitmaps[c].clone(), from.counts[c]);
+    }
+
+    private static long[] toBitmap(final char[] values, final int n) {
+        long[] words = new long[WORDS];
+        for (int i = 0; i < n; i++) {
+            words[values[i] >>> WORD_SHIFT] |= 1L << values[i];
+        }
+        return words;
+    }
+
+    private static char[] toArray(final long[] words, final int n) {
+        char[] values = new char[n];
+        int i = 0;
+        for (int w = 0; w < WORDS; w++) {
+            long word = words[w];
+            while (word != 0) {
+                values[i++] = (char) (w << WORD_SHIFT | Long.numberOfTrailingZeros(word));
+                word &= word - 1;
+            }
+        }
+        return values;
+    }
+
+    //the values whose bits are set, or clear if keep is false
+    private static Values filter(final char[] values, final int n, final long[] words, final boolean keep) {
+        char[] out = new char[n];
+        int k = 0;
+        for (int i = 0; i < n; i++) {
+            if ((words[values[i] >>> WORD_SHIFT] & 1L << values[i]) != 0 == keep) {
+                out[k++] = values[i];
+            }
+        }
+        return new Values(out, k);
+    }
+
+    private static Values intersect(final char[] a, final int na, final char[] b, final int nb) {
+        char[] out = new char[Math.min(na, nb)];
+        int k = 0;
+        int i = 0;
+        int j = 0;
+        while (i < na && j < nb) {
+            if (a[i] < b[j]) {
+                i++;
+            } else if (a[i] > b[j]) {
+                j++;
+            } else {
+                out[k++] = a[i++];
+                j++;
+            }
+        }
+        return new Values(out, k);
+    }
+
+    private static Values union(final char[] a, final int na, final char[] b, final int nb) {
+        char[] out = new char[na + nb];
+        int k = 0;
+        int i = 0;
+        int j = 0;
+        while (i < na || j < nb) {
+            if (j == nb || i < na && a[i] < b[j]) {
+                out[k++] = a[i++];
+            } else if (i == na || a[i] > b[j]) {
+                out[k++] = b[j++];
+            } else {
+                out[k++] = a[i++];
+                j++;
+            }
+        }
+        return new Values(out, k);
+    }
+
+    private static Values difference(final char[] a, final int na, final char[] b, final int nb) {
+        char[] out = new char[na];
+        int k = 0;
+        int j = 0;
+        for (int i = 0; i < na; i++) {
+            while (j < nb && b[j] < a[i]) {
+                j++;
+            }
+            if (j == nb || b[j] != a[i]) {
+                out[k++] = a[i];
+            }
+        }
+        return new Values(out, k);
+    }
+
+    /**
+     * The values of an array container produced by an operation.
+     */
+    private static final class Values {
+        private final char[] values;
+        private final int count;
+
+        private Values(final char[] valuesVar, final int countVar) {
+            values = valuesVar;
+            count = countVar;
+        }
+    }
+}
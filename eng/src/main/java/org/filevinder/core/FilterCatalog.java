@@ -0,0 +1,272 @@
+/*
+ * Copyright (C) 2017 Gregory Clarke
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.filevinder.core;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import static org.filevinder.core.ErrorHandler.recordErr;
+
+/**
+ * The trigram filters of searched files, persisted in a sidecar file, so
+ * that a search of a directory without an index can skip the files that
+ * cannot hold the pattern, see TrigramFilter and SearchImpl.findPattern.
+ * Each filter records the size and modification time of the file it was
+ * built from, a file that has changed since has its filter rebuilt when it
+ * is next searched. So the first search of a file reads it twice, once for
+ * its filter, and later searches read it only if its filter may hold the
+ * pattern.
+ *
+ * The catalog counts the files and bytes it let a search skip, and the
+ * bytes it did not, since it was opened.
+ *
+ * @author Gregory Clarke
+ */
+public final class FilterCatalog {
+
+    /**
+     * Appended to the name of an index file to name its filter catalog.
+     */
+    public static final String SUFFIX = ".blm";
+
+    private static final int MAGIC = 0x4656424C;
+    private static final int VERSION = 1;
+
+    private final Path file;
+    private final double fpr;
+    private final Map<Path, Entry> entries = new ConcurrentHashMap<>();
+    private final Set<Path> seen = ConcurrentHashMap.newKeySet();
+    private final AtomicLong filesSkipped = new AtomicLong();
+    private final AtomicLong bytesSkipped = new AtomicLong();
+    private final AtomicLong bytesScanned = new AtomicLong();
+    private volatile boolean changed;
+
+    private static final class Entry {
+
+        private final long size;
+        private final long modified;
+        private final TrigramFilter filter;
+
+        private Entry(final long sizeVar, final long modifiedVar, final TrigramFilter filterVar) {
+            size = sizeVar;
+            modified = modifiedVar;
+            filter = filterVar;
+        }
+    }
+
+    private FilterCatalog(final Path fileVar, final double fprVar) {
+        if (!(fprVar > 0 && fprVar < 1)) {
+            throw new IllegalArgumentException("Invalid false positive rate: " + fprVar);
+        }
+        file = fileVar;
+        fpr = fprVar;
+    }
+
+    /**
+     * @param indexFile An index file
+     * @return The filter catalog file kept beside the index
+     */
+    public static Path pathFor(final Path indexFile) {
+        return indexFile.resolveSibling(indexFile.getFileName() + SUFFIX);
+    }
+
+    /**
+     * Opens a catalog building filters at TrigramFilter.DEFAULT_FPR.
+     *
+     * @param catalogFile The sidecar file, a missing file opens as an empty
+     * catalog
+     * @return The catalog
+     * @throws IOException on error, or if the file is not a filter catalog
+     */
+    public static FilterCatalog open(final Path catalogFile) throws IOException {
+        return open(catalogFile, TrigramFilter.DEFAULT_FPR);
+    }
+
+    /**
+     * Opens a catalog. Filters already in the file keep the rate they were
+     * built at until their file changes.
+     *
+     * @param catalogFile The sidecar file, a missing file opens as an empty
+     * catalog
+     * @param fpr The false positive rate of the filters built, in (0, 1),
+     * a lower rate skips more files for larger filters
+     * @return The catalog
+     * @throws IOException on error, or if the file is not a filter catalog
+     */
+    public static FilterCatalog open(final Path catalogFile, final double fpr) throws IOException {
+        FilterCatalog catalog = new FilterCatalog(catalogFile, fpr);
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(catalogFile)))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                throw new IOException("Not a version " + VERSION + " filter catalog file: " + catalogFile);
+            }
+            String previous = "";
+            for (int i = in.readInt(); i > 0; i--) {
+                previous = FrontCoder.read(in, previous);
+                catalog.entries.put(Paths.get(previous), new Entry(in.readLong(), in.readLong(),
+                        TrigramFilter.read(in)));
+            }
+        } catch (NoSuchFileException e) {
+            return catalog;
+        }
+        return catalog;
+    }
+
+    /**
+     * @return The sidecar file
+     */
+    public Path getFile() {
+        return file;
+    }
+
+    /**
+     * @return The false positive rate of the filters built
+     */
+    public double getFalsePositiveRate() {
+        return fpr;
+    }
+
+    /**
+     * Decides whether a file has to be searched for a pattern, building its
+     * filter if it has none or the file has changed. A file that cannot be
+     * filtered has to be searched.
+     *
+     * @param path The file
+     * @param trigrams The packed trigrams of the pattern, see
+     * Trigrams.queryOffsets
+     * @return False if the file does not hold the pattern
+     */
+    public boolean mightContain(final Path path, final int[] trigrams) {
+        final Path key = path.toAbsolutePath();
+        seen.add(key);
+        long size = 0;
+        try {
+            BasicFileAttributes attrs = Files.readAttributes(path, BasicFileAttributes.class);
+            size = attrs.size();
+            final long modified = attrs.lastModifiedTime().toMillis();
+            Entry entry = entries.get(key);
+            if (entry == null || entry.size != size || entry.modified != modified) {
+                entry = new Entry(size, modified, TrigramFilter.build(path, fpr));
+                entries.put(key, entry);
+                changed = true;
+            }
+            if (!entry.filter.mightContainAll(trigrams)) {
+                filesSkipped.incrementAndGet();
+                bytesSkipped.addAndGet(size);
+                return false;
+            }
+        } catch (IOException ioe) {
+            recordErr("Could not filter file " + path, ioe);
+        }
+        bytesScanned.addAndGet(size);
+        return true;
+    }
+
+    /**
+     * Drops the filters of the files under a directory that have not been
+     * looked up since the catalog was opened, as after a search of the
+     * directory these are the files that no longer exist.
+     *
+     * @param root The directory searched
+     */
+    public void prune(final Path root) {
+        final Path dir = root.toAbsolutePath();
+        entries.keySet().removeIf(path -> {
+            boolean stale = path.startsWith(dir) && !seen.contains(path);
+            if (stale) {
+                changed = true;
+            }
+            return stale;
+        });
+    }
+
+    /**
+     * Writes the catalog, if it has changed, to a temporary file which then
+     * replaces the sidecar file, so a failed write leaves the previous
+     * catalog intact.
+     *
+     * @throws IOException on error
+     */
+    public void save() throws IOException {
+        if (!changed) {
+            return;
+        }
+        changed = false;
+        Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+        try {
+            write(tmp);
+            Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException ioe) {
+            changed = true;
+            throw ioe;
+        }
+    }
+
+    private void write(final Path tmp) throws IOException {
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            List<Map.Entry<String, Entry>> snapshot = new ArrayList<>();
+            entries.forEach((path, entry) -> snapshot.add(Map.entry(path.toString(), entry)));
+            snapshot.sort(Map.Entry.comparingByKey());
+            out.writeInt(snapshot.size());
+            String previous = "";
+            for (Map.Entry<String, Entry> e : snapshot) {
+                Entry entry = e.getValue();
+                FrontCoder.write(out, previous, e.getKey());
+                previous = e.getKey();
+                out.writeLong(entry.size);
+                out.writeLong(entry.modified);
+                entry.filter.write(out);
+            }
+        }
+    }
+
+    /**
+     * @return The number of files searches were let skip
+     */
+    public long filesSkipped() {
+        return filesSkipped.get();
+    }
+
+    /**
+     * @return The bytes searches were let skip
+     */
+    public long bytesSkipped() {
+        return bytesSkipped.get();
+    }
+
+    /**
+     * @return The bytes of the files searches had to read
+     */
+    public long bytesScanned() {
+        return bytesScanned.get();
+    }
+}
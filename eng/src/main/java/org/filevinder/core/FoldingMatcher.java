@@ -0,0 +1,62 @@
+/*
+ * Copyright (C) 2017 Gregory Clarke
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.filevinder.core;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A matcher ignoring ASCII case, see Matchers.compileIgnoreCase. The pattern
+ * is folded to lower case once. The text is folded a word at a time while
+ * scanning for candidates, and a byte at a time through a 256 entry table
+ * while verifying them, see ByteScanner.toLower, so a search costs about
+ * the same as NaiveMatcher
+ * and no folded copy of a file is made. Bytes outside A-Z and a-z match only
+ * themselves.
+ *
+ * @author Gregory Clarke
+ */
+public final class FoldingMatcher implements Matcher {
+
+    private final byte[] pat;
+    private final int anchor;
+
+    /**
+     * Constructs a matcher for the given pattern.
+     *
+     * @param patVar The bytes to search for, in any case, must not be empty
+     */
+    public FoldingMatcher(final byte[] patVar) {
+        if (patVar.length == 0) {
+            throw new IllegalArgumentException("Empty pattern");
+        }
+        pat = new byte[patVar.length];
+        for (int i = 0; i < pat.length; i++) {
+            pat[i] = ByteScanner.toLower(patVar[i]);
+        }
+        anchor = ByteScanner.rareByteOffset(pat);
+    }
+
+    @Override
+    public int indexOf(final ByteBuffer text, final int from, final int to) {
+        return ByteScanner.indexOfIgnoreCase(text, pat, anchor, from, to);
+    }
+
+    @Override
+    public int length() {
+        return pat.length;
+    }
+}
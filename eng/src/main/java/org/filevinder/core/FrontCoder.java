@@ -0,0 +1,67 @@
+/*
+ * Copyright (C) 2017 Gregory Clarke
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.filevinder.core;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * Front coding of sorted strings, e.g. the paths of a folder tree. Each
+ * string is written as the length of the prefix it shares with the
+ * previous string and the remaining suffix, so the common folders of
+ * neighbouring paths are written once.
+ *
+ * @author Gregory Clarke
+ */
+final class FrontCoder {
+
+    private static final int MAX_PREFIX = 0xFFFF;
+
+    private FrontCoder() {
+    }
+
+    /**
+     * @param out The output
+     * @param previous The string written before, or the empty string
+     * @param value The string to write, not less than previous
+     * @throws IOException on error
+     */
+    static void write(final DataOutput out, final String previous, final String value) throws IOException {
+        final int limit = Math.min(MAX_PREFIX, Math.min(previous.length(), value.length()));
+        int shared = 0;
+        while (shared < limit && previous.charAt(shared) == value.charAt(shared)) {
+            shared++;
+        }
+        out.writeShort(shared);
+        out.writeUTF(value.substring(shared));
+    }
+
+    /**
+     * @param in The input
+     * @param previous The string read before, or the empty string
+     * @return The string
+     * @throws IOException on error, or if the prefix is longer than previous
+     */
+    static String read(final DataInput in, final String previous) throws IOException {
+        final int shared = in.readUnsignedShort();
+        if (shared > previous.length()) {
+            throw new IOException("Corrupt front coded string");
+        }
+        return previous.substring(0, shared) + in.readUTF();
+    }
+}
@@ -0,0 +1,87 @@
+/*
+ * Copyright (C) 2017 Gregory Clarke
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.filevinder.core;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A byte level Boyer-Moore-Horspool matcher. Only the bad character shift of
+ * the last byte in the window is used, which keeps the inner loop tight for
+ * medium length patterns.
+ *
+ * @author Gregory Clarke
+ */
+public final class HorspoolMatcher implements Matcher {
+
+    private static final int ALPHABET = 256;
+    private static final int BYTE_MASK = 0xFF;
+
+    private final byte[] pat;
+    private final int[] shift;
+
+    /**
+     * Compiles the shift table for the given pattern.
+     *
+     * @param patVar The bytes to search for, must not be empty
+     */
+    public HorspoolMatcher(final byte[] patVar) {
+        if (patVar.length == 0) {
+            throw new IllegalArgumentException("Empty pattern");
+        }
+        pat = patVar.clone();
+        shift = new int[ALPHABET];
+
+        final int last = pat.length - 1;
+        for (int i = 0; i < ALPHABET; i++) {
+            shift[i] = pat.length;
+        }
+        for (int i = 0; i < last; i++) {
+            shift[pat[i] & BYTE_MASK] = last - i;
+        }
+    }
+
+    @Override
+    public int indexOf(final ByteBuffer text, final int from, final int to) {
+        final int last = pat.length - 1;
+        final byte lastByte = pat[last];
+        final int lastStart = to - pat.length;
+        int i = from;
+
+        while (i <= lastStart) {
+            final byte b = text.get(i + last);
+            if (b == lastByte && matchesPrefix(text, i, last)) {
+                return i;
+            }
+            i += shift[b & BYTE_MASK];
+        }
+        return -1;
+    }
+
+    @Override
+    public int length() {
+        return pat.length;
+    }
+
+    private boolean matchesPrefix(final ByteBuffer text, final int start, final int len) {
+        for (int j = 0; j < len; j++) {
+            if (text.get(start + j) != pat[j]) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -17,21 +17,13 @@
 package org.filevinder.core;
 
 import org.filevinder.types.Chunk;
-import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
 import java.io.PrintWriter;
 import static java.lang.System.err;
-import java.nio.charset.Charset;
 import java.nio.file.Files;
-import static java.nio.file.Files.readAllBytes;
 import java.nio.file.Path;
-import java.util.ArrayList;
-import java.util.zip.DataFormatException;
-import java.util.zip.Deflater;
+import java.util.BitSet;
+import java.util.Set;
 import org.filevinder.common.Utils;
 import org.filevinder.interfaces.Index;
 import org.filevinder.interfaces.PostingList;
@@ -43,6 +35,12 @@ import org.filevinder.interfaces.PostingList;
 
 public final class InMemoryIndex implements Index {
 
+    /**
+     * The trigrams of a chunk are extracted and appended this many at a
+     * time, which bounds the temporary arrays whatever the chunk size.
+     */
+    static final int SLICE = 1 << 20;
+
     private PostingListImpl postingList;
 
     /**
@@ -65,35 +63,94 @@ public final class InMemoryIndex implements Index {
         return (PostingList) postingList;
     }
 
-    /* TODO: currently only supports a Chunk containing a full file, refactoring
-     * required to support breaking up very large files
+    /*
+     * Every overlapping trigram is indexed at its byte offset in the file, the
+     * chunk location plus its offset in the chunk, text chunks are indexed as
+     * UTF-8. A large file is merged a chunk at a time, see FileChunker, where
+     * each chunk holds the trigrams starting in its window. The chunk is
+     * itself cut into slices of SLICE trigrams, each read with the two bytes
+     * after it so no trigram is lost at a slice boundary. The trigrams of a
+     * slice are extracted before the posting list lock is taken, and the
+     * lock is then held once for the slice.
      */
     @Override
     public void mergeIndex(final Chunk chunk) {
-        String[] trigrams = Utils.trigrams(chunk.getText());
-        for (int i = 0; i < trigrams.length; i++) {
-            postingList.append(trigrams[i], i, chunk.getFileId());
+        byte[] text = chunk.getBytes() != null ? chunk.getBytes() : chunk.getText().getBytes(Utils.UTF8);
+        final int slice = Math.min(text.length, SLICE);
+        int[] trigrams = new int[slice];
+        int[] positions = new int[slice];
+        for (int from = 0; from < text.length; from += SLICE) {
+            final int to = (int) Math.min(text.length, (long) from + SLICE + Trigrams.SIZE - 1);
+            final int count = Trigrams.extract(text, from, to, chunk.getLocation() + from, trigrams, positions);
+            postingList.appendAll(trigrams, positions, count, chunk.getFileId());
         }
     }
 
+    /*
+     * Reads an index file written by writeCompressedIndex, or every segment
+     * of a segmented index directory. The binary format holds the trigrams
+     * as bytes so the encoding is not needed.
+     */
     @Override
     public void memoizeIndexFile(final Path indexFile, final String encoding) {
         try {
-            byte[] ba = readAllBytes(indexFile);
-            ba = Utils.decompress(ba);
-            postingList = new PostingListImpl(new String(ba, Charset.forName(encoding)));
+            postingList = load(indexFile, null);
+
+        } catch (IOException e) {
+            err.println("Could not de-serialize index");
+            e.printStackTrace(err);
+        }
+    }
+
+    /**
+     * Marshall the posting lists of the given trigrams from the index file to
+     * memory, all other trigrams are skipped.
+     *
+     * @param indexFile The index file to read, see writeCompressedIndex, or
+     * a segmented index directory, see SegmentedIndex
+     * @param encoding The file's text encoding
+     * @param trigrams The trigrams to load
+     */
+    public void memoizeIndexFile(final Path indexFile, final String encoding,
+            final Set<String> trigrams) {
+        try {
+            postingList = load(indexFile, trigrams.stream().mapToInt(Trigrams::code).sorted().toArray());
 
-        } catch (IOException | DataFormatException e) {
+        } catch (IOException e) {
             err.println("Could not de-serialize index");
             e.printStackTrace(err);
         }
     }
 
+    //reads the runs of the given trigrams, or of every trigram if codes is null
+    private static PostingListImpl load(final Path indexFile, final int[] codes) throws IOException {
+        PostingListImpl loaded = new PostingListImpl();
+        if (Files.isDirectory(indexFile)) {
+            SegmentedIndex index = SegmentedIndex.open(indexFile);
+            if (codes == null) {
+                index.readAll(loaded::appendRun);
+            } else {
+                index.read(codes, loaded::appendRun);
+            }
+            return loaded;
+        }
+        try (IndexReader reader = new IndexReader(indexFile)) {
+            if (codes == null) {
+                reader.readAll(loaded::appendRun);
+            } else {
+                for (int code : codes) {
+                    reader.read(code, loaded::appendRun);
+                }
+            }
+        }
+        return loaded;
+    }
+
     @Override
     public synchronized boolean writePlainIndex(final Path indexFile, final String encoding) {
 
         try (PrintWriter writer = new PrintWriter(indexFile.toFile(), encoding)) {
-            writer.print(postingList.toEncodedString());
+            postingList.writeEncoded(writer);
             return true;
 
         } catch (IOException e) {
@@ -103,17 +160,25 @@ public final class InMemoryIndex implements Index {
         }
     }
 
+    /*
+     * Streams the index in the binary format, see IndexFormat. The encoding
+     * is not needed as trigrams are written as bytes.
+     */
     @Override
     public boolean writeCompressedIndex(final Path indexFile, final String encoding) {
         try {
-            byte[] ba = Utils.compress(postingList.toEncodedString().
-                    getBytes(Charset.forName(encoding)),
-                    Deflater.DEFAULT_COMPRESSION);
-            Files.write(indexFile, ba);
-            appendRegister(indexFile, encoding);
+            BitSet fids = new BitSet();
+            try (IndexWriter writer = new IndexWriter(indexFile)) {
+                postingList.forEachRun((trigram, fid, positions, count) -> {
+                    writer.add(trigram, fid, positions, count);
+                    fids.set(fid);
+                });
+            }
+            FileIdMap.getInstance().save(FileIdMap.pathFor(indexFile), fids);
+            IndexRegister.forIndex(indexFile).add(indexFile);
             return true;
 
-        } catch (IOException | ClassNotFoundException e) {
+        } catch (IOException e) {
             err.println("Could not write index to file");
             e.printStackTrace(err);
             return false;
@@ -124,44 +189,4 @@ public final class InMemoryIndex implements Index {
     public void purgeIndexFromMem() {
         postingList = new PostingListImpl();
     }
-
-    //adds a postingist to the index register
-    private void appendRegister(final Path indexFile, final String encoding)
-            throws IOException, ClassNotFoundException {
-
-        //TODO: write test for this
-        final String indexRegFile = File.separator + "index.regf";
-        ArrayList<String> indexReg = new ArrayList<>();
-
-        String lineEntry = indexFile.toFile().getAbsolutePath();
-        File regFile = new File(indexFile.toFile().getParent() + indexRegFile);
-
-        //read the existing register
-        if (regFile.exists()) {
-            try (FileInputStream fin = new FileInputStream(regFile);
-                    ObjectInputStream in = new ObjectInputStream(fin);) {
-
-                indexReg = (ArrayList<String>) in.readObject();
-
-            } catch (IOException | ClassNotFoundException e) {
-                throw e;
-            }
-        }
-
-        //append to the register if it's a new entry
-        if (indexReg.isEmpty() || !indexReg.contains(lineEntry)) {
-
-            indexReg.add(lineEntry);
-
-            try (FileOutputStream fout = new FileOutputStream(regFile);
-                    ObjectOutputStream out = new ObjectOutputStream(fout);) {
-
-                out.writeObject(indexReg);
-                out.flush();
-
-            } catch (IOException ioe) {
-                throw ioe;
-            }
-        }
-    }
 }
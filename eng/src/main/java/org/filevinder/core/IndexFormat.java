@@ -0,0 +1,163 @@
+/*
+ * Copyright (C) 2017 Gregory Clarke
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.filevinder.core;
+
+/**
+ * Constants of the binary index file format, version 1. All fixed width
+ * values are big endian.
+ *
+ * <pre>
+ * header     MAGIC (int) VERSION (int) flags (int, see FILE_SETS)
+ * pages      the posting blocks, see below
+ * page table one PAGE_ENTRY per page: logical offset (long) file offset (long)
+ * dictionary one DICT_ENTRY per trigram, in trigram order: the trigram (bits
+ *            39 to 62) and logical block offset (low 39 bits) as a long, then
+ *            the number of files holding the trigram (int)
+ * file sets  if flagged, the FileIdSet of each trigram held by at least
+ *            FILE_SET_MIN files in trigram order, see FileIdSet.write, then
+ *            for every trigram the offset (long) of its set from the first,
+ *            where a trigram without a set takes the offset of the next set
+ * footer     page table offset (long) page count (int) dictionary offset (long)
+ *            trigram count (int) logical size (long) postings (long) MAGIC (int)
+ * </pre>
+ *
+ * The posting blocks, one per trigram in trigram order, form a logical
+ * byte stream which is cut into pages of PAGE_SIZE bytes, each compressed
+ * on its own with raw deflate. A block can be decoded by inflating only
+ * the pages it spans, found by binary searching the page table.
+ *
+ * A block is a run per file in ascending file id order, ended by a 0
+ * byte. A run is the file id as a varint delta from the previous file id
+ * of the block (starting at -1, so never 0), the position count as a
+ * varint, then the positions in ascending order as varint deltas from the
+ * previous position (starting at 0). Varints are unsigned LEB128. As both columns are sorted no delta is negative,
+ * so there is no need to zigzag encode them.
+ *
+ * The dictionary is fixed width and sorted so that a reader can binary
+ * search it.
+ *
+ * @author Gregory Clarke
+ */
+public final class IndexFormat {
+
+    /**
+     * "FVIX", starts and ends every index file.
+     */
+    public static final int MAGIC = 0x46564958;
+
+    /**
+     * The format version written.
+     */
+    public static final int VERSION = 1;
+
+    /**
+     * The header flag set when the file sets of the trigrams follow the
+     * dictionary. Files without them are read as version 1 files always
+     * were, and the file set of a trigram is decoded from its block.
+     */
+    public static final int FILE_SETS = 1;
+
+    /**
+     * The number of files a trigram must be held by for its file set to be
+     * written, the file sets of rarer trigrams are decoded from their small
+     * blocks rather than taking space in the index.
+     */
+    public static final int FILE_SET_MIN = 1024;
+
+    /**
+     * The size of the header in bytes.
+     */
+    public static final int HEADER_SIZE = 12;
+
+    /**
+     * The size of a page table entry in bytes.
+     */
+    public static final int PAGE_ENTRY = 16;
+
+    /**
+     * The size of a dictionary entry in bytes.
+     */
+    public static final int DICT_ENTRY = 12;
+
+    /**
+     * The size of the footer in bytes.
+     */
+    public static final int FOOTER_SIZE = 44;
+
+    /**
+     * The uncompressed size of a page, the last page may be shorter.
+     */
+    public static final int PAGE_SIZE = 1 << 16;
+
+    /**
+     * The bits of a dictionary entry holding the logical block offset, the
+     * sign bit is left clear so that entries sort as the trigrams do.
+     */
+    public static final int OFFSET_BITS = 39;
+
+    /**
+     * Masks the logical block offset of a dictionary entry.
+     */
+    public static final long OFFSET_MASK = (1L << OFFSET_BITS) - 1;
+
+    /**
+     * Ends the runs of a block.
+     */
+    public static final int END_OF_BLOCK = 0;
+
+    /**
+     * The low bits of a varint byte holding value bits.
+     */
+    static final int SEVEN_BITS = 0x7F;
+
+    /**
+     * The varint byte bit flagging that another byte follows.
+     */
+    static final int MORE = 0x80;
+
+    /**
+     * The value bits in a varint byte.
+     */
+    static final int SHIFT = 7;
+
+    /**
+     * The longest varint of an int.
+     */
+    static final int MAX_VARINT = 5;
+
+    private IndexFormat() {
+    }
+
+    /**
+     * Writes value as an unsigned LEB128 varint.
+     *
+     * @param buf The buffer to write to
+     * @param off The offset to write at
+     * @param value The value, treated as unsigned
+     * @return The offset following the varint
+     */
+    public static int putVarint(final byte[] buf, final int off, final int value) {
+        int i = off;
+        int v = value;
+        while ((v & ~SEVEN_BITS) != 0) {
+            buf[i++] = (byte) (v & SEVEN_BITS | MORE);
+            v >>>= SHIFT;
+        }
+        buf[i++] = (byte) v;
+        return i;
+    }
+}
@@ -0,0 +1,282 @@
+/*
+ * Copyright (C) 2017 Gregory Clarke
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.filevinder.core;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import org.filevinder.interfaces.PostingList;
+import org.filevinder.types.FileRef;
+import org.filevinder.types.Trigram;
+
+/**
+ * Decomposes a literal pattern into the trigrams the index holds for any text
+ * containing it, and resolves the files whose posting lists contain those
+ * trigrams at the right relative positions.
+ *
+ * The index records every overlapping trigram at its byte offset, so for a
+ * match at position p the trigram at offset o of the pattern is held at
+ * position p + o. Only a covering subset of the pattern's trigrams is looked
+ * up (see Trigrams.queryOffsets). Trigrams spanning a line break are not
+ * indexed, so the resulting candidates can include false positives and must
+ * still be confirmed against the file itself.
+ *
+ * @author Gregory Clarke
+ */
+public final class IndexQuery {
+
+    private final byte[] pattern;
+    private final int[] offsets;
+    private final int[] codes;
+
+    /**
+     * Decomposes the given pattern.
+     *
+     * @param patternVar The encoded text to search for
+     */
+    public IndexQuery(final byte[] patternVar) {
+        pattern = patternVar;
+        offsets = Trigrams.queryOffsets(pattern);
+        codes = new int[offsets.length];
+        for (int i = 0; i < offsets.length; i++) {
+            codes[i] = Trigrams.code(pattern, offsets[i]);
+        }
+    }
+
+    /**
+     * @return The pattern this query was built from
+     */
+    public byte[] getPattern() {
+        return pattern.clone();
+    }
+
+    /**
+     * A pattern shorter than a trigram, or with no trigram free of line breaks,
+     * cannot be narrowed down by the index.
+     *
+     * @return True if candidates can be resolved from the index
+     */
+    public boolean isIndexable() {
+        return offsets.length > 0;
+    }
+
+    /**
+     * A pattern whose trigrams cover every byte is found exactly where its
+     * trigrams are all held at their offsets from one position, so a fresh
+     * index can confirm a match without the file being read.
+     *
+     * @return True if the looked up trigrams cover the whole pattern, false
+     * if the pattern holds a line break
+     */
+    public boolean coversPattern() {
+        int covered = 0;
+        for (int off : offsets) {
+            if (off > covered) {
+                return false;
+            }
+            covered = off + Trigrams.SIZE;
+        }
+        return isIndexable() && covered == pattern.length;
+    }
+
+    /**
+     * @return The names of the distinct trigrams that the candidate check
+     * looks up, see Trigrams.name
+     */
+    public Set<String> trigrams() {
+        Set<String> all = new LinkedHashSet<>();
+        for (int code : codes) {
+            all.add(Trigrams.name(code));
+        }
+        return all;
+    }
+
+    /**
+     * Plans the lookup of the query's trigrams in an index, see QueryPlan,
+     * stopping at QueryPlan.VERIFY_LIMIT candidates.
+     *
+     * @param source The index to query
+     * @return The plan, to be executed against the same index
+     */
+    public QueryPlan plan(final PostingSource source) {
+        return plan(source, QueryPlan.VERIFY_LIMIT);
+    }
+
+    /**
+     * Plans the lookup of the query's trigrams in an index, rarest first by
+     * the file counts of the index dictionary.
+     *
+     * @param source The index to query
+     * @param verifyLimit The number of candidates at or below which no more
+     * trigrams are read, 0 to read every trigram
+     * @return The plan, to be executed against the same index
+     */
+    public QueryPlan plan(final PostingSource source, final int verifyLimit) {
+
+        if (!isIndexable()) {
+            throw new IllegalStateException("Pattern cannot be resolved from the index");
+        }
+        if (verifyLimit < 0) {
+            throw new IllegalArgumentException("Verify limit must not be negative: " + verifyLimit);
+        }
+
+        //the offsets of each distinct trigram, in query order
+        Map<Integer, List<Integer>> byCode = new LinkedHashMap<>();
+        for (int i = 0; i < codes.length; i++) {
+            byCode.computeIfAbsent(codes[i], code -> new ArrayList<>()).add(offsets[i]);
+        }
+        Map<Integer, Integer> counts = new HashMap<>();
+        byCode.keySet().forEach(code -> counts.put(code, source.fileCount(code)));
+
+        List<Integer> order = new ArrayList<>(byCode.keySet());
+        order.sort(Comparator.comparing(counts::get));
+        final int steps = order.size();
+        int[] planCodes = new int[steps];
+        int[][] planOffsets = new int[steps][];
+        int[] planCounts = new int[steps];
+        for (int step = 0; step < steps; step++) {
+            planCodes[step] = order.get(step);
+            planOffsets[step] = byCode.get(planCodes[step]).stream().mapToInt(Integer::intValue).toArray();
+            planCounts[step] = counts.get(planCodes[step]);
+        }
+        return new QueryPlan(planCodes, planOffsets, planCounts, verifyLimit, coversPattern());
+    }
+
+    /**
+     * Resolves the ids of the files that may contain the pattern in any mix
+     * of ASCII case. The index holds trigrams as they were written, so each
+     * trigram of the query is looked up in all its case variants (see
+     * Trigrams.caseVariants) and the files holding any of them are united.
+     * Rarer trigrams are read first and no more are read once no file is
+     * left. Positions are not compared, the candidates must be confirmed
+     * against the files, see FoldingMatcher.
+     *
+     * @param source The index to query
+     * @return The candidate file ids
+     * @throws IOException on error
+     */
+    public FileIdSet candidatesIgnoreCase(final PostingSource source) throws IOException {
+
+        if (!isIndexable()) {
+            throw new IllegalStateException("Pattern cannot be resolved from the index");
+        }
+
+        //the variants of each distinct trigram, by the files holding any of them
+        Map<Integer, int[]> byFolded = new LinkedHashMap<>();
+        for (int code : codes) {
+            int[] variants = Trigrams.caseVariants(code);
+            byFolded.putIfAbsent(Arrays.stream(variants).min().getAsInt(), variants);
+        }
+        Map<int[], Integer> counts = new HashMap<>();
+        byFolded.values().forEach(variants ->
+                counts.put(variants, Arrays.stream(variants).map(source::fileCount).sum()));
+        List<int[]> order = new ArrayList<>(byFolded.values());
+        order.sort(Comparator.comparing(counts::get));
+
+        FileIdSet candidates = null;
+        for (int[] variants : order) {
+            FileIdSet files = new FileIdSet();
+            for (int variant : variants) {
+                files = FileIdSet.or(files, source.fileSet(variant));
+            }
+            candidates = candidates == null ? files : FileIdSet.and(candidates, files);
+            if (candidates.isEmpty()) {
+                break;
+            }
+        }
+        return candidates;
+    }
+
+    /**
+     * Resolves the ids of the files that may contain the pattern. The posting
+     * list need only hold the trigrams returned by trigrams().
+     *
+     * @param postingList The index to query
+     * @return The candidate file ids
+     */
+    public Set<Integer> candidates(final PostingList postingList) {
+
+        if (!isIndexable()) {
+            throw new IllegalStateException("Pattern cannot be resolved from the index");
+        }
+
+        Map<String, Trigram> byName = new HashMap<>();
+        for (Trigram trig : postingList.getIndex()) {
+            byName.put(trig.getName(), trig);
+        }
+
+        //the file refs of each trigram in query order, keyed by file id
+        List<Map<Integer, FileRef>> refs = new ArrayList<>();
+        int rarest = 0;
+        for (int code : codes) {
+            Trigram trig = byName.get(Trigrams.name(code));
+            if (trig == null) {
+                return Collections.emptySet();
+            }
+            Map<Integer, FileRef> byFile = new HashMap<>();
+            trig.getFileRefs().forEach(ref -> byFile.put(ref.getFileId(), ref));
+            if (!refs.isEmpty() && byFile.size() < refs.get(rarest).size()) {
+                rarest = refs.size();
+            }
+            refs.add(byFile);
+        }
+
+        Set<Integer> fileIds = new HashSet<>();
+        for (Integer fid : refs.get(rarest).keySet()) {
+            if (isChained(refs, fid)) {
+                fileIds.add(fid);
+            }
+        }
+        return fileIds;
+    }
+
+    /**
+     * Checks the file holds trigram j at position p + offsets[j] for every
+     * trigram of the query, for some match position p.
+     */
+    private boolean isChained(final List<Map<Integer, FileRef>> refs, final Integer fid) {
+
+        FileRef[] chain = new FileRef[refs.size()];
+        for (int j = 0; j < chain.length; j++) {
+            chain[j] = refs.get(j).get(fid);
+            if (chain[j] == null) {
+                return false;
+            }
+        }
+
+        for (int i = 0; i < chain[0].positionCount(); i++) {
+            final int start = chain[0].getPosition(i) - offsets[0];
+            int j = 1;
+            while (j < chain.length && chain[j].hasPosition(start + offsets[j])) {
+                j++;
+            }
+            if (j == chain.length) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,411 @@
+/*
+ * Copyright (C) 2017 Gregory Clarke
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.filevinder.core;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import static java.nio.channels.FileChannel.MapMode.READ_ONLY;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import org.filevinder.core.PostingListImpl.RunVisitor;
+import static org.filevinder.core.IndexFormat.DICT_ENTRY;
+import static org.filevinder.core.IndexFormat.END_OF_BLOCK;
+import static org.filevinder.core.IndexFormat.FILE_SETS;
+import static org.filevinder.core.IndexFormat.FOOTER_SIZE;
+import static org.filevinder.core.IndexFormat.HEADER_SIZE;
+import static org.filevinder.core.IndexFormat.MAGIC;
+import static org.filevinder.core.IndexFormat.MORE;
+import static org.filevinder.core.IndexFormat.OFFSET_BITS;
+import static org.filevinder.core.IndexFormat.OFFSET_MASK;
+import static org.filevinder.core.IndexFormat.PAGE_ENTRY;
+import static org.filevinder.core.IndexFormat.PAGE_SIZE;
+import static org.filevinder.core.IndexFormat.SEVEN_BITS;
+import static org.filevinder.core.IndexFormat.SHIFT;
+import static org.filevinder.core.IndexFormat.VERSION;
+
+/**
+ * Reads a binary index file, see IndexFormat. The file is memory mapped
+ * and opening it reads only the header and footer, so the cost of opening
+ * does not depend on the size of the index. A lookup binary searches the
+ * mapped dictionary and inflates just the pages holding the block, into a
+ * reused buffer, so reading allocates nothing per posting.
+ *
+ * An instance is not thread safe, and must be closed to unmap the file.
+ *
+ * @author Gregory Clarke
+ */
+public final class IndexReader implements PostingSource {
+
+    /**
+     * The file is mapped in segments of this size.
+     */
+    private static final long SEGMENT_SIZE = 1L << 30;
+
+    /**
+     * Each segment maps this much of the next, so that an entry or page
+     * starting in a segment can be read from it.
+     */
+    private static final int SEGMENT_OVERLAP = 1 << 20;
+
+    private static final int BYTE_MASK = 0xFF;
+
+    private final Path file;
+    private final MappedByteBuffer[] segments;
+    private final Inflater inflater = new Inflater(true);
+    private final byte[] page = new byte[PAGE_SIZE];
+    private int pageIndex = -1;
+    private int pageLen;
+    private int pagePos;
+    private long pagesInflated;
+    private boolean closed;
+
+    private final long pageTable;
+    private final int pages;
+    private final long dictionary;
+    private final int count;
+    private final long logicalSize;
+    private final long postings;
+    private final long fileSets;
+    private final long fileSetOffsets;
+    private int[] positions = new int[PAGE_SIZE / Integer.BYTES];
+
+    /**
+     * Maps an index file and reads its header and footer.
+     *
+     * @param indexFile The index file
+     * @throws IOException on error, or if the file is not a version 1 index
+     */
+    public IndexReader(final Path indexFile) throws IOException {
+        file = indexFile;
+        try (FileChannel channel = FileChannel.open(indexFile, StandardOpenOption.READ)) {
+            final long size = channel.size();
+            if (size < HEADER_SIZE + FOOTER_SIZE) {
+                throw new IOException("Not an index file: " + indexFile);
+            }
+            segments = new MappedByteBuffer[(int) ((size - 1) / SEGMENT_SIZE) + 1];
+            for (int i = 0; i < segments.length; i++) {
+                final long start = i * SEGMENT_SIZE;
+                segments[i] = channel.map(READ_ONLY, start, Math.min(SEGMENT_SIZE + SEGMENT_OVERLAP, size - start));
+            }
+        }
+
+        try {
+            final long footer = segmentsSize() - FOOTER_SIZE;
+            if (getInt(0) != MAGIC || getInt(footer + FOOTER_SIZE - Integer.BYTES) != MAGIC) {
+                throw new IOException("Not an index file: " + indexFile);
+            }
+            final int version = getInt(Integer.BYTES);
+            if (version != VERSION) {
+                throw new IOException("Unsupported index version " + version + ": " + indexFile);
+            }
+
+            long at = footer;
+            pageTable = getLong(at);
+            pages = getInt(at += Long.BYTES);
+            dictionary = getLong(at += Integer.BYTES);
+            count = getInt(at += Long.BYTES);
+            logicalSize = getLong(at += Integer.BYTES);
+            postings = getLong(at + Long.BYTES);
+            final boolean hasFileSets = (getInt(2 * Integer.BYTES) & FILE_SETS) != 0;
+            fileSets = hasFileSets ? dictionary + (long) count * DICT_ENTRY : -1;
+            fileSetOffsets = hasFileSets ? footer - (long) count * Long.BYTES : -1;
+            if (pages < 0 || count < 0 || pageTable < HEADER_SIZE
+                    || pageTable + (long) pages * PAGE_ENTRY != dictionary
+                    || (hasFileSets ? fileSets > fileSetOffsets
+                    : dictionary + (long) count * DICT_ENTRY != footer)) {
+                throw new IOException("Corrupt index file: " + indexFile);
+            }
+        } catch (IOException | RuntimeException e) {
+            close();
+            throw e;
+        }
+    }
+
+    /**
+     * @return The number of trigrams in the index
+     */
+    public int trigramCount() {
+        return count;
+    }
+
+    /**
+     * @return The number of positions in the index
+     */
+    public long postings() {
+        return postings;
+    }
+
+    /**
+     * @return The number of pages inflated since the file was opened
+     */
+    public long pagesInflated() {
+        return pagesInflated;
+    }
+
+    /**
+     * @param i The index of a dictionary entry, from 0 to trigramCount - 1
+     * @return The packed trigram of the entry, entries are in trigram order
+     */
+    public int trigramAt(final int i) {
+        if (closed) {
+            throw new IllegalStateException("Index reader is closed: " + file);
+        }
+        if (i < 0 || i >= count) {
+            throw new IndexOutOfBoundsException(i);
+        }
+        return (int) (getLong(dictionary + (long) i * DICT_ENTRY) >>> OFFSET_BITS);
+    }
+
+    /**
+     * @param trigram The packed trigram
+     * @return The number of files holding the trigram
+     */
+    @Override
+    public int fileCount(final int trigram) {
+        final int i = find(trigram);
+        return i < 0 ? 0 : getInt(dictionary + (long) i * DICT_ENTRY + Long.BYTES);
+    }
+
+    /**
+     * Reads the set of files holding a trigram, without reading its
+     * postings unless the trigram is rare, see IndexFormat.FILE_SET_MIN, or
+     * the index predates file sets.
+     *
+     * @param trigram The packed trigram
+     * @return The ids of the files holding the trigram
+     * @throws IOException on error
+     */
+    @Override
+    public FileIdSet fileSet(final int trigram) throws IOException {
+        final int i = find(trigram);
+        FileIdSet set = new FileIdSet();
+        if (i < 0) {
+            return set;
+        }
+        final long start = fileSets < 0 ? 0 : fileSets + getLong(fileSetOffsets + (long) i * Long.BYTES);
+        final long end = fileSets < 0 ? 0 : i + 1 < count
+                ? fileSets + getLong(fileSetOffsets + (i + 1L) * Long.BYTES) : fileSetOffsets;
+        if (end == start) {
+            //a rare trigram, or an index that predates file sets
+            readBlock(i, (t, fid, p, n) -> set.add(fid));
+            return set;
+        }
+        if (start < fileSets || end < start || end > fileSetOffsets) {
+            throw new IOException("Corrupt file set offset " + i + ": " + file);
+        }
+        return FileIdSet.read(region(start, end - start));
+    }
+
+    /**
+     * Reads the runs of one trigram. The positions array passed to the
+     * visitor is reused between runs.
+     *
+     * @param trigram The packed trigram
+     * @param visitor Receives the runs in file id order
+     * @return false if the index does not hold the trigram
+     * @throws IOException on error
+     * @throws E if the visitor does
+     * @param <E> The exception type thrown by the visitor
+     */
+    @Override
+    public <E extends Exception> boolean read(final int trigram, final RunVisitor<E> visitor)
+            throws IOException, E {
+        final int i = find(trigram);
+        if (i < 0) {
+            return false;
+        }
+        readBlock(i, visitor);
+        return true;
+    }
+
+    /**
+     * Reads every run in (trigram, file id) order, see read.
+     *
+     * @param visitor Receives the runs
+     * @throws IOException on error
+     * @throws E if the visitor does
+     * @param <E> The exception type thrown by the visitor
+     */
+    public <E extends Exception> void readAll(final RunVisitor<E> visitor) throws IOException, E {
+        for (int i = 0; i < count; i++) {
+            readBlock(i, visitor);
+        }
+    }
+
+    /**
+     * Unmaps the file, the reader cannot be used afterwards.
+     */
+    @Override
+    public void close() {
+        if (!closed) {
+            closed = true;
+            inflater.end();
+            for (MappedByteBuffer segment : segments) {
+                SearchImpl.closeDirectBuffer(segment);
+            }
+        }
+    }
+
+    //binary search of the mapped dictionary
+    private int find(final int trigram) {
+        if (closed) {
+            throw new IllegalStateException("Index reader is closed: " + file);
+        }
+        int lo = 0;
+        int hi = count - 1;
+        while (lo <= hi) {
+            final int mid = (lo + hi) >>> 1;
+            final long entry = getLong(dictionary + (long) mid * DICT_ENTRY) >>> OFFSET_BITS;
+            if (entry < trigram) {
+                lo = mid + 1;
+            } else if (entry > trigram) {
+                hi = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -1;
+    }
+
+    private <E extends Exception> void readBlock(final int i, final RunVisitor<E> visitor)
+            throws IOException, E {
+        if (closed) {
+            throw new IllegalStateException("Index reader is closed: " + file);
+        }
+        final long entry = getLong(dictionary + (long) i * DICT_ENTRY);
+        final int trigram = (int) (entry >>> OFFSET_BITS);
+        seek(entry & OFFSET_MASK);
+        int fid = -1;
+        int delta;
+        while ((delta = readVarint()) != END_OF_BLOCK) {
+            fid += delta;
+            final int n = readVarint();
+            if (n > positions.length) {
+                positions = new int[Math.max(n, positions.length * 2)];
+            }
+            int pos = 0;
+            for (int j = 0; j < n; j++) {
+                pos += readVarint();
+                positions[j] = pos;
+            }
+            visitor.visit(trigram, fid, positions, n);
+        }
+    }
+
+    //inflates the page holding the logical offset, unless it is already loaded
+    private void seek(final long offset) throws IOException {
+        if (offset >= logicalSize) {
+            throw new IOException("Index block offset out of range: " + file);
+        }
+        int lo = 0;
+        int hi = pages - 1;
+        while (lo < hi) {
+            final int mid = (lo + hi + 1) >>> 1;
+            if (pageLogical(mid) <= offset) {
+                lo = mid;
+            } else {
+                hi = mid - 1;
+            }
+        }
+        if (lo != pageIndex) {
+            inflatePage(lo);
+        }
+        pagePos = (int) (offset - pageLogical(lo));
+    }
+
+    private long pageLogical(final int p) {
+        return p == pages ? logicalSize : getLong(pageTable + (long) p * PAGE_ENTRY);
+    }
+
+    private long pageOffset(final int p) {
+        return p == pages ? pageTable : getLong(pageTable + (long) p * PAGE_ENTRY + Long.BYTES);
+    }
+
+    private void inflatePage(final int p) throws IOException {
+        final long start = pageOffset(p);
+        final long len = pageOffset(p + 1) - start;
+        if (len <= 0 || len > SEGMENT_OVERLAP) {
+            throw new IOException("Corrupt index page " + p + ": " + file);
+        }
+
+        inflater.reset();
+        inflater.setInput(segments[(int) (start / SEGMENT_SIZE)].slice((int) (start % SEGMENT_SIZE), (int) len));
+        try {
+            pageLen = inflater.inflate(page);
+        } catch (DataFormatException e) {
+            throw new IOException("Corrupt index page " + p + ": " + file, e);
+        }
+        if (pageLen != pageLogical(p + 1) - pageLogical(p)) {
+            throw new IOException("Corrupt index page " + p + ": " + file);
+        }
+        pageIndex = p;
+        pagePos = 0;
+        pagesInflated++;
+    }
+
+    private int readVarint() throws IOException {
+        int value = 0;
+        int shift = 0;
+        int b;
+        do {
+            if (pagePos == pageLen) {
+                if (pageIndex + 1 >= pages) {
+                    throw new IOException("Unexpected end of index blocks: " + file);
+                }
+                inflatePage(pageIndex + 1);
+            }
+            b = page[pagePos++] & BYTE_MASK;
+            value |= (b & SEVEN_BITS) << shift;
+            shift += SHIFT;
+        } while ((b & MORE) != 0);
+        return value;
+    }
+
+    //the bytes at the offset, viewed in place unless they cross segments
+    private ByteBuffer region(final long offset, final long len) throws IOException {
+        if (len > Integer.MAX_VALUE) {
+            throw new IOException("Corrupt index region at " + offset + ": " + file);
+        }
+        final MappedByteBuffer segment = segments[(int) (offset / SEGMENT_SIZE)];
+        final int at = (int) (offset % SEGMENT_SIZE);
+        if (at + len <= segment.capacity()) {
+            return segment.slice(at, (int) len);
+        }
+        ByteBuffer copy = ByteBuffer.allocate((int) len);
+        for (long p = offset; p < offset + len; p++) {
+            copy.put(segments[(int) (p / SEGMENT_SIZE)].get((int) (p % SEGMENT_SIZE)));
+        }
+        return copy.flip();
+    }
+
+    private long segmentsSize() {
+        final int last = segments.length - 1;
+        return last * SEGMENT_SIZE + segments[last].capacity();
+    }
+
+    private int getInt(final long offset) {
+        return segments[(int) (offset / SEGMENT_SIZE)].getInt((int) (offset % SEGMENT_SIZE));
+    }
+
+    private long getLong(final long offset) {
+        return segments[(int) (offset / SEGMENT_SIZE)].getLong((int) (offset % SEGMENT_SIZE));
+    }
+}
@@ -0,0 +1,251 @@
+/*
+ * Copyright (C) 2017 Gregory Clarke
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.filevinder.core;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.CRC32C;
+import static org.filevinder.core.ErrorHandler.recordErr;
+
+/**
+ * The register of the index files written to a folder, kept in the folder
+ * as an append-only file of checksummed records, one per index. The
+ * records are cached in memory, so registering an index reads only the
+ * records appended since, by other processes, and writes at most one
+ * record. Appends hold a lock on the file, so concurrent writers, in this
+ * process or others, never interleave.
+ *
+ * A record torn by a crash fails its checksum, it and anything after it
+ * are ignored and overwritten by the next append.
+ *
+ * @author Gregory Clarke
+ */
+public final class IndexRegister {
+
+    /**
+     * The name of the register file in a folder.
+     */
+    public static final String FILE_NAME = "index.regf";
+
+    private static final int MAGIC = 0x46565247;
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 2 * Integer.BYTES;
+    private static final int RECORD_OVERHEAD = 2 * Integer.BYTES;
+    private static final short SERIALIZATION_MAGIC = (short) 0xACED;
+
+    private static final Map<Path, IndexRegister> REGISTERS = new ConcurrentHashMap<>();
+
+    private final Path file;
+    private final List<Path> indexes = new ArrayList<>();
+    private final Set<Path> cache = new HashSet<>();
+    private long validLength;
+
+    private IndexRegister(final Path fileVar) {
+        file = fileVar;
+    }
+
+    /**
+     * @param indexFile An index file
+     * @return The register of the index file's folder
+     */
+    public static IndexRegister forIndex(final Path indexFile) {
+        return open(indexFile.toAbsolutePath().normalize().resolveSibling(FILE_NAME));
+    }
+
+    /**
+     * @param registerFile A register file, which need not exist yet
+     * @return The register, one instance per file
+     */
+    public static IndexRegister open(final Path registerFile) {
+        return REGISTERS.computeIfAbsent(registerFile.toAbsolutePath().normalize(), IndexRegister::new);
+    }
+
+    /**
+     * Registers an index file, if it is not registered already.
+     *
+     * @param indexFile The index file
+     * @return false if the index was registered already
+     * @throws IOException on error, or if the file is not a register
+     */
+    public synchronized boolean add(final Path indexFile) throws IOException {
+        final Path index = indexFile.toAbsolutePath().normalize();
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            FileLock lock = channel.lock();
+            try {
+                refresh(channel);
+                if (cache.contains(index)) {
+                    return false;
+                }
+                if (validLength == 0) {
+                    ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).putInt(MAGIC).putInt(VERSION);
+                    writeFully(channel, header.flip(), 0);
+                    validLength = HEADER_SIZE;
+                }
+                //drop a record torn by a writer that crashed
+                channel.truncate(validLength);
+
+                byte[] bytes = index.toString().getBytes(StandardCharsets.UTF_8);
+                ByteBuffer record = ByteBuffer.allocate(bytes.length + RECORD_OVERHEAD)
+                        .putInt(bytes.length).put(bytes).putInt(checksum(bytes, 0, bytes.length));
+                writeFully(channel, record.flip(), validLength);
+                validLength += record.limit();
+                indexes.add(index);
+                cache.add(index);
+                return true;
+            } finally {
+                lock.release();
+            }
+        }
+    }
+
+    /**
+     * @param indexFile An index file
+     * @return true if the index file is registered
+     * @throws IOException on error, or if the file is not a register
+     */
+    public synchronized boolean contains(final Path indexFile) throws IOException {
+        read();
+        return cache.contains(indexFile.toAbsolutePath().normalize());
+    }
+
+    /**
+     * @return The registered index files, in the order registered
+     * @throws IOException on error, or if the file is not a register
+     */
+    public synchronized List<Path> indexes() throws IOException {
+        read();
+        return new ArrayList<>(indexes);
+    }
+
+    /**
+     * @param root A folder
+     * @return The registered index files in the folder or its sub-folders
+     * @throws IOException on error, or if the file is not a register
+     */
+    public synchronized List<Path> indexesUnder(final Path root) throws IOException {
+        read();
+        final Path dir = root.toAbsolutePath().normalize();
+        List<Path> under = new ArrayList<>();
+        for (Path index : indexes) {
+            if (index.startsWith(dir)) {
+                under.add(index);
+            }
+        }
+        return under;
+    }
+
+    //reads the records appended since the last read, under a shared lock
+    private void read() throws IOException {
+        if (!Files.exists(file)) {
+            return;
+        }
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            FileLock lock = channel.lock(0, Long.MAX_VALUE, true);
+            try {
+                refresh(channel);
+            } finally {
+                lock.release();
+            }
+        }
+    }
+
+    private void refresh(final FileChannel channel) throws IOException {
+        final long size = channel.size();
+        if (size < validLength) {
+            //the register was replaced
+            indexes.clear();
+            cache.clear();
+            validLength = 0;
+        }
+        if (size == validLength) {
+            return;
+        }
+        ByteBuffer tail = ByteBuffer.allocate((int) (size - validLength));
+        readFully(channel, tail, validLength);
+        tail.flip();
+
+        if (validLength == 0) {
+            if (tail.remaining() >= Short.BYTES && tail.getShort(0) == SERIALIZATION_MAGIC) {
+                recordErr("Replacing legacy index register " + file);
+                return;
+            }
+            if (tail.remaining() < HEADER_SIZE) {
+                return;
+            }
+            if (tail.getInt() != MAGIC || tail.getInt() != VERSION) {
+                throw new IOException("Not a version " + VERSION + " index register: " + file);
+            }
+            validLength = HEADER_SIZE;
+        }
+        while (tail.remaining() >= RECORD_OVERHEAD) {
+            final int length = tail.getInt(tail.position());
+            if (length < 0 || length > tail.remaining() - RECORD_OVERHEAD) {
+                return;
+            }
+            final int start = tail.position() + Integer.BYTES;
+            if (tail.getInt(start + length) != checksum(tail.array(), start, length)) {
+                return;
+            }
+            Path index = Paths.get(new String(tail.array(), start, length, StandardCharsets.UTF_8));
+            if (cache.add(index)) {
+                indexes.add(index);
+            }
+            tail.position(start + length + Integer.BYTES);
+            validLength += length + RECORD_OVERHEAD;
+        }
+    }
+
+    private static int checksum(final byte[] bytes, final int off, final int len) {
+        CRC32C crc = new CRC32C();
+        crc.update(bytes, off, len);
+        return (int) crc.getValue();
+    }
+
+    private static void writeFully(final FileChannel channel, final ByteBuffer buf, final long position)
+            throws IOException {
+        long at = position;
+        while (buf.hasRemaining()) {
+            at += channel.write(buf, at);
+        }
+    }
+
+    private static void readFully(final FileChannel channel, final ByteBuffer buf, final long position)
+            throws IOException {
+        long at = position;
+        while (buf.hasRemaining()) {
+            final int n = channel.read(buf, at);
+            if (n < 0) {
+                return;
+            }
+            at += n;
+        }
+    }
+}
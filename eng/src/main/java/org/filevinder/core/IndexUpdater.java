@@ -0,0 +1,278 @@
+/*
+ * Copyright (C) 2017 Gregory Clarke
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.filevinder.core;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import static org.filevinder.common.Utils.getFiles;
+import static org.filevinder.common.Utils.readEntireFile;
+import static org.filevinder.common.Utils.validateFile;
+import static org.filevinder.core.ErrorHandler.propogateErr;
+import static org.filevinder.core.ErrorHandler.recordErr;
+import org.filevinder.types.Chunk;
+
+/**
+ * Brings a segmented index up to date with a folder, see FileCatalog and
+ * SegmentedIndex. Files whose size and modification time match the catalog
+ * are not read, and files whose content hash matches are not re-indexed.
+ * New and changed files are indexed into fresh segments which mask the
+ * changed and deleted files in the older segments, so an update costs in
+ * proportion to the changes and nothing is rewritten. A segment is
+ * committed whenever the postings held in memory reach a budget, see
+ * SegmentBuffer, so readers may see an update part way through.
+ *
+ * A file larger than a window of the FileChunker is hashed as a stream,
+ * and only if its content changed is it read again in chunks to be indexed,
+ * so memory does not grow with the size of the file.
+ *
+ * The catalogued ids are registered with the FileIdMap of the process. A
+ * file whose id is held there by another file, e.g. one of another index,
+ * is indexed again under a new id and counted as added.
+ *
+ * @author Gregory Clarke
+ */
+public final class IndexUpdater {
+
+    private final SegmentedIndex index;
+    private final Path indexDir;
+    private final Path catalogFile;
+    private final Charset charset;
+    private final FileChunker chunker;
+    private final long budget;
+
+    /**
+     * The outcome of an update for one file.
+     */
+    public enum Change {
+        /** A file not in the index. */
+        ADDED,
+        /** A file whose content changed. */
+        CHANGED,
+        /** A file that was deleted, or is no longer a text file. */
+        DELETED,
+        /** A file whose content is unchanged. */
+        UNCHANGED,
+        /** A file that is not a text file, see Utils.validateFile. */
+        SKIPPED
+    }
+
+    /**
+     * @param indexVar The index to update, its catalog is kept in the index
+     * directory. The same instance should be given to any SegmentCompactor.
+     * @param charsetVar The character set of the indexed files
+     */
+    public IndexUpdater(final SegmentedIndex indexVar, final Charset charsetVar) {
+        this(indexVar, charsetVar, new FileChunker());
+    }
+
+    /**
+     * @param indexVar The index to update, see IndexUpdater(SegmentedIndex, Charset)
+     * @param charsetVar The character set of the indexed files
+     * @param chunkerVar Reads the files larger than one window
+     */
+    public IndexUpdater(final SegmentedIndex indexVar, final Charset charsetVar, final FileChunker chunkerVar) {
+        this(indexVar, charsetVar, chunkerVar, SegmentBuffer.DEFAULT_BUDGET);
+    }
+
+    /**
+     * @param indexVar The index to update, see IndexUpdater(SegmentedIndex, Charset)
+     * @param charsetVar The character set of the indexed files
+     * @param chunkerVar Reads the files larger than one window
+     * @param budgetVar The bytes of postings held in memory before a segment
+     * is committed, see SegmentBuffer
+     */
+    public IndexUpdater(final SegmentedIndex indexVar, final Charset charsetVar, final FileChunker chunkerVar,
+            final long budgetVar) {
+        if (budgetVar < 1) {
+            throw new IllegalArgumentException("Budget must be positive: " + budgetVar);
+        }
+        index = indexVar;
+        indexDir = index.getDirectory().toAbsolutePath().normalize();
+        catalogFile = indexDir.resolve(FileCatalog.CATALOG);
+        charset = charsetVar;
+        chunker = chunkerVar;
+        budget = budgetVar;
+    }
+
+    /**
+     * @return The index being updated
+     */
+    public SegmentedIndex getIndex() {
+        return index;
+    }
+
+    /**
+     * Updates the index with the files in the folder and its sub-folders,
+     * building it if it does not exist.
+     *
+     * @param rootPath The folder to index
+     * @return The number of files with each outcome
+     * @throws FileVinderException if the index or catalog cannot be read or
+     * written
+     */
+    public Map<Change, Long> update(final String rootPath) throws FileVinderException {
+        return update(List.of(Paths.get(rootPath)));
+    }
+
+    /**
+     * Updates the index with some files and folders, e.g. those changed
+     * since the last update, see IndexWatcher. A folder is rescanned with its
+     * sub-folders, and a path that no longer exists deletes the files
+     * recorded at or below it. If the index does not exist it is built from
+     * the given paths alone.
+     *
+     * @param paths The files and folders to update
+     * @return The number of files with each outcome
+     * @throws FileVinderException if the index or catalog cannot be read or
+     * written
+     */
+    public Map<Change, Long> update(final Collection<Path> paths) throws FileVinderException {
+        try {
+            final List<Path> targets = paths.stream()
+                    .map(path -> path.toAbsolutePath().normalize())
+                    .collect(Collectors.toList());
+            final boolean incremental = SegmentedIndex.isSegmented(indexDir) && Files.exists(catalogFile);
+            final FileCatalog catalog = incremental ? FileCatalog.load(catalogFile) : new FileCatalog();
+            for (Path path : catalog.register(FileIdMap.getInstance())) {
+                //its id is another file's in this process, so it is indexed again under a new id
+                catalog.tombstone(path);
+            }
+            if (!incremental) {
+                //before indexing, as segments are committed along the way
+                index.clear();
+            }
+
+            SegmentBuffer buffer = new SegmentBuffer(index, budget);
+            Set<Path> seen = ConcurrentHashMap.newKeySet();
+
+            Map<Change, Long> changes = targets.stream()
+                    .flatMap(IndexUpdater::files)
+                    .map(path -> path.toAbsolutePath().normalize())
+                    .filter(path -> !path.startsWith(indexDir))
+                    .peek(seen::add)
+                    .map(path -> refresh(path, catalog, buffer))
+                    .collect(Collectors.groupingByConcurrent(Function.identity(), Collectors.counting()));
+
+            long deleted = changes.getOrDefault(Change.DELETED, 0L);
+            for (Path path : catalog.livePaths()) {
+                if (!seen.contains(path) && targets.stream().anyMatch(path::startsWith)) {
+                    buffer.delete(List.of(catalog.tombstone(path)));
+                    deleted++;
+                }
+            }
+            if (deleted > 0) {
+                changes.put(Change.DELETED, deleted);
+            }
+
+            //the segment masks the deleted files, so the tombstones are not kept
+            buffer.delete(catalog.tombstones());
+            buffer.flush();
+            for (Path path : catalog.purgeTombstones()) {
+                FileIdMap.getInstance().remove(path);
+            }
+            catalog.save(catalogFile);
+            return changes;
+
+        } catch (IOException e) {
+            propogateErr("Could not update index " + indexDir, e);
+            return null;
+        } catch (UncheckedIOException e) {
+            propogateErr("Could not update index " + indexDir, e.getCause());
+            return null;
+        }
+    }
+
+    //the files to refresh for a path, none if it no longer exists
+    private static Stream<Path> files(final Path path) {
+        if (Files.isDirectory(path)) {
+            return getFiles(path.toString(), true);
+        }
+        return Files.isRegularFile(path) ? Stream.of(path) : Stream.empty();
+    }
+
+    private Change refresh(final Path path, final FileCatalog catalog, final SegmentBuffer buffer) {
+
+        final FileCatalog.Entry entry = catalog.get(path);
+        final boolean known = entry != null && !entry.isDeleted();
+        final BasicFileAttributes attrs;
+        try {
+            attrs = Files.readAttributes(path, BasicFileAttributes.class);
+        } catch (IOException e) {
+            recordErr("Could not read file attributes", e);
+            return Change.SKIPPED;
+        }
+        final long modified = attrs.lastModifiedTime().toMillis();
+        if (known && entry.getSize() == attrs.size() && entry.getModified() == modified) {
+            return Change.UNCHANGED;
+        }
+
+        final boolean large = attrs.size() > chunker.getWindowSize();
+        final Chunk chunk = large ? null : readEntireFile(path, charset);
+        Long hash = chunk == null ? null : FileCatalog.hash(chunk.getBytes());
+        if (large && validateFile(path, charset)) {
+            try {
+                hash = FileCatalog.hash(path);
+            } catch (IOException e) {
+                recordErr("Could not read file " + path, e);
+            }
+        }
+        if (hash == null) {
+            return unreadable(path, catalog, known, buffer);
+        }
+
+        if (known && entry.getHash() == hash) {
+            catalog.put(path, entry.getFileId(), attrs.size(), modified, hash);
+            return Change.UNCHANGED;
+        }
+
+        if (entry != null) {
+            //masked by the segment holding its first new postings, a tombstoned file's postings
+            //may still be in the index
+            buffer.delete(List.of(entry.getFileId()));
+        }
+        if (chunk != null) {
+            buffer.accept(chunk);
+        } else if (!chunker.read(path, charset, buffer)) {
+            return unreadable(path, catalog, known, buffer);
+        }
+        catalog.put(path, FileIdMap.getInstance().getFileId(path), attrs.size(), modified, hash);
+        return known ? Change.CHANGED : Change.ADDED;
+    }
+
+    //a file that is not, or is no longer, a readable text file
+    private static Change unreadable(final Path path, final FileCatalog catalog, final boolean known,
+            final SegmentBuffer buffer) {
+        if (known) {
+            buffer.delete(List.of(catalog.tombstone(path)));
+            return Change.DELETED;
+        }
+        return Change.SKIPPED;
+    }
+}
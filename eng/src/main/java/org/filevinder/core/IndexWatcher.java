@@ -0,0 +1,285 @@
+/*
+ * Copyright (C) 2017 Gregory Clarke
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.filevinder.core;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_DELETE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+import static java.nio.file.StandardWatchEventKinds.OVERFLOW;
+import static org.filevinder.core.ErrorHandler.propogateErr;
+import static org.filevinder.core.ErrorHandler.recordErr;
+
+/**
+ * Keeps a segmented index fresh by watching the folders of the root path,
+ * see IndexUpdater. Events are collected until the folders have been quiet
+ * for the debounce period, or the first pending event is ten periods old,
+ * and the changed paths are then passed to the updater as one batch. A
+ * burst of writes to a file therefore costs one update, and a busy tree
+ * is still updated regularly.
+ *
+ * When the watch service drops events (an overflow) the folder is
+ * rescanned, a new folder is registered and scanned, and a deleted folder
+ * deletes the files recorded below it.
+ *
+ * @author Gregory Clarke
+ */
+public final class IndexWatcher implements Closeable {
+
+    /**
+     * A batch is flushed once its first event is this many debounce periods
+     * old, even if events are still arriving.
+     */
+    private static final int MAX_DELAY_PERIODS = 10;
+
+    private static final long NANOS_PER_MILLI = 1_000_000L;
+
+    private final IndexUpdater updater;
+    private final Path root;
+    private final Path indexDir;
+    private final long debounceMillis;
+    private final Map<WatchKey, Path> keys = new ConcurrentHashMap<>();
+    private final Set<Path> pending = new HashSet<>();
+    private long firstPending;
+    private WatchService watcher;
+    private Thread thread;
+
+    private volatile long events;
+    private volatile long overflows;
+    private volatile long batches;
+    private volatile long lastLagMillis;
+    private volatile long maxLagMillis;
+
+    /**
+     * @param updaterVar Receives the batches of changed paths
+     * @param rootVar The folder to watch, with its sub-folders
+     * @param debounceMillisVar How long the folders must be quiet before a
+     * batch is passed to the updater
+     */
+    public IndexWatcher(final IndexUpdater updaterVar, final Path rootVar, final long debounceMillisVar) {
+        if (debounceMillisVar < 1) {
+            throw new IllegalArgumentException("Debounce period must be positive: " + debounceMillisVar);
+        }
+        updater = updaterVar;
+        root = rootVar.toAbsolutePath().normalize();
+        indexDir = updater.getIndex().getDirectory().toAbsolutePath().normalize();
+        debounceMillis = debounceMillisVar;
+    }
+
+    /**
+     * Registers the folders, updates the index with the whole root path so
+     * that changes made before the folders were registered are not missed,
+     * and starts watching.
+     *
+     * @throws FileVinderException if the folders cannot be watched or the
+     * index cannot be updated
+     */
+    public synchronized void start() throws FileVinderException {
+        if (thread != null) {
+            throw new IllegalStateException("Already watching " + root);
+        }
+        try {
+            watcher = root.getFileSystem().newWatchService();
+        } catch (IOException e) {
+            propogateErr("Could not watch " + root, e);
+        }
+        register(root);
+        updater.update(List.of(root));
+
+        thread = new Thread(this::run, "index-watcher");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * @return The number of events received
+     */
+    public long events() {
+        return events;
+    }
+
+    /**
+     * @return The number of overflows, each causing a folder to be rescanned
+     */
+    public long overflows() {
+        return overflows;
+    }
+
+    /**
+     * @return The number of batches passed to the updater
+     */
+    public long batches() {
+        return batches;
+    }
+
+    /**
+     * @return The time from the first event of the last batch until the
+     * index was updated, in milliseconds
+     */
+    public long lastLagMillis() {
+        return lastLagMillis;
+    }
+
+    /**
+     * @return The longest lag of any batch, see lastLagMillis
+     */
+    public long maxLagMillis() {
+        return maxLagMillis;
+    }
+
+    /**
+     * @return The number of folders watched
+     */
+    public int watchedDirectories() {
+        return keys.size();
+    }
+
+    private void run() {
+        try {
+            while (true) {
+                WatchKey key = pending.isEmpty() ? watcher.take() : watcher.poll(remaining(), TimeUnit.MILLISECONDS);
+                if (key != null) {
+                    collect(key);
+                }
+                if (!pending.isEmpty() && (key == null || remaining() == 0)) {
+                    flush();
+                }
+            }
+        } catch (ClosedWatchServiceException | InterruptedException e) {
+            //closed
+        }
+    }
+
+    //the time to wait for further events, at most a debounce period
+    private long remaining() {
+        final long age = (System.nanoTime() - firstPending) / NANOS_PER_MILLI;
+        return Math.max(0, Math.min(debounceMillis, MAX_DELAY_PERIODS * debounceMillis - age));
+    }
+
+    private void collect(final WatchKey key) {
+        final Path dir = keys.get(key);
+        for (WatchEvent<?> event : key.pollEvents()) {
+            events++;
+            if (event.kind() == OVERFLOW) {
+                overflows++;
+                if (dir != null) {
+                    add(dir);
+                }
+                continue;
+            }
+            if (dir == null) {
+                continue;
+            }
+            final Path child = dir.resolve((Path) event.context());
+            if (child.startsWith(indexDir)) {
+                continue;
+            }
+            final boolean isDir = Files.isDirectory(child, LinkOption.NOFOLLOW_LINKS);
+            if (event.kind() == ENTRY_CREATE && isDir) {
+                //files may have been created before the folder was registered
+                register(child);
+                add(child);
+            } else if (event.kind() != ENTRY_MODIFY || !isDir) {
+                add(child);
+            }
+        }
+        if (!key.reset()) {
+            keys.remove(key);
+        }
+    }
+
+    private void add(final Path path) {
+        if (pending.isEmpty()) {
+            firstPending = System.nanoTime();
+        }
+        pending.add(path);
+    }
+
+    private void flush() {
+        //a path below a pending folder is covered by the folder's rescan
+        List<Path> batch = new ArrayList<>();
+        for (Path path : pending) {
+            Path parent = path.getParent();
+            while (parent != null && !pending.contains(parent)) {
+                parent = parent.getParent();
+            }
+            if (parent == null) {
+                batch.add(path);
+            }
+        }
+        try {
+            updater.update(batch);
+        } catch (FileVinderException e) {
+            recordErr("Could not update index " + indexDir, e);
+        }
+        final long lag = (System.nanoTime() - firstPending) / NANOS_PER_MILLI;
+        lastLagMillis = lag;
+        maxLagMillis = Math.max(maxLagMillis, lag);
+        batches++;
+        pending.clear();
+    }
+
+    private void register(final Path dir) {
+        try {
+            for (Path sub : new FileFinder().findDirectories(dir)) {
+                Path abs = sub.toAbsolutePath().normalize();
+                if (!abs.startsWith(indexDir)) {
+                    keys.put(abs.register(watcher, ENTRY_CREATE, ENTRY_DELETE, ENTRY_MODIFY), abs);
+                }
+            }
+        } catch (IOException e) {
+            recordErr("Could not watch " + dir, e);
+        }
+    }
+
+    /**
+     * Stops watching, waiting for an update in progress to complete.
+     */
+    @Override
+    public synchronized void close() {
+        if (watcher == null) {
+            return;
+        }
+        try {
+            watcher.close();
+        } catch (IOException e) {
+            recordErr("Could not close watch service", e);
+        }
+        if (thread != null) {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
@@ -0,0 +1,336 @@
+/*
+ * Copyright (C) 2017 Gregory Clarke
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.filevinder.core;
+
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.Deflater;
+import static org.filevinder.core.IndexFormat.END_OF_BLOCK;
+import static org.filevinder.core.IndexFormat.FILE_SETS;
+import static org.filevinder.core.IndexFormat.FILE_SET_MIN;
+import static org.filevinder.core.IndexFormat.MAGIC;
+import static org.filevinder.core.IndexFormat.MAX_VARINT;
+import static org.filevinder.core.IndexFormat.OFFSET_BITS;
+import static org.filevinder.core.IndexFormat.OFFSET_MASK;
+import static org.filevinder.core.IndexFormat.PAGE_SIZE;
+import static org.filevinder.core.IndexFormat.VERSION;
+import static org.filevinder.core.IndexFormat.putVarint;
+
+/**
+ * Streams postings to a binary index file, see IndexFormat. Runs must be
+ * added in (trigram, file id) order, e.g. by PostingListImpl.forEachRun.
+ * Blocks are encoded into a page buffer which is deflated to the file when
+ * full. The page table, dictionary and file sets, which follow the pages,
+ * are held in fixed buffers that spill to temporary files, so the heap used
+ * does not depend on the size of the index, only the file set of the
+ * trigram being written depends on the number of files.
+ *
+ * @author Gregory Clarke
+ */
+public final class IndexWriter implements Closeable {
+
+    /**
+     * The bytes of each of the page table, dictionary, file sets and file
+     * set offsets held in memory before spilling to a temporary file.
+     */
+    private static final int SPOOL_SIZE = 1 << 16;
+
+    private final WritableByteChannel out;
+    private final Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+    private final byte[] page = new byte[PAGE_SIZE];
+    private final ByteBuffer buf = ByteBuffer.allocate(PAGE_SIZE);
+    private int pageLen;
+    private long logical;
+    private long written;
+
+    private final Spool pageTable;
+    private int pages;
+
+    private final Spool dictionary;
+    private int count;
+    private long entry;
+    private int fileCount;
+    private int lastTrigram = -1;
+    private int lastFid;
+    private long postings;
+
+    private final Spool fileSets;
+    private final DataOutputStream fileSetsOut;
+    private final Spool fileSetOffsets;
+    private FileIdSet fileSet;
+
+    /**
+     * Writes the header to out. Closing the writer completes the file and
+     * closes out.
+     *
+     * @param outVar The stream to write to
+     * @throws IOException on error
+     */
+    public IndexWriter(final OutputStream outVar) throws IOException {
+        this(Channels.newChannel(outVar), null);
+    }
+
+    /**
+     * Creates or replaces an index file and writes the header, the file is
+     * written through a FileChannel.
+     *
+     * @param file The file to write
+     * @throws IOException on error
+     */
+    public IndexWriter(final Path file) throws IOException {
+        this(FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                StandardOpenOption.WRITE), file.toAbsolutePath().getParent());
+    }
+
+    private IndexWriter(final WritableByteChannel outVar, final Path spillDir) throws IOException {
+        out = outVar;
+        pageTable = new Spool(spillDir);
+        dictionary = new Spool(spillDir);
+        fileSets = new Spool(spillDir);
+        fileSetsOut = new DataOutputStream(fileSets);
+        fileSetOffsets = new Spool(spillDir);
+        buf.putInt(MAGIC).putInt(VERSION).putInt(FILE_SETS);
+    }
+
+    /**
+     * Appends the positions of a trigram in a file.
+     *
+     * @param trigram The packed trigram
+     * @param fid The file id
+     * @param positions The positions, in ascending order
+     * @param n The number of positions to write
+     * @throws IOException on error
+     */
+    public void add(final int trigram, final int fid, final int[] positions, final int n)
+            throws IOException {
+
+        if (trigram != lastTrigram) {
+            if (trigram < lastTrigram) {
+                throw new IllegalArgumentException("Trigrams out of order: " + Trigrams.name(trigram));
+            }
+            endBlock();
+            final long offset = logical + pageLen;
+            if (offset > OFFSET_MASK) {
+                throw new IllegalStateException("Index exceeds " + OFFSET_MASK + " bytes");
+            }
+            entry = (long) trigram << OFFSET_BITS | offset;
+            fileCount = 0;
+            fileSet = new FileIdSet();
+            count++;
+            lastTrigram = trigram;
+            lastFid = -1;
+        } else if (fid <= lastFid) {
+            throw new IllegalArgumentException("File ids out of order: " + fid);
+        }
+
+        putVarint(fid - lastFid);
+        putVarint(n);
+        int last = 0;
+        for (int i = 0; i < n; i++) {
+            putVarint(positions[i] - last);
+            last = positions[i];
+        }
+        lastFid = fid;
+        fileCount++;
+        fileSet.add(fid);
+        postings += n;
+    }
+
+    /**
+     * Writes the last page, the page table, dictionary, file sets and footer,
+     * then closes the file.
+     *
+     * @throws IOException on error
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            endBlock();
+            flushPage();
+
+            flush();
+            final long pageTableAt = written;
+            written += pageTable.drainTo(out);
+            final long dict = written;
+            written += dictionary.drainTo(out);
+            written += fileSets.drainTo(out);
+            written += fileSetOffsets.drainTo(out);
+
+            buf.putLong(pageTableAt).putInt(pages).putLong(dict).putInt(count)
+                    .putLong(logical).putLong(postings).putInt(MAGIC);
+            flush();
+        } finally {
+            deflater.end();
+            try (out; pageTable; dictionary; fileSets; fileSetOffsets) {
+                //closed in reverse order
+            }
+        }
+    }
+
+    //ends the block of the current trigram, its dictionary entry and file set
+    private void endBlock() throws IOException {
+        if (count > 0) {
+            putVarint(END_OF_BLOCK);
+            dictionary.putLong(entry);
+            dictionary.putInt(fileCount);
+            fileSetOffsets.putLong(fileSets.length());
+            if (fileCount >= FILE_SET_MIN) {
+                fileSet.write(fileSetsOut);
+            }
+        }
+    }
+
+    private void putVarint(final int value) throws IOException {
+        if (pageLen + MAX_VARINT > PAGE_SIZE) {
+            flushPage();
+        }
+        pageLen = IndexFormat.putVarint(page, pageLen, value);
+    }
+
+    //deflates the page buffer to the file, blocks may span pages
+    private void flushPage() throws IOException {
+        if (pageLen == 0) {
+            return;
+        }
+        pageTable.putLong(logical);
+        pageTable.putLong(written + buf.position());
+        pages++;
+
+        deflater.reset();
+        deflater.setInput(page, 0, pageLen);
+        deflater.finish();
+        while (!deflater.finished()) {
+            if (!buf.hasRemaining()) {
+                flush();
+            }
+            buf.position(buf.position() + deflater.deflate(buf.array(), buf.position(), buf.remaining()));
+        }
+        logical += pageLen;
+        pageLen = 0;
+    }
+
+    private void flush() throws IOException {
+        buf.flip();
+        written += buf.remaining();
+        while (buf.hasRemaining()) {
+            out.write(buf);
+        }
+        buf.clear();
+    }
+
+    /**
+     * Entries written to the file after the pages, held in a fixed buffer
+     * which spills to a temporary file when full.
+     */
+    private static final class Spool extends OutputStream {
+        private final Path dir;
+        private final ByteBuffer buffer = ByteBuffer.allocate(SPOOL_SIZE);
+        private FileChannel spill;
+
+        private Spool(final Path dirVar) {
+            dir = dirVar;
+        }
+
+        private void putLong(final long v) throws IOException {
+            if (buffer.remaining() < Long.BYTES) {
+                spill();
+            }
+            buffer.putLong(v);
+        }
+
+        private void putInt(final int v) throws IOException {
+            if (buffer.remaining() < Integer.BYTES) {
+                spill();
+            }
+            buffer.putInt(v);
+        }
+
+        @Override
+        public void write(final int b) throws IOException {
+            if (!buffer.hasRemaining()) {
+                spill();
+            }
+            buffer.put((byte) b);
+        }
+
+        @Override
+        public void write(final byte[] b, final int off, final int len) throws IOException {
+            int at = off;
+            while (at < off + len) {
+                if (!buffer.hasRemaining()) {
+                    spill();
+                }
+                final int n = Math.min(buffer.remaining(), off + len - at);
+                buffer.put(b, at, n);
+                at += n;
+            }
+        }
+
+        //the bytes written so far
+        private long length() throws IOException {
+            return (spill == null ? 0 : spill.size()) + buffer.position();
+        }
+
+        private void spill() throws IOException {
+            if (spill == null) {
+                Path tmp = dir == null ? Files.createTempFile("index", ".spool")
+                        : Files.createTempFile(dir, "index", ".spool");
+                spill = FileChannel.open(tmp, StandardOpenOption.READ, StandardOpenOption.WRITE,
+                        StandardOpenOption.DELETE_ON_CLOSE);
+            }
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                spill.write(buffer);
+            }
+            buffer.clear();
+        }
+
+        //writes the entries to the channel, returns the bytes written
+        private long drainTo(final WritableByteChannel target) throws IOException {
+            if (spill == null) {
+                buffer.flip();
+                final long size = buffer.remaining();
+                while (buffer.hasRemaining()) {
+                    target.write(buffer);
+                }
+                return size;
+            }
+            spill();
+            final long size = spill.size();
+            for (long at = 0; at < size;) {
+                at += spill.transferTo(at, size - at, target);
+            }
+            return size;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (spill != null) {
+                spill.close();
+            }
+        }
+    }
+}
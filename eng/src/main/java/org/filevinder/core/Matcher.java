@@ -0,0 +1,49 @@
+/*
+ * Copyright (C) 2017 Gregory Clarke
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.filevinder.core;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A compiled, byte level search pattern. Any tables a matcher needs are built
+ * once when it is constructed, a matcher holds no per-search state and may be
+ * shared between threads and reused for every file searched by a query.
+ *
+ * @author Gregory Clarke
+ */
+public interface Matcher {
+
+    /**
+     * Returns the index of the first match in the range [from, to) of the
+     * buffer. Only absolute reads are used, the buffer position is not
+     * modified.
+     *
+     * @param text The buffer to search
+     * @param from The first index at which a match may start
+     * @param to The index after the last byte a match may occupy
+     * @return The absolute index of the start of the match or -1
+     */
+    int indexOf(ByteBuffer text, int from, int to);
+
+    /**
+     * Returns the length of the pattern in bytes.
+     *
+     * @return The pattern length
+     */
+    int length();
+
+}
@@ -0,0 +1,56 @@
+/*
+ * Copyright (C) 2017 Gregory Clarke
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.filevinder.core;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A brute force matcher, candidates are found with a word-at-a-time scan for
+ * the rarest byte of the pattern and each candidate is verified in full. With
+ * no skip distance to exploit this is the fastest option for very short
+ * patterns.
+ *
+ * @author Gregory Clarke
+ */
+public final class NaiveMatcher implements Matcher {
+
+    private final byte[] pat;
+    private final int anchor;
+
+    /**
+     * Constructs a matcher for the given pattern.
+     *
+     * @param patVar The bytes to search for, must not be empty
+     */
+    public NaiveMatcher(final byte[] patVar) {
+        if (patVar.length == 0) {
+            throw new IllegalArgumentException("Empty pattern");
+        }
+        pat = patVar.clone();
+        anchor = ByteScanner.rareByteOffset(pat);
+    }
+
+    @Override
+    public int indexOf(final ByteBuffer text, final int from, final int to) {
+        return ByteScanner.indexOf(text, pat, anchor, from, to);
+    }
+
+    @Override
+    public int length() {
+        return pat.length;
+    }
+}
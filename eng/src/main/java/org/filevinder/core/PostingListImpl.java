@@ -16,36 +16,71 @@
  */
 package org.filevinder.core;
 
+import java.io.IOException;
 import java.io.Serializable;
+import java.io.StringWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.Set;
 import org.filevinder.interfaces.PostingList;
 import org.filevinder.types.FileRef;
 import org.filevinder.types.Trigram;
 
 /**
- * The core data structure used for indexing a set of files. It is structured as
- * a set of nested lists. This mimics the posting list file structure.
+ * The core data structure used for indexing a set of files. Postings are held
+ * in immutable columnar blocks, typically one per indexed chunk: a sorted
+ * column of packed trigrams (see Trigrams), a file id column (omitted when
+ * the block covers a single file), a column of offsets and a byte array of
+ * the positions of each run, varint delta encoded. There are no objects per
+ * trigram, file or position, and positions within a file mostly take 1 or 2
+ * bytes each.
+ *
+ * Readers merge the blocks by (trigram, file), which is the posting list
+ * file order.
  *
  * @author Gregory Clarke
  */
 public class PostingListImpl implements Serializable, PostingList {
 
-    private static final long serialVersionUID = 1L;
+    private static final long serialVersionUID = 3L;
     private static final int FID_POS = 4;
     private static final String BR = "\n";
-    private ArrayList<Trigram> index;
+    private static final int STAGE_LIMIT = 1 << 16;
+    private static final int INITIAL_CAPACITY = 16;
+    private static final int INT_BITS = 32;
+    private static final long INT_MASK = 0xFFFFFFFFL;
+    private static final int GOLDEN = 0x9E3779B9;
+    private static final int INITIAL_BITS = 4;
+    private static final int DISTINCT_TRIGRAMS = 1 << Trigrams.SIZE * Byte.SIZE;
+
+    private Block[] blocks;
+    private int blockCount;
+    private int size;
+    private long blockBytes;
+
+    //single appends are staged and sealed into a block in bulk
+    private int[] stagedTrigrams;
+    private int[] stagedFids;
+    private int[] stagedPositions;
+    private int stagedCount;
+    private boolean stagedSorted;
 
     /**
      * Construct an empty instance of a PostingList care should be taken to
      * ensure that the object does not grow too large.
      */
     public PostingListImpl() {
-        this.index = new ArrayList<>();
+        blocks = new Block[INITIAL_CAPACITY];
+        stagedTrigrams = new int[INITIAL_CAPACITY];
+        stagedFids = new int[INITIAL_CAPACITY];
+        stagedPositions = new int[INITIAL_CAPACITY];
+        stagedSorted = true;
     }
 
     /**
-     * TODO: Create a FID mapping file.
      * Construct an instance of a PostingList from the provided string, care
      * should be taken to ensure that the object does not grow too large.
      * See PostingList.toEncodedString for implementation.
@@ -55,26 +90,44 @@ public class PostingListImpl implements Serializable, PostingList {
      * [TRI](F)L(F)L{BR}
      *
      * TRI - The trigram
-     * F - The file ID, cross referenced with a file ID map file.
+     * F - The file ID, cross referenced with a file ID map file, see FileIdMap.
      * L - The file location. FIles larger than 'int MAX' bytes are not supported.
      * {BR} - The \n character is used as a line break.
      *
      * @param encodedString A string representation of the posting list
      */
     public PostingListImpl(final String encodedString) {
-        this.index = new ArrayList<>();
+        this(encodedString, null);
+    }
+
+    /**
+     * Construct a partial PostingList from the provided string, holding only
+     * the given trigrams. Lines for other trigrams are skipped without being
+     * parsed, so a query need only pay for the posting lists it looks up.
+     * See PostingListImpl(String) for the expected format.
+     *
+     * @param encodedString A string representation of the posting list
+     * @param trigrams The trigrams to keep, or null to keep all of them
+     */
+    public PostingListImpl(final String encodedString, final Set<String> trigrams) {
+        this();
         String[] sa = encodedString.split(BR);
         int fidStart, fidEnd, fid;
 
         for (String line : sa) {
+            if (line.length() <= FID_POS) {
+                continue;
+            }
             fidStart = FID_POS;
             String trigStr = line.substring(1, fidStart);
-            Trigram trigram = new Trigram(trigStr);
+            if (trigrams != null && !trigrams.contains(trigStr)) {
+                continue;
+            }
+            final int trigram = Trigrams.code(trigStr);
             fidStart = line.indexOf('(', fidStart);
             while (true) {
                 fidEnd = line.indexOf(')', fidStart);
                 fid = Integer.parseInt(line.substring(fidStart + 1, fidEnd));
-                FileRef fRef = new FileRef(fid);
 
                 fidStart = line.indexOf('(', fidStart + 1);
 
@@ -87,33 +140,15 @@ public class PostingListImpl implements Serializable, PostingList {
 
                 String[] csvArr = csv.split(",");
                 for (int j = 0; j < csvArr.length; j++) {
-                    fRef.getPositions().add(Integer.parseInt(csvArr[j]));
+                    stage(trigram, Integer.parseInt(csvArr[j]), fid);
                 }
-                trigram.getFileRefs().add(fRef);
 
                 if (fidStart == line.length()) {
                     break;
                 }
             }
-            index.add(trigram);
         }
-    }
-
-    private void sort() {
-
-        //sort by trigram name
-        index.sort((x, y) -> x.getName().compareTo(y.getName()));
-
-        //sort by file id's
-        index.stream().map((t) -> {
-            t.getFileRefs().sort((x, y) -> x.getFileId().compareTo(y.getFileId()));
-            return t;
-        }).forEachOrdered((t) -> {
-            //sort by posn's
-            t.getFileRefs().forEach((fRef) -> {
-                fRef.getPositions().sort((x, y) -> x.compareTo(y));
-            });
-        });
+        seal();
     }
 
     /**
@@ -123,23 +158,45 @@ public class PostingListImpl implements Serializable, PostingList {
      * @return the size
      */
     @Override
-    public final int size() {
-        int cnt = 0;
-        for (Trigram trig : index) {
-            for (FileRef fRef : trig.getFileRefs()) {
-                cnt += fRef.getPositions().size();
-            }
-        }
-        return cnt;
+    public final synchronized int size() {
+        return size;
+    }
+
+    /**
+     * Estimates the heap held by the postings, e.g. to decide when to write
+     * them out, see SegmentBuffer.
+     *
+     * @return The bytes held by the blocks and the staged postings
+     */
+    public final synchronized long heapBytes() {
+        return blockBytes + (long) stagedTrigrams.length * (Integer.BYTES + Integer.BYTES + Integer.BYTES);
     }
 
+    /**
+     * Builds the object form of the index, sorted by trigram then file id.
+     * This copies every position, use it for inspection rather than on hot
+     * paths.
+     *
+     * @return The index
+     */
     @Override
-    public final ArrayList<Trigram> getIndex() {
+    public final synchronized ArrayList<Trigram> getIndex() {
+        ArrayList<Trigram> index = new ArrayList<>();
+        forEachRun(new RunVisitor<RuntimeException>() {
+            private Trigram trig;
+
+            @Override
+            public void visit(final int trigram, final int fid, final int[] positions, final int count) {
+                if (trig == null || Trigrams.code(trig.getName()) != trigram) {
+                    trig = new Trigram(Trigrams.name(trigram));
+                    index.add(trig);
+                }
+                trig.getFileRefs().add(new FileRef(fid, Arrays.copyOf(positions, count), count));
+            }
+        });
         return index;
     }
 
-    //TODO: Once the in memory index grows too large, serialize it and
-    //create a second in memory object
     /**
      * This method must be synchronized in order to keep index state correct.
      * It will append the provided match information to the posting list
@@ -151,25 +208,332 @@ public class PostingListImpl implements Serializable, PostingList {
     @Override
     public final synchronized void append(final String trigram,
             final int pos, final int fidVal) {
+        stage(Trigrams.code(trigram), pos, fidVal);
+        if (stagedCount == STAGE_LIMIT) {
+            seal();
+        }
+    }
+
+    /**
+     * Appends every trigram of a chunk of a single file as one block. The
+     * block is built before the lock is taken, the lock is only held to add
+     * it to the list.
+     *
+     * @param trigrams The packed trigrams
+     * @param positions The position of each trigram
+     * @param count The number of trigrams to append
+     * @param fidVal The file containing the trigrams
+     */
+    public final void appendAll(final int[] trigrams, final int[] positions,
+            final int count, final int fidVal) {
 
-        //Add a new trigram if needed
-        Trigram trig = new Trigram(trigram);
-        if (!index.contains(trig)) {
-            index.add(trig);
+        BlockBuilder builder = new BlockBuilder(count);
+        if (isAscending(positions, count)) {
+            groupByTrigram(trigrams, positions, count, fidVal, builder);
         } else {
-            trig = index.get(index.indexOf(trig));
+            //pack as trigram:position so that one primitive sort orders both
+            long[] packed = new long[count];
+            for (int i = 0; i < count; i++) {
+                packed[i] = (long) trigrams[i] << INT_BITS | (positions[i] & INT_MASK);
+            }
+            Arrays.sort(packed);
+            for (long entry : packed) {
+                builder.add((int) (entry >>> INT_BITS), fidVal, (int) entry);
+            }
+        }
+        Block block = builder.build(fidVal);
+
+        synchronized (this) {
+            addBlock(block);
+            size += count;
+        }
+    }
+
+    private static boolean isAscending(final int[] positions, final int count) {
+        for (int i = 1; i < count; i++) {
+            if (positions[i] < positions[i - 1]) {
+                return false;
+            }
         }
+        return true;
+    }
+
+    /**
+     * Adds the positions to the builder in trigram order, in linear time.
+     * The positions are grouped by trigram through a hash table, which
+     * keeps each group in ascending order, so only the distinct trigrams
+     * need sorting. The table is sized for the distinct trigrams there can
+     * be, at most one per position and no more than there are trigrams.
+     */
+    private static void groupByTrigram(final int[] trigrams, final int[] positions,
+            final int count, final int fidVal, final BlockBuilder builder) {
+
+        final int distinct = Math.min(count, DISTINCT_TRIGRAMS);
+        final int bits = Math.max(INITIAL_BITS, INT_BITS - Integer.numberOfLeadingZeros(distinct) + 1);
+        final int mask = (1 << bits) - 1;
+        int[] table = new int[mask + 1];
+        int[] groupTrigram = new int[distinct];
+        int[] groupEnd = new int[distinct];
+        int[] groupOf = new int[count];
+        int groups = 0;
+
+        for (int i = 0; i < count; i++) {
+            final int trigram = trigrams[i];
+            int slot = trigram * GOLDEN >>> (INT_BITS - bits);
+            int g;
+            while ((g = table[slot]) != 0 && groupTrigram[g - 1] != trigram) {
+                slot = (slot + 1) & mask;
+            }
+            if (g == 0) {
+                groupTrigram[groups] = trigram;
+                g = ++groups;
+                table[slot] = g;
+            }
+            groupEnd[g - 1]++;
+            groupOf[i] = g - 1;
+        }
+
+        long[] order = new long[groups];
+        for (int g = 0; g < groups; g++) {
+            order[g] = (long) groupTrigram[g] << INT_BITS | g;
+        }
+        Arrays.sort(order);
+
+        //counts become group start offsets, then ends once scattered
+        int at = 0;
+        for (long entry : order) {
+            final int g = (int) entry;
+            final int n = groupEnd[g];
+            groupEnd[g] = at;
+            at += n;
+        }
+        int[] grouped = new int[count];
+        for (int i = 0; i < count; i++) {
+            grouped[groupEnd[groupOf[i]]++] = positions[i];
+        }
+
+        at = 0;
+        for (long entry : order) {
+            final int trigram = (int) (entry >>> INT_BITS);
+            final int end = groupEnd[(int) entry];
+            while (at < end) {
+                builder.add(trigram, fidVal, grouped[at++]);
+            }
+        }
+    }
+
+    /**
+     * Appends the positions of a trigram in a file, e.g. as read from an
+     * index file. Runs appended in (trigram, file id) order are sealed into
+     * blocks without sorting.
+     *
+     * @param trigram The packed trigram
+     * @param fidVal The file containing the trigram
+     * @param positions The positions of the trigram
+     * @param count The number of positions to append
+     */
+    public final synchronized void appendRun(final int trigram, final int fidVal,
+            final int[] positions, final int count) {
+        for (int i = 0; i < count; i++) {
+            stage(trigram, positions[i], fidVal);
+            if (stagedCount == STAGE_LIMIT) {
+                seal();
+            }
+        }
+    }
+
+    /**
+     * Merges every block into one, so that readers merge fewer blocks. A
+     * shard is compacted by its worker before the shards are merged, see
+     * ShardedIndexer.
+     */
+    public final synchronized void compact() {
+        seal();
+        if (blockCount < 2) {
+            return;
+        }
+        BlockBuilder builder = new BlockBuilder(size);
+        forEachRun((trigram, fid, positions, count) -> {
+            for (int i = 0; i < count; i++) {
+                builder.add(trigram, fid, positions[i]);
+            }
+        });
+        blocks = new Block[INITIAL_CAPACITY];
+        blockCount = 0;
+        blockBytes = 0;
+        addBlock(builder.build(-1));
+    }
 
-        //Add a new fileRef if needed
-        FileRef fid = new FileRef(fidVal);
-        if (!trig.getFileRefs().contains(fid)) {
-            trig.getFileRefs().add(fid);
+    /**
+     * Creates a posting list holding the postings of every shard. Blocks
+     * are immutable so they are shared rather than copied, and readers
+     * k-way merge them, see forEachRun. The shards should not be appended
+     * to afterwards.
+     *
+     * @param shards The posting lists to merge
+     * @return The merged posting list
+     */
+    public static PostingListImpl merge(final List<PostingListImpl> shards) {
+        PostingListImpl merged = new PostingListImpl();
+        for (PostingListImpl shard : shards) {
+            synchronized (shard) {
+                shard.seal();
+                for (int b = 0; b < shard.blockCount; b++) {
+                    merged.addBlock(shard.blocks[b]);
+                }
+                merged.size += shard.size;
+            }
+        }
+        return merged;
+    }
+
+    private void stage(final int trigram, final int pos, final int fidVal) {
+        if (stagedCount == stagedTrigrams.length) {
+            stagedTrigrams = Arrays.copyOf(stagedTrigrams, stagedCount * 2);
+            stagedFids = Arrays.copyOf(stagedFids, stagedCount * 2);
+            stagedPositions = Arrays.copyOf(stagedPositions, stagedCount * 2);
+        }
+        if (stagedCount > 0 && stagedSorted) {
+            final int last = stagedCount - 1;
+            stagedSorted = compare(stagedTrigrams[last], stagedFids[last], stagedPositions[last],
+                    trigram, fidVal, pos) <= 0;
+        }
+        stagedTrigrams[stagedCount] = trigram;
+        stagedFids[stagedCount] = fidVal;
+        stagedPositions[stagedCount++] = pos;
+        size++;
+    }
+
+    private void seal() {
+        if (stagedCount == 0) {
+            return;
+        }
+
+        BlockBuilder builder = new BlockBuilder(stagedCount);
+        if (stagedSorted) {
+            for (int i = 0; i < stagedCount; i++) {
+                builder.add(stagedTrigrams[i], stagedFids[i], stagedPositions[i]);
+            }
         } else {
-            fid = trig.getFileRefs().get(trig.getFileRefs().indexOf(fid));
+            //order by trigram, keeping the entry index in the low bits
+            long[] byTrigram = new long[stagedCount];
+            for (int i = 0; i < stagedCount; i++) {
+                byTrigram[i] = (long) stagedTrigrams[i] << INT_BITS | i;
+            }
+            Arrays.sort(byTrigram);
+            //then by file and position within each trigram
+            long[] filePositions = new long[stagedCount];
+            for (int i = 0; i < stagedCount; i++) {
+                final int e = (int) byTrigram[i];
+                filePositions[i] = (long) stagedFids[e] << INT_BITS | (stagedPositions[e] & INT_MASK);
+            }
+            int start = 0;
+            while (start < stagedCount) {
+                final int trigram = (int) (byTrigram[start] >>> INT_BITS);
+                int end = start + 1;
+                while (end < stagedCount && (int) (byTrigram[end] >>> INT_BITS) == trigram) {
+                    end++;
+                }
+                Arrays.sort(filePositions, start, end);
+                for (int i = start; i < end; i++) {
+                    builder.add(trigram, (int) (filePositions[i] >>> INT_BITS), (int) filePositions[i]);
+                }
+                start = end;
+            }
+        }
+        addBlock(builder.build(-1));
+
+        stagedTrigrams = new int[INITIAL_CAPACITY];
+        stagedFids = new int[INITIAL_CAPACITY];
+        stagedPositions = new int[INITIAL_CAPACITY];
+        stagedCount = 0;
+        stagedSorted = true;
+    }
+
+    private void addBlock(final Block block) {
+        if (blockCount == blocks.length) {
+            blocks = Arrays.copyOf(blocks, blockCount * 2);
+        }
+        blocks[blockCount++] = block;
+        blockBytes += block.bytes();
+    }
+
+    private static int compare(final int triA, final int fidA, final int posA,
+            final int triB, final int fidB, final int posB) {
+        int c = Integer.compare(triA, triB);
+        if (c == 0) {
+            c = Integer.compare(fidA, fidB);
+        }
+        return c != 0 ? c : Integer.compare(posA, posB);
+    }
+
+    /**
+     * Visits every (trigram, file) run in posting list order, merging the
+     * blocks. Runs for the same trigram and file in several blocks (e.g. a
+     * file indexed in chunks) are combined and their positions sorted. The
+     * positions array passed to the visitor is reused between runs.
+     *
+     * @param visitor Receives the runs
+     * @throws E if the visitor does
+     * @param <E> The exception type thrown by the visitor
+     */
+    public final synchronized <E extends Exception> void forEachRun(final RunVisitor<E> visitor) throws E {
+        seal();
+
+        //a binary heap of the blocks, by the key of their next run
+        int[] heap = new int[blockCount];
+        long[] keys = new long[blockCount];
+        int[] next = new int[blockCount];
+        int heads = 0;
+        for (int b = 0; b < blockCount; b++) {
+            if (blocks[b].runs() > 0) {
+                keys[b] = blocks[b].key(0);
+                heap[heads++] = b;
+            }
+        }
+        for (int i = heads / 2 - 1; i >= 0; i--) {
+            siftDown(heap, keys, i, heads);
         }
 
-        //Add the position ref
-        fid.getPositions().add(pos);
+        Positions run = new Positions();
+        while (heads > 0) {
+            final long key = keys[heap[0]];
+            run.count = 0;
+            int sources = 0;
+            while (heads > 0 && keys[heap[0]] == key) {
+                final int b = heap[0];
+                Block block = blocks[b];
+                block.decode(next[b], run);
+                sources++;
+                if (++next[b] < block.runs()) {
+                    keys[b] = block.key(next[b]);
+                } else {
+                    heap[0] = heap[--heads];
+                }
+                siftDown(heap, keys, 0, heads);
+            }
+            if (sources > 1) {
+                Arrays.sort(run.positions, 0, run.count);
+            }
+            visitor.visit((int) (key >>> INT_BITS), (int) key, run.positions, run.count);
+        }
+    }
+
+    private static void siftDown(final int[] heap, final long[] keys, final int from, final int heads) {
+        final int b = heap[from];
+        int at = from;
+        int child;
+        while ((child = 2 * at + 1) < heads) {
+            if (child + 1 < heads && keys[heap[child + 1]] < keys[heap[child]]) {
+                child++;
+            }
+            if (keys[heap[child]] >= keys[b]) {
+                break;
+            }
+            heap[at] = heap[child];
+            at = child;
+        }
+        heap[at] = b;
     }
 
     /**
@@ -180,7 +544,7 @@ public class PostingListImpl implements Serializable, PostingList {
      * [TRI](F)L(F)L{BR}
      *
      * TRI - The trigram
-     * F - The file ID, cross referenced with a file ID map file.
+     * F - The file ID, cross referenced with a file ID map file, see FileIdMap.
      * L - The file location. FIles larger than 'int MAX' bytes are not supported.
      * {BR} - The \n character is used as a line break.
      *
@@ -189,31 +553,206 @@ public class PostingListImpl implements Serializable, PostingList {
     @Override
     public final synchronized String toEncodedString() {
 
-        sort();
+        StringWriter sw = new StringWriter();
+        try {
+            writeEncoded(sw);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return sw.toString();
+    }
+
+    /**
+     * Streams the encoded posting list to a writer, in the format of
+     * toEncodedString, without building the whole string in memory.
+     *
+     * @param writer The destination
+     * @throws IOException on error
+     */
+    public final synchronized void writeEncoded(final Writer writer) throws IOException {
 
         StringBuilder sb = new StringBuilder();
-        for (Trigram trig : index) {
-            sb.append(BR + "[" + trig.getName() + "]");
-            for (FileRef fRef : trig.getFileRefs()) {
-                sb.append("(" + fRef.getFileId() + ")" + asDeltaEncodedCsv(fRef.getPositions()));
+        int[] last = {-1};
+        this.<IOException>forEachRun((trigram, fid, positions, count) -> {
+            if (trigram != last[0]) {
+                if (last[0] != -1) {
+                    sb.append(BR);
+                }
+                sb.append('[').append(Trigrams.name(trigram)).append(']');
+                last[0] = trigram;
             }
+            sb.append('(').append(fid).append(')');
+            appendCsv(sb, positions, count);
+            writer.append(sb);
+            sb.setLength(0);
+        });
+    }
+
+    private static void appendCsv(final StringBuilder sb, final int[] ints, final int len) {
+
+        for (int i = 0; i < len; i++) {
+            if (i > 0) {
+                sb.append(',');
+            }
+            sb.append(ints[i]);
         }
-        return sb.toString().trim();
     }
 
-    private String asDeltaEncodedCsv(final List<Integer> ints) {
+    /**
+     * Receives the positions of one trigram in one file.
+     *
+     * @param <E> The exception type thrown by the visitor
+     */
+    @FunctionalInterface
+    public interface RunVisitor<E extends Exception> {
 
-        //TODO: apply delta encoding
-        StringBuilder sb = new StringBuilder();
-        boolean firstIter = true;
-        for (Integer i : ints) {
-            if (firstIter) {
-                sb.append(i);
-                firstIter = false;
-            } else {
-                sb.append("," + i);
+        /**
+         * @param trigram The packed trigram
+         * @param fid The file id
+         * @param positions The positions, in ascending order
+         * @param count The number of positions
+         * @throws E on error
+         */
+        void visit(int trigram, int fid, int[] positions, int count) throws E;
+    }
+
+    /**
+     * An immutable block of runs sorted by (trigram, file). Run r has its
+     * positions in data[offsets[r], offsets[r + 1]) as unsigned LEB128
+     * varints, the first relative to 0 and the rest to the previous position.
+     */
+    private static final class Block implements Serializable {
+
+        private static final long serialVersionUID = 1L;
+        private static final int SEVEN_BITS = 0x7F;
+        private static final int MORE = 0x80;
+        private static final int SHIFT = 7;
+
+        private final int fid;
+        private final int[] fids;
+        private final int[] trigrams;
+        private final int[] offsets;
+        private final byte[] data;
+
+        private Block(final int fidVar, final int[] fidsVar, final int[] trigramsVar,
+                final int[] offsetsVar, final byte[] dataVar) {
+            fid = fidVar;
+            fids = fidsVar;
+            trigrams = trigramsVar;
+            offsets = offsetsVar;
+            data = dataVar;
+        }
+
+        private int runs() {
+            return trigrams.length;
+        }
+
+        private long bytes() {
+            final int columns = trigrams.length + offsets.length + (fids == null ? 0 : fids.length);
+            return data.length + (long) columns * Integer.BYTES;
+        }
+
+        private long key(final int run) {
+            final int f = fids == null ? fid : fids[run];
+            return (long) trigrams[run] << INT_BITS | (f & INT_MASK);
+        }
+
+        /**
+         * Appends the positions of the run to dest, growing it if needed.
+         * Blocks are shared between lists by merge, so a block keeps no
+         * decoding state of its own.
+         */
+        private void decode(final int run, final Positions dest) {
+            int[] out = dest.positions;
+            int n = dest.count;
+            int pos = 0;
+            int i = offsets[run];
+            final int end = offsets[run + 1];
+            while (i < end) {
+                int delta = 0;
+                int shift = 0;
+                int b;
+                do {
+                    b = data[i++];
+                    delta |= (b & SEVEN_BITS) << shift;
+                    shift += SHIFT;
+                } while ((b & MORE) != 0);
+                pos += delta;
+                if (n == out.length) {
+                    out = Arrays.copyOf(out, n * 2);
+                }
+                out[n++] = pos;
             }
+            dest.positions = out;
+            dest.count = n;
+        }
+    }
+
+    /**
+     * The positions of the run being merged, owned by the caller of
+     * Block.decode.
+     */
+    private static final class Positions {
+        private int[] positions = new int[INITIAL_CAPACITY];
+        private int count;
+    }
+
+    /**
+     * Builds a block from (trigram, file, position) entries added in order.
+     */
+    private static final class BlockBuilder {
+
+        private int[] trigrams;
+        private int[] fids;
+        private int[] offsets;
+        private byte[] data;
+        private int runs;
+        private int len;
+        private int lastPos;
+        private boolean mixed;
+
+        private BlockBuilder(final int entries) {
+            trigrams = new int[INITIAL_CAPACITY];
+            fids = new int[INITIAL_CAPACITY];
+            offsets = new int[INITIAL_CAPACITY + 1];
+            data = new byte[Math.max(INITIAL_CAPACITY, entries * 2)];
+        }
+
+        private void add(final int trigram, final int fidVal, final int pos) {
+            if (runs == 0 || trigrams[runs - 1] != trigram || fids[runs - 1] != fidVal) {
+                if (runs == trigrams.length) {
+                    trigrams = Arrays.copyOf(trigrams, runs * 2);
+                    fids = Arrays.copyOf(fids, runs * 2);
+                    offsets = Arrays.copyOf(offsets, runs * 2 + 1);
+                }
+                mixed |= runs > 0 && fids[0] != fidVal;
+                trigrams[runs] = trigram;
+                fids[runs] = fidVal;
+                offsets[runs++] = len;
+                lastPos = 0;
+            }
+            writeVarint(pos - lastPos);
+            lastPos = pos;
+        }
+
+        private void writeVarint(final int value) {
+            if (len + Integer.BYTES + 1 > data.length) {
+                data = Arrays.copyOf(data, data.length * 2);
+            }
+            int v = value;
+            while ((v & ~Block.SEVEN_BITS) != 0) {
+                data[len++] = (byte) (v & Block.SEVEN_BITS | Block.MORE);
+                v >>>= Block.SHIFT;
+            }
+            data[len++] = (byte) v;
+        }
+
+        private Block build(final int fidVal) {
+            offsets[runs] = len;
+            final boolean single = !mixed && runs > 0;
+            return new Block(single ? fids[0] : fidVal, single ? null : Arrays.copyOf(fids, runs),
+                    Arrays.copyOf(trigrams, runs), Arrays.copyOf(offsets, runs + 1),
+                    Arrays.copyOf(data, len));
         }
-        return sb.toString();
     }
 }
@@ -0,0 +1,88 @@
+/*
+ * Copyright (C) 2017 Gregory Clarke
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.filevinder.core;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import org.filevinder.core.PostingListImpl.RunVisitor;
+
+/**
+ * An open binary index that posting lists can be looked up in, either an
+ * index file (see IndexReader) or a snapshot of a segmented index (see
+ * SegmentedIndex.snapshot). Must be closed to release the files.
+ *
+ * @author Gregory Clarke
+ */
+public interface PostingSource extends Closeable {
+
+    /**
+     * Opens an index file, or the current segments of a segmented index
+     * directory.
+     *
+     * @param indexFile The index file or directory
+     * @return The open index
+     * @throws IOException on error
+     */
+    static PostingSource open(final Path indexFile) throws IOException {
+        if (Files.isDirectory(indexFile)) {
+            return SegmentedIndex.open(indexFile).snapshot();
+        }
+        return new IndexReader(indexFile);
+    }
+
+    /**
+     * Reads the document frequency of a trigram from the dictionary, without
+     * reading its posting list.
+     *
+     * @param trigram The packed trigram
+     * @return The number of files holding the trigram, which may over count
+     * files that have since been replaced
+     */
+    int fileCount(int trigram);
+
+    /**
+     * Reads the set of files holding a trigram, for queries that need only
+     * the files and not the positions.
+     *
+     * @param trigram The packed trigram
+     * @return The ids of the files holding the trigram
+     * @throws IOException on error
+     */
+    FileIdSet fileSet(int trigram) throws IOException;
+
+    /**
+     * Reads the runs of one trigram. The positions array passed to the
+     * visitor is reused between runs.
+     *
+     * @param trigram The packed trigram
+     * @param visitor Receives the runs, in file id order within each file
+     * of the index
+     * @return false if the index does not hold the trigram
+     * @throws IOException on error
+     * @throws E if the visitor does
+     * @param <E> The exception type thrown by the visitor
+     */
+    <E extends Exception> boolean read(int trigram, RunVisitor<E> visitor) throws IOException, E;
+
+    /**
+     * Releases the files of the index.
+     */
+    @Override
+    void close();
+}
@@ -0,0 +1,383 @@
+/*
+ * Copyright (C) 2017 Gregory Clarke
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.filevinder.core;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * The order in which the trigrams of an IndexQuery are intersected, built
+ * from the document frequencies held in the index dictionary, see
+ * IndexQuery.plan. The rarest trigram is read first to seed the candidate
+ * files and the match positions within them, and each further trigram
+ * narrows both. Common trigrams are read last, and once the candidates are
+ * few enough to verify directly only their file sets are read, see
+ * FileIdSet, to drop the candidates that do not hold them at all.
+ *
+ * The candidates are kept in file id order and each run read is located by
+ * galloping forward from the last match, so a large posting list costs a
+ * comparison per run and a search per candidate rather than a hash lookup
+ * per run. Executing a plan records the candidates left after each step,
+ * see toString.
+ *
+ * @author Gregory Clarke
+ */
+public final class QueryPlan {
+
+    /**
+     * The default number of candidates at or below which no more posting
+     * lists are read.
+     */
+    public static final int VERIFY_LIMIT = 16;
+
+    private static final int NOT_RUN = -1;
+
+    private final int[] codes;
+    private final int[][] offsets;
+    private final int[] fileCounts;
+    private final int verifyLimit;
+    private final boolean covered;
+    private final int[] remaining;
+    private final boolean[] byFileSet;
+    private int stepsRun;
+    private Set<Integer> candidates = Collections.emptySet();
+
+    /**
+     * @param codesVar The distinct trigrams of the query, rarest first
+     * @param offsetsVar The offsets of each trigram in the pattern
+     * @param fileCountsVar The document frequency of each trigram
+     * @param verifyLimitVar See VERIFY_LIMIT
+     * @param coveredVar See IndexQuery.coversPattern
+     */
+    QueryPlan(final int[] codesVar, final int[][] offsetsVar, final int[] fileCountsVar,
+            final int verifyLimitVar, final boolean coveredVar) {
+        codes = codesVar;
+        offsets = offsetsVar;
+        fileCounts = fileCountsVar;
+        verifyLimit = verifyLimitVar;
+        covered = coveredVar;
+        remaining = new int[codes.length];
+        byFileSet = new boolean[codes.length];
+        Arrays.fill(remaining, NOT_RUN);
+    }
+
+    /**
+     * @return The number of trigrams in the plan
+     */
+    public int steps() {
+        return codes.length;
+    }
+
+    /**
+     * @param step The step, from 0 to steps - 1
+     * @return The name of the trigram read at the step, see Trigrams.name
+     */
+    public String trigram(final int step) {
+        return Trigrams.name(codes[step]);
+    }
+
+    /**
+     * @param step The step, from 0 to steps - 1
+     * @return The number of files holding the trigram read at the step
+     */
+    public int fileCount(final int step) {
+        return fileCounts[step];
+    }
+
+    /**
+     * @param step The step, from 0 to steps - 1
+     * @return The number of candidates left after the step, or -1 if the
+     * step has not been run
+     */
+    public int candidatesAfter(final int step) {
+        return remaining[step];
+    }
+
+    /**
+     * @param step The step, from 0 to steps - 1
+     * @return True if only the file set of the trigram was read, as the
+     * candidates were already few enough to verify
+     */
+    public boolean byFileSet(final int step) {
+        return byFileSet[step];
+    }
+
+    /**
+     * The candidates of an exact plan hold the whole pattern, at the
+     * positions the index recorded for them. So while a candidate is
+     * unchanged since it was indexed it need not be read to confirm the
+     * match. A plan is exact when the trigrams cover the pattern and every
+     * trigram was read with its positions, see IndexQuery.plan
+     * with a verify limit of 0.
+     *
+     * @return True if the plan has been executed and is exact
+     */
+    public boolean isExact() {
+        if (!covered || stepsRun == 0) {
+            return false;
+        }
+        for (int step = 0; step < codes.length; step++) {
+            if (byFileSet[step] || remaining[step] == NOT_RUN && remaining[stepsRun - 1] != 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return The number of steps run by execute, fewer than steps if no
+     * candidates were left
+     */
+    public int stepsRun() {
+        return stepsRun;
+    }
+
+    /**
+     * @return The candidates found by the last execute, or an empty set if
+     * the plan has not been executed
+     */
+    public Set<Integer> candidates() {
+        return candidates;
+    }
+
+    /**
+     * Reads the posting lists of the trigrams in plan order, until every
+     * trigram has been read or no candidates are left. Once there are no
+     * more than the verify limit, the file sets of the remaining trigrams
+     * are read instead.
+     *
+     * @param source The index the plan was built from
+     * @return The ids of the files that may contain the pattern
+     * @throws IOException on error
+     */
+    public Set<Integer> execute(final PostingSource source) throws IOException {
+
+        Candidates found = null;
+        stepsRun = 0;
+        Arrays.fill(remaining, NOT_RUN);
+        Arrays.fill(byFileSet, false);
+        for (int step = 0; step < codes.length && (found == null || found.size > 0); step++) {
+            if (fileCounts[step] == 0) {
+                found = new Candidates(new int[0], new int[0][], 0);
+            } else if (found == null) {
+                found = seed(source, step);
+            } else if (found.size > verifyLimit) {
+                found = found.narrow(source, codes[step], offsets[step]);
+            } else {
+                found = found.within(source.fileSet(codes[step]));
+                byFileSet[step] = true;
+            }
+            remaining[step] = found.size;
+            stepsRun++;
+        }
+
+        Set<Integer> fileIds = new HashSet<>();
+        for (int i = 0; found != null && i < found.size; i++) {
+            fileIds.add(found.fids[i]);
+        }
+        candidates = Collections.unmodifiableSet(fileIds);
+        return candidates;
+    }
+
+    /**
+     * Describes the plan one step per line, with the document frequency of
+     * each trigram and the candidates left after it if it was run.
+     */
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder("verify at ").append(verifyLimit).append(" candidates");
+        for (int step = 0; step < codes.length; step++) {
+            sb.append("\n[").append(trigram(step)).append("] at ").append(Arrays.toString(offsets[step]))
+                    .append(" in ").append(fileCounts[step]).append(" files");
+            if (remaining[step] == NOT_RUN) {
+                sb.append(", skipped");
+            } else {
+                sb.append(", ").append(remaining[step]).append(" candidates");
+                if (byFileSet[step]) {
+                    sb.append(" by file set");
+                }
+            }
+        }
+        return sb.toString();
+    }
+
+    //reads the rarest trigram, every file holding it is a candidate
+    private Candidates seed(final PostingSource source, final int step) throws IOException {
+        final int expected = fileCounts[step];
+        int[] fids = new int[expected];
+        int[][] starts = new int[expected][];
+        int[] size = {0};
+        int[] lastFid = {-1};
+        boolean[] sorted = {true};
+        source.read(codes[step], (trigram, fid, positions, count) -> {
+            int[] matched = new int[count];
+            int n = 0;
+            for (int i = 0; i < count; i++) {
+                if (positions[i] >= offsets[step][0]) {
+                    matched[n++] = positions[i] - offsets[step][0];
+                }
+            }
+            for (int o = 1; o < offsets[step].length && n > 0; o++) {
+                n = retain(matched, n, positions, count, offsets[step][o]);
+            }
+            if (n > 0) {
+                if (size[0] == fids.length) {
+                    throw new IllegalStateException("More files than the dictionary holds for "
+                            + Trigrams.name(trigram));
+                }
+                sorted[0] &= fid > lastFid[0];
+                lastFid[0] = fid;
+                fids[size[0]] = fid;
+                starts[size[0]++] = Arrays.copyOf(matched, n);
+            }
+        });
+        Candidates seeded = new Candidates(fids, starts, size[0]);
+        if (!sorted[0]) {
+            seeded.sort();
+        }
+        return seeded;
+    }
+
+    /**
+     * Keeps the first n match starts s for which s + offset is one of the
+     * positions, in place.
+     *
+     * @return The number of starts kept
+     */
+    private static int retain(final int[] starts, final int n, final int[] positions, final int count,
+            final int offset) {
+        int kept = 0;
+        int at = 0;
+        for (int i = 0; i < n && at < count; i++) {
+            at = gallop(positions, at, count, starts[i] + offset);
+            if (at < count && positions[at] == starts[i] + offset) {
+                starts[kept++] = starts[i];
+            }
+        }
+        return kept;
+    }
+
+    /**
+     * Finds the first index in [from, to) whose value is at least key, by
+     * doubling the step from 'from' until it is passed and then binary
+     * searching the last step. The cost is logarithmic in the distance
+     * moved rather than in the length of the array.
+     *
+     * @return The index, or to if every value is less than key
+     */
+    static int gallop(final int[] a, final int from, final int to, final int key) {
+        int lo = from;
+        int hi = from;
+        int step = 1;
+        while (hi < to && a[hi] < key) {
+            lo = hi + 1;
+            hi += step;
+            step <<= 1;
+        }
+        hi = Math.min(hi, to);
+        while (lo < hi) {
+            final int mid = (lo + hi) >>> 1;
+            if (a[mid] < key) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+    /**
+     * The candidate files in id order, with the positions in each at which
+     * the pattern may start.
+     */
+    private static final class Candidates {
+        private int[] fids;
+        private int[][] starts;
+        private final int size;
+
+        private Candidates(final int[] fidsVar, final int[][] startsVar, final int sizeVar) {
+            fids = fidsVar;
+            starts = startsVar;
+            size = sizeVar;
+        }
+
+        //orders runs read segment by segment by file id
+        private void sort() {
+            //each file id with its index in the low bits
+            long[] order = new long[size];
+            for (int i = 0; i < size; i++) {
+                order[i] = (long) fids[i] << Integer.SIZE | i;
+            }
+            Arrays.sort(order);
+            int[] sortedFids = new int[size];
+            int[][] sortedStarts = new int[size][];
+            for (int i = 0; i < size; i++) {
+                sortedFids[i] = fids[(int) order[i]];
+                sortedStarts[i] = starts[(int) order[i]];
+            }
+            fids = sortedFids;
+            starts = sortedStarts;
+        }
+
+        //keeps the candidates in the file set, whatever their match starts
+        private Candidates within(final FileIdSet set) {
+            int n = 0;
+            for (int i = 0; i < size; i++) {
+                if (set.contains(fids[i])) {
+                    fids[n] = fids[i];
+                    starts[n++] = starts[i];
+                }
+            }
+            return new Candidates(fids, starts, n);
+        }
+
+        //keeps the candidates holding the trigram at each offset from a start
+        private Candidates narrow(final PostingSource source, final int code, final int[] codeOffsets)
+                throws IOException {
+            int[][] kept = new int[size][];
+            int[] cursor = {0};
+            int[] lastFid = {-1};
+            source.read(code, (trigram, fid, positions, count) -> {
+                //runs restart from a low file id at each segment
+                final int from = fid > lastFid[0] ? cursor[0] : 0;
+                lastFid[0] = fid;
+                final int at = gallop(fids, from, size, fid);
+                cursor[0] = at;
+                if (at < size && fids[at] == fid) {
+                    int[] matched = starts[at].clone();
+                    int n = matched.length;
+                    for (int o = 0; o < codeOffsets.length && n > 0; o++) {
+                        n = retain(matched, n, positions, count, codeOffsets[o]);
+                    }
+                    kept[at] = Arrays.copyOf(matched, n);
+                }
+            });
+
+            int n = 0;
+            for (int i = 0; i < size; i++) {
+                if (kept[i] != null && kept[i].length > 0) {
+                    fids[n] = fids[i];
+                    kept[n++] = kept[i];
+                }
+            }
+            return new Candidates(fids, kept, n);
+        }
+    }
+}
@@ -0,0 +1,465 @@
+/*
+ * Copyright (C) 2017 Gregory Clarke
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.filevinder.core;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+/**
+ * Extracts the literals a regular expression requires from any text it
+ * matches. The expression is parsed into a small AST and each node is
+ * summarised by either the exact (small) set of strings it can match, or a
+ * list of clauses that must all hold, where a clause is a set of strings at
+ * least one of which must occur. For example "foo\d+(bar|baz)" requires
+ * {foo} and {bar, baz}.
+ *
+ * The analysis is conservative: any construct it does not understand is
+ * treated as matching unknown text, and constructs that change how literals
+ * match (e.g. inline case insensitivity) disable extraction altogether.
+ *
+ * @author Gregory Clarke
+ */
+public final class RegexLiterals {
+
+    /**
+     * Strings shorter than this make a clause too weak to be worth checking,
+     * it is also the shortest string that can be looked up as a trigram.
+     */
+    public static final int MIN_LITERAL = 3;
+
+    private static final int MAX_EXACT = 16;
+    private static final int MAX_CLASS = 8;
+    private static final int HEX = 16;
+    private static final int OCTAL = 8;
+    private static final int CTRL = 64;
+    private static final char BELL = '\u0007';
+    private static final char ESC = '\u001B';
+    private static final int UNBOUNDED = Integer.MAX_VALUE;
+
+    private final String regex;
+    private int pos;
+
+    private RegexLiterals(final String regexVar) {
+        regex = regexVar;
+    }
+
+    /**
+     * Returns the literal clauses required by the given expression, every
+     * clause must be satisfied by at least one of its strings in any text the
+     * expression matches. An empty list means nothing can be required.
+     *
+     * @param regex The regular expression, in java.util.regex syntax
+     * @param flags The java.util.regex.Pattern flags the expression uses
+     * @return The required clauses
+     */
+    public static List<Set<String>> required(final String regex, final int flags) {
+
+        if ((flags & Pattern.LITERAL) != 0) {
+            return clauseOf(Collections.singleton(regex));
+        }
+        if ((flags & (Pattern.CASE_INSENSITIVE | Pattern.COMMENTS | Pattern.CANON_EQ)) != 0) {
+            return Collections.emptyList();
+        }
+
+        try {
+            RegexLiterals parser = new RegexLiterals(regex);
+            Info info = parser.parseAlt();
+            if (parser.pos != regex.length()) {
+                return Collections.emptyList();
+            }
+            List<Set<String>> clauses = new ArrayList<>(info.clauses);
+            clauses.addAll(clauseOf(info.exact));
+            return dedupe(clauses);
+        } catch (UnsupportedSyntax | IndexOutOfBoundsException | NumberFormatException e) {
+            return Collections.emptyList();
+        }
+    }
+
+    private Info parseAlt() {
+        Info left = parseConcat();
+        while (more() && peek() == '|') {
+            pos++;
+            left = Info.alt(left, parseConcat());
+        }
+        return left;
+    }
+
+    /**
+     * Concatenates atoms, runs of exact atoms are joined so that literals
+     * either side of an unknown atom are both kept e.g. "foo\d+bar".
+     */
+    private Info parseConcat() {
+        Set<String> run = Info.EMPTY.exact;
+        List<Set<String>> clauses = null;
+        while (more() && peek() != '|' && peek() != ')') {
+            Info atom = parseRepeat();
+            if (atom.exact != null && run.size() * atom.exact.size() <= MAX_EXACT) {
+                run = Info.cross(run, atom.exact);
+                continue;
+            }
+            clauses = clauses == null ? new ArrayList<>() : clauses;
+            clauses.addAll(clauseOf(run));
+            clauses.addAll(atom.clauses);
+            run = atom.exact != null ? atom.exact : Info.EMPTY.exact;
+        }
+        if (clauses == null) {
+            return Info.exact(run);
+        }
+        clauses.addAll(clauseOf(run));
+        return new Info(null, clauses);
+    }
+
+    private Info parseRepeat() {
+        Info atom = parseAtom();
+        while (more()) {
+            final char c = peek();
+            int min, max;
+            if (c == '*') {
+                min = 0;
+                max = UNBOUNDED;
+                pos++;
+            } else if (c == '+') {
+                min = 1;
+                max = UNBOUNDED;
+                pos++;
+            } else if (c == '?') {
+                min = 0;
+                max = 1;
+                pos++;
+            } else if (c == '{') {
+                pos++;
+                min = number();
+                max = min;
+                if (peek() == ',') {
+                    pos++;
+                    max = peek() == '}' ? UNBOUNDED : number();
+                }
+                expect('}');
+            } else {
+                break;
+            }
+            //lazy and possessive modifiers do not change what can match
+            if (more() && (peek() == '?' || peek() == '+')) {
+                pos++;
+            }
+            atom = Info.repeat(atom, min, max);
+        }
+        return atom;
+    }
+
+    private Info parseAtom() {
+        final char c = regex.charAt(pos++);
+        switch (c) {
+            case '(':
+                return parseGroup();
+            case '[':
+                return parseClass();
+            case '.':
+                return Info.UNKNOWN;
+            case '^':
+            case '$':
+                return Info.EMPTY;
+            case '\\':
+                return parseEscape();
+            case '*':
+            case '+':
+            case '?':
+            case '{':
+                throw new UnsupportedSyntax();
+            default:
+                if (Character.isHighSurrogate(c) && more()) {
+                    return Info.literal(new String(new char[]{c, regex.charAt(pos++)}));
+                }
+                return Info.literal(String.valueOf(c));
+        }
+    }
+
+    private Info parseGroup() {
+        boolean zeroWidth = false;
+        if (peek() == '?') {
+            pos++;
+            final char kind = regex.charAt(pos++);
+            if (kind == '=' || kind == '!') {
+                zeroWidth = true;
+            } else if (kind == '<' && (peek() == '=' || peek() == '!')) {
+                pos++;
+                zeroWidth = true;
+            } else if (kind == '<') {
+                skipPast('>');
+            } else if (kind != ':' && kind != '>') {
+                //inline flags e.g. (?i) change how literals match
+                throw new UnsupportedSyntax();
+            }
+        }
+        Info inner = parseAlt();
+        expect(')');
+        return zeroWidth ? Info.EMPTY : inner;
+    }
+
+    private Info parseClass() {
+        Set<String> chars = new LinkedHashSet<>();
+        boolean simple = peek() != '^';
+        int depth = 1;
+        if (peek() == ']') {
+            chars.add("]");
+            pos++;
+        }
+        while (depth > 0) {
+            final char c = regex.charAt(pos++);
+            if (c == '\\') {
+                final char e = regex.charAt(pos++);
+                if (Character.isLetterOrDigit(e)) {
+                    simple = false;
+                }
+                chars.add(String.valueOf(e));
+            } else if (c == '[') {
+                depth++;
+                simple = false;
+            } else if (c == ']') {
+                depth--;
+            } else if (c == '-' || c == '&') {
+                simple = false;
+            } else {
+                chars.add(String.valueOf(c));
+            }
+        }
+        return simple && chars.size() <= MAX_CLASS ? Info.exact(chars) : Info.UNKNOWN;
+    }
+
+    private Info parseEscape() {
+        final char c = regex.charAt(pos++);
+        switch (c) {
+            case 'd': case 'D': case 'w': case 'W': case 's': case 'S':
+            case 'h': case 'H': case 'v': case 'V': case 'R': case 'X': case 'N':
+                return Info.UNKNOWN;
+            case 'p': case 'P':
+                if (peek() == '{') {
+                    skipPast('}');
+                } else {
+                    pos++;
+                }
+                return Info.UNKNOWN;
+            case 'b': case 'B': case 'A': case 'G': case 'Z': case 'z':
+                return Info.EMPTY;
+            case 'k':
+                skipPast('>');
+                return Info.UNKNOWN;
+            case 'Q':
+                int end = regex.indexOf("\\E", pos);
+                end = end < 0 ? regex.length() : end;
+                String quoted = regex.substring(pos, end);
+                pos = Math.min(regex.length(), end + 2);
+                return Info.literal(quoted);
+            case 't':
+                return Info.literal("\t");
+            case 'n':
+                return Info.literal("\n");
+            case 'r':
+                return Info.literal("\r");
+            case 'f':
+                return Info.literal("\f");
+            case 'a':
+                return Info.literal(String.valueOf(BELL));
+            case 'e':
+                return Info.literal(String.valueOf(ESC));
+            case '0':
+                return Info.literal(String.valueOf((char) digits(OCTAL, 3)));
+            case 'x':
+                if (peek() == '{') {
+                    int close = regex.indexOf('}', pos);
+                    int cp = Integer.parseInt(regex.substring(pos + 1, close), HEX);
+                    pos = close + 1;
+                    return Info.literal(new String(Character.toChars(cp)));
+                }
+                return Info.literal(String.valueOf((char) digits(HEX, 2)));
+            case 'u':
+                return Info.literal(String.valueOf((char) digits(HEX, 4)));
+            case 'c':
+                return Info.literal(String.valueOf((char) (regex.charAt(pos++) ^ CTRL)));
+            default:
+                if (Character.isDigit(c)) {
+                    //a back reference can match anything its group matched
+                    return Info.UNKNOWN;
+                }
+                if (Character.isLetter(c)) {
+                    throw new UnsupportedSyntax();
+                }
+                return Info.literal(String.valueOf(c));
+        }
+    }
+
+    private int digits(final int radix, final int maxDigits) {
+        int val = 0, n = 0;
+        while (n < maxDigits && more() && Character.digit(peek(), radix) >= 0) {
+            val = val * radix + Character.digit(regex.charAt(pos++), radix);
+            n++;
+        }
+        return val;
+    }
+
+    private int number() {
+        int start = pos;
+        while (Character.isDigit(peek())) {
+            pos++;
+        }
+        return Integer.parseInt(regex.substring(start, pos));
+    }
+
+    private void skipPast(final char c) {
+        int idx = regex.indexOf(c, pos);
+        if (idx < 0) {
+            throw new UnsupportedSyntax();
+        }
+        pos = idx + 1;
+    }
+
+    private void expect(final char c) {
+        if (regex.charAt(pos++) != c) {
+            throw new UnsupportedSyntax();
+        }
+    }
+
+    private boolean more() {
+        return pos < regex.length();
+    }
+
+    private char peek() {
+        return regex.charAt(pos);
+    }
+
+    private static List<Set<String>> clauseOf(final Set<String> strs) {
+        if (strs == null || strs.isEmpty()) {
+            return Collections.emptyList();
+        }
+        for (String s : strs) {
+            if (s.length() < MIN_LITERAL) {
+                return Collections.emptyList();
+            }
+        }
+        return Collections.singletonList(strs);
+    }
+
+    private static List<Set<String>> dedupe(final List<Set<String>> clauses) {
+        return new ArrayList<>(new LinkedHashSet<>(clauses));
+    }
+
+    /**
+     * Ranks a clause by the length of its shortest string, longer literals
+     * are more selective.
+     */
+    private static int strength(final Set<String> clause) {
+        int min = Integer.MAX_VALUE;
+        for (String s : clause) {
+            min = Math.min(min, s.length());
+        }
+        return min;
+    }
+
+    /**
+     * The summary of a node: either the exact set of strings it matches, or
+     * the clauses any match must satisfy (never both).
+     */
+    private static final class Info {
+
+        private static final Info EMPTY = exact(Collections.singleton(""));
+        private static final Info UNKNOWN = new Info(null, Collections.emptyList());
+
+        private final Set<String> exact;
+        private final List<Set<String>> clauses;
+
+        private Info(final Set<String> exactVar, final List<Set<String>> clausesVar) {
+            exact = exactVar;
+            clauses = clausesVar;
+        }
+
+        private static Info exact(final Set<String> strs) {
+            return new Info(strs, Collections.emptyList());
+        }
+
+        private static Info literal(final String str) {
+            return exact(Collections.singleton(str));
+        }
+
+        private static Set<String> cross(final Set<String> a, final Set<String> b) {
+            Set<String> cross = new LinkedHashSet<>();
+            for (String x : a) {
+                for (String y : b) {
+                    cross.add(x + y);
+                }
+            }
+            return cross;
+        }
+
+        private static Info alt(final Info a, final Info b) {
+            if (a.exact != null && b.exact != null
+                    && a.exact.size() + b.exact.size() <= MAX_EXACT) {
+                Set<String> union = new LinkedHashSet<>(a.exact);
+                union.addAll(b.exact);
+                return exact(union);
+            }
+            //(A1 and A2) or (B1 and B2) implies (A1 or B1)
+            Set<String> bestA = a.best(), bestB = b.best();
+            if (bestA == null || bestB == null) {
+                return UNKNOWN;
+            }
+            Set<String> union = new LinkedHashSet<>(bestA);
+            union.addAll(bestB);
+            return new Info(null, Collections.singletonList(union));
+        }
+
+        private static Info repeat(final Info a, final int min, final int max) {
+            if (min == 1 && max == 1) {
+                return a;
+            }
+            if (min == 0) {
+                if (max == 1 && a.exact != null && a.exact.size() < MAX_EXACT) {
+                    Set<String> opt = new LinkedHashSet<>(a.exact);
+                    opt.add("");
+                    return exact(opt);
+                }
+                return UNKNOWN;
+            }
+            List<Set<String>> clauses = new ArrayList<>(a.clauses);
+            clauses.addAll(clauseOf(a.exact));
+            return new Info(null, clauses);
+        }
+
+        private Set<String> best() {
+            Set<String> best = null;
+            List<Set<String>> all = new ArrayList<>(clauses);
+            all.addAll(clauseOf(exact));
+            for (Set<String> clause : all) {
+                if (best == null || strength(clause) > strength(best)) {
+                    best = clause;
+                }
+            }
+            return best;
+        }
+    }
+
+    /**
+     * Thrown internally when the parser meets syntax it does not model.
+     */
+    private static final class UnsupportedSyntax extends RuntimeException {
+
+        private static final long serialVersionUID = 1L;
+    }
+}
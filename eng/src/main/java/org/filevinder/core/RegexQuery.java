@@ -0,0 +1,410 @@
+/*
+ * Copyright (C) 2017 Gregory Clarke
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.filevinder.core;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+/**
+ * A regular expression compiled for searching files. Alongside the
+ * java.util.regex Pattern it holds a literal prefilter derived from the
+ * literals the expression requires (see RegexLiterals): when some literal is
+ * required outright the longest such literal is scanned for with a Matcher,
+ * otherwise every alternative of every clause is compiled into one
+ * Aho-Corasick automaton. Files failing the prefilter cannot match and are
+ * never decoded.
+ *
+ * java.util.regex.Matcher instances are reused per thread, as a query is
+ * typically evaluated against many files in parallel.
+ *
+ * @author Gregory Clarke
+ */
+public final class RegexQuery {
+
+    private final Pattern pattern;
+    private final Charset charset;
+    private final List<Set<String>> literals;
+    private final Matcher literal;
+    private final AhoCorasick alternatives;
+    private final int[][] clauseIds;
+    private final ThreadLocal<java.util.regex.Matcher> matchers;
+
+    /**
+     * Compiles the given expression for searching text in the given charset.
+     *
+     * @param regex The regular expression, in java.util.regex syntax
+     * @param charsetVar The character set of the files to be searched
+     * @throws java.util.regex.PatternSyntaxException If the expression is invalid
+     */
+    public RegexQuery(final String regex, final Charset charsetVar) {
+        pattern = Pattern.compile(regex);
+        charset = charsetVar;
+        literals = Collections.unmodifiableList(RegexLiterals.required(regex, pattern.flags()));
+        matchers = ThreadLocal.withInitial(() -> pattern.matcher(""));
+
+        String longest = null;
+        for (Set<String> clause : literals) {
+            if (clause.size() == 1) {
+                String lit = clause.iterator().next();
+                longest = longest == null || lit.length() > longest.length() ? lit : longest;
+            }
+        }
+
+        //the bytes of a literal depend on the byte order of the file read
+        if (hasByteOrderMark(charset)) {
+            literal = null;
+            alternatives = null;
+            clauseIds = null;
+            return;
+        }
+        if (longest != null || literals.isEmpty()) {
+            literal = longest == null ? null : Matchers.compile(longest.getBytes(charset));
+            alternatives = null;
+            clauseIds = null;
+            return;
+        }
+
+        List<byte[]> pats = new ArrayList<>();
+        clauseIds = new int[literals.size()][];
+        for (int c = 0; c < literals.size(); c++) {
+            clauseIds[c] = new int[literals.get(c).size()];
+            int i = 0;
+            for (String alt : literals.get(c)) {
+                clauseIds[c][i++] = pats.size();
+                pats.add(alt.getBytes(charset));
+            }
+        }
+        literal = null;
+        alternatives = new AhoCorasick(pats);
+    }
+
+    /**
+     * @return The literal clauses any match requires, empty if none
+     */
+    public List<Set<String>> literals() {
+        return literals;
+    }
+
+    /**
+     * @return The single literal prefilter, or null if there is none
+     */
+    public Matcher literal() {
+        return literal;
+    }
+
+    /**
+     * @return The multi literal prefilter, or null if there is none
+     */
+    public AhoCorasick alternatives() {
+        return alternatives;
+    }
+
+    /**
+     * Checks the patterns found by the alternatives automaton satisfy every
+     * required clause.
+     *
+     * @param found The ids of the patterns found, see AhoCorasick.scan
+     * @return True if the text may match the expression
+     */
+    public boolean satisfied(final BitSet found) {
+        for (int[] ids : clauseIds) {
+            boolean any = false;
+            for (int id : ids) {
+                any |= found.get(id);
+            }
+            if (!any) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Resolves the ids of the files in an index that may match the
+     * expression. Each required clause is looked up as the union of the
+     * candidates of its literals (see IndexQuery) and the clauses are
+     * intersected, rarest trigrams first within each literal. A clause with
+     * a literal the index cannot narrow down, e.g. one spanning a line
+     * break, is left out as it could be satisfied by any file.
+     *
+     * @param source The index to query
+     * @return The candidate file ids, or null if no clause can be looked up,
+     * as when the charset writes a byte order mark
+     * @throws IOException on error
+     */
+    public FileIdSet candidates(final PostingSource source) throws IOException {
+        if (hasByteOrderMark(charset)) {
+            return null;
+        }
+        FileIdSet candidates = null;
+        for (Set<String> clause : literals) {
+            FileIdSet files = clauseFiles(clause, source);
+            if (files != null) {
+                candidates = candidates == null ? files : FileIdSet.and(candidates, files);
+                if (candidates.isEmpty()) {
+                    break;
+                }
+            }
+        }
+        return candidates;
+    }
+
+    //the files holding any literal of the clause, null if one cannot be looked up
+    private FileIdSet clauseFiles(final Set<String> clause, final PostingSource source) throws IOException {
+        List<IndexQuery> queries = new ArrayList<>();
+        for (String lit : clause) {
+            IndexQuery query = new IndexQuery(lit.getBytes(charset));
+            if (!query.isIndexable()) {
+                return null;
+            }
+            queries.add(query);
+        }
+        FileIdSet files = new FileIdSet();
+        for (IndexQuery query : queries) {
+            QueryPlan plan = query.plan(source);
+            plan.execute(source).forEach(files::add);
+        }
+        return files;
+    }
+
+    /**
+     * Evaluates the expression against the bytes between the buffer position
+     * and limit. Single byte charsets are viewed in place. Other charsets
+     * are viewed through a window of decoded chars, so that the heap used
+     * does not grow with the text, except for ISO-2022 charsets whose
+     * decoding depends on earlier text, which are decoded whole.
+     *
+     * @param text The encoded text
+     * @return True if the expression matches somewhere in the text
+     */
+    public boolean find(final ByteBuffer text) {
+        final CharSequence chars;
+        if (isSingleByte()) {
+            chars = new ByteCharSequence(text, text.position(), text.limit());
+        } else if (charset.name().startsWith("ISO-2022")) {
+            chars = charset.decode(text);
+        } else {
+            chars = new DecodedCharSequence(text, charset);
+        }
+        final java.util.regex.Matcher m = matchers.get();
+        try {
+            return m.reset(chars).find();
+        } finally {
+            //do not hold on to the (possibly mapped) text
+            m.reset("");
+        }
+    }
+
+    private static boolean hasByteOrderMark(final Charset cs) {
+        return cs.name().equals("UTF-16") || cs.name().equals("UTF-32");
+    }
+
+    private boolean isSingleByte() {
+        return charset.equals(StandardCharsets.ISO_8859_1)
+                || charset.equals(StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * A view of multi byte text as chars, decoded a window at a time. The
+     * text is decoded once up front to find its length and the byte offset
+     * at which each window starts, after which a window is decoded again
+     * whenever it is read. The last two windows read are kept, so that a
+     * match straddling a window boundary does not decode windows in turn.
+     * Malformed input is replaced, as by Charset.decode.
+     */
+    private static final class DecodedCharSequence implements CharSequence {
+
+        private static final int WINDOW_CHARS = 1 << 16;
+        private static final int CACHED = 2;
+        private static final int BYTE_MASK = 0xFF;
+        private static final int[] BOM_16 = {0xFE, 0xFF};
+        private static final int[] BOM_32 = {0, 0, 0xFE, 0xFF};
+
+        private final ByteBuffer bytes;
+        private final CharsetDecoder decoder;
+        private int[] byteStarts = new int[1];
+        private int[] charStarts = new int[1];
+        private int windows;
+        private int length;
+        private final CharBuffer[] cached = new CharBuffer[CACHED];
+        private final int[] cachedWindow = {-1, -1};
+
+        private DecodedCharSequence(final ByteBuffer text, final Charset charset) {
+            bytes = text;
+            //the byte order mark is only read at the start of the text, so
+            //windows are decoded in the byte order it gives
+            Charset cs = charset;
+            int start = text.position();
+            if (charset.equals(StandardCharsets.UTF_16)) {
+                cs = hasBom(text, BOM_16, false) ? StandardCharsets.UTF_16LE : StandardCharsets.UTF_16BE;
+                start += hasBom(text, BOM_16, true) || hasBom(text, BOM_16, false) ? BOM_16.length : 0;
+            } else if (charset.name().equals("UTF-32")) {
+                cs = hasBom(text, BOM_32, false) ? Charset.forName("UTF-32LE") : Charset.forName("UTF-32BE");
+                start += hasBom(text, BOM_32, true) || hasBom(text, BOM_32, false) ? BOM_32.length : 0;
+            }
+            decoder = cs.newDecoder()
+                    .onMalformedInput(CodingErrorAction.REPLACE)
+                    .onUnmappableCharacter(CodingErrorAction.REPLACE);
+
+            ByteBuffer in = text.duplicate().position(start);
+            CharBuffer out = CharBuffer.allocate(WINDOW_CHARS);
+            while (true) {
+                if (windows == byteStarts.length) {
+                    byteStarts = Arrays.copyOf(byteStarts, windows * 2);
+                    charStarts = Arrays.copyOf(charStarts, windows * 2);
+                }
+                byteStarts[windows] = in.position();
+                charStarts[windows++] = length;
+                out.clear();
+                final boolean last = decode(in, out);
+                length += out.position();
+                if (last) {
+                    break;
+                }
+            }
+            //a text ending at a window boundary leaves an empty last window
+            if (windows > 1 && charStarts[windows - 1] == length) {
+                windows--;
+            }
+        }
+
+        private static boolean hasBom(final ByteBuffer text, final int[] bom, final boolean bigEndian) {
+            if (text.remaining() < bom.length) {
+                return false;
+            }
+            for (int i = 0; i < bom.length; i++) {
+                final int b = bigEndian ? bom[i] : bom[bom.length - 1 - i];
+                if ((text.get(text.position() + i) & BYTE_MASK) != b) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        //decodes until the window is full or the input ends, true at the end
+        private boolean decode(final ByteBuffer in, final CharBuffer out) {
+            decoder.reset();
+            CoderResult result = decoder.decode(in, out, true);
+            if (result.isUnderflow()) {
+                decoder.flush(out);
+                return true;
+            }
+            return false;
+        }
+
+        private CharBuffer window(final int w) {
+            final int slot = w % CACHED;
+            if (cachedWindow[slot] != w) {
+                ByteBuffer in = bytes.duplicate().position(byteStarts[w]);
+                if (w + 1 < windows) {
+                    in.limit(byteStarts[w + 1]);
+                }
+                CharBuffer out = cached[slot] == null ? CharBuffer.allocate(WINDOW_CHARS) : cached[slot].clear();
+                decode(in, out);
+                cached[slot] = out;
+                cachedWindow[slot] = w;
+            }
+            return cached[slot];
+        }
+
+        @Override
+        public int length() {
+            return length;
+        }
+
+        @Override
+        public char charAt(final int index) {
+            if (index < 0 || index >= length) {
+                throw new IndexOutOfBoundsException("Index out of range: " + index);
+            }
+            int w = Arrays.binarySearch(charStarts, 0, windows, index);
+            if (w < 0) {
+                w = -w - 2;
+            }
+            return window(w).get(index - charStarts[w]);
+        }
+
+        @Override
+        public CharSequence subSequence(final int from, final int to) {
+            StringBuilder sb = new StringBuilder(to - from);
+            for (int i = from; i < to; i++) {
+                sb.append(charAt(i));
+            }
+            return sb.toString();
+        }
+
+        @Override
+        public String toString() {
+            return subSequence(0, length).toString();
+        }
+    }
+
+    /**
+     * A zero copy view of single byte text as chars.
+     */
+    private static final class ByteCharSequence implements CharSequence {
+
+        private static final int BYTE_MASK = 0xFF;
+
+        private final ByteBuffer buf;
+        private final int start;
+        private final int end;
+
+        private ByteCharSequence(final ByteBuffer bufVar, final int startVar, final int endVar) {
+            buf = bufVar;
+            start = startVar;
+            end = endVar;
+        }
+
+        @Override
+        public int length() {
+            return end - start;
+        }
+
+        @Override
+        public char charAt(final int index) {
+            return (char) (buf.get(start + index) & BYTE_MASK);
+        }
+
+        @Override
+        public CharSequence subSequence(final int from, final int to) {
+            return new ByteCharSequence(buf, start + from, start + to);
+        }
+
+        @Override
+        public String toString() {
+            char[] chars = new char[length()];
+            for (int i = 0; i < chars.length; i++) {
+                chars[i] = charAt(i);
+            }
+            return new String(chars);
+        }
+    }
+}
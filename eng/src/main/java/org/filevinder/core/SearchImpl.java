@@ -17,25 +17,40 @@
 package org.filevinder.core;
 
 import org.filevinder.interfaces.Search;
+import org.filevinder.types.Match;
 
 import java.io.IOException;
+import java.lang.reflect.Field;
 import java.lang.reflect.Method;
-import java.nio.BufferUnderflowException;
 import java.nio.ByteBuffer;
 import java.nio.MappedByteBuffer;
 import java.nio.channels.FileChannel;
 import java.nio.channels.FileChannel.MapMode;
 import java.nio.charset.Charset;
 import java.nio.file.AccessDeniedException;
+import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.AbstractMap.SimpleEntry;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.Spliterators;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+import java.util.regex.Pattern;
 import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 import static org.filevinder.common.Utils.getFiles;
 import static org.filevinder.core.ErrorHandler.recordErr;
-import static org.filevinder.core.ErrorHandler.recordErr;
 
 /**
  *
@@ -44,9 +59,64 @@ import static org.filevinder.core.ErrorHandler.recordErr;
 public final class SearchImpl implements Search {
 
     /**
-     * Search the specified file for the String specified. Uses a fwd linear
-     * scan and searches char by char. Algorithms like 'boyer moore' don't seem
-     * to not work well on a file map stream.
+     * The mapped window size used on 64-bit JVMs, where address space is
+     * plentiful and each remap is pure overhead.
+     */
+    public static final long WINDOW_64 = 1L << 30;
+
+    /**
+     * The mapped window size used on 32-bit JVMs.
+     */
+    public static final long WINDOW_32 = 64L * 1024 * 1024;
+
+    private static final Method INVOKE_CLEANER;
+    private static final Object UNSAFE;
+
+    static {
+        Method invokeCleaner = null;
+        Object unsafe = null;
+        try {
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+            theUnsafe.setAccessible(true);
+            unsafe = theUnsafe.get(null);
+            invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            invokeCleaner = null;
+        }
+        INVOKE_CLEANER = invokeCleaner;
+        UNSAFE = unsafe;
+    }
+
+    private final long windowSize;
+    private volatile CompiledPattern compiled;
+
+    /**
+     * Constructs a search instance using the default mapped window size for
+     * the running JVM.
+     */
+    public SearchImpl() {
+        this(is64Bit() ? WINDOW_64 : WINDOW_32);
+    }
+
+    /**
+     * Constructs a search instance that maps large files in windows of the
+     * given size, consecutive windows overlap by the pattern length - 1.
+     *
+     * @param windowSizeVar The maximum number of bytes mapped at a time
+     */
+    public SearchImpl(final long windowSizeVar) {
+        if (windowSizeVar < 1 || windowSizeVar > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Invalid window size " + windowSizeVar);
+        }
+        windowSize = windowSizeVar;
+    }
+
+    /**
+     * Search the specified file for the String specified. The pattern is
+     * compiled into a Matcher once and reused while consecutive calls search
+     * for the same pattern, so callers iterating over many files pay for the
+     * matcher tables only once.
      *
      * For most operating systems, mapping a file into memory is more expensive
      * than reading or writing a few tens of kilobytes of data via the usual
@@ -67,10 +137,19 @@ public final class SearchImpl implements Search {
             throw new NullPointerException("A provided argument was null");
         }
 
+        return searchFile(filePath, compile(pattern, charset));
+    }
+
+    /**
+     * Search the specified file with a precompiled matcher.
+     *
+     * @param filePath The file to search
+     * @param matcher The compiled pattern, see Matchers.compile
+     * @return True if the pattern is found in the file content
+     */
+    public boolean searchFile(final Path filePath, final Matcher matcher) {
+
         boolean foundPat = false;
-        final byte[] pat = pattern.getBytes(charset);
-        final byte firstByte = pat[0];
-        final int patLen = pat.length, patlenm1 = patLen - 1;
         final int thresholdSize = 50000;
 
         try (FileChannel text = FileChannel.open(filePath, StandardOpenOption.READ)) {
@@ -78,9 +157,9 @@ public final class SearchImpl implements Search {
             final long textlen = text.size();
 
             if (textlen < thresholdSize) {
-                foundPat = bufferedSearch(textlen, text, firstByte, patLen, pat, patlenm1);
+                foundPat = bufferedSearch(textlen, text, matcher);
             } else {
-                foundPat = mappedSearch(textlen, patLen, text, firstByte, pat, patlenm1);
+                foundPat = mappedSearch(textlen, text, matcher, windowSize);
             }
         } catch(AccessDeniedException ade){
             ErrorHandler.recordErr("AccessDeniedException: " + filePath);
@@ -91,47 +170,105 @@ public final class SearchImpl implements Search {
         return foundPat;
     }
 
-    @SuppressWarnings("empty-statement")
-    private static boolean mappedSearch(final long textlen, final int patLen,
-            final FileChannel text, final byte firstByte, final byte[] pat,
-            final int patlenm1) throws IOException {
+    /**
+     * Search the specified file for every occurrence of the String specified.
+     * The file is scanned as the stream is consumed, a window at a time, so
+     * the matches are never all held at once. The file is closed once the
+     * last match has been read, a stream that is not read to the end should
+     * be closed.
+     *
+     * @param filePath The file to search
+     * @param pattern The text to search for in the file
+     * @param charset The character set to use for reading the file content
+     * @return The matches in the file, in file order
+     */
+    @Override
+    public Stream<Match> searchMatches(final Path filePath, final String pattern,
+            final Charset charset) {
 
-        final int bufferLen = 4 * 1024 * 1000; // Use a 4MB buffer
-        int inc;
+        if (filePath == null || pattern == null || charset == null) {
+            throw new NullPointerException("A provided argument was null");
+        }
+
+        return matches(filePath, compile(pattern, charset));
+    }
+
+    /**
+     * Search the files in the root path for every occurrence of the String
+     * specified. The pattern is compiled once, files are searched as the
+     * stream is consumed.
+     *
+     * @param rootPath The folder to search
+     * @param pattern The text to search for
+     * @param charset The character set to use for reading the file content
+     * @return The matches in every file
+     */
+    @Override
+    public Stream<Match> findMatches(final String rootPath, final String pattern,
+            final Charset charset) {
+
+        final Matcher matcher = Matchers.compile(pattern.getBytes(charset));
+        return getFiles(rootPath, true)
+                .flatMap(path -> matches(path, matcher));
+    }
+
+    /**
+     * Search the specified file for every occurrence of a precompiled pattern,
+     * passing each match to the sink in file order, see matches.
+     *
+     * @param filePath The file to search
+     * @param matcher The compiled pattern, see Matchers.compile
+     * @param sink Receives each match
+     */
+    public void searchFile(final Path filePath, final Matcher matcher,
+            final Consumer<Match> sink) {
+
+        try (Stream<Match> matches = matches(filePath, matcher)) {
+            matches.forEachOrdered(sink);
+        }
+    }
+
+    //the matches in a file, found as the stream is pulled, see MatchSpliterator
+    private Stream<Match> matches(final Path filePath, final Matcher matcher) {
+        MatchSpliterator matches = new MatchSpliterator(filePath, matcher, windowSize);
+        return StreamSupport.stream(matches, false).onClose(matches::close);
+    }
+
+    private Matcher compile(final String pattern, final Charset charset) {
+        CompiledPattern last = compiled;
+        if (last == null || !last.pattern.equals(pattern) || !last.charset.equals(charset)) {
+            last = new CompiledPattern(pattern, charset);
+            compiled = last;
+        }
+        return last.matcher;
+    }
+
+    /**
+     * Scans the file in mapped windows. Consecutive windows overlap by
+     * patLen - 1 bytes, so a match straddling the end of one window lies
+     * wholly within the next, while a match that fits in a window is only
+     * ever reported by that window.
+     */
+    private static boolean mappedSearch(final long textlen, final FileChannel text,
+            final Matcher matcher, final long window) throws IOException {
+
+        final int patLen = matcher.length();
+        final long winLen = Math.max(window, patLen);
         boolean foundPat = false;
-        MappedByteBuffer mappedTextBuf = null;
         long pos = 0;
 
-        while (pos < textlen - patLen && !foundPat) {
-            inc = (int) Math.min(bufferLen, textlen - pos); //shift
-            mappedTextBuf = text.map(MapMode.READ_ONLY, pos, inc);
-            pos += inc;
+        while (!foundPat && textlen - pos >= patLen) {
+            final int len = (int) Math.min(winLen, textlen - pos);
+            MappedByteBuffer mappedTextBuf = text.map(MapMode.READ_ONLY, pos, len);
+            foundPat = matcher.indexOf(mappedTextBuf, 0, len) >= 0;
+            closeDirectBuffer(mappedTextBuf);
 
-            while (mappedTextBuf.hasRemaining() && !foundPat) {
-                try {
-                    //skip loop - search for first byte
-                    while (mappedTextBuf.get() != firstByte) {
-                    }
-                    //match - fwd linear scan
-                    for (int j = 1; j < patLen; j++) {
-                        if (mappedTextBuf.get() != pat[j]) {
-                            break;
-                        } else if (j == patlenm1) {
-                            foundPat = true;
-                            break;
-                        }
-                    }
-                } catch (BufferUnderflowException e) {
-                    break;
-                }
+            if (pos + len == textlen) {
+                break;
             }
+            pos += len - (patLen - 1);
         }
 
-        closeDirectBuffer(mappedTextBuf);
-
-        //An alternative to the approach in closeDirectBufferis to suggest
-        //a Systen.gc() run which is not guaranteed to execute immediately
-        //System.gc();
         return foundPat;
     }
 
@@ -145,61 +282,54 @@ public final class SearchImpl implements Search {
      *
      * @param buf The buffer to be closed
      */
-    private static void closeDirectBuffer(ByteBuffer buf) {
+    static void closeDirectBuffer(final ByteBuffer buf) {
         if (buf == null || !buf.isDirect()) {
             return;
         }
 
-        // we could use this type cast and call functions without reflection code,
-        // but static import from sun.* package is risky for non-SUN virtual machine.
-        //try { ((sun.nio.ch.DirectBuffer)cb).cleaner().clean(); } catch (Exception ex) { }
+        // Java 9+ exposes the cleaner through Unsafe.invokeCleaner, older
+        // runtimes fall back to a gc hint which is not guaranteed to unmap.
         try {
-            Method cleaner = buf.getClass().getMethod("cleaner");
-            cleaner.setAccessible(true);
-            Method clean = Class.forName("sun.misc.Cleaner").getMethod("clean");
-            clean.setAccessible(true);
-            clean.invoke(cleaner.invoke(buf));
-            buf = null;
-        } catch (Exception ex) {
-            System.gc();
+            if (INVOKE_CLEANER != null) {
+                INVOKE_CLEANER.invoke(UNSAFE, buf);
+                return;
+            }
+        } catch (ReflectiveOperationException | IllegalArgumentException ex) {
+            recordErr("Could not unmap buffer", ex);
         }
+        System.gc();
+    }
+
+    private static boolean is64Bit() {
+        String model = System.getProperty("sun.arch.data.model");
+        if (model != null) {
+            return model.equals("64");
+        }
+        return System.getProperty("os.arch", "").contains("64");
     }
 
     private static boolean bufferedSearch(final long textlen, final FileChannel text,
-            final byte firstByte, final int patLen,
-            final byte[] pat, final int patlenm1) throws IOException {
+            final Matcher matcher) throws IOException {
 
-        boolean foundPat = false;
-        ByteBuffer textBuf = ByteBuffer.allocate((int) textlen);
-        text.read(textBuf);
-        textBuf.position(0);
+        ByteBuffer textBuf = readFully(textlen, text);
+        return matcher.indexOf(textBuf, 0, textBuf.position()) >= 0;
+    }
 
-        while (textBuf.hasRemaining() && !foundPat) {
-            try {
-                //skip loop - search for first byte
-                while (textBuf.get() != firstByte) {
-                }
+    private static ByteBuffer readFully(final long textlen, final FileChannel text)
+            throws IOException {
 
-                //match - fwd linear scan
-                for (int j = 1; j < patLen; j++) {
-                    if (textBuf.get() != pat[j]) {
-                        break;
-                    } else if (j == patlenm1) {
-                        foundPat = true;
-                        break;
-                    }
-                }
-            } catch (BufferUnderflowException e) {
-                break;
-            }
+        ByteBuffer textBuf = ByteBuffer.allocate((int) textlen);
+        int read = 0;
+        //a single read is not guaranteed to fill the buffer
+        while (textBuf.hasRemaining() && read >= 0) {
+            read = text.read(textBuf);
         }
-        return foundPat;
+        return textBuf;
     }
 
     /**
-     * Search the files in the root path for the String specified using a file
-     * map stream. Uses a fwd linear scan and searches char by char. Algorithms
-     * like 'boyer moore' don't seem to work well on a file map stream.
+     * Search the files in the root path for the String specified. The pattern
+     * is compiled once and the resulting matcher is shared by every file.
      *
      * @param rootPath The file to search
      * @param pattern The text to search for in the file
@@ -210,11 +340,221 @@ public final class SearchImpl implements Search {
     public List<Path> findPattern(final String rootPath, final String pattern,
             final Charset charset) {
 
+        final Matcher matcher = Matchers.compile(pattern.getBytes(charset));
+        return getFiles(rootPath, true)
+                .parallel()
+                .filter(path -> searchFile(path, matcher))
+                .collect(Collectors.toList());
+
+    }
+
+    /**
+     * Search the files in the root path for the String specified, skipping
+     * the files whose trigram filter shows they cannot hold it, see
+     * FilterCatalog. Files without an up to date filter have one built as
+     * they are searched, and the catalog is saved once the search is done. A
+     * pattern too short to hold a trigram cannot be filtered, so every file is
+     * searched and the catalog is neither read nor built.
+     *
+     * @param rootPath The folder to search
+     * @param pattern The text to search for in the file
+     * @param charset The character set to use for reading the file content
+     * @param filters The filters of the files in the root path
+     * @return The files containing the pattern
+     */
+    public List<Path> findPattern(final String rootPath, final String pattern,
+            final Charset charset, final FilterCatalog filters) {
+
+        final byte[] pat = pattern.getBytes(charset);
+        final Matcher matcher = Matchers.compile(pat);
+        final int[] trigrams = Arrays.stream(Trigrams.queryOffsets(pat))
+                .map(off -> Trigrams.code(pat, off))
+                .toArray();
+        final Path sidecar = filters.getFile().toAbsolutePath();
+        if (trigrams.length == 0) {
+            return getFiles(rootPath, true)
+                    .parallel()
+                    .filter(path -> !path.toAbsolutePath().equals(sidecar))
+                    .filter(path -> searchFile(path, matcher))
+                    .collect(Collectors.toList());
+        }
+        final List<Path> found = getFiles(rootPath, true)
+                .parallel()
+                .filter(path -> !path.toAbsolutePath().equals(sidecar))
+                .filter(path -> filters.mightContain(path, trigrams))
+                .filter(path -> searchFile(path, matcher))
+                .collect(Collectors.toList());
+
+        filters.prune(Paths.get(rootPath));
+        try {
+            filters.save();
+        } catch (IOException ioe) {
+            recordErr("Could not save filter catalog " + filters.getFile(), ioe);
+        }
+        return found;
+    }
+
+    /**
+     * Search the files in the root path for the String specified, ignoring
+     * case. A pattern of ASCII text, in a charset encoding it as ASCII, is
+     * found in any mix of ASCII case by a FoldingMatcher, which folds the
+     * text as it scans rather than lower casing the files. Any other pattern
+     * is matched as a case insensitive Unicode expression, which decodes
+     * each file.
+     *
+     * @param rootPath The folder to search
+     * @param pattern The text to search for in the file
+     * @param charset The character set to use for reading the file content
+     * @return The files containing the pattern
+     */
+    public List<Path> findPatternIgnoreCase(final String rootPath, final String pattern,
+            final Charset charset) {
+
+        final Predicate<Path> search = ignoringCase(pattern, charset);
+        return getFiles(rootPath, true)
+                .parallel()
+                .filter(search)
+                .collect(Collectors.toList());
+    }
+
+    /**
+     * Search the files in the root path for any number of literal patterns.
+     * The patterns are compiled once into an Aho-Corasick automaton which is
+     * shared by every file, each file is read in a single pass regardless of
+     * the number of patterns.
+     *
+     * @param rootPath The folder to search
+     * @param patterns The texts to search for
+     * @param charset The character set to use for reading the file content
+     * @return The patterns found in each file, files with no match are omitted
+     */
+    @Override
+    public Map<Path, Set<String>> findPatterns(final String rootPath,
+            final Set<String> patterns, final Charset charset) {
+
+        final List<String> pats = new ArrayList<>(patterns);
+        final AhoCorasick automaton = new AhoCorasick(pats.stream()
+                .map(pat -> pat.getBytes(charset))
+                .collect(Collectors.toList()));
+
+        return getFiles(rootPath, true)
+                .parallel()
+                .map(path -> new SimpleEntry<>(path, searchFile(path, automaton)))
+                .filter(entry -> !entry.getValue().isEmpty())
+                .collect(Collectors.toMap(SimpleEntry::getKey, entry -> {
+                    Set<String> found = new HashSet<>();
+                    entry.getValue().stream().forEach(id -> found.add(pats.get(id)));
+                    return found;
+                }));
+    }
+
+    /**
+     * Search the specified file for every pattern compiled into the automaton,
+     * the file is read once and mapped windows do not need to overlap as the
+     * automaton state is carried from one window to the next.
+     *
+     * @param filePath The file to search
+     * @param automaton The compiled patterns
+     * @return The ids of the patterns found in the file
+     */
+    public BitSet searchFile(final Path filePath, final AhoCorasick automaton) {
+
+        final BitSet found = new BitSet(automaton.size());
+        final int thresholdSize = 50000;
+
+        try (FileChannel text = FileChannel.open(filePath, StandardOpenOption.READ)) {
+
+            final long textlen = text.size();
+
+            if (textlen < thresholdSize) {
+                ByteBuffer textBuf = readFully(textlen, text);
+                automaton.scan(textBuf, 0, textBuf.position(), AhoCorasick.START, found);
+                return found;
+            }
+
+            int state = AhoCorasick.START;
+            for (long pos = 0; pos < textlen && state >= 0; pos += windowSize) {
+                final int len = (int) Math.min(windowSize, textlen - pos);
+                MappedByteBuffer mappedTextBuf = text.map(MapMode.READ_ONLY, pos, len);
+                state = automaton.scan(mappedTextBuf, 0, len, state, found);
+                closeDirectBuffer(mappedTextBuf);
+            }
+        } catch (AccessDeniedException ade) {
+            ErrorHandler.recordErr("AccessDeniedException: " + filePath);
+        } catch (IOException ioe) {
+            recordErr("Error retrieving files", ioe);
+        }
+
+        return found;
+    }
+
+    /**
+     * Search the files in the root path for text matching a regular
+     * expression. The expression is compiled once, files are first checked
+     * for the literals it requires and only the survivors are evaluated
+     * against the expression itself.
+     *
+     * @param rootPath The folder to search
+     * @param regex The regular expression, in java.util.regex syntax
+     * @param charset The character set to use for reading the file content
+     * @return The files containing a match
+     */
+    @Override
+    public List<Path> findRegex(final String rootPath, final String regex,
+            final Charset charset) {
+
+        final RegexQuery query = new RegexQuery(regex, charset);
         return getFiles(rootPath, true)
                 .parallel()
-                .filter(path -> searchFile(path, pattern, charset))
+                .filter(path -> searchFile(path, query))
                 .collect(Collectors.toList());
+    }
 
+    /**
+     * Search the specified file with a compiled regular expression. The
+     * literal prefilter is applied first, files that pass are mapped (or read
+     * if small) whole and evaluated against the expression.
+     *
+     * @param filePath The file to search
+     * @param query The compiled expression
+     * @return True if the expression matches somewhere in the file content
+     */
+    public boolean searchFile(final Path filePath, final RegexQuery query) {
+
+        if (query.literal() != null && !searchFile(filePath, query.literal())) {
+            return false;
+        }
+        if (query.alternatives() != null
+                && !query.satisfied(searchFile(filePath, query.alternatives()))) {
+            return false;
+        }
+
+        final int thresholdSize = 50000;
+
+        try (FileChannel text = FileChannel.open(filePath, StandardOpenOption.READ)) {
+
+            final long textlen = text.size();
+
+            if (textlen > Integer.MAX_VALUE) {
+                recordErr("File too large for a regex search: " + filePath);
+                return false;
+            }
+
+            ByteBuffer textBuf = textlen < thresholdSize
+                    ? readFully(textlen, text).flip()
+                    : text.map(MapMode.READ_ONLY, 0, textlen);
+            try {
+                return query.find(textBuf);
+            } finally {
+                closeDirectBuffer(textBuf);
+            }
+        } catch (AccessDeniedException ade) {
+            ErrorHandler.recordErr("AccessDeniedException: " + filePath);
+        } catch (IOException ioe) {
+            recordErr("Error retrieving files", ioe);
+        }
+
+        return false;
     }
 
     /**
@@ -237,15 +577,464 @@ public final class SearchImpl implements Search {
         }
     }
 
-    private static List<Match> findIndexedPattern(final String rootPath,
-            final String pattern, final Paths indexFiles) {
-        //TODO: implement this
-        //Extract and read chunks of the compressed file and
-        //search for the relevant trigram sequences
-        //using these trigrams, build a new partial in-memory posting list
-        //use this posting list to get the search results
-        //This might benefit from parralel streaming
-        return null;
+    /**
+     * Search the indexed files in the root path for the String specified.
+     * The pattern is split into trigrams and their posting lists are read
+     * from each index file rarest first, see QueryPlan, until the candidates
+     * are few enough to verify directly. Candidate files must hold the trigrams at
+     * the same relative positions as the pattern, and only those files are
+     * read to confirm and locate the matches. Patterns the index cannot
+     * answer (see IndexQuery.isIndexable) fall back to searching every file
+     * in the root path.
+     *
+     * File ids are resolved per index, as ids are only unique within the
+     * process that assigned them. Index files carry the id map saved by
+     * writeCompressedIndex, and segmented indexes the catalog of their files,
+     * which are read into a FileIdMap of their own so the indexes can be
+     * searched from any process, see fileIds.
+     *
+     * @param rootPath The folder to search
+     * @param pattern The text to search for
+     * @param indexFiles Compressed index files, see Index.writeCompressedIndex,
+     * or segmented index directories, see SegmentedIndex
+     * @param charset The character set of the indexed files, also used to
+     * decode the index files
+     * @return The matches in every candidate file
+     */
+    @Override
+    public List<Match> findIndexedPattern(final String rootPath, final String pattern,
+            final List<Path> indexFiles, final Charset charset) {
+
+        final byte[] pat = pattern.getBytes(charset);
+        final IndexQuery query = new IndexQuery(pat);
+        Stream<Path> candidates;
+
+        if (!query.isIndexable()) {
+            candidates = getFiles(rootPath, true);
+        } else {
+            final Path root = Paths.get(rootPath).toAbsolutePath().normalize();
+
+            Set<Path> paths = indexFiles.parallelStream()
+                    .flatMap(indexFile -> {
+                        QueryPlan plan = plan(query, indexFile, QueryPlan.VERIFY_LIMIT);
+                        if (plan == null) {
+                            return Stream.empty();
+                        }
+                        FileIdMap fileIds = fileIds(indexFile);
+                        return plan.candidates().stream().map(fileIds::getPath);
+                    })
+                    .filter(path -> path != null && path.toAbsolutePath().normalize().startsWith(root))
+                    .collect(Collectors.toSet());
+            candidates = paths.stream();
+        }
+
+        final Matcher matcher = Matchers.compile(pat);
+        return candidates
+                .parallel()
+                .flatMap(path -> matches(path, matcher))
+                .collect(Collectors.toList());
+    }
+
+    /**
+     * Plans and runs the index lookup of findIndexedPattern, without reading
+     * the candidate files, to show the order in which the trigrams were read
+     * and how far each narrowed the candidates.
+     *
+     * @param pattern The text to search for
+     * @param indexFiles Compressed index files or segmented index directories
+     * @param charset The character set of the indexed files
+     * @return The executed plan of each index that could be read, or an empty
+     * list if the pattern cannot be resolved from the index
+     */
+    public List<QueryPlan> explainIndexedPattern(final String pattern, final List<Path> indexFiles,
+            final Charset charset) {
+        final IndexQuery query = new IndexQuery(pattern.getBytes(charset));
+        if (!query.isIndexable()) {
+            return Collections.emptyList();
+        }
+        return indexFiles.stream()
+                .map(indexFile -> plan(query, indexFile, QueryPlan.VERIFY_LIMIT))
+                .filter(plan -> plan != null)
+                .collect(Collectors.toList());
+    }
+
+    /**
+     * Finds the files holding a pattern, resolving the candidates from the
+     * given indexes as findIndexedPattern does. The positions of every
+     * trigram are read from the index, so that where the trigrams cover the
+     * pattern (see IndexQuery.coversPattern) a candidate holds the pattern
+     * wherever its trigrams line up. A candidate listed in the catalog of a
+     * maintained index (see IndexUpdater) with the size and modification
+     * time it has now is therefore returned without being opened, which
+     * avoids a read per file on slow file systems. Other candidates are
+     * read until the first match.
+     *
+     * @param rootPath The folder to search
+     * @param pattern The text to search for
+     * @param indexFiles Compressed index files or segmented index directories
+     * @param charset The character set of the indexed files
+     * @return The files holding the pattern
+     */
+    public List<Path> findIndexedFiles(final String rootPath, final String pattern,
+            final List<Path> indexFiles, final Charset charset) {
+
+        final byte[] pat = pattern.getBytes(charset);
+        final IndexQuery query = new IndexQuery(pat);
+        if (!query.isIndexable()) {
+            return findPattern(rootPath, pattern, charset);
+        }
+        final Path root = Paths.get(rootPath).toAbsolutePath().normalize();
+
+        //each candidate with whether the index alone confirms it
+        Map<Path, Boolean> candidates = indexFiles.parallelStream()
+                .flatMap(indexFile -> {
+                    QueryPlan plan = plan(query, indexFile, 0);
+                    if (plan == null) {
+                        return Stream.empty();
+                    }
+                    FileIdMap fileIds = fileIds(indexFile);
+                    FileCatalog catalog = plan.isExact() ? loadCatalog(indexFile) : null;
+                    return plan.candidates().stream()
+                            .map(fid -> {
+                                Path path = fileIds.getPath(fid);
+                                return path == null ? null
+                                        : new SimpleEntry<>(path, catalog != null && isFresh(catalog, path, fid));
+                            })
+                            .filter(entry -> entry != null
+                                    && entry.getKey().toAbsolutePath().normalize().startsWith(root));
+                })
+                .collect(Collectors.toMap(SimpleEntry::getKey, SimpleEntry::getValue, Boolean::logicalOr));
+
+        final Matcher matcher = Matchers.compile(pat);
+        return candidates.entrySet()
+                .parallelStream()
+                .filter(entry -> entry.getValue() || searchFile(entry.getKey(), matcher))
+                .map(Map.Entry::getKey)
+                .collect(Collectors.toList());
+    }
+
+    /**
+     * Search the indexed files in the root path for text matching a regular
+     * expression, using the index files to narrow the files read, see
+     * RegexQuery.candidates. An expression with no literal clause the index
+     * can look up is evaluated against every file, see findRegex.
+     *
+     * @param rootPath The folder to search
+     * @param regex The regular expression, in java.util.regex syntax
+     * @param indexFiles Compressed index files or segmented index directories
+     * @param charset The character set of the indexed files
+     * @return The files containing a match
+     */
+    public List<Path> findIndexedRegex(final String rootPath, final String regex,
+            final List<Path> indexFiles, final Charset charset) {
+
+        final RegexQuery query = new RegexQuery(regex, charset);
+        final Path root = Paths.get(rootPath).toAbsolutePath().normalize();
+
+        Set<Path> candidates = new HashSet<>();
+        for (Path indexFile : indexFiles) {
+            final FileIdSet fids;
+            try (PostingSource source = PostingSource.open(indexFile)) {
+                fids = query.candidates(source);
+            } catch (IOException e) {
+                recordErr("Could not read index " + indexFile, e);
+                continue;
+            }
+            if (fids == null) {
+                return findRegex(rootPath, regex, charset);
+            }
+            final FileIdMap fileIds = fileIds(indexFile);
+            fids.forEach(fid -> {
+                Path path = fileIds.getPath(fid);
+                if (path != null && path.toAbsolutePath().normalize().startsWith(root)) {
+                    candidates.add(path);
+                }
+            });
+        }
+
+        return candidates.parallelStream()
+                .filter(path -> searchFile(path, query))
+                .collect(Collectors.toList());
+    }
+
+    /**
+     * Search the files in the root path for the String specified ignoring
+     * case, using index files to narrow the files read, see
+     * findPatternIgnoreCase and IndexQuery.candidatesIgnoreCase. Patterns
+     * the index cannot narrow down, including those that are not ASCII,
+     * are searched for in every file.
+     *
+     * @param rootPath The folder to search
+     * @param pattern The text to search for
+     * @param indexFiles Compressed index files or segmented index directories
+     * @param charset The character set of the indexed files
+     * @return The files holding the pattern
+     */
+    public List<Path> findIndexedFilesIgnoreCase(final String rootPath, final String pattern,
+            final List<Path> indexFiles, final Charset charset) {
+
+        final byte[] pat = pattern.getBytes(charset);
+        final IndexQuery query = new IndexQuery(pat);
+        if (!isAscii(pattern, pat) || !query.isIndexable()) {
+            return findPatternIgnoreCase(rootPath, pattern, charset);
+        }
+        final Path root = Paths.get(rootPath).toAbsolutePath().normalize();
+
+        Set<Path> candidates = indexFiles.parallelStream()
+                .flatMap(indexFile -> {
+                    final int[] fids;
+                    try (PostingSource source = PostingSource.open(indexFile)) {
+                        fids = query.candidatesIgnoreCase(source).toArray();
+                    } catch (IOException e) {
+                        recordErr("Could not read index " + indexFile, e);
+                        return Stream.empty();
+                    }
+                    final FileIdMap fileIds = fileIds(indexFile);
+                    return Arrays.stream(fids)
+                            .mapToObj(fileIds::getPath)
+                            .filter(path -> path != null && path.toAbsolutePath().normalize().startsWith(root));
+                })
+                .collect(Collectors.toSet());
+
+        final Matcher matcher = Matchers.compileIgnoreCase(pat);
+        return candidates.parallelStream()
+                .filter(path -> searchFile(path, matcher))
+                .collect(Collectors.toList());
+    }
+
+    //searches a file for the pattern ignoring case, see findPatternIgnoreCase
+    private Predicate<Path> ignoringCase(final String pattern, final Charset charset) {
+        final byte[] pat = pattern.getBytes(charset);
+        if (isAscii(pattern, pat)) {
+            final Matcher matcher = Matchers.compileIgnoreCase(pat);
+            return path -> searchFile(path, matcher);
+        }
+        final RegexQuery query = new RegexQuery("(?iu)" + Pattern.quote(pattern), charset);
+        return path -> searchFile(path, query);
+    }
+
+    //true if the charset encodes the pattern as ASCII, one byte per char
+    private static boolean isAscii(final String pattern, final byte[] pat) {
+        if (pat.length != pattern.length()) {
+            return false;
+        }
+        for (int i = 0; i < pat.length; i++) {
+            if (pat[i] != pattern.charAt(i) || pat[i] < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    //the catalog of a maintained index, or null if it has none
+    private static FileCatalog loadCatalog(final Path indexFile) {
+        Path catalogFile = FileCatalog.pathFor(indexFile);
+        if (!Files.exists(catalogFile)) {
+            return null;
+        }
+        try {
+            return FileCatalog.load(catalogFile);
+        } catch (IOException e) {
+            recordErr("Could not read the catalog of " + indexFile, e);
+            return null;
+        }
+    }
+
+    //true if the file is unchanged since the catalog recorded it under the id, and its
+    //positions are unambiguous as it is not indexed in ranges, see FileChunker
+    private static boolean isFresh(final FileCatalog catalog, final Path path, final int fid) {
+        FileCatalog.Entry entry = catalog.get(path.toAbsolutePath().normalize());
+        if (entry == null || entry.isDeleted() || entry.getFileId() != fid
+                || entry.getSize() > FileChunker.RANGE_SIZE) {
+            return false;
+        }
+        try {
+            BasicFileAttributes attrs = Files.readAttributes(path, BasicFileAttributes.class);
+            return attrs.size() == entry.getSize() && attrs.lastModifiedTime().toMillis() == entry.getModified();
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    //plans and runs the lookup in an index, rarest trigrams first
+    private static QueryPlan plan(final IndexQuery query, final Path indexFile, final int verifyLimit) {
+        try (PostingSource source = PostingSource.open(indexFile)) {
+            QueryPlan plan = query.plan(source, verifyLimit);
+            plan.execute(source);
+            return plan;
+        } catch (IOException e) {
+            recordErr("Could not read index " + indexFile, e);
+            return null;
+        }
+    }
+
+    //the file ids saved with the index, or those of this process if it has none
+    private static FileIdMap fileIds(final Path indexFile) {
+        final Path catalogFile = FileCatalog.pathFor(indexFile);
+        final Path idsFile = FileIdMap.pathFor(indexFile);
+        if (!Files.exists(catalogFile) && !Files.exists(idsFile)) {
+            return FileIdMap.getInstance();
+        }
+        final FileIdMap fileIds = FileIdMap.create();
+        try {
+            if (Files.exists(catalogFile)) {
+                FileCatalog.load(catalogFile).register(fileIds);
+            }
+            if (Files.exists(idsFile)) {
+                fileIds.load(idsFile);
+            }
+        } catch (IOException e) {
+            recordErr("Could not read the file ids of " + indexFile, e);
+        }
+        return fileIds;
+    }
+
+    /**
+     * Finds the matches in a file as they are pulled, holding one window of
+     * the file at a time. Newlines are counted as the scan advances so the
+     * file is only read once, windows overlap as in the boolean search and a
+     * match starting in the overlap is reported by the later window only.
+     * The file is opened by the first advance and closed after the last
+     * match, or by close.
+     */
+    private static final class MatchSpliterator extends Spliterators.AbstractSpliterator<Match> {
+
+        private static final byte NEWLINE = '\n';
+        private static final int THRESHOLD_SIZE = 50000;
+
+        private final Path path;
+        private final Matcher matcher;
+        private final int patLen;
+        private final long winLen;
+        private FileChannel text;
+        private long textlen;
+        private ByteBuffer buf;
+        private boolean mapped;
+        private long base;
+        private int len;
+        private int limit;
+        private int from;
+        private boolean lastWin;
+        private boolean done;
+        private long line = 1;
+        private long lineStart;
+        private long counted;
+
+        private MatchSpliterator(final Path pathVar, final Matcher matcherVar, final long windowSize) {
+            super(Long.MAX_VALUE, ORDERED | NONNULL);
+            path = pathVar;
+            matcher = matcherVar;
+            patLen = matcher.length();
+            winLen = Math.max(windowSize, patLen);
+            done = patLen == 0;
+        }
+
+        @Override
+        public boolean tryAdvance(final Consumer<? super Match> action) {
+            try {
+                while (!done) {
+                    if (buf == null && !nextWindow()) {
+                        close();
+                        return false;
+                    }
+                    final int hit = matcher.indexOf(buf, from, len);
+                    if (hit >= 0 && hit < limit) {
+                        advance(hit);
+                        from = hit + 1;
+                        action.accept(new Match(path.toString(), base + hit, line, base + hit - lineStart + 1));
+                        return true;
+                    }
+                    advance(limit);
+                    release();
+                    if (lastWin) {
+                        close();
+                    } else {
+                        base += limit;
+                    }
+                }
+            } catch (AccessDeniedException ade) {
+                ErrorHandler.recordErr("AccessDeniedException: " + path);
+                close();
+            } catch (IOException ioe) {
+                recordErr("Error retrieving files", ioe);
+                close();
+            }
+            return false;
+        }
+
+        //reads or maps the next window, false if no match can start after base
+        private boolean nextWindow() throws IOException {
+            if (text == null) {
+                text = FileChannel.open(path, StandardOpenOption.READ);
+                textlen = text.size();
+                if (textlen < THRESHOLD_SIZE) {
+                    buf = readFully(textlen, text);
+                    len = buf.position();
+                    limit = len;
+                    lastWin = true;
+                    from = 0;
+                    return true;
+                }
+            }
+            if (textlen - base < patLen) {
+                return false;
+            }
+            len = (int) Math.min(winLen, textlen - base);
+            lastWin = base + len == textlen;
+            limit = lastWin ? len : len - (patLen - 1);
+            buf = text.map(MapMode.READ_ONLY, base, len);
+            mapped = true;
+            from = 0;
+            return true;
+        }
+
+        //counts the lines of the window up to the index to
+        private void advance(final int to) {
+            final int start = (int) (counted - base);
+            final int newlines = ByteScanner.count(buf, NEWLINE, start, to);
+            if (newlines > 0) {
+                line += newlines;
+                lineStart = base + ByteScanner.lastIndexOf(buf, NEWLINE, start, to) + 1;
+            }
+            counted = base + to;
+        }
+
+        private void release() {
+            if (mapped) {
+                closeDirectBuffer(buf);
+            }
+            buf = null;
+            mapped = false;
+        }
+
+        private void close() {
+            done = true;
+            release();
+            if (text != null) {
+                try {
+                    text.close();
+                } catch (IOException ioe) {
+                    recordErr("Error closing file " + path, ioe);
+                }
+                text = null;
+            }
+        }
+    }
+
+    /**
+     * A matcher together with the pattern and charset it was compiled from.
+     */
+    private static final class CompiledPattern {
+
+        private final String pattern;
+        private final Charset charset;
+        private final Matcher matcher;
+
+        private CompiledPattern(final String patternVar, final Charset charsetVar) {
+            pattern = patternVar;
+            charset = charsetVar;
+            matcher = Matchers.compile(patternVar.getBytes(charsetVar));
+        }
     }
 
 }
@@ -0,0 +1,150 @@
+/*
+ * Copyright (C) 2017 Gregory Clarke
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.filevinder.core;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Consumer;
+import org.filevinder.common.Utils;
+import org.filevinder.types.Chunk;
+
+/**
+ * Indexes chunks into a posting list held in memory until it reaches a byte
+ * budget, see PostingListImpl.heapBytes, when it is committed as a segment
+ * of a SegmentedIndex and a new posting list is started. Memory is then
+ * bounded by the budget however many or large the files, and a file may
+ * have its postings in several segments, which readers combine.
+ *
+ * Deleted files are committed with the next segment, which masks them in
+ * the older segments only, so a file deleted before its new postings are
+ * accepted keeps the new postings. Chunks are indexed concurrently, a
+ * commit waits for the chunks being indexed.
+ *
+ * @author Gregory Clarke
+ */
+public final class SegmentBuffer implements Consumer<Chunk> {
+
+    /**
+     * The default budget, in bytes.
+     */
+    public static final long DEFAULT_BUDGET = 64L << 20;
+
+    private final SegmentedIndex index;
+    private final long budget;
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    private PostingListImpl postings = new PostingListImpl();
+    private Set<Integer> deletes = new HashSet<>();
+
+    /**
+     * @param indexVar The index the segments are committed to
+     * @param budgetVar The size of the postings held in memory at which they
+     * are committed, in bytes
+     */
+    public SegmentBuffer(final SegmentedIndex indexVar, final long budgetVar) {
+        if (budgetVar < 1) {
+            throw new IllegalArgumentException("Budget must be positive: " + budgetVar);
+        }
+        index = indexVar;
+        budget = budgetVar;
+    }
+
+    /**
+     * Indexes a chunk, see InMemoryIndex.mergeIndex, committing the postings
+     * once they reach the budget. The chunk is indexed a slice at a time so
+     * the budget is exceeded by no more than a slice.
+     *
+     * @param chunk The chunk to index
+     * @throws UncheckedIOException if the postings cannot be committed
+     */
+    @Override
+    public void accept(final Chunk chunk) {
+        byte[] text = chunk.getBytes() != null ? chunk.getBytes() : chunk.getText().getBytes(Utils.UTF8);
+        if (text.length <= InMemoryIndex.SLICE + FileChunker.OVERLAP) {
+            merge(chunk);
+            return;
+        }
+        for (int from = 0; from < text.length; from += InMemoryIndex.SLICE) {
+            final int to = (int) Math.min(text.length, (long) from + InMemoryIndex.SLICE + FileChunker.OVERLAP);
+            merge(new Chunk(Arrays.copyOfRange(text, from, to), chunk.getLocation() + from, chunk.getFileId()));
+            if (to == text.length) {
+                break;
+            }
+        }
+    }
+
+    private void merge(final Chunk chunk) {
+        final boolean full;
+        lock.readLock().lock();
+        try {
+            new InMemoryIndex(postings).mergeIndex(chunk);
+            full = postings.heapBytes() >= budget;
+        } finally {
+            lock.readLock().unlock();
+        }
+        if (full) {
+            try {
+                commit(budget);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+
+    /**
+     * Masks files in the older segments, from the next commit.
+     *
+     * @param fids The ids of changed and deleted files
+     */
+    public void delete(final Collection<Integer> fids) {
+        lock.writeLock().lock();
+        try {
+            deletes.addAll(fids);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Commits the postings and deletes held, if any.
+     *
+     * @throws IOException on error
+     */
+    public void flush() throws IOException {
+        commit(0);
+    }
+
+    //commits once the postings reach the threshold, unless another thread did
+    private void commit(final long threshold) throws IOException {
+        lock.writeLock().lock();
+        try {
+            if (postings.heapBytes() < threshold) {
+                return;
+            }
+            index.commit(postings, deletes);
+            postings = new PostingListImpl();
+            deletes = new HashSet<>();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+}
@@ -0,0 +1,105 @@
+/*
+ * Copyright (C) 2017 Gregory Clarke
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.filevinder.core;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.channels.ClosedByInterruptException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import static org.filevinder.core.ErrorHandler.recordErr;
+
+/**
+ * Compacts a segmented index on a background thread, see
+ * SegmentedIndex.compact. Each pass merges segments until the merge policy
+ * is satisfied, writing no faster than the I/O budget so compaction does
+ * not starve queries and updates of disk bandwidth.
+ *
+ * @author Gregory Clarke
+ */
+public final class SegmentCompactor implements Closeable {
+
+    private static final long SHUTDOWN_SECONDS = 30;
+
+    private final SegmentedIndex index;
+    private final long bytesPerSecond;
+    private final ScheduledExecutorService executor;
+    private volatile long merges;
+
+    /**
+     * Starts compacting the index periodically.
+     *
+     * @param indexVar The index to compact
+     * @param bytesPerSecondVar The I/O budget, or 0 for no limit
+     * @param intervalMillis The delay between compaction passes
+     */
+    public SegmentCompactor(final SegmentedIndex indexVar, final long bytesPerSecondVar, final long intervalMillis) {
+        if (intervalMillis < 1) {
+            throw new IllegalArgumentException("Compaction interval must be positive: " + intervalMillis);
+        }
+        index = indexVar;
+        bytesPerSecond = bytesPerSecondVar;
+        executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "segment-compactor");
+            thread.setDaemon(true);
+            return thread;
+        });
+        executor.scheduleWithFixedDelay(this::compact, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Requests a compaction pass now, e.g. after a commit.
+     */
+    public void wake() {
+        executor.execute(this::compact);
+    }
+
+    /**
+     * @return The number of merges made
+     */
+    public long merges() {
+        return merges;
+    }
+
+    private void compact() {
+        try {
+            while (!Thread.currentThread().isInterrupted() && index.compact(bytesPerSecond)) {
+                merges++;
+            }
+        } catch (InterruptedIOException | ClosedByInterruptException e) {
+            Thread.currentThread().interrupt();
+        } catch (IOException e) {
+            recordErr("Could not compact index " + index.getDirectory(), e);
+        }
+    }
+
+    /**
+     * Stops compacting, interrupting a merge in progress. An interrupted
+     * merge leaves the index unchanged.
+     */
+    @Override
+    public void close() {
+        executor.shutdownNow();
+        try {
+            executor.awaitTermination(SHUTDOWN_SECONDS, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,699 @@
+/*
+ * Copyright (C) 2017 Gregory Clarke
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.filevinder.core;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import static org.filevinder.core.ErrorHandler.recordErr;
+import org.filevinder.core.PostingListImpl.RunVisitor;
+
+/**
+ * An index made of immutable segments, each an index file (see
+ * IndexFormat), held in a directory with a manifest listing the live
+ * segments from oldest to newest. Updates are committed as a new segment
+ * with the ids of the files it replaces or deletes, whose postings in older
+ * segments are masked by readers. Nothing is rewritten on update, instead
+ * compact merges runs of small segments into larger ones, see
+ * SegmentCompactor.
+ *
+ * The manifest is replaced atomically, readers open the segments of the
+ * manifest they read and so see a consistent set of segments while
+ * segments are committed and compacted.
+ *
+ * @author Gregory Clarke
+ */
+public final class SegmentedIndex {
+
+    /**
+     * The name of the manifest file in the index directory.
+     */
+    public static final String MANIFEST = "manifest";
+
+    /**
+     * A segment is merged with the newer segments when it is no larger than
+     * this many times their total size, so each segment is at least twice
+     * the size of all newer segments after compaction and there are
+     * logarithmically many segments.
+     */
+    private static final int MERGE_RATIO = 2;
+
+    private static final int MAGIC = 0x46564d46;
+    private static final int VERSION = 1;
+    private static final String SEGMENT_PREFIX = "segment-";
+    private static final String SEGMENT_SUFFIX = ".byte";
+    private static final int OPEN_RETRIES = 10;
+    private static final long NANOS_PER_SECOND = 1_000_000_000L;
+    private static final long NANOS_PER_MILLI = 1_000_000L;
+    private static final int INITIAL_CAPACITY = 64;
+
+    private final Path dir;
+    private final Object compacting = new Object();
+    private volatile List<Segment> segments;
+    private long generation;
+
+    /**
+     * A live segment, the ids of the files it replaces are masked in older
+     * segments.
+     */
+    private static final class Segment {
+        private final String name;
+        private final long size;
+        private final int[] deletes;
+
+        private Segment(final String nameVar, final long sizeVar, final int[] deletesVar) {
+            name = nameVar;
+            size = sizeVar;
+            deletes = deletesVar;
+        }
+    }
+
+    private SegmentedIndex(final Path dirVar) {
+        dir = dirVar;
+    }
+
+    /**
+     * Opens the index in a directory, reading its manifest. A directory
+     * without a manifest holds an empty index, the directory is created on
+     * the first commit.
+     *
+     * @param dir The index directory
+     * @return The index
+     * @throws IOException on error, or if the manifest is not valid
+     */
+    public static SegmentedIndex open(final Path dir) throws IOException {
+        SegmentedIndex index = new SegmentedIndex(dir);
+        index.segments = index.readManifest();
+        return index;
+    }
+
+    //the live segments listed in the manifest on disk
+    private List<Segment> readManifest() throws IOException {
+        List<Segment> live = new ArrayList<>();
+        Path manifest = dir.resolve(MANIFEST);
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(manifest)))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                throw new IOException("Not a version " + VERSION + " index manifest: " + manifest);
+            }
+            final long next = in.readLong();
+            synchronized (this) {
+                generation = Math.max(generation, next);
+            }
+            for (int i = in.readInt(); i > 0; i--) {
+                String name = in.readUTF();
+                long size = in.readLong();
+                int[] deletes = new int[in.readInt()];
+                for (int d = 0; d < deletes.length; d++) {
+                    deletes[d] = in.readInt();
+                }
+                live.add(new Segment(name, size, deletes));
+            }
+        } catch (NoSuchFileException e) {
+            live.clear();
+        }
+        return Collections.unmodifiableList(live);
+    }
+
+    /**
+     * @param path A path
+     * @return true if the path is the directory of a segmented index
+     */
+    public static boolean isSegmented(final Path path) {
+        return Files.isRegularFile(path.resolve(MANIFEST));
+    }
+
+    /**
+     * @return The index directory
+     */
+    public Path getDirectory() {
+        return dir;
+    }
+
+    /**
+     * @return The segment files, oldest first
+     */
+    public List<Path> segmentFiles() {
+        List<Path> files = new ArrayList<>();
+        for (Segment segment : segments) {
+            files.add(dir.resolve(segment.name));
+        }
+        return files;
+    }
+
+    /**
+     * @return The total size of the segment files
+     */
+    public long size() {
+        return segments.stream().mapToLong(segment -> segment.size).sum();
+    }
+
+    /**
+     * Writes the postings to a new segment, which masks the given files in
+     * the older segments. Does nothing if there are neither postings nor
+     * deletes.
+     *
+     * @param postings The postings of new and changed files
+     * @param deletes The ids of changed and deleted files
+     * @throws IOException on error
+     */
+    public void commit(final PostingListImpl postings, final Collection<Integer> deletes) throws IOException {
+        if (postings.size() == 0 && deletes.isEmpty()) {
+            return;
+        }
+        Files.createDirectories(dir);
+        final String name = nextName();
+        try (IndexWriter writer = new IndexWriter(dir.resolve(name))) {
+            postings.forEachRun(writer::add);
+        }
+        int[] masked = deletes.stream().mapToInt(Integer::intValue).sorted().distinct().toArray();
+        Segment segment = new Segment(name, Files.size(dir.resolve(name)), masked);
+
+        synchronized (this) {
+            List<Segment> live = new ArrayList<>(segments);
+            live.add(segment);
+            install(live);
+        }
+    }
+
+    /**
+     * Removes every segment, so the index is empty.
+     *
+     * @throws IOException on error
+     */
+    public void clear() throws IOException {
+        synchronized (compacting) {
+            List<Segment> removed;
+            synchronized (this) {
+                removed = segments;
+                install(new ArrayList<>());
+            }
+            delete(removed);
+        }
+    }
+
+    /**
+     * Reads the runs of the given trigrams from every segment, skipping the
+     * runs of files masked by newer segments. The runs of a trigram arrive
+     * segment by segment, so are not in file id order across segments.
+     *
+     * @param trigrams The packed trigrams, see Trigrams.code
+     * @param visitor Receives the runs
+     * @throws IOException on error
+     * @throws E if the visitor does
+     * @param <E> The exception type thrown by the visitor
+     */
+    public <E extends Exception> void read(final int[] trigrams, final RunVisitor<E> visitor)
+            throws IOException, E {
+        read(trigrams, false, visitor);
+    }
+
+    /**
+     * Reads every run of every segment, see read.
+     *
+     * @param visitor Receives the runs
+     * @throws IOException on error
+     * @throws E if the visitor does
+     * @param <E> The exception type thrown by the visitor
+     */
+    public <E extends Exception> void readAll(final RunVisitor<E> visitor) throws IOException, E {
+        read(null, true, visitor);
+    }
+
+    /**
+     * Opens the live segments, which are kept until the snapshot is closed
+     * however the index is compacted. Lookups in the snapshot skip the runs
+     * of files masked by newer segments. A segment removed by a compaction,
+     * in this or another process, is found missing when opened, and the
+     * segments are then read again from the manifest.
+     *
+     * @return The open segments
+     * @throws IOException on error
+     */
+    public Snapshot snapshot() throws IOException {
+        List<Segment> snapshot = segments;
+        for (int attempt = 0;; attempt++) {
+            try {
+                return new Snapshot(open(snapshot), masks(snapshot));
+            } catch (NoSuchFileException e) {
+                //compacted since the segments were read
+                List<Segment> current = readManifest();
+                if (attempt == OPEN_RETRIES || names(current).equals(names(snapshot))) {
+                    throw e;
+                }
+                synchronized (this) {
+                    if (segments == snapshot) {
+                        segments = current;
+                    }
+                }
+                snapshot = current;
+            }
+        }
+    }
+
+    private static List<String> names(final List<Segment> live) {
+        List<String> names = new ArrayList<>(live.size());
+        for (Segment segment : live) {
+            names.add(segment.name);
+        }
+        return names;
+    }
+
+    private <E extends Exception> void read(final int[] trigrams, final boolean all, final RunVisitor<E> visitor)
+            throws IOException, E {
+        try (Snapshot snapshot = snapshot()) {
+            for (int s = 0; s < snapshot.readers.length; s++) {
+                RunVisitor<E> masked = mask(snapshot.masks[s], visitor);
+                if (all) {
+                    snapshot.readers[s].readAll(masked);
+                } else {
+                    for (int trigram : trigrams) {
+                        snapshot.readers[s].read(trigram, masked);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * The segments of the index at the time it was opened, see snapshot.
+     */
+    public static final class Snapshot implements PostingSource {
+        private final IndexReader[] readers;
+        private final BitSet[] masks;
+        private FileIdSet[] maskSets;
+
+        private Snapshot(final IndexReader[] readersVar, final BitSet[] masksVar) {
+            readers = readersVar;
+            masks = masksVar;
+        }
+
+        /**
+         * Unites the file sets of the segments, less the files masked in
+         * each segment.
+         */
+        @Override
+        public FileIdSet fileSet(final int trigram) throws IOException {
+            FileIdSet set = new FileIdSet();
+            for (int s = 0; s < readers.length; s++) {
+                set = FileIdSet.or(set, FileIdSet.andNot(readers[s].fileSet(trigram), maskSet(s)));
+            }
+            return set;
+        }
+
+        //the files held by more than one segment, e.g. a large file committed in parts
+        private FileIdSet split(final int trigram) throws IOException {
+            FileIdSet seen = new FileIdSet();
+            FileIdSet split = new FileIdSet();
+            for (int s = 0; s < readers.length; s++) {
+                FileIdSet set = FileIdSet.andNot(readers[s].fileSet(trigram), maskSet(s));
+                split = FileIdSet.or(split, FileIdSet.and(seen, set));
+                seen = FileIdSet.or(seen, set);
+            }
+            return split;
+        }
+
+        private FileIdSet maskSet(final int segment) {
+            if (maskSets == null) {
+                maskSets = new FileIdSet[masks.length];
+                for (int s = 0; s < masks.length; s++) {
+                    maskSets[s] = new FileIdSet();
+                    masks[s].stream().forEach(maskSets[s]::add);
+                }
+            }
+            return maskSets[segment];
+        }
+
+        /**
+         * Sums the file counts of the segments, files masked in older
+         * segments are counted in each segment that holds them.
+         */
+        @Override
+        public int fileCount(final int trigram) {
+            int count = 0;
+            for (IndexReader reader : readers) {
+                count += reader.fileCount(trigram);
+            }
+            return count;
+        }
+
+        /**
+         * Reads the runs of one trigram segment by segment, so the runs are
+         * not in file id order across segments. A file with postings in
+         * several segments has its runs combined into one, visited after the
+         * others.
+         */
+        @Override
+        public <E extends Exception> boolean read(final int trigram, final RunVisitor<E> visitor)
+                throws IOException, E {
+            final FileIdSet split = readers.length > 1 ? split(trigram) : new FileIdSet();
+            if (split.isEmpty()) {
+                boolean found = false;
+                for (int s = 0; s < readers.length; s++) {
+                    found |= readers[s].read(trigram, mask(masks[s], visitor));
+                }
+                return found;
+            }
+            final RunBuffer buffer = new RunBuffer();
+            final RunVisitor<E> diverted = (code, fid, positions, count) -> {
+                if (split.contains(fid)) {
+                    buffer.visit(code, fid, positions, count);
+                } else {
+                    visitor.visit(code, fid, positions, count);
+                }
+            };
+            for (int s = 0; s < readers.length; s++) {
+                readers[s].read(trigram, mask(masks[s], diverted));
+            }
+            buffer.drain(trigram, visitor);
+            return true;
+        }
+
+        @Override
+        public void close() {
+            SegmentedIndex.close(readers);
+        }
+    }
+
+    /**
+     * Merges the newest run of segments that are small relative to the
+     * segments after them into one segment, writing at no more than the
+     * given rate. Queries and commits proceed while the merge is written,
+     * the merged segment replaces the run when it is complete.
+     *
+     * @param bytesPerSecond The I/O budget, or 0 for no limit
+     * @return false if there was nothing to merge
+     * @throws IOException on error
+     */
+    public boolean compact(final long bytesPerSecond) throws IOException {
+        return compact(bytesPerSecond, false);
+    }
+
+    /**
+     * Merges every segment into one, see compact. The ids of the deleted
+     * files are then released for reuse, see FileIdMap.release.
+     *
+     * @param bytesPerSecond The I/O budget, or 0 for no limit
+     * @return false if there was nothing to merge
+     * @throws IOException on error
+     */
+    public boolean compactAll(final long bytesPerSecond) throws IOException {
+        return compact(bytesPerSecond, true);
+    }
+
+    private boolean compact(final long bytesPerSecond, final boolean all) throws IOException {
+        synchronized (compacting) {
+            final List<Segment> snapshot = segments;
+            final int from = all ? (snapshot.size() >= 2 ? 0 : -1) : mergeFrom(snapshot);
+            if (from < 0) {
+                return false;
+            }
+            final List<Segment> run = snapshot.subList(from, snapshot.size());
+
+            BitSet union = new BitSet();
+            run.forEach(segment -> Arrays.stream(segment.deletes).forEach(union::set));
+            //with no older segments to mask the deletes are dropped
+            final int[] deletes = from > 0 ? union.stream().toArray() : new int[0];
+
+            final String name = nextName();
+            final BitSet written;
+            IndexReader[] readers = open(run);
+            try (IndexWriter writer = new IndexWriter(
+                    new Throttle(Files.newOutputStream(dir.resolve(name)), bytesPerSecond))) {
+                written = merge(readers, masks(run), writer);
+            } catch (IOException | RuntimeException e) {
+                Files.deleteIfExists(dir.resolve(name));
+                throw e;
+            } finally {
+                close(readers);
+            }
+            Segment merged = new Segment(name, Files.size(dir.resolve(name)), deletes);
+
+            //the run is still live, only compaction removes segments
+            synchronized (this) {
+                List<Segment> live = new ArrayList<>(segments);
+                live.subList(from, from + run.size()).clear();
+                live.add(from, merged);
+                install(live);
+            }
+            delete(run);
+
+            //the index no longer holds the postings of deleted files
+            if (from == 0) {
+                union.andNot(written);
+                union.stream().forEach(FileIdMap.getInstance()::release);
+            }
+            return true;
+        }
+    }
+
+    //the first segment of the run to merge, or -1 if there is no run of 2 or more
+    private static int mergeFrom(final List<Segment> live) {
+        int from = live.size() - 1;
+        long total = from < 0 ? 0 : live.get(from).size;
+        while (from > 0 && live.get(from - 1).size <= MERGE_RATIO * total) {
+            total += live.get(--from).size;
+        }
+        return live.size() - from >= 2 ? from : -1;
+    }
+
+    //the ids masked in each segment by the deletes of the newer segments
+    private static BitSet[] masks(final List<Segment> live) {
+        BitSet[] masks = new BitSet[live.size()];
+        BitSet newer = new BitSet();
+        for (int s = masks.length - 1; s >= 0; s--) {
+            masks[s] = (BitSet) newer.clone();
+            Arrays.stream(live.get(s).deletes).forEach(newer::set);
+        }
+        return masks;
+    }
+
+    private static <E extends Exception> RunVisitor<E> mask(final BitSet mask, final RunVisitor<E> visitor) {
+        if (mask.isEmpty()) {
+            return visitor;
+        }
+        return (trigram, fid, positions, count) -> {
+            if (!mask.get(fid)) {
+                visitor.visit(trigram, fid, positions, count);
+            }
+        };
+    }
+
+    /**
+     * Writes the union of the segments in (trigram, file id) order. The
+     * runs of one trigram are buffered and sorted by file id, and the runs
+     * of a file held by several segments are combined. Returns the ids of
+     * the files written.
+     */
+    private static BitSet merge(final IndexReader[] readers, final BitSet[] masks, final IndexWriter writer)
+            throws IOException {
+        final int[] next = new int[readers.length];
+        final RunBuffer buffer = new RunBuffer();
+        while (true) {
+            int trigram = Integer.MAX_VALUE;
+            for (int s = 0; s < readers.length; s++) {
+                if (next[s] < readers[s].trigramCount()) {
+                    trigram = Math.min(trigram, readers[s].trigramAt(next[s]));
+                }
+            }
+            if (trigram == Integer.MAX_VALUE) {
+                return buffer.written;
+            }
+            buffer.clear();
+            for (int s = 0; s < readers.length; s++) {
+                if (next[s] < readers[s].trigramCount() && readers[s].trigramAt(next[s]) == trigram) {
+                    readers[s].read(trigram, mask(masks[s], buffer));
+                    next[s]++;
+                }
+            }
+            buffer.drain(trigram, writer::add);
+        }
+    }
+
+    /**
+     * The runs of one trigram from several segments, visited in file id
+     * order with the runs of each file combined.
+     */
+    private static final class RunBuffer implements RunVisitor<RuntimeException> {
+        private long[] runs = new long[INITIAL_CAPACITY];
+        private int[] starts = new int[INITIAL_CAPACITY];
+        private int[] positions = new int[INITIAL_CAPACITY];
+        private int[] run = new int[INITIAL_CAPACITY];
+        private final BitSet written = new BitSet();
+        private int count;
+        private int used;
+
+        @Override
+        public void visit(final int trigram, final int fid, final int[] runPositions, final int n) {
+            if (count == runs.length) {
+                runs = Arrays.copyOf(runs, count * 2);
+                starts = Arrays.copyOf(starts, count * 2);
+            }
+            if (used + n > positions.length) {
+                positions = Arrays.copyOf(positions, Math.max(positions.length * 2, used + n));
+            }
+            System.arraycopy(runPositions, 0, positions, used, n);
+            written.set(fid);
+            starts[count] = used;
+            runs[count] = (long) fid << Integer.SIZE | count;
+            count++;
+            used += n;
+        }
+
+        private void clear() {
+            count = 0;
+            used = 0;
+        }
+
+        private <E extends Exception> void drain(final int trigram, final RunVisitor<E> target) throws E {
+            Arrays.sort(runs, 0, count);
+            if (run.length < used) {
+                run = new int[positions.length];
+            }
+            for (int r = 0; r < count;) {
+                final int fid = (int) (runs[r] >>> Integer.SIZE);
+                int n = 0;
+                int sources = 0;
+                for (; r < count && (int) (runs[r] >>> Integer.SIZE) == fid; r++, sources++) {
+                    final int i = (int) runs[r];
+                    final int end = i + 1 < count ? starts[i + 1] : used;
+                    System.arraycopy(positions, starts[i], run, n, end - starts[i]);
+                    n += end - starts[i];
+                }
+                if (sources > 1) {
+                    Arrays.sort(run, 0, n);
+                }
+                target.visit(trigram, fid, run, n);
+            }
+        }
+    }
+
+    private IndexReader[] open(final List<Segment> live) throws IOException {
+        IndexReader[] readers = new IndexReader[live.size()];
+        try {
+            for (int s = 0; s < readers.length; s++) {
+                readers[s] = new IndexReader(dir.resolve(live.get(s).name));
+            }
+            return readers;
+        } catch (IOException e) {
+            close(readers);
+            throw e;
+        }
+    }
+
+    private static void close(final IndexReader[] readers) {
+        for (IndexReader reader : readers) {
+            if (reader != null) {
+                reader.close();
+            }
+        }
+    }
+
+    private synchronized String nextName() {
+        return SEGMENT_PREFIX + generation++ + SEGMENT_SUFFIX;
+    }
+
+    //writes the manifest to a temporary file which then replaces it
+    private void install(final List<Segment> live) throws IOException {
+        Files.createDirectories(dir);
+        Path tmp = dir.resolve(MANIFEST + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(generation);
+            out.writeInt(live.size());
+            for (Segment segment : live) {
+                out.writeUTF(segment.name);
+                out.writeLong(segment.size);
+                out.writeInt(segment.deletes.length);
+                for (int fid : segment.deletes) {
+                    out.writeInt(fid);
+                }
+            }
+        }
+        Files.move(tmp, dir.resolve(MANIFEST), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        segments = Collections.unmodifiableList(live);
+    }
+
+    private void delete(final List<Segment> removed) {
+        for (Segment segment : removed) {
+            try {
+                Files.deleteIfExists(dir.resolve(segment.name));
+            } catch (IOException e) {
+                recordErr("Could not delete index segment", e);
+            }
+        }
+    }
+
+    /**
+     * Limits the rate of writes to a stream by sleeping once the bytes
+     * written run ahead of the budget.
+     */
+    private static final class Throttle extends FilterOutputStream {
+        private final long bytesPerSecond;
+        private final long start = System.nanoTime();
+        private long written;
+
+        private Throttle(final OutputStream out, final long bytesPerSecondVar) {
+            super(out);
+            bytesPerSecond = bytesPerSecondVar;
+        }
+
+        @Override
+        public void write(final int b) throws IOException {
+            out.write(b);
+            pace(1);
+        }
+
+        @Override
+        public void write(final byte[] b, final int off, final int len) throws IOException {
+            out.write(b, off, len);
+            pace(len);
+        }
+
+        private void pace(final int len) throws IOException {
+            written += len;
+            if (bytesPerSecond <= 0) {
+                return;
+            }
+            final long due = written * NANOS_PER_SECOND / bytesPerSecond;
+            final long ahead = due - (System.nanoTime() - start);
+            if (ahead > 0) {
+                try {
+                    Thread.sleep(ahead / NANOS_PER_MILLI, (int) (ahead % NANOS_PER_MILLI));
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Compaction interrupted");
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,158 @@
+/*
+ * Copyright (C) 2017 Gregory Clarke
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.filevinder.core;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.Charset;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import static org.filevinder.core.ErrorHandler.propogateErr;
+
+/**
+ * Builds an index with a pool of workers. Each worker claims files from a
+ * shared counter and indexes them into a shard of its own, so workers
+ * share no locks. A worker compacts its shard to one sorted block once
+ * the files run out, and the shards are then merged, see
+ * PostingListImpl.merge, which writing the index k-way merges to disk.
+ * Every posting is then held in memory, an index larger than memory is
+ * instead built into the segments of a SegmentedIndex, each worker
+ * committing its postings once they reach its share of a byte budget.
+ *
+ * @author Gregory Clarke
+ */
+public final class ShardedIndexer {
+
+    private final int workers;
+
+    /**
+     * @param workersVar The number of worker threads, and so shards
+     */
+    public ShardedIndexer(final int workersVar) {
+        if (workersVar < 1) {
+            throw new IllegalArgumentException("At least one worker is required: " + workersVar);
+        }
+        workers = workersVar;
+    }
+
+    /**
+     * Constructs an indexer with a worker per available processor.
+     */
+    public ShardedIndexer() {
+        this(Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Indexes the files, see InMemoryIndex.mergeIndex. Files are read in
+     * chunks, and files that cannot be read are skipped, see FileChunker.
+     * The postings of every file are held in memory, see
+     * index(List, Charset, SegmentedIndex, long) to bound the memory used.
+     *
+     * @param files The files to index
+     * @param charset The files' text encoding
+     * @return The index of every file
+     * @throws FileVinderException if a worker fails or is interrupted
+     */
+    public InMemoryIndex index(final List<Path> files, final Charset charset) throws FileVinderException {
+
+        AtomicInteger next = new AtomicInteger();
+        ExecutorService pool = Executors.newFixedThreadPool(workers);
+        List<PostingListImpl> shards = new ArrayList<>();
+        try {
+            List<Future<PostingListImpl>> futures = new ArrayList<>();
+            for (int w = 0; w < workers; w++) {
+                futures.add(pool.submit(() -> {
+                    PostingListImpl shard = new PostingListImpl();
+                    InMemoryIndex index = new InMemoryIndex(shard);
+                    FileChunker chunker = new FileChunker();
+                    int i;
+                    while ((i = next.getAndIncrement()) < files.size()) {
+                        chunker.read(files.get(i), charset, index::mergeIndex);
+                    }
+                    shard.compact();
+                    return shard;
+                }));
+            }
+            for (Future<PostingListImpl> future : futures) {
+                shards.add(future.get());
+            }
+        } catch (ExecutionException e) {
+            propogateErr("Could not index files", e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            propogateErr("Interrupted while indexing files", e);
+        } finally {
+            pool.shutdownNow();
+        }
+        return new InMemoryIndex(PostingListImpl.merge(shards));
+    }
+
+    /**
+     * Indexes the files into new segments of an index, see index(List,
+     * Charset). Each worker indexes into a SegmentBuffer of its own with an
+     * equal share of the budget, so the postings held in memory are bounded
+     * by the budget.
+     *
+     * @param files The files to index
+     * @param charset The files' text encoding
+     * @param target The index to add the segments to
+     * @param budget The bytes of postings held in memory, see SegmentBuffer
+     * @throws FileVinderException if a worker fails or is interrupted, or a
+     * segment cannot be written
+     */
+    public void index(final List<Path> files, final Charset charset, final SegmentedIndex target,
+            final long budget) throws FileVinderException {
+
+        AtomicInteger next = new AtomicInteger();
+        ExecutorService pool = Executors.newFixedThreadPool(workers);
+        try {
+            List<Future<Void>> futures = new ArrayList<>();
+            for (int w = 0; w < workers; w++) {
+                futures.add(pool.submit(() -> {
+                    SegmentBuffer buffer = new SegmentBuffer(target, Math.max(1, budget / workers));
+                    FileChunker chunker = new FileChunker();
+                    int i;
+                    while ((i = next.getAndIncrement()) < files.size()) {
+                        chunker.read(files.get(i), charset, buffer);
+                    }
+                    buffer.flush();
+                    return null;
+                }));
+            }
+            for (Future<Void> future : futures) {
+                future.get();
+            }
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause() instanceof UncheckedIOException ? e.getCause().getCause() : e.getCause();
+            if (cause instanceof IOException) {
+                propogateErr("Could not write index " + target.getDirectory(), (IOException) cause);
+            }
+            propogateErr("Could not index files", e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            propogateErr("Interrupted while indexing files", e);
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+}
@@ -0,0 +1,224 @@
+/*
+ * Copyright (C) 2017 Gregory Clarke
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.filevinder.core;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * A Bloom filter over the distinct trigrams of a file, see Trigrams. A
+ * filter lacking any trigram of a query proves the file does not hold the
+ * query, one holding them all is wrong at about the false positive rate it
+ * was sized for. The bits of a trigram are chosen by double hashing, the
+ * i-th being h1 + i * h2 modulo the filter size.
+ *
+ * A filter is never larger than a bitmap of every trigram, at which size it
+ * holds each trigram as its own bit and has no false positives.
+ *
+ * @author Gregory Clarke
+ */
+public final class TrigramFilter {
+
+    /**
+     * The default false positive rate.
+     */
+    public static final double DEFAULT_FPR = 0.01;
+
+    private static final int TRIGRAM_BITS = 24;
+    private static final int EXACT_WORDS = (1 << TRIGRAM_BITS) / Long.SIZE;
+    private static final int MAX_HASHES = 16;
+    private static final int READ_BUFFER = 1 << 16;
+    private static final int HALF_BITS = 32;
+    private static final int SHIFT_1 = 30;
+    private static final int SHIFT_2 = 27;
+    private static final int SHIFT_3 = 31;
+    private static final long GOLDEN = 0x9E3779B97F4A7C15L;
+    private static final long MIX_1 = 0xBF58476D1CE4E5B9L;
+    private static final long MIX_2 = 0x94D049BB133111EBL;
+    private static final long LOW_MASK = 0xFFFFFFFFL;
+
+    private final long[] words;
+    private final int hashes;
+
+    private TrigramFilter(final long[] wordsVar, final int hashesVar) {
+        words = wordsVar;
+        hashes = hashesVar;
+    }
+
+    /**
+     * Builds a filter sized for the trigrams given.
+     *
+     * @param trigrams The distinct trigrams to add
+     * @param fpr The false positive rate, in (0, 1)
+     * @return The filter
+     */
+    public static TrigramFilter of(final FileIdSet trigrams, final double fpr) {
+        if (!(fpr > 0 && fpr < 1)) {
+            throw new IllegalArgumentException("Invalid false positive rate: " + fpr);
+        }
+        final double n = Math.max(trigrams.cardinality(), 1);
+        final double ln2 = Math.log(2);
+        final double bits = Math.ceil(-n * Math.log(fpr) / (ln2 * ln2));
+        TrigramFilter filter;
+        if (bits >= (double) EXACT_WORDS * Long.SIZE) {
+            filter = new TrigramFilter(new long[EXACT_WORDS], 0);
+        } else {
+            final int size = (int) Math.ceil(bits / Long.SIZE);
+            final long k = Math.round((double) size * Long.SIZE / n * ln2);
+            filter = new TrigramFilter(new long[size], (int) Math.max(1, Math.min(k, MAX_HASHES)));
+        }
+        trigrams.forEach(filter::add);
+        return filter;
+    }
+
+    /**
+     * Builds the filter of a file, reading it as a stream.
+     *
+     * @param file The file
+     * @param fpr The false positive rate, in (0, 1)
+     * @return The filter
+     * @throws IOException on error
+     */
+    public static TrigramFilter build(final Path file, final double fpr) throws IOException {
+        final FileIdSet trigrams = new FileIdSet();
+        final int carry = Trigrams.SIZE - 1;
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            final ByteBuffer buf = ByteBuffer.allocate(READ_BUFFER + carry);
+            final byte[] bytes = buf.array();
+            int kept = 0;
+            int n;
+            while ((n = channel.read(buf.position(kept))) >= 0) {
+                //the trigrams starting in the last bytes are emitted once the next read completes them
+                final int end = kept + n;
+                Trigrams.extract(bytes, 0, end, 0, (trigram, pos) -> trigrams.add(trigram));
+                kept = Math.min(end, carry);
+                System.arraycopy(bytes, end - kept, bytes, 0, kept);
+            }
+        }
+        return of(trigrams, fpr);
+    }
+
+    private void add(final int trigram) {
+        if (hashes == 0) {
+            words[trigram / Long.SIZE] |= 1L << trigram;
+            return;
+        }
+        final long h = mix(trigram);
+        final long h1 = h >>> HALF_BITS;
+        final long h2 = h & LOW_MASK | 1;
+        final long bits = (long) words.length * Long.SIZE;
+        for (int i = 0; i < hashes; i++) {
+            final long bit = (h1 + i * h2) % bits;
+            words[(int) (bit / Long.SIZE)] |= 1L << bit;
+        }
+    }
+
+    /**
+     * @param trigram A packed trigram
+     * @return False if the file does not hold the trigram
+     */
+    public boolean mightContain(final int trigram) {
+        if (hashes == 0) {
+            return (words[trigram / Long.SIZE] & 1L << trigram) != 0;
+        }
+        final long h = mix(trigram);
+        final long h1 = h >>> HALF_BITS;
+        final long h2 = h & LOW_MASK | 1;
+        final long bits = (long) words.length * Long.SIZE;
+        for (int i = 0; i < hashes; i++) {
+            final long bit = (h1 + i * h2) % bits;
+            if ((words[(int) (bit / Long.SIZE)] & 1L << bit) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @param trigrams Packed trigrams
+     * @return False if the file does not hold every trigram
+     */
+    public boolean mightContainAll(final int[] trigrams) {
+        for (int trigram : trigrams) {
+            if (!mightContain(trigram)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return The size of the filter in bytes
+     */
+    public int getSize() {
+        return words.length * Long.BYTES;
+    }
+
+    /**
+     * @return The bits set per trigram, 0 if each trigram is its own bit
+     */
+    public int getHashes() {
+        return hashes;
+    }
+
+    /**
+     * Writes the filter as its hash count (byte), word count (int) and
+     * words (longs).
+     *
+     * @param out The destination
+     * @throws IOException on error
+     */
+    public void write(final DataOutput out) throws IOException {
+        out.writeByte(hashes);
+        out.writeInt(words.length);
+        for (long word : words) {
+            out.writeLong(word);
+        }
+    }
+
+    /**
+     * Reads a filter written by write.
+     *
+     * @param in The source
+     * @return The filter
+     * @throws IOException on error, or if the filter is not valid
+     */
+    public static TrigramFilter read(final DataInput in) throws IOException {
+        final int k = in.readByte();
+        final int size = in.readInt();
+        if (k < 0 || k > MAX_HASHES || size < 1 || size > EXACT_WORDS || k == 0 && size != EXACT_WORDS) {
+            throw new IOException("Corrupt trigram filter");
+        }
+        final long[] words = new long[size];
+        for (int i = 0; i < size; i++) {
+            words[i] = in.readLong();
+        }
+        return new TrigramFilter(words, k);
+    }
+
+    private static long mix(final int trigram) {
+        long h = (trigram + 1) * GOLDEN;
+        h = (h ^ h >>> SHIFT_1) * MIX_1;
+        h = (h ^ h >>> SHIFT_2) * MIX_2;
+        return h ^ h >>> SHIFT_3;
+    }
+}
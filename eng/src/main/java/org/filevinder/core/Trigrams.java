@@ -0,0 +1,213 @@
+/*
+ * Copyright (C) 2017 Gregory Clarke
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.filevinder.core;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Overlapping (stride 1) trigram extraction over raw bytes. A trigram is
+ * packed into the low 24 bits of an int, first byte highest, so extraction
+ * keeps a rolling code and allocates nothing per trigram.
+ *
+ * Trigrams spanning a line break (a \n or \r byte) are not emitted, as the
+ * text index format is line based and so that the index does not depend on
+ * the line endings used. Where a trigram needs a name (see types.Trigram) its three
+ * bytes are mapped to chars as ISO-8859-1, which round trips every byte.
+ *
+ * @author Gregory Clarke
+ */
+public final class Trigrams {
+
+    /**
+     * The number of bytes in a trigram.
+     */
+    public static final int SIZE = 3;
+
+    private static final int BYTE_MASK = 0xFF;
+    private static final int CODE_MASK = 0xFFFFFF;
+    private static final int BYTE_BITS = 8;
+    private static final byte NEWLINE = '\n';
+    private static final byte CR = '\r';
+    private static final int CASE_BIT = 0x20;
+
+    private Trigrams() {
+    }
+
+    /**
+     * Receives the trigrams of a text in order.
+     */
+    @FunctionalInterface
+    public interface Sink {
+
+        /**
+         * @param trigram The packed trigram
+         * @param pos The offset of the first byte of the trigram
+         */
+        void accept(int trigram, int pos);
+    }
+
+    /**
+     * Emits every trigram in the range [from, to) of the text. Positions are
+     * reported relative to base, i.e. a trigram at index i of the array is
+     * reported at base + i - from.
+     *
+     * @param text The raw bytes
+     * @param from The first index to read
+     * @param to The index after the last index to read
+     * @param base The offset reported for the byte at index from
+     * @param sink Receives each trigram
+     */
+    public static void extract(final byte[] text, final int from, final int to,
+            final int base, final Sink sink) {
+
+        int code = 0;
+        //the first index at which a trigram without a line break can start
+        int valid = from;
+        for (int i = from; i < to; i++) {
+            final byte b = text[i];
+            code = (code << BYTE_BITS | (b & BYTE_MASK)) & CODE_MASK;
+            if (b == NEWLINE || b == CR) {
+                valid = i + 1;
+            } else if (i - (SIZE - 1) >= valid) {
+                sink.accept(code, base + i - (SIZE - 1) - from);
+            }
+        }
+    }
+
+    /**
+     * Extracts every trigram in the range [from, to) of the text into the
+     * given arrays, see extract(byte[], int, int, int, Sink).
+     *
+     * @param text The raw bytes
+     * @param from The first index to read
+     * @param to The index after the last index to read
+     * @param base The offset reported for the byte at index from
+     * @param trigrams Receives the packed trigrams, at least to - from long
+     * @param positions Receives the position of each trigram, as long
+     * @return The number of trigrams extracted
+     */
+    public static int extract(final byte[] text, final int from, final int to,
+            final int base, final int[] trigrams, final int[] positions) {
+
+        int code = 0, n = 0;
+        int valid = from;
+        for (int i = from; i < to; i++) {
+            final byte b = text[i];
+            code = (code << BYTE_BITS | (b & BYTE_MASK)) & CODE_MASK;
+            if (b == NEWLINE || b == CR) {
+                valid = i + 1;
+            } else if (i - (SIZE - 1) >= valid) {
+                trigrams[n] = code;
+                positions[n++] = base + i - (SIZE - 1) - from;
+            }
+        }
+        return n;
+    }
+
+    /**
+     * Packs the three bytes at the offset into a trigram.
+     *
+     * @param ba The bytes
+     * @param off The offset of the first byte
+     * @return The packed trigram
+     */
+    public static int code(final byte[] ba, final int off) {
+        return (ba[off] & BYTE_MASK) << (2 * BYTE_BITS)
+                | (ba[off + 1] & BYTE_MASK) << BYTE_BITS
+                | ba[off + 2] & BYTE_MASK;
+    }
+
+    /**
+     * Packs a trigram name, see name.
+     *
+     * @param name Three chars each in the range 0-255
+     * @return The packed trigram
+     */
+    public static int code(final String name) {
+        return name.charAt(0) << (2 * BYTE_BITS) | name.charAt(1) << BYTE_BITS | name.charAt(2);
+    }
+
+    /**
+     * Returns the trigrams spelling the same text in any mix of ASCII case,
+     * one per combination of the cases of its letters.
+     *
+     * @param code The packed trigram
+     * @return The trigram and its case variants, at most eight
+     */
+    public static int[] caseVariants(final int code) {
+        int[] variants = {code};
+        for (int shift = 0; shift < SIZE * BYTE_BITS; shift += BYTE_BITS) {
+            if (ByteScanner.isLetter((byte) (code >>> shift))) {
+                final int n = variants.length;
+                variants = Arrays.copyOf(variants, n * 2);
+                for (int i = 0; i < n; i++) {
+                    variants[n + i] = variants[i] ^ CASE_BIT << shift;
+                }
+            }
+        }
+        return variants;
+    }
+
+    /**
+     * Returns the name of a trigram, its bytes as ISO-8859-1 chars.
+     *
+     * @param code The packed trigram
+     * @return The name
+     */
+    public static String name(final int code) {
+        return new String(new char[]{
+            (char) (code >>> (2 * BYTE_BITS)),
+            (char) (code >>> BYTE_BITS & BYTE_MASK),
+            (char) (code & BYTE_MASK)});
+    }
+
+    /**
+     * Decomposes a query into the offsets of the trigrams to look up. Any
+     * text containing the pattern holds the trigram at offset o of the
+     * pattern at position p + o, where p is the position of the match. The
+     * offsets are chosen so the trigrams cover the pattern with as little
+     * overlap as possible, trigrams spanning a line break are left out as the
+     * index never holds them.
+     *
+     * @param pat The pattern
+     * @return The trigram offsets in ascending order, empty if the pattern
+     * has no indexable trigram
+     */
+    public static int[] queryOffsets(final byte[] pat) {
+        List<Integer> offsets = new ArrayList<>();
+        int next = 0;
+        for (int off = 0; off + SIZE <= pat.length; off++) {
+            boolean last = off + SIZE == pat.length;
+            if ((off >= next || last) && !spansLineBreak(pat, off)) {
+                offsets.add(off);
+                next = off + SIZE;
+            }
+        }
+        return offsets.stream().mapToInt(Integer::intValue).toArray();
+    }
+
+    private static boolean spansLineBreak(final byte[] pat, final int off) {
+        for (int i = off; i < off + SIZE; i++) {
+            if (pat[i] == NEWLINE || pat[i] == CR) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,170 @@
+/*
+ * Copyright (C) 2017 Gregory Clarke
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.filevinder.core;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A byte level implementation of the Crochemore-Perrin Two-Way algorithm.
+ * The pattern is split at a critical factorization, the right half is
+ * matched left to right and then the left half right to left. Search time is
+ * linear in the text length with constant extra space, whatever the pattern,
+ * so it is used for highly periodic patterns (e.g. "aaaaaaab") on which the
+ * skip based matchers degrade.
+ *
+ * @author Gregory Clarke
+ */
+public final class TwoWayMatcher implements Matcher {
+
+    private static final int BYTE_MASK = 0xFF;
+
+    private final byte[] pat;
+    private final int ell;
+    private final int per;
+    private final boolean periodic;
+
+    /**
+     * Computes the critical factorization of the given pattern.
+     *
+     * @param patVar The bytes to search for, must not be empty
+     */
+    public TwoWayMatcher(final byte[] patVar) {
+        if (patVar.length == 0) {
+            throw new IllegalArgumentException("Empty pattern");
+        }
+        pat = patVar.clone();
+
+        final int[] fwd = maxSuffix(pat, false);
+        final int[] rev = maxSuffix(pat, true);
+        final int p;
+        if (fwd[0] > rev[0]) {
+            ell = fwd[0];
+            p = fwd[1];
+        } else {
+            ell = rev[0];
+            p = rev[1];
+        }
+
+        periodic = ell + 1 + p <= pat.length && regionEquals(pat, 0, p, ell + 1);
+        per = periodic ? p : Math.max(ell + 1, pat.length - ell - 1) + 1;
+    }
+
+    @Override
+    public int indexOf(final ByteBuffer text, final int from, final int to) {
+        return periodic ? periodicSearch(text, from, to) : search(text, from, to);
+    }
+
+    @Override
+    public int length() {
+        return pat.length;
+    }
+
+    private int periodicSearch(final ByteBuffer text, final int from, final int to) {
+        final int m = pat.length;
+        int memory = -1;
+        int j = from, i;
+
+        while (j <= to - m) {
+            i = Math.max(ell, memory) + 1;
+            while (i < m && pat[i] == text.get(i + j)) {
+                ++i;
+            }
+            if (i >= m) {
+                i = ell;
+                while (i > memory && pat[i] == text.get(i + j)) {
+                    --i;
+                }
+                if (i <= memory) {
+                    return j;
+                }
+                j += per;
+                memory = m - per - 1;
+            } else {
+                j += i - ell;
+                memory = -1;
+            }
+        }
+        return -1;
+    }
+
+    private int search(final ByteBuffer text, final int from, final int to) {
+        final int m = pat.length;
+        int j = from, i;
+
+        while (j <= to - m) {
+            i = ell + 1;
+            while (i < m && pat[i] == text.get(i + j)) {
+                ++i;
+            }
+            if (i >= m) {
+                i = ell;
+                while (i >= 0 && pat[i] == text.get(i + j)) {
+                    --i;
+                }
+                if (i < 0) {
+                    return j;
+                }
+                j += per;
+            } else {
+                j += i - ell;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Computes the maximal suffix of the pattern for the byte ordering (or its
+     * reverse when tilde is set).
+     *
+     * @return {start of the maximal suffix - 1, period of the suffix}
+     */
+    private static int[] maxSuffix(final byte[] x, final boolean tilde) {
+        int ms = -1, j = 0, k = 1, p = 1;
+
+        while (j + k < x.length) {
+            final int a = x[j + k] & BYTE_MASK;
+            final int b = x[ms + k] & BYTE_MASK;
+            if (tilde ? a > b : a < b) {
+                j += k;
+                k = 1;
+                p = j - ms;
+            } else if (a == b) {
+                if (k != p) {
+                    ++k;
+                } else {
+                    j += p;
+                    k = 1;
+                }
+            } else {
+                ms = j;
+                j = ms + 1;
+                k = 1;
+                p = 1;
+            }
+        }
+        return new int[]{ms, p};
+    }
+
+    private static boolean regionEquals(final byte[] x, final int a, final int b, final int len) {
+        for (int i = 0; i < len; i++) {
+            if (x[a + i] != x[b + i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,115 @@
+/*
+ * Copyright (C) 2017 Gregory Clarke
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.filevinder.engine.test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import org.filevinder.core.AhoCorasick;
+import org.filevinder.core.SearchImpl;
+import static org.filevinder.common.Utils.UTF8;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ *
+ * @author Gregory Clarke
+ */
+public final class AhoCorasickTest {
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    @Test
+    public void testAgainstReference() {
+        Random rnd = new Random(7);
+        for (int iter = 0; iter < 500; iter++) {
+            List<byte[]> pats = new ArrayList<>();
+            for (int i = 1 + rnd.nextInt(20); i > 0; i--) {
+                pats.add(random(rnd, 1 + rnd.nextInt(5)));
+            }
+            byte[] text = random(rnd, rnd.nextInt(400));
+            BitSet found = new BitSet();
+            AhoCorasick ac = new AhoCorasick(pats);
+
+            //feed the text in two windows to exercise the carried state
+            int split = text.length == 0 ? 0 : rnd.nextInt(text.length);
+            ByteBuffer buf = ByteBuffer.wrap(text);
+            int state = ac.scan(buf, 0, split, AhoCorasick.START, found);
+            if (state >= 0) {
+                ac.scan(buf, split, text.length, state, found);
+            }
+
+            String str = new String(text, UTF8);
+            for (int p = 0; p < pats.size(); p++) {
+                assertEquals(str.contains(new String(pats.get(p), UTF8)), found.get(p));
+            }
+        }
+    }
+
+    @Test
+    public void testOverlappingPatterns() {
+        List<byte[]> pats = Arrays.asList("he".getBytes(UTF8), "she".getBytes(UTF8),
+                "his".getBytes(UTF8), "hers".getBytes(UTF8), "xyz".getBytes(UTF8));
+        BitSet found = new BitSet();
+        byte[] text = "ushers".getBytes(UTF8);
+        new AhoCorasick(pats).scan(ByteBuffer.wrap(text), 0, text.length, AhoCorasick.START, found);
+        assertEquals("{0, 1, 3}", found.toString());
+    }
+
+    @Test
+    public void testFindPatterns() throws IOException {
+        Path a = tmp.newFile("a.txt").toPath();
+        Path b = tmp.newFile("b.txt").toPath();
+        Path c = tmp.newFile("c.txt").toPath();
+        Files.write(a, "AKIA0123 and ghp_xyz".getBytes(UTF8));
+        Files.write(b, "nothing to see here".getBytes(UTF8));
+        byte[] big = new byte[200000];
+        Arrays.fill(big, (byte) '.');
+        System.arraycopy("ghp_".getBytes(UTF8), 0, big, 4094, 4);
+        Files.write(c, big);
+
+        Set<String> pats = new HashSet<>(Arrays.asList("AKIA", "ghp_", "xoxb-"));
+        Map<Path, Set<String>> res = new SearchImpl(4096)
+                .findPatterns(tmp.getRoot().getPath(), pats, UTF8);
+
+        assertEquals(2, res.size());
+        assertEquals(new HashSet<>(Arrays.asList("AKIA", "ghp_")), res.get(a));
+        assertEquals(new HashSet<>(Arrays.asList("ghp_")), res.get(c));
+        assertFalse(res.containsKey(b));
+    }
+
+    private static byte[] random(final Random rnd, final int len) {
+        byte[] ba = new byte[len];
+        for (int i = 0; i < len; i++) {
+            ba[i] = (byte) ('a' + rnd.nextInt(3));
+        }
+        return ba;
+    }
+}
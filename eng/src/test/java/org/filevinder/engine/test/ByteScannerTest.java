@@ -0,0 +1,100 @@
+/*
+ * Copyright (C) 2017 Gregory Clarke
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.filevinder.engine.test;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Random;
+import org.filevinder.core.ByteScanner;
+import static org.filevinder.common.Utils.UTF8;
+import static org.junit.Assert.assertEquals;
+import org.junit.Test;
+
+/**
+ *
+ * @author Gregory Clarke
+ */
+public final class ByteScannerTest {
+
+    @Test
+    public void testIndexOfByteEveryOffset() {
+        for (ByteOrder order : new ByteOrder[]{ByteOrder.BIG_ENDIAN, ByteOrder.LITTLE_ENDIAN}) {
+            for (int len = 0; len < 40; len++) {
+                for (int at = 0; at < len; at++) {
+                    ByteBuffer buf = ByteBuffer.allocate(len).order(order);
+                    buf.put(at, (byte) 'x');
+                    assertEquals(at, ByteScanner.indexOf(buf, (byte) 'x', 0, len));
+                    assertEquals(-1, ByteScanner.indexOf(buf, (byte) 'x', at + 1, len));
+                    assertEquals(-1, ByteScanner.indexOf(buf, (byte) 'x', 0, at));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testIndexOfFirstOfSeveral() {
+        //0x80 and 0x00 neighbours exercise the borrow between bytes
+        byte[] ba = {0x00, 0x01, (byte) 0x80, 0x7f, 0x01, 0x00, 0x01, 0x01, 0x01, 0x01};
+        ByteBuffer buf = ByteBuffer.wrap(ba);
+        assertEquals(1, ByteScanner.indexOf(buf, (byte) 0x01, 0, ba.length));
+        assertEquals(4, ByteScanner.indexOf(buf, (byte) 0x01, 2, ba.length));
+        assertEquals(5, ByteScanner.indexOf(buf, (byte) 0x00, 1, ba.length));
+        assertEquals(2, ByteScanner.indexOf(buf, (byte) 0x80, 0, ba.length));
+        assertEquals(3, ByteScanner.indexOf(buf.order(ByteOrder.LITTLE_ENDIAN), (byte) 0x7f, 0, ba.length));
+    }
+
+    @Test
+    public void testLastIndexOfAndCount() {
+        Random rnd = new Random(3);
+        for (ByteOrder order : new ByteOrder[]{ByteOrder.BIG_ENDIAN, ByteOrder.LITTLE_ENDIAN}) {
+            for (int iter = 0; iter < 2000; iter++) {
+                int len = rnd.nextInt(40);
+                ByteBuffer buf = ByteBuffer.allocate(len).order(order);
+                for (int i = 0; i < len; i++) {
+                    buf.put(i, rnd.nextInt(4) == 0 ? (byte) '\n' : (byte) 0x8a);
+                }
+                int from = len == 0 ? 0 : rnd.nextInt(len);
+                int to = from + rnd.nextInt(len - from + 1);
+                int last = -1, n = 0;
+                for (int i = from; i < to; i++) {
+                    if (buf.get(i) == '\n') {
+                        last = i;
+                        n++;
+                    }
+                }
+                assertEquals(last, ByteScanner.lastIndexOf(buf, (byte) '\n', from, to));
+                assertEquals(n, ByteScanner.count(buf, (byte) '\n', from, to));
+            }
+        }
+    }
+
+    @Test
+    public void testIndexOfPattern() {
+        ByteBuffer buf = ByteBuffer.wrap("aaab quux xquux".getBytes(UTF8));
+        byte[] pat = "aab".getBytes(UTF8);
+        assertEquals(1, ByteScanner.indexOf(buf, pat, ByteScanner.rareByteOffset(pat), 0, buf.limit()));
+
+        pat = "quux".getBytes(UTF8);
+        int anchor = ByteScanner.rareByteOffset(pat);
+        assertEquals(0, anchor);
+        assertEquals(5, ByteScanner.indexOf(buf, pat, anchor, 0, buf.limit()));
+        assertEquals(11, ByteScanner.indexOf(buf, pat, anchor, 6, buf.limit()));
+        assertEquals(-1, ByteScanner.indexOf(buf, pat, anchor, 12, buf.limit()));
+        assertEquals(-1, ByteScanner.indexOf(buf, pat, anchor, 0, 8));
+    }
+
+}
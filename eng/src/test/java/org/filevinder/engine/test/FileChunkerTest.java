@@ -0,0 +1,163 @@
+/*
+ * Copyright (C) 2017 Gregory Clarke
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.filevinder.engine.test;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import org.filevinder.core.FileChunker;
+import org.filevinder.core.InMemoryIndex;
+import org.filevinder.core.Trigrams;
+import org.filevinder.types.Chunk;
+import org.filevinder.types.FileRef;
+import org.filevinder.types.Trigram;
+import static org.filevinder.common.Utils.UTF8;
+import static org.filevinder.common.Utils.readEntireFile;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ *
+ * @author Gregory Clarke
+ */
+public final class FileChunkerTest {
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    @Test
+    public void testChunksMatchWholeFile() throws IOException {
+        Random rnd = new Random(8);
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 20000; i++) {
+            sb.append((char) (rnd.nextInt(12) == 0 ? '\n' : 'a' + rnd.nextInt(5)));
+        }
+        Path file = tmp.newFile("large.txt").toPath();
+        Files.write(file, sb.toString().getBytes(UTF8));
+
+        //windows that do and do not divide the file, and one window for the whole file
+        for (int window : new int[]{1000, 997, 3, 1, 20000}) {
+            List<Chunk> chunks = new ArrayList<>();
+            InMemoryIndex chunked = new InMemoryIndex();
+            assertTrue(new FileChunker(window).read(file, UTF8, chunk -> {
+                chunks.add(chunk);
+                chunked.mergeIndex(chunk);
+            }));
+
+            //the last window takes up to OVERLAP more bytes rather than leave them to a chunk of their own
+            assertEquals((20000 - FileChunker.OVERLAP + window - 1) / window, chunks.size());
+            for (int c = 0; c < chunks.size(); c++) {
+                assertEquals((long) c * window, chunks.get(c).getLocation());
+                final int expected = Math.min(20000 - c * window, window + FileChunker.OVERLAP);
+                assertEquals(expected, chunks.get(c).getBytes().length);
+            }
+
+            InMemoryIndex whole = new InMemoryIndex();
+            whole.mergeIndex(readEntireFile(file, UTF8));
+            assertEquals(whole.getPostingList().toEncodedString(), chunked.getPostingList().toEncodedString());
+        }
+    }
+
+    @Test
+    public void testRangesHoldEveryTrigram() throws IOException {
+        Random rnd = new Random(9);
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 20000; i++) {
+            sb.append((char) (rnd.nextInt(12) == 0 ? '\n' : 'a' + rnd.nextInt(5)));
+        }
+        Path file = tmp.newFile("ranges.txt").toPath();
+        Files.write(file, sb.toString().getBytes(UTF8));
+        final int range = 4096;
+        final int stride = range - Math.min(FileChunker.RANGE_OVERLAP, range / 2);
+
+        InMemoryIndex chunked = new InMemoryIndex();
+        assertTrue(new FileChunker(1000, range).read(file, UTF8, chunked::mergeIndex));
+        Map<String, Set<Integer>> ranged = positions(chunked);
+        InMemoryIndex whole = new InMemoryIndex();
+        whole.mergeIndex(readEntireFile(file, UTF8));
+        Map<String, Set<Integer>> absolute = positions(whole);
+
+        //each trigram is held by every range it lies in, at its offset in the range
+        assertEquals(absolute.keySet(), ranged.keySet());
+        for (Map.Entry<String, Set<Integer>> entry : absolute.entrySet()) {
+            Set<Integer> expected = new HashSet<>();
+            for (int pos : entry.getValue()) {
+                for (int start = 0; start <= pos; start += stride) {
+                    if (pos + Trigrams.SIZE <= start + range) {
+                        expected.add(pos - start);
+                    }
+                    if (start + range >= sb.length()) {
+                        break;
+                    }
+                }
+            }
+            assertEquals(entry.getKey(), expected, ranged.get(entry.getKey()));
+        }
+    }
+
+    @Test
+    public void testReadsFilesBeyondIntPositions() throws IOException {
+        Path file = tmp.newFile("huge.txt").toPath();
+        final long size = Integer.MAX_VALUE + (long) FileChunker.WINDOW_SIZE;
+        try (RandomAccessFile raf = new RandomAccessFile(file.toFile(), "rw")) {
+            raf.write("text\n".getBytes(UTF8));
+            raf.setLength(size);
+        }
+        List<Integer> locations = new ArrayList<>();
+        List<Integer> lengths = new ArrayList<>();
+        assertTrue(new FileChunker().read(file, UTF8, chunk -> {
+            locations.add(chunk.getLocation());
+            lengths.add(chunk.getBytes().length);
+        }));
+
+        //the second range starts again from position 0 and runs to the end of the file
+        int second = 1;
+        for (; locations.get(second) != 0; second++) {
+            assertTrue(locations.get(second) > locations.get(second - 1));
+        }
+        final int last = locations.size() - 1;
+        final long stride = FileChunker.RANGE_SIZE - FileChunker.RANGE_OVERLAP;
+        assertEquals(size - stride, (long) locations.get(last) + lengths.get(last));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testRejectsEmptyWindows() {
+        new FileChunker(0);
+    }
+
+    //the positions of each trigram, in any file
+    private static Map<String, Set<Integer>> positions(final InMemoryIndex index) {
+        Map<String, Set<Integer>> positions = new HashMap<>();
+        for (Trigram trigram : index.getPostingList().getIndex()) {
+            for (FileRef ref : trigram.getFileRefs()) {
+                positions.computeIfAbsent(trigram.getName(), t -> new HashSet<>()).addAll(ref.getPositions());
+            }
+        }
+        return positions;
+    }
+}
@@ -0,0 +1,167 @@
+/*
+ * Copyright (C) 2017 Gregory Clarke
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.filevinder.engine.test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashSet;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import org.filevinder.core.FileIdMap;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ *
+ * @author Gregory Clarke
+ */
+public final class FileIdMapTest {
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private final FileIdMap fileIds = FileIdMap.getInstance();
+
+    @Test
+    public void testConcurrentIdsAreUnique() {
+        final Path root = tmp.getRoot().toPath();
+        List<Path> paths = IntStream.range(0, 20_000)
+                .mapToObj(i -> root.resolve("dir" + i % 50).resolve("file" + i + ".txt"))
+                .collect(Collectors.toList());
+
+        List<Integer> ids = paths.parallelStream().map(fileIds::getFileId).collect(Collectors.toList());
+        assertEquals(paths.size(), new HashSet<>(ids).size());
+        for (int i = 0; i < paths.size(); i++) {
+            assertEquals(paths.get(i), fileIds.getPath(ids.get(i)));
+            assertEquals(ids.get(i), fileIds.getFileId(paths.get(i)));
+        }
+    }
+
+    @Test
+    public void testSaveAndLoad() throws IOException {
+        final Path root = tmp.newFolder("a", "deeply", "nested", "folder").toPath();
+        List<Path> paths = new ArrayList<>();
+        List<Integer> ids = new ArrayList<>();
+        BitSet saved = new BitSet();
+        long pathBytes = 0;
+        for (int i = 0; i < 500; i++) {
+            Path path = root.resolve("file" + i + ".txt");
+            paths.add(path);
+            ids.add(fileIds.getFileId(path));
+            saved.set(ids.get(i));
+            pathBytes += path.toString().length();
+        }
+        Path file = tmp.newFile("index.byte" + FileIdMap.SUFFIX).toPath();
+        fileIds.save(file, saved);
+        //the shared folders are written once
+        assertTrue(Files.size(file) < pathBytes / 2);
+
+        paths.forEach(fileIds::remove);
+        assertNull(fileIds.getPath(ids.get(0)));
+        fileIds.load(file);
+        for (int i = 0; i < paths.size(); i++) {
+            assertEquals(ids.get(i), fileIds.getFileId(paths.get(i)));
+            assertEquals(paths.get(i), fileIds.getPath(ids.get(i)));
+        }
+    }
+
+    @Test
+    public void testReleasedIdsAreReused() throws IOException {
+        final Path root = tmp.getRoot().toPath();
+        Path kept = root.resolve("kept.txt");
+        final int keptId = fileIds.getFileId(kept);
+        //an id still mapped to a file is not released
+        fileIds.release(keptId);
+        assertEquals(kept, fileIds.getPath(keptId));
+        assertFalse(reuses(fileIds, keptId, tmp.newFolder("a").toPath()));
+
+        Path deleted = root.resolve("deleted.txt");
+        final int deletedId = fileIds.getFileId(deleted);
+        fileIds.remove(deleted);
+        assertNull(fileIds.getPath(deletedId));
+        //a removed id is retired until released
+        assertFalse(reuses(fileIds, deletedId, tmp.newFolder("b").toPath()));
+        fileIds.release(deletedId);
+        assertTrue(reuses(fileIds, deletedId, tmp.newFolder("c").toPath()));
+    }
+
+    @Test
+    public void testRegisterNeverRebinds() throws IOException {
+        final Path root = tmp.getRoot().toPath();
+        FileIdMap local = FileIdMap.create();
+        assertTrue(local.register(root.resolve("a.txt"), 5));
+        assertTrue(local.register(root.resolve("a.txt"), 5));
+        //an id held by another file, or a file held under another id
+        assertFalse(local.register(root.resolve("b.txt"), 5));
+        assertFalse(local.register(root.resolve("a.txt"), 6));
+        assertEquals(root.resolve("a.txt"), local.getPath(5));
+        assertNull(local.getPath(6));
+        assertEquals(Integer.valueOf(5), local.getFileId(root.resolve("a.txt")));
+        assertEquals(Integer.valueOf(6), local.getFileId(root.resolve("b.txt")));
+
+        //a saved map that conflicts with this one is not loaded over it
+        FileIdMap other = FileIdMap.create();
+        other.register(root.resolve("c.txt"), 5);
+        Path file = tmp.newFile("other.byte" + FileIdMap.SUFFIX).toPath();
+        BitSet saved = new BitSet();
+        saved.set(5);
+        other.save(file, saved);
+        try {
+            local.load(file);
+            fail("loaded a conflicting id");
+        } catch (IOException expected) {
+            assertEquals(root.resolve("a.txt"), local.getPath(5));
+        }
+        //the map of this process is not touched
+        assertNotEquals(root.resolve("c.txt"), fileIds.getPath(5));
+    }
+
+    @Test(expected = IOException.class)
+    public void testRejectsOtherFiles() throws IOException {
+        Path file = tmp.newFile("other.ids").toPath();
+        Files.write(file, new byte[]{1, 2, 3, 4, 5, 6, 7, 8});
+        fileIds.load(file);
+    }
+
+    /**
+     * Maps new paths until the id is handed out, lower ids may have been
+     * released by other tests.
+     */
+    static boolean reuses(final FileIdMap fileIds, final int id, final Path dir) {
+        for (int i = 0; i < 100; i++) {
+            int next = fileIds.getFileId(dir.resolve("new" + i + ".txt"));
+            if (next == id) {
+                return true;
+            }
+            if (next > id) {
+                return false;
+            }
+        }
+        return false;
+    }
+}
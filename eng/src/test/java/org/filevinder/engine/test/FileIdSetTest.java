@@ -0,0 +1,126 @@
+/*
+ * Copyright (C) 2017 Gregory Clarke
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.filevinder.engine.test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.BitSet;
+import java.util.Random;
+import org.filevinder.core.FileIdSet;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import org.junit.Test;
+
+/**
+ *
+ * @author Gregory Clarke
+ */
+public final class FileIdSetTest {
+
+    private static final int RANGE = 1 << 20;
+
+    @Test
+    public void testMatchesBitSet() throws IOException {
+        Random rnd = new Random(9);
+        //from sparse array containers to dense bitmaps, and sets mixing both
+        for (int density : new int[]{1000, 40, 8, 2}) {
+            BitSet a = random(rnd, density);
+            BitSet b = random(rnd, density * 2 / 3 + 1);
+            b.or(random(rnd, 300));
+            FileIdSet sa = of(a);
+            FileIdSet sb = of(b);
+
+            assertEquals(a.cardinality(), sa.cardinality());
+            for (int i = 0; i < 10000; i++) {
+                final int id = rnd.nextInt(RANGE);
+                assertEquals(a.get(id), sa.contains(id));
+            }
+
+            BitSet and = (BitSet) a.clone();
+            and.and(b);
+            assertArrayEquals(and.stream().toArray(), FileIdSet.and(sa, sb).toArray());
+            BitSet or = (BitSet) a.clone();
+            or.or(b);
+            assertArrayEquals(or.stream().toArray(), FileIdSet.or(sa, sb).toArray());
+            BitSet andNot = (BitSet) a.clone();
+            andNot.andNot(b);
+            assertArrayEquals(andNot.stream().toArray(), FileIdSet.andNot(sa, sb).toArray());
+            assertEquals(of(andNot), FileIdSet.andNot(sa, sb));
+
+            //the operands are unchanged
+            assertArrayEquals(a.stream().toArray(), sa.toArray());
+            assertArrayEquals(b.stream().toArray(), sb.toArray());
+        }
+    }
+
+    @Test
+    public void testUnorderedAdds() {
+        Random rnd = new Random(4);
+        BitSet expected = new BitSet();
+        FileIdSet set = new FileIdSet();
+        for (int i = 0; i < 50000; i++) {
+            final int id = rnd.nextInt(1 << 18);
+            expected.set(id);
+            set.add(id);
+        }
+        assertEquals(of(expected), set);
+        assertEquals(of(expected).hashCode(), set.hashCode());
+        assertTrue(new FileIdSet().isEmpty());
+        assertTrue(FileIdSet.and(set, new FileIdSet()).isEmpty());
+        assertTrue(FileIdSet.andNot(set, set).isEmpty());
+    }
+
+    @Test
+    public void testRoundTrip() throws IOException {
+        Random rnd = new Random(2);
+        BitSet ids = random(rnd, 3);
+        ids.or(random(rnd, 500));
+        FileIdSet set = of(ids);
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        set.write(new DataOutputStream(bytes));
+        ByteBuffer in = ByteBuffer.wrap(bytes.toByteArray());
+        assertEquals(set, FileIdSet.read(in));
+        assertFalse(in.hasRemaining());
+
+        try {
+            FileIdSet.read(ByteBuffer.wrap(bytes.toByteArray(), 0, bytes.size() - 1));
+            fail("Read a truncated set");
+        } catch (IOException e) {
+            assertTrue(e.getMessage().startsWith("Truncated file id set"));
+        }
+    }
+
+    private static BitSet random(final Random rnd, final int oneIn) {
+        BitSet ids = new BitSet(RANGE);
+        for (int id = rnd.nextInt(oneIn); id < RANGE; id += 1 + rnd.nextInt(2 * oneIn)) {
+            ids.set(id);
+        }
+        return ids;
+    }
+
+    private static FileIdSet of(final BitSet ids) {
+        FileIdSet set = new FileIdSet();
+        ids.stream().forEach(set::add);
+        return set;
+    }
+}
@@ -0,0 +1,223 @@
+/*
+ * Copyright (C) 2017 Gregory Clarke
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.filevinder.engine.test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.Stream;
+import java.util.zip.Deflater;
+import org.filevinder.common.Utils;
+import org.filevinder.core.FileIdSet;
+import org.filevinder.core.IndexReader;
+import org.filevinder.core.IndexWriter;
+import org.filevinder.core.PostingListImpl;
+import org.filevinder.core.Trigrams;
+import static org.filevinder.common.Utils.UTF8;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ *
+ * @author Gregory Clarke
+ */
+public final class IndexFileTest {
+
+    private static final String[] WORDS = {"lorem", "ipsum", "dolor", "sit", "amet", "consectetur",
+        "adipiscing", "elit", "sed", "do", "eiusmod", "tempor", "incididunt", "ut", "labore", "et",
+        "dolore", "magna", "aliqua", "enim", "minim", "veniam", "quis", "nostrud", "exercitation"};
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    @Test
+    public void testRoundTrip() throws IOException {
+        PostingListImpl postings = corpus(200, new Random(5));
+        Path file = write(postings);
+
+        //a posting takes at least a byte, so blocks span several pages
+        assertTrue(postings.size() > 4 * 65536);
+        PostingListImpl read = new PostingListImpl();
+        try (IndexReader reader = new IndexReader(file)) {
+            assertEquals(postings.size(), reader.postings());
+            assertEquals(postings.getIndex().size(), reader.trigramCount());
+            reader.readAll(read::appendRun);
+        }
+        assertEquals(postings.toEncodedString(), read.toEncodedString());
+    }
+
+    @Test
+    public void testFileSets() throws IOException {
+        //sets are stored for the two common trigrams, and decoded from the block of the rare one
+        Random rnd = new Random(13);
+        PostingListImpl postings = new PostingListImpl();
+        for (int i = 0; i < 5000; i++) {
+            final int fid = i * 17;
+            postings.append("the", rnd.nextInt(100), fid);
+            if (i % 3 == 0) {
+                postings.append("and", rnd.nextInt(100), fid);
+            }
+            if (i % 100 == 0) {
+                postings.append("xyz", rnd.nextInt(100), fid);
+            }
+        }
+        try (IndexReader reader = new IndexReader(write(postings))) {
+            assertEquals(3, reader.trigramCount());
+            for (int i = 0; i < reader.trigramCount(); i++) {
+                final int trigram = reader.trigramAt(i);
+                FileIdSet expected = new FileIdSet();
+                reader.read(trigram, (t, f, p, n) -> expected.add(f));
+                FileIdSet set = reader.fileSet(trigram);
+                assertEquals(expected, set);
+                assertEquals(reader.fileCount(trigram), set.cardinality());
+            }
+            assertTrue(reader.fileSet(Trigrams.code("QQQ")).isEmpty());
+        }
+    }
+
+    @Test
+    public void testReadTrigram() throws IOException {
+        PostingListImpl postings = new PostingListImpl();
+        postings.append("abc", 7, 2);
+        postings.append("abc", 3, 2);
+        postings.append("abc", 5, 1);
+        postings.append(" ab", 0, 1);
+        postings.append("ÿþý", 1 << 20, Integer.MAX_VALUE);
+
+        try (IndexReader reader = new IndexReader(write(postings))) {
+            assertEquals(2, reader.fileCount(Trigrams.code("abc")));
+            assertEquals(0, reader.fileCount(Trigrams.code("xyz")));
+            assertFalse(reader.read(Trigrams.code("xyz"), (t, f, p, n) -> fail()));
+
+            List<String> runs = new ArrayList<>();
+            for (String name : new String[]{"ÿþý", "abc"}) {
+                assertTrue(reader.read(Trigrams.code(name), (t, f, p, n) ->
+                        runs.add(Trigrams.name(t) + f + Arrays.toString(Arrays.copyOf(p, n)))));
+            }
+            assertEquals(Arrays.asList("ÿþý" + Integer.MAX_VALUE + "[1048576]",
+                    "abc1[5]", "abc2[3, 7]"), runs);
+        }
+    }
+
+    @Test
+    public void testLazyDecoding() throws IOException {
+        PostingListImpl postings = corpus(200, new Random(11));
+        postings.append("zzz", 3, 7);
+        IndexReader reader = new IndexReader(write(postings));
+
+        assertEquals(0, reader.pagesInflated());
+        List<Integer> fids = new ArrayList<>();
+        assertTrue(reader.read(Trigrams.code("zzz"), (t, f, p, n) -> fids.add(f)));
+        assertEquals(Arrays.asList(7), fids);
+        assertEquals(1, reader.pagesInflated());
+
+        reader.readAll((t, f, p, n) -> { });
+        assertTrue(reader.pagesInflated() > 4);
+
+        reader.close();
+        try {
+            reader.fileCount(Trigrams.code("zzz"));
+            fail("Read a closed index");
+        } catch (IllegalStateException e) {
+            assertTrue(e.getMessage().startsWith("Index reader is closed"));
+        }
+    }
+
+    @Test
+    public void testSpilledDictionary() throws IOException {
+        final String chars = "abcdefghijklmnopqrstuvwxyz0123456789";
+        PostingListImpl postings = new PostingListImpl();
+        for (int i = 0; i < 20000; i++) {
+            String name = "" + chars.charAt(i % 36) + chars.charAt(i / 36 % 36) + chars.charAt(i / 1296);
+            postings.append(name, i, i % 50);
+        }
+        Path file = write(postings);
+
+        //the dictionary outgrows the writer's buffer, which spills beside the index
+        try (IndexReader reader = new IndexReader(file)) {
+            assertEquals(20000, reader.trigramCount());
+            assertEquals(1, reader.fileCount(Trigrams.code("zza")));
+            PostingListImpl read = new PostingListImpl();
+            reader.readAll(read::appendRun);
+            assertEquals(postings.toEncodedString(), read.toEncodedString());
+        }
+        try (Stream<Path> files = Files.list(file.getParent())) {
+            assertEquals(1, files.count());
+        }
+    }
+
+    @Test
+    public void testSmallerThanCompressedText() throws IOException {
+        PostingListImpl postings = corpus(100, new Random(7));
+        byte[] text = Utils.compress(postings.toEncodedString().getBytes(UTF8), Deflater.DEFAULT_COMPRESSION);
+        long binary = Files.size(write(postings));
+        assertTrue(binary + " vs " + text.length, binary * 3 < text.length * 2);
+    }
+
+    @Test
+    public void testRejectsOtherFiles() throws IOException {
+        Path file = tmp.newFile("index.txt").toPath();
+        Files.write(file, "[abc](1)5(2)3,7\n[abd](1)6\n[bcd](1)7\n[xyz](1)9".getBytes(UTF8));
+        try {
+            new IndexReader(file).close();
+            fail("Read a text index as binary");
+        } catch (IOException e) {
+            assertTrue(e.getMessage().startsWith("Not an index file"));
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testRejectsUnorderedRuns() throws IOException {
+        try (IndexWriter writer = new IndexWriter(Files.newOutputStream(tmp.newFile().toPath()))) {
+            writer.add(Trigrams.code("abc"), 2, new int[]{1}, 1);
+            writer.add(Trigrams.code("abc"), 1, new int[]{1}, 1);
+        }
+    }
+
+    private Path write(final PostingListImpl postings) throws IOException {
+        Path file = tmp.newFile().toPath();
+        try (IndexWriter writer = new IndexWriter(file)) {
+            postings.forEachRun(writer::add);
+        }
+        return file;
+    }
+
+    private static PostingListImpl corpus(final int files, final Random rnd) {
+        PostingListImpl postings = new PostingListImpl();
+        for (int fid = 0; fid < files; fid++) {
+            StringBuilder sb = new StringBuilder();
+            for (int w = 200 + rnd.nextInt(800); w > 0; w--) {
+                sb.append(WORDS[rnd.nextInt(WORDS.length)]).append(rnd.nextInt(8) == 0 ? '\n' : ' ');
+            }
+            byte[] text = sb.toString().getBytes(UTF8);
+            int[] trigrams = new int[text.length];
+            int[] positions = new int[text.length];
+            int count = Trigrams.extract(text, 0, text.length, 0, trigrams, positions);
+            postings.appendAll(trigrams, positions, count, fid);
+        }
+        return postings;
+    }
+}
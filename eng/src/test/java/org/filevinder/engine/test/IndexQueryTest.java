@@ -0,0 +1,281 @@
+/*
+ * Copyright (C) 2017 Gregory Clarke
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.filevinder.engine.test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.stream.Collectors;
+import org.filevinder.core.FileIdMap;
+import org.filevinder.core.InMemoryIndex;
+import org.filevinder.core.IndexQuery;
+import org.filevinder.core.IndexReader;
+import org.filevinder.core.IndexWriter;
+import org.filevinder.core.PostingListImpl;
+import org.filevinder.core.QueryPlan;
+import org.filevinder.core.SearchImpl;
+import org.filevinder.core.SegmentedIndex;
+import org.filevinder.core.Trigrams;
+import org.filevinder.interfaces.Index;
+import org.filevinder.types.Chunk;
+import org.filevinder.types.Match;
+import static org.filevinder.common.Utils.UTF8;
+import static org.filevinder.common.Utils.getFiles;
+import static org.filevinder.common.Utils.readEntireFile;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ *
+ * @author Gregory Clarke
+ */
+public final class IndexQueryTest {
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private File root;
+    private Path indexFile;
+    private Index index;
+
+    @Before
+    public void setUp() throws IOException {
+        root = tmp.newFolder("root");
+        indexFile = tmp.newFolder("index").toPath().resolve("index.byte");
+        index = new InMemoryIndex();
+    }
+
+    @Test
+    public void testDecomposition() {
+        IndexQuery query = new IndexQuery("abcdefg".getBytes(UTF8));
+        assertTrue(query.isIndexable());
+        assertEquals(Arrays.asList("abc", "def", "efg"), new ArrayList<>(query.trigrams()));
+        assertTrue(query.coversPattern());
+        assertFalse(new IndexQuery("abc\ndef".getBytes(UTF8)).coversPattern());
+
+        assertEquals(Arrays.asList("abc", "def"),
+                new ArrayList<>(new IndexQuery("abc\ndef".getBytes(UTF8)).trigrams()));
+        assertFalse(new IndexQuery("ab".getBytes(UTF8)).isIndexable());
+        assertFalse(new IndexQuery("a\nb\nc".getBytes(UTF8)).isIndexable());
+    }
+
+    @Test
+    public void testCandidates() throws IOException {
+        Path a = write("a.txt", "the quick brown fox\njumps over the lazy dog\n");
+        Path b = write("b.txt", "quick brown\nfox\n");
+        Path c = write("c.txt", "brown fox quick\n");
+        buildIndex();
+
+        //every alignment of the pattern against the stride 3 trigrams
+        for (String pat : new String[]{"quick brown", "uick brow", "ick brown fox", "brown fox", "lazy dog"}) {
+            List<Path> res = paths(pat);
+            for (Path path : Arrays.asList(a, b, c)) {
+                boolean expected = new String(Files.readAllBytes(path), UTF8).contains(pat);
+                assertEquals(pat + " in " + path, expected, res.contains(path));
+            }
+        }
+
+        //only "abc" is looked up for this pattern, so a file with "abc" at the
+        //same offset is a candidate which the file read then rejects
+        Path d = write("d.txt", "xyzabc\n");
+        buildIndex();
+        IndexQuery query = new IndexQuery("xy\nabc".getBytes(UTF8));
+        Index partial = new InMemoryIndex();
+        ((InMemoryIndex) partial).memoizeIndexFile(indexFile, UTF8.name(), query.trigrams());
+        assertEquals(Collections.singleton(FileIdMap.getInstance().getFileId(d)),
+                query.candidates(partial.getPostingList()));
+        assertEquals(Collections.emptyList(), paths("xy\nabc"));
+    }
+
+    @Test
+    public void testMultiByte() throws IOException {
+        Path a = write("a.txt", "naïve café\n");
+        write("b.txt", "naive cafe\n");
+        buildIndex();
+        assertEquals(Arrays.asList(a), paths("ïve caf"));
+        assertEquals(Collections.emptyList(), paths("ïve cafe"));
+    }
+
+    @Test
+    public void testMatchLocations() throws IOException {
+        Path a = write("a.txt", "first line\nsecond line with needle\n");
+        write("b.txt", "no match here\n");
+        buildIndex();
+
+        assertEquals(Arrays.asList(new Match(a.toString(), 28, 2, 18)),
+                new SearchImpl().findIndexedPattern(root.getPath(), "needle",
+                        Arrays.asList(indexFile), UTF8));
+    }
+
+    @Test
+    public void testPlanReadsRarestFirst() throws IOException {
+        for (int i = 0; i < 40; i++) {
+            write("common" + i + ".txt", "the cat sat on the mat\n");
+        }
+        Path rare = write("rare.txt", "the zebra sat on the mat\n");
+        buildIndex();
+
+        List<QueryPlan> plans = new SearchImpl().explainIndexedPattern("the zebra sat", Arrays.asList(indexFile), UTF8);
+        assertEquals(1, plans.size());
+        QueryPlan plan = plans.get(0);
+        for (int step = 1; step < plan.steps(); step++) {
+            assertTrue(plan.toString(), plan.fileCount(step - 1) <= plan.fileCount(step));
+        }
+        assertEquals(1, plan.fileCount(0));
+        assertEquals(41, plan.fileCount(plan.steps() - 1));
+
+        //one candidate is few enough to verify, only the file sets of the common trigrams are read
+        assertEquals(plan.steps(), plan.stepsRun());
+        assertFalse(plan.byFileSet(0));
+        assertTrue(plan.byFileSet(plan.steps() - 1));
+        assertEquals(1, plan.candidatesAfter(plan.steps() - 1));
+        assertTrue(plan.toString().contains("by file set"));
+        assertEquals(Collections.singleton(FileIdMap.getInstance().getFileId(rare)), plan.candidates());
+        assertEquals(Arrays.asList(rare), paths("the zebra sat"));
+
+        plan = new SearchImpl().explainIndexedPattern("qqq zebra", Arrays.asList(indexFile), UTF8).get(0);
+        assertEquals(0, plan.fileCount(0));
+        assertEquals(1, plan.stepsRun());
+        assertTrue(plan.candidates().isEmpty());
+    }
+
+    @Test
+    public void testPlanMatchesCandidates() throws IOException {
+        Random rnd = new Random(3);
+        PostingListImpl postings = new PostingListImpl();
+        SegmentedIndex segmented = SegmentedIndex.open(tmp.newFolder("segments").toPath());
+        String[] texts = new String[300];
+        for (int fid = texts.length - 1; fid >= 0; fid--) {
+            StringBuilder sb = new StringBuilder();
+            for (int i = 0; i < 200; i++) {
+                sb.append("abc ".charAt(rnd.nextInt(4)));
+            }
+            texts[fid] = sb.toString();
+            PostingListImpl file = new PostingListImpl();
+            byte[] text = sb.toString().getBytes(UTF8);
+            int[] trigrams = new int[text.length];
+            int[] positions = new int[text.length];
+            int count = Trigrams.extract(text, 0, text.length, 0, trigrams, positions);
+            postings.appendAll(trigrams, positions, count, fid);
+            file.appendAll(trigrams, positions, count, fid);
+            //newer segments hold lower file ids, so runs are not in order across segments
+            segmented.commit(file, Collections.emptyList());
+            if (fid % 50 == 49) {
+                segmented.compact(0);
+            }
+        }
+        try (IndexWriter writer = new IndexWriter(indexFile)) {
+            postings.forEachRun(writer::add);
+        }
+
+        try (IndexReader reader = new IndexReader(indexFile);
+                SegmentedIndex.Snapshot snapshot = segmented.snapshot()) {
+            for (int q = 0; q < 50; q++) {
+                String text = texts[rnd.nextInt(texts.length)];
+                final int from = rnd.nextInt(text.length() - 12);
+                IndexQuery query = new IndexQuery(text.substring(from, from + 3 + rnd.nextInt(10)).getBytes(UTF8));
+                Set<Integer> expected = query.candidates(postings);
+                assertEquals(expected, query.plan(reader, 0).execute(reader));
+                assertEquals(expected, query.plan(snapshot, 0).execute(snapshot));
+                assertTrue(query.plan(reader).execute(reader).containsAll(expected));
+            }
+        }
+    }
+
+    @Test
+    public void testShortPatternFallsBackToScan() throws IOException {
+        Path a = write("a.txt", "xyz\n");
+        buildIndex();
+        assertEquals(Arrays.asList(a), paths("yz"));
+    }
+
+    @Test
+    public void testIndexesWithSeparateIdMaps() throws IOException {
+        Path a1 = write("one/a.txt", "a needle here\n");
+        Path b1 = write("one/b.txt", "nothing here\n");
+        Path a2 = write("two/a.txt", "nothing here\n");
+        Path b2 = write("two/b.txt", "another needle\n");
+        //as written by two processes, each numbering its files from one
+        Path one = writeIndex("one.byte", a1, b1);
+        Path two = writeIndex("two.byte", a2, b2);
+        Path sharedPath = FileIdMap.getInstance().getPath(1);
+
+        SearchImpl search = new SearchImpl();
+        List<Path> indexes = Arrays.asList(one, two);
+        assertEquals(Set.of(a1, b2), search.findIndexedPattern(root.getPath(), "needle", indexes, UTF8).stream()
+                .map(m -> new File(m.getPath()).toPath())
+                .collect(Collectors.toSet()));
+        assertEquals(Set.of(a1, b2), new HashSet<>(search.findIndexedFiles(root.getPath(), "needle", indexes, UTF8)));
+        assertEquals(Set.of(a2, b1), new HashSet<>(search.findIndexedFiles(root.getPath(), "nothing", indexes, UTF8)));
+        //the ids of the indexes are not loaded into the map of this process
+        assertEquals(sharedPath, FileIdMap.getInstance().getPath(1));
+    }
+
+    //writes an index of the files, numbered by an id map of its own
+    private Path writeIndex(final String name, final Path... files) throws IOException {
+        FileIdMap fileIds = FileIdMap.create();
+        InMemoryIndex written = new InMemoryIndex();
+        BitSet fids = new BitSet();
+        for (Path file : files) {
+            final int fid = fileIds.getFileId(file);
+            written.mergeIndex(new Chunk(Files.readAllBytes(file), 0, fid));
+            fids.set(fid);
+        }
+        Path file = indexFile.resolveSibling(name);
+        assertTrue(written.writeCompressedIndex(file, UTF8.name()));
+        fileIds.save(FileIdMap.pathFor(file), fids);
+        return file;
+    }
+
+    private List<Path> paths(final String pattern) {
+        return new SearchImpl().findIndexedPattern(root.getPath(), pattern, Arrays.asList(indexFile), UTF8)
+                .stream()
+                .map(m -> new File(m.getPath()).toPath())
+                .distinct()
+                .collect(Collectors.toList());
+    }
+
+    private void buildIndex() {
+        index.purgeIndexFromMem();
+        getFiles(root.getPath(), true)
+                .map(path -> readEntireFile(path, UTF8))
+                .filter(chunk -> chunk != null)
+                .forEachOrdered(chunk -> index.mergeIndex(chunk));
+        assertTrue(index.writeCompressedIndex(indexFile, UTF8.name()));
+    }
+
+    private Path write(final String name, final String content) throws IOException {
+        Path path = root.toPath().resolve(name);
+        Files.createDirectories(path.getParent());
+        Files.write(path, content.getBytes(UTF8));
+        return path;
+    }
+}
@@ -0,0 +1,135 @@
+/*
+ * Copyright (C) 2017 Gregory Clarke
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.filevinder.engine.test;
+
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import org.filevinder.core.IndexRegister;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ *
+ * @author Gregory Clarke
+ */
+public final class IndexRegisterTest {
+
+    private static final int HEADER_SIZE = 8;
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    @Test
+    public void testAddAndEnumerate() throws IOException {
+        Path dir = tmp.newFolder("indexes").toPath();
+        Path a = dir.resolve("a.byte");
+        Path b = dir.resolve("docs").resolve("b.byte");
+        Path c = dir.resolve("docs").resolve("c.byte");
+
+        IndexRegister register = IndexRegister.forIndex(a);
+        assertTrue(register.add(a));
+        assertTrue(register.add(b));
+        assertFalse(register.add(a));
+        assertTrue(register.add(c));
+
+        assertEquals(List.of(a, b, c), register.indexes());
+        assertEquals(List.of(b, c), register.indexesUnder(dir.resolve("docs")));
+        assertTrue(register.contains(b));
+        assertFalse(register.contains(dir.resolve("d.byte")));
+
+        //another reader of the file, e.g. another process, sees every record
+        Path copy = tmp.newFolder("copy").toPath().resolve(IndexRegister.FILE_NAME);
+        Files.copy(dir.resolve(IndexRegister.FILE_NAME), copy);
+        assertEquals(List.of(a, b, c), IndexRegister.open(copy).indexes());
+    }
+
+    @Test
+    public void testConcurrentAdds() throws IOException {
+        Path dir = tmp.newFolder("concurrent").toPath();
+        List<Path> indexes = IntStream.range(0, 2000)
+                .mapToObj(i -> dir.resolve("dir" + i).resolve("index.byte"))
+                .collect(Collectors.toList());
+        IndexRegister register = IndexRegister.open(dir.resolve(IndexRegister.FILE_NAME));
+        long added = indexes.parallelStream().filter(index -> {
+            try {
+                return register.add(index);
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+        }).count();
+        assertEquals(indexes.size(), added);
+
+        Path copy = tmp.newFolder("copy").toPath().resolve(IndexRegister.FILE_NAME);
+        Files.copy(dir.resolve(IndexRegister.FILE_NAME), copy);
+        assertEquals(new HashSet<>(indexes), new HashSet<>(IndexRegister.open(copy).indexes()));
+    }
+
+    @Test
+    public void testTornRecordIsOverwritten() throws IOException {
+        Path dir = tmp.newFolder("torn").toPath();
+        Path file = dir.resolve(IndexRegister.FILE_NAME);
+        IndexRegister.open(file).add(dir.resolve("a.byte"));
+
+        //a writer crashed part way through a record
+        Path copy = tmp.newFolder("copy").toPath().resolve(IndexRegister.FILE_NAME);
+        Files.copy(file, copy);
+        Files.write(copy, new byte[]{0, 0, 0, 40, 'x', 'y'}, StandardOpenOption.APPEND);
+
+        IndexRegister register = IndexRegister.open(copy);
+        assertEquals(List.of(dir.resolve("a.byte")), register.indexes());
+        assertTrue(register.add(dir.resolve("b.byte")));
+        assertEquals(Files.size(file) * 2 - HEADER_SIZE, Files.size(copy));
+
+        Path reread = tmp.newFolder("reread").toPath().resolve(IndexRegister.FILE_NAME);
+        Files.copy(copy, reread);
+        assertEquals(List.of(dir.resolve("a.byte"), dir.resolve("b.byte")), IndexRegister.open(reread).indexes());
+    }
+
+    @Test
+    public void testLegacyRegisterIsReplaced() throws IOException {
+        Path dir = tmp.newFolder("legacy").toPath();
+        Path file = dir.resolve(IndexRegister.FILE_NAME);
+        try (OutputStream fout = Files.newOutputStream(file);
+                ObjectOutputStream out = new ObjectOutputStream(fout)) {
+            out.writeObject(new ArrayList<>(List.of(dir.resolve("old.byte").toString())));
+        }
+        IndexRegister register = IndexRegister.open(file);
+        assertTrue(register.add(dir.resolve("new.byte")));
+        assertEquals(List.of(dir.resolve("new.byte")), register.indexes());
+    }
+
+    @Test(expected = IOException.class)
+    public void testRejectsOtherFiles() throws IOException {
+        Path dir = tmp.newFolder("other").toPath();
+        Path file = dir.resolve(IndexRegister.FILE_NAME);
+        Files.write(file, "not a register".getBytes("UTF-8"));
+        IndexRegister.open(file).indexes();
+    }
+}
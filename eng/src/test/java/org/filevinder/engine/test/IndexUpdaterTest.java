@@ -0,0 +1,325 @@
+/*
+ * Copyright (C) 2017 Gregory Clarke
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.filevinder.engine.test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import org.filevinder.core.FileCatalog;
+import org.filevinder.core.FileChunker;
+import org.filevinder.core.FileIdMap;
+import org.filevinder.core.FileVinderException;
+import org.filevinder.core.InMemoryIndex;
+import org.filevinder.core.IndexUpdater;
+import org.filevinder.core.IndexUpdater.Change;
+import org.filevinder.core.SearchImpl;
+import org.filevinder.core.SegmentedIndex;
+import static org.filevinder.common.Utils.UTF8;
+import static org.filevinder.common.Utils.readEntireFile;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ *
+ * @author Gregory Clarke
+ */
+public final class IndexUpdaterTest {
+
+    private static final long LATER = 10_000;
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private Path root;
+    private Path indexDir;
+    private SegmentedIndex index;
+    private Random rnd;
+
+    @Before
+    public void setUp() throws IOException {
+        root = tmp.newFolder("root").toPath();
+        indexDir = tmp.newFolder("index").toPath().resolve("index");
+        index = SegmentedIndex.open(indexDir);
+        rnd = new Random(5);
+    }
+
+    @Test
+    public void testUpdateMatchesRebuild() throws IOException, FileVinderException {
+        for (int f = 0; f < 20; f++) {
+            write("f" + f + ".txt");
+        }
+        IndexUpdater updater = new IndexUpdater(index, UTF8);
+        assertEquals(Long.valueOf(20), updater.update(root.toString()).get(Change.ADDED));
+        assertEquals(rebuild(), load());
+
+        write("f3.txt");
+        write("f4.txt");
+        Files.delete(root.resolve("f5.txt"));
+        write("f20.txt");
+        Path touched = root.resolve("f6.txt");
+        Files.setLastModifiedTime(touched, later(touched));
+
+        Map<Change, Long> changes = updater.update(root.toString());
+        assertEquals(Long.valueOf(2), changes.get(Change.CHANGED));
+        assertEquals(Long.valueOf(1), changes.get(Change.DELETED));
+        assertEquals(Long.valueOf(1), changes.get(Change.ADDED));
+        assertEquals(Long.valueOf(17), changes.get(Change.UNCHANGED));
+        assertEquals(rebuild(), load());
+
+        //each update adds a segment, nothing is rewritten
+        assertEquals(2, index.segmentFiles().size());
+        changes = updater.update(root.toString());
+        assertEquals(Long.valueOf(20), changes.get(Change.UNCHANGED));
+        assertEquals(1, changes.size());
+        assertEquals(2, index.segmentFiles().size());
+    }
+
+    @Test
+    public void testLargeFilesAreChunked() throws IOException, FileVinderException {
+        for (int f = 0; f < 6; f++) {
+            write("c" + f + ".txt");
+        }
+        //every file spans several windows, so is hashed as a stream and indexed in chunks
+        IndexUpdater updater = new IndexUpdater(index, UTF8, new FileChunker(64));
+        assertEquals(Long.valueOf(6), updater.update(root.toString()).get(Change.ADDED));
+        assertEquals(rebuild(), load());
+
+        write("c1.txt");
+        Path touched = root.resolve("c2.txt");
+        Files.setLastModifiedTime(touched, later(touched));
+        Map<Change, Long> changes = updater.update(root.toString());
+        assertEquals(Long.valueOf(1), changes.get(Change.CHANGED));
+        assertEquals(Long.valueOf(5), changes.get(Change.UNCHANGED));
+        assertEquals(rebuild(), load());
+    }
+
+    @Test
+    public void testSegmentsWithinBudget() throws IOException, FileVinderException {
+        for (int f = 0; f < 6; f++) {
+            write("b" + f + ".txt");
+        }
+        //a budget below one chunk, so each chunk of a file is committed as a segment
+        IndexUpdater updater = new IndexUpdater(index, UTF8, new FileChunker(64), 1);
+        assertEquals(Long.valueOf(6), updater.update(root.toString()).get(Change.ADDED));
+        assertTrue(index.segmentFiles().size() > 6);
+        assertEquals(rebuild(), load());
+
+        write("b1.txt");
+        Files.delete(root.resolve("b2.txt"));
+        Map<Change, Long> changes = updater.update(root.toString());
+        assertEquals(Long.valueOf(1), changes.get(Change.CHANGED));
+        assertEquals(Long.valueOf(1), changes.get(Change.DELETED));
+        assertEquals(rebuild(), load());
+        assertTrue(index.compactAll(0));
+        assertEquals(rebuild(), load());
+    }
+
+    @Test
+    public void testDeletionsAreTombstoned() throws IOException, FileVinderException {
+        for (int f = 0; f < 5; f++) {
+            write("g" + f + ".txt");
+        }
+        IndexUpdater updater = new IndexUpdater(index, UTF8);
+        updater.update(root.toString());
+        final int fid = FileIdMap.getInstance().getFileId(root.resolve("g2.txt"));
+
+        Files.delete(root.resolve("g2.txt"));
+        assertEquals(Long.valueOf(1), updater.update(root.toString()).get(Change.DELETED));
+        FileCatalog catalog = FileCatalog.load(FileCatalog.pathFor(indexDir));
+        assertNull(catalog.get(root.resolve("g2.txt")));
+        assertFalse(loadIds().contains(fid));
+        assertEquals(rebuild(), load());
+
+        //the file reappears with a new id, the old one is retired
+        FileIdMap fileIds = FileIdMap.getInstance();
+        assertNull(fileIds.getPath(fid));
+        write("g2.txt");
+        assertEquals(Long.valueOf(1), updater.update(root.toString()).get(Change.ADDED));
+        final int newFid = fileIds.getFileId(root.resolve("g2.txt"));
+        assertTrue(newFid != fid);
+        catalog = FileCatalog.load(FileCatalog.pathFor(indexDir));
+        assertEquals(newFid, catalog.get(root.resolve("g2.txt")).getFileId());
+        assertTrue(loadIds().contains(newFid));
+        assertFalse(loadIds().contains(fid));
+        assertEquals(rebuild(), load());
+
+        //once no segment holds its postings the old id is reused
+        assertTrue(index.compactAll(0));
+        assertEquals(1, index.segmentFiles().size());
+        assertEquals(rebuild(), load());
+        assertTrue(FileIdMapTest.reuses(fileIds, fid, tmp.newFolder("new").toPath()));
+
+        //a rebuild from scratch replaces every segment
+        Files.delete(FileCatalog.pathFor(indexDir));
+        assertEquals(Long.valueOf(5), updater.update(root.toString()).get(Change.ADDED));
+        assertEquals(1, index.segmentFiles().size());
+        assertEquals(rebuild(), load());
+    }
+
+    @Test
+    public void testCatalogRoundTrip() throws IOException {
+        Path a = root.resolve("a.txt");
+        Path b = root.resolve("b.txt");
+        FileCatalog catalog = new FileCatalog();
+        catalog.put(a, 7, 100L, 123_456L, 0x1234_5678_9ABC_DEF0L);
+        catalog.put(b, 9, 5L, 1L, -1);
+        assertEquals(9, catalog.tombstone(b));
+
+        Path file = tmp.newFile("catalog.cat").toPath();
+        catalog.save(file);
+        FileCatalog loaded = FileCatalog.load(file);
+
+        FileCatalog.Entry entry = loaded.get(a);
+        assertEquals(7, entry.getFileId());
+        assertEquals(100L, entry.getSize());
+        assertEquals(123_456L, entry.getModified());
+        assertEquals(0x1234_5678_9ABC_DEF0L, entry.getHash());
+        assertFalse(entry.isDeleted());
+        assertTrue(loaded.get(b).isDeleted());
+        assertEquals(List.of(a), loaded.livePaths());
+        assertEquals(List.of(9), loaded.tombstones());
+
+        loaded.purgeTombstones();
+        assertNull(loaded.get(b));
+    }
+
+    @Test
+    public void testContentHash() throws IOException {
+        byte[] content = new byte[3 << 16];
+        for (int i = 0; i < content.length; i++) {
+            content[i] = (byte) ('a' + i % 26);
+        }
+        Path file = Files.write(tmp.newFile("hashed.txt").toPath(), content);
+        //a file is hashed as a stream, and must hash as its content does
+        assertEquals(FileCatalog.hash(content), FileCatalog.hash(file));
+        content[content.length - 1] ^= 1;
+        assertNotEquals(FileCatalog.hash(content), FileCatalog.hash(file));
+    }
+
+    @Test(expected = IOException.class)
+    public void testRejectsOtherFiles() throws IOException {
+        Path file = tmp.newFile("other.cat").toPath();
+        Files.write(file, "not a catalog".getBytes(UTF8));
+        FileCatalog.load(file);
+    }
+
+    //writes random content, later than any previous write of the file
+    @Test
+    public void testFreshCandidatesAreNotRead() throws IOException, FileVinderException {
+        Path a = root.resolve("a.txt");
+        Path b = root.resolve("b.txt");
+        Path c = root.resolve("c.txt");
+        Files.write(a, "needle in a haystack\n".getBytes(UTF8));
+        Files.write(b, "haystack without\n".getBytes(UTF8));
+        Files.write(c, "the needle\n".getBytes(UTF8));
+        new IndexUpdater(index, UTF8).update(root.toString());
+        assertEquals(Set.of(a, c), found("needle"));
+
+        //rewritten with the same size and time, the index alone confirms the match
+        FileTime time = Files.getLastModifiedTime(a);
+        Files.write(a, "noodle in a haystock\n".getBytes(UTF8));
+        Files.setLastModifiedTime(a, time);
+        //changed since it was indexed, so read to confirm
+        Files.write(c, "the noodle\n".getBytes(UTF8));
+        Files.setLastModifiedTime(c, later(c));
+        assertEquals(Set.of(a), found("needle"));
+        assertEquals(Set.of(a, b), found("haystack"));
+
+        //a line break leaves bytes the trigrams do not cover, so the file is read
+        assertEquals(Set.of(), found("haystack\n"));
+    }
+
+    @Test
+    public void testIgnoreCase() throws IOException, FileVinderException {
+        Path a = root.resolve("a.txt");
+        Path b = root.resolve("b.txt");
+        Path c = root.resolve("c.txt");
+        Files.write(a, "Needle in a haystack\n".getBytes(UTF8));
+        Files.write(b, "NEEDLES and pins, \u00C4pfel\n".getBytes(UTF8));
+        Files.write(c, "needl e\n".getBytes(UTF8));
+        new IndexUpdater(index, UTF8).update(root.toString());
+
+        SearchImpl search = new SearchImpl();
+        assertEquals(Set.of(a, b), new HashSet<>(search.findIndexedFilesIgnoreCase(root.toString(), "nEEdle",
+                List.of(indexDir), UTF8)));
+        assertEquals(Set.of(a, b), new HashSet<>(search.findPatternIgnoreCase(root.toString(), "nEEdle", UTF8)));
+        assertEquals(Set.of(a), new HashSet<>(search.findIndexedFilesIgnoreCase(root.toString(), "LE IN",
+                List.of(indexDir), UTF8)));
+        assertEquals(Set.of(), found("nEEdle"));
+
+        //patterns beyond ASCII fold by Unicode case rules
+        assertEquals(List.of(b), search.findIndexedFilesIgnoreCase(root.toString(), "\u00E4PFEL",
+                List.of(indexDir), UTF8));
+    }
+
+    private Set<Path> found(final String pattern) {
+        return new HashSet<>(new SearchImpl().findIndexedFiles(root.toString(), pattern, List.of(indexDir), UTF8));
+    }
+
+    private void write(final String name) throws IOException {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 200 + rnd.nextInt(800); i > 0; i--) {
+            sb.append((char) (rnd.nextInt(10) == 0 ? '\n' : 'a' + rnd.nextInt(6)));
+        }
+        Path file = root.resolve(name);
+        boolean existed = Files.exists(file);
+        Files.write(file, sb.toString().getBytes(UTF8));
+        if (existed) {
+            Files.setLastModifiedTime(file, later(file));
+        }
+    }
+
+    private static FileTime later(final Path file) throws IOException {
+        return FileTime.fromMillis(Files.getLastModifiedTime(file).toMillis() + LATER);
+    }
+
+    private String rebuild() throws IOException {
+        InMemoryIndex index = new InMemoryIndex();
+        try (Stream<Path> files = Files.list(root)) {
+            List<Path> sorted = files.sorted().collect(Collectors.toList());
+            sorted.forEach(file -> index.mergeIndex(readEntireFile(file, UTF8)));
+        }
+        return index.getPostingList().toEncodedString();
+    }
+
+    private String load() {
+        InMemoryIndex loaded = new InMemoryIndex();
+        loaded.memoizeIndexFile(indexDir, UTF8.name());
+        return loaded.getPostingList().toEncodedString();
+    }
+
+    private Set<Integer> loadIds() throws IOException {
+        Set<Integer> ids = new HashSet<>();
+        index.readAll((trigram, fid, positions, count) -> ids.add(fid));
+        return ids;
+    }
+}
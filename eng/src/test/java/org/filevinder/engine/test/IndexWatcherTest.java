@@ -0,0 +1,134 @@
+/*
+ * Copyright (C) 2017 Gregory Clarke
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.filevinder.engine.test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import org.filevinder.core.FileVinderException;
+import org.filevinder.core.InMemoryIndex;
+import org.filevinder.core.IndexUpdater;
+import org.filevinder.core.IndexWatcher;
+import org.filevinder.core.SegmentedIndex;
+import static org.filevinder.common.Utils.UTF8;
+import static org.filevinder.common.Utils.readEntireFile;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ *
+ * @author Gregory Clarke
+ */
+public final class IndexWatcherTest {
+
+    private static final long DEBOUNCE = 50;
+    private static final long TIMEOUT = 10_000;
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private Path root;
+    private Path indexDir;
+    private IndexUpdater updater;
+
+    @Before
+    public void setUp() throws IOException {
+        root = tmp.newFolder("root").toPath();
+        indexDir = root.resolve(".index");
+        updater = new IndexUpdater(SegmentedIndex.open(indexDir), UTF8);
+    }
+
+    @Test
+    public void testIndexFollowsChanges() throws IOException, FileVinderException, InterruptedException {
+        for (int f = 0; f < 5; f++) {
+            write(root.resolve("f" + f + ".txt"), "initial content " + f);
+        }
+        try (IndexWatcher watcher = new IndexWatcher(updater, root, DEBOUNCE)) {
+            watcher.start();
+            assertEquals(rebuild(), load());
+
+            write(root.resolve("f1.txt"), "changed content");
+            write(root.resolve("f5.txt"), "a new file");
+            Files.delete(root.resolve("f2.txt"));
+            Path sub = Files.createDirectory(root.resolve("sub"));
+            write(sub.resolve("nested.txt"), "nested content");
+            awaitIndex(watcher);
+
+            //a burst of writes to one file is coalesced
+            long batches = watcher.batches();
+            for (int i = 0; i < 20; i++) {
+                write(root.resolve("f3.txt"), "burst " + i);
+            }
+            awaitIndex(watcher);
+            assertTrue(watcher.batches() - batches < 5);
+
+            //deleting a folder deletes the files below it
+            Files.delete(sub.resolve("nested.txt"));
+            Files.delete(sub);
+            awaitIndex(watcher);
+
+            assertTrue(watcher.events() > 0);
+            assertTrue(watcher.maxLagMillis() >= DEBOUNCE);
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testRejectsNoDebounce() {
+        new IndexWatcher(updater, root, 0);
+    }
+
+    private void awaitIndex(final IndexWatcher watcher) throws IOException, InterruptedException {
+        final String expected = rebuild();
+        final long deadline = System.currentTimeMillis() + TIMEOUT;
+        String indexed = load();
+        while (!expected.equals(indexed) && System.currentTimeMillis() < deadline) {
+            Thread.sleep(DEBOUNCE);
+            indexed = load();
+        }
+        assertEquals(expected, indexed);
+    }
+
+    private static void write(final Path file, final String content) throws IOException {
+        Files.write(file, (content + "\n").getBytes(UTF8));
+    }
+
+    private String rebuild() throws IOException {
+        InMemoryIndex index = new InMemoryIndex();
+        try (Stream<Path> files = Files.walk(root)) {
+            List<Path> sorted = files
+                    .filter(Files::isRegularFile)
+                    .filter(file -> !file.startsWith(indexDir))
+                    .sorted()
+                    .collect(Collectors.toList());
+            sorted.forEach(file -> index.mergeIndex(readEntireFile(file, UTF8)));
+        }
+        return index.getPostingList().toEncodedString();
+    }
+
+    private String load() {
+        InMemoryIndex index = new InMemoryIndex();
+        index.memoizeIndexFile(indexDir, UTF8.name());
+        return index.getPostingList().toEncodedString();
+    }
+}
@@ -0,0 +1,175 @@
+/*
+ * Copyright (C) 2017 Gregory Clarke
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.filevinder.engine.test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Random;
+import org.filevinder.core.BoyerMooreMatcher;
+import org.filevinder.core.ByteScanner;
+import org.filevinder.core.HorspoolMatcher;
+import org.filevinder.core.Matcher;
+import org.filevinder.core.Matchers;
+import org.filevinder.core.NaiveMatcher;
+import org.filevinder.core.TwoWayMatcher;
+import static org.filevinder.common.Utils.UTF8;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+/**
+ *
+ * @author Gregory Clarke
+ */
+public final class MatcherTest {
+
+    @Test
+    public void testAgainstReference() {
+        Random rnd = new Random(42);
+        for (int iter = 0; iter < 3000; iter++) {
+            //small alphabets produce plenty of partial and periodic matches
+            int alphabet = 1 + rnd.nextInt(iter % 2 == 0 ? 3 : 256);
+            byte[] text = random(rnd, rnd.nextInt(300), alphabet);
+            byte[] pat = random(rnd, 1 + rnd.nextInt(12), alphabet);
+            if (rnd.nextBoolean() && text.length > pat.length) {
+                System.arraycopy(pat, 0, text, rnd.nextInt(text.length - pat.length), pat.length);
+            }
+            int from = text.length == 0 ? 0 : rnd.nextInt(text.length);
+            int to = from + rnd.nextInt(text.length - from + 1);
+
+            int expected = reference(text, pat, from, to);
+            for (Matcher m : all(pat)) {
+                assertEquals(m.getClass().getSimpleName(), expected,
+                        m.indexOf(ByteBuffer.wrap(text), from, to));
+            }
+        }
+    }
+
+    @Test
+    public void testPeriodicPatterns() {
+        String text = "abababababababababababaabababababababababababababx";
+        for (String pat : new String[]{"abababab", "babababaab", "aaaaaaaaaa", "abababx"}) {
+            byte[] tb = text.getBytes(UTF8);
+            byte[] pb = pat.getBytes(UTF8);
+            for (Matcher m : all(pb)) {
+                assertEquals(pat, text.indexOf(pat), m.indexOf(ByteBuffer.wrap(tb), 0, tb.length));
+            }
+        }
+    }
+
+    @Test
+    public void testSelectionByPattern() {
+        assertTrue(Matchers.compile("abc".getBytes(UTF8)) instanceof NaiveMatcher);
+        assertTrue(Matchers.compile("aaaaaaaaaaaa".getBytes(UTF8)) instanceof TwoWayMatcher);
+        assertTrue(Matchers.compile("org.filevinder.core.SearchImpl.searchFile".getBytes(UTF8))
+                instanceof BoyerMooreMatcher);
+        byte[] lng = new byte[Matchers.HORSPOOL_MIN];
+        for (int i = 0; i < lng.length; i++) {
+            lng[i] = (byte) i;
+        }
+        assertTrue(Matchers.compile(lng) instanceof HorspoolMatcher);
+    }
+
+    @Test
+    public void testIgnoreCaseAgainstReference() {
+        Random rnd = new Random(43);
+        //letters, the bytes a case bit away from them, and bytes above ASCII
+        byte[] alphabet = "aAbBzZ@`[{^~".getBytes(UTF8);
+        alphabet = Arrays.copyOf(alphabet, alphabet.length + 2);
+        alphabet[alphabet.length - 2] = (byte) 0xC1;
+        alphabet[alphabet.length - 1] = (byte) 0xE1;
+        for (int iter = 0; iter < 3000; iter++) {
+            int size = 1 + rnd.nextInt(iter % 2 == 0 ? 4 : alphabet.length);
+            byte[] text = pick(rnd, rnd.nextInt(300), alphabet, size);
+            byte[] pat = pick(rnd, 1 + rnd.nextInt(12), alphabet, size);
+            if (rnd.nextBoolean() && text.length > pat.length) {
+                System.arraycopy(pat, 0, text, rnd.nextInt(text.length - pat.length), pat.length);
+            }
+            int from = text.length == 0 ? 0 : rnd.nextInt(text.length);
+            int to = from + rnd.nextInt(text.length - from + 1);
+
+            assertEquals(referenceIgnoreCase(text, pat, from, to),
+                    Matchers.compileIgnoreCase(pat).indexOf(ByteBuffer.wrap(text), from, to));
+        }
+
+        byte[] text = "Found in SearchImpl.SEARCHFILE".getBytes(UTF8);
+        assertEquals(20, Matchers.compileIgnoreCase("searchfile".getBytes(UTF8))
+                .indexOf(ByteBuffer.wrap(text), 10, text.length));
+        assertEquals(-1, Matchers.compileIgnoreCase("[".getBytes(UTF8))
+                .indexOf(ByteBuffer.wrap(text), 0, text.length));
+    }
+
+    @Test
+    public void testFoldTable() {
+        for (int i = 0; i <= 0xFF; i++) {
+            int expected = i >= 'A' && i <= 'Z' ? Character.toLowerCase(i) : i;
+            assertEquals(Integer.toHexString(i), (byte) expected, ByteScanner.toLower((byte) i));
+        }
+    }
+
+    private static Matcher[] all(final byte[] pat) {
+        return new Matcher[]{new NaiveMatcher(pat), new HorspoolMatcher(pat),
+            new BoyerMooreMatcher(pat), new TwoWayMatcher(pat), Matchers.compile(pat)};
+    }
+
+    private static int reference(final byte[] text, final byte[] pat, final int from, final int to) {
+        outer:
+        for (int i = from; i <= to - pat.length; i++) {
+            for (int j = 0; j < pat.length; j++) {
+                if (text[i + j] != pat[j]) {
+                    continue outer;
+                }
+            }
+            return i;
+        }
+        return -1;
+    }
+
+    private static int referenceIgnoreCase(final byte[] text, final byte[] pat, final int from, final int to) {
+        String t = new String(text, StandardCharsets.ISO_8859_1);
+        String p = new String(pat, StandardCharsets.ISO_8859_1);
+        for (int i = from; i <= to - pat.length; i++) {
+            //ASCII only, ISO-8859-1 also folds bytes above 0xBF
+            boolean match = true;
+            for (int j = 0; j < pat.length && match; j++) {
+                char a = t.charAt(i + j), b = p.charAt(j);
+                match = a == b || a < 0x80 && b < 0x80 && t.regionMatches(true, i + j, p, j, 1);
+            }
+            if (match) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static byte[] pick(final Random rnd, final int len, final byte[] alphabet, final int size) {
+        byte[] ba = new byte[len];
+        for (int i = 0; i < len; i++) {
+            ba[i] = alphabet[rnd.nextInt(size)];
+        }
+        return ba;
+    }
+
+    private static byte[] random(final Random rnd, final int len, final int alphabet) {
+        byte[] ba = new byte[len];
+        for (int i = 0; i < len; i++) {
+            ba[i] = (byte) ('a' + rnd.nextInt(alphabet));
+        }
+        return ba;
+    }
+}
@@ -0,0 +1,182 @@
+/*
+ * Copyright (C) 2017 Gregory Clarke
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.filevinder.engine.test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.filevinder.core.PostingListImpl;
+import org.filevinder.core.Trigrams;
+import org.filevinder.types.FileRef;
+import org.filevinder.types.Trigram;
+import static org.junit.Assert.assertEquals;
+import org.junit.Test;
+
+/**
+ *
+ * @author Gregory Clarke
+ */
+public final class PostingListTest {
+
+    @Test
+    public void testAgainstReference() {
+        Random rnd = new Random(13);
+        PostingListImpl postings = new PostingListImpl();
+        Map<String, Map<Integer, List<Integer>>> reference = new TreeMap<>();
+
+        //staged single appends and one entry blocks, merged when read
+        for (int i = 0; i < 50000; i++) {
+            Random tri = new Random(rnd.nextInt(2000));
+            byte[] ba = new byte[3];
+            for (int b = 0; b < ba.length; b++) {
+                //the extractor never emits line breaks
+                ba[b] = (byte) (0x0E + tri.nextInt(0xF2));
+            }
+            int trigram = Trigrams.code(ba, 0);
+            int fid = 1 + rnd.nextInt(50);
+            String name = Trigrams.name(trigram);
+            if (rnd.nextBoolean()) {
+                postings.append(name, i, fid);
+            } else {
+                postings.appendAll(new int[]{trigram}, new int[]{i}, 1, fid);
+            }
+            reference.computeIfAbsent(name, k -> new TreeMap<>())
+                    .computeIfAbsent(fid, k -> new ArrayList<>()).add(i);
+        }
+
+        assertEquals(50000, postings.size());
+        assertIndex(reference, postings.getIndex());
+        PostingListImpl decoded = new PostingListImpl(postings.toEncodedString());
+        assertEquals(50000, decoded.size());
+        assertIndex(reference, decoded.getIndex());
+    }
+
+    @Test
+    public void testEncodedFormat() {
+        PostingListImpl postings = new PostingListImpl();
+        postings.append("abc", 7, 2);
+        postings.append("abc", 3, 2);
+        postings.append("abc", 5, 1);
+        postings.append(" ab", 0, 1);
+        assertEquals("[ ab](1)0\n[abc](1)5(2)3,7", postings.toEncodedString());
+        assertEquals(0, new PostingListImpl().size());
+    }
+
+    @Test
+    public void testDeltaEncodedChunks() {
+        PostingListImpl postings = new PostingListImpl();
+        int abc = Trigrams.code("abc");
+        int xyz = Trigrams.code("xyz");
+
+        //later chunks of a file may be appended first, gaps span 1 to 5 byte varints
+        postings.appendAll(new int[]{abc, xyz, abc}, new int[]{Integer.MAX_VALUE, 16384, 200000}, 3, 4);
+        postings.appendAll(new int[]{xyz, abc, abc, abc}, new int[]{5, 0, 127, 128}, 4, 4);
+        postings.appendAll(new int[]{abc}, new int[]{9}, 1, 3);
+
+        assertEquals(8, postings.size());
+        assertEquals("[abc](3)9(4)0,127,128,200000," + Integer.MAX_VALUE + "\n[xyz](4)5,16384",
+                postings.toEncodedString());
+
+        FileRef ref = postings.getIndex().get(0).getFileRefs().get(1);
+        assertEquals(5, ref.positionCount());
+        assertEquals(128, ref.getPosition(2));
+        assertEquals(true, ref.hasPosition(200000));
+        assertEquals(false, ref.hasPosition(129));
+        assertEquals(List.of(0, 127, 128, 200000, Integer.MAX_VALUE), ref.getPositions());
+    }
+
+    @Test
+    public void testCompactAndMerge() {
+        PostingListImpl a = new PostingListImpl();
+        PostingListImpl b = new PostingListImpl();
+        int abc = Trigrams.code("abc");
+        int xyz = Trigrams.code("xyz");
+        a.appendAll(new int[]{abc, xyz}, new int[]{4, 1}, 2, 3);
+        a.appendAll(new int[]{abc}, new int[]{0}, 1, 1);
+        a.append("abc", 9, 3);
+        b.appendAll(new int[]{xyz, abc}, new int[]{6, 2}, 2, 2);
+
+        final String encoded = a.toEncodedString();
+        a.compact();
+        assertEquals(encoded, a.toEncodedString());
+        assertEquals(4, a.size());
+
+        PostingListImpl merged = PostingListImpl.merge(List.of(a, b));
+        assertEquals(6, merged.size());
+        assertEquals("[abc](1)0(2)2(3)4,9\n[xyz](2)6(3)1", merged.toEncodedString());
+    }
+
+    @Test
+    public void testSharedBlocksAcrossThreads() throws InterruptedException {
+        Random rnd = new Random(14);
+        PostingListImpl shared = new PostingListImpl();
+        for (int fid = 1; fid <= 20; fid++) {
+            int[] trigrams = new int[500];
+            int[] positions = new int[500];
+            for (int i = 0; i < trigrams.length; i++) {
+                trigrams[i] = Trigrams.code("ab" + (char) ('a' + rnd.nextInt(5)));
+                positions[i] = rnd.nextInt(100000);
+            }
+            shared.appendAll(trigrams, positions, trigrams.length, fid);
+        }
+        PostingListImpl other = new PostingListImpl();
+        other.append("abc", 1, 21);
+        //both merged lists read the blocks of the shared list
+        List<PostingListImpl> lists = List.of(PostingListImpl.merge(List.of(shared)),
+                PostingListImpl.merge(List.of(shared, other)));
+        List<String> expected = List.of(lists.get(0).toEncodedString(), lists.get(1).toEncodedString());
+
+        AtomicInteger failures = new AtomicInteger();
+        Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            final int l = t % 2;
+            threads[t] = new Thread(() -> {
+                for (int i = 0; i < 50; i++) {
+                    if (!expected.get(l).equals(lists.get(l).toEncodedString())) {
+                        failures.incrementAndGet();
+                    }
+                }
+            });
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(0, failures.get());
+    }
+
+    private static void assertIndex(final Map<String, Map<Integer, List<Integer>>> reference,
+            final List<Trigram> index) {
+        assertEquals(reference.size(), index.size());
+        int t = 0;
+        for (Map.Entry<String, Map<Integer, List<Integer>>> entry : reference.entrySet()) {
+            Trigram trig = index.get(t++);
+            assertEquals(entry.getKey(), trig.getName());
+            int f = 0;
+            for (Map.Entry<Integer, List<Integer>> file : entry.getValue().entrySet()) {
+                FileRef ref = trig.getFileRefs().get(f++);
+                assertEquals((int) file.getKey(), ref.getFileId());
+                List<Integer> sorted = new ArrayList<>(ref.getPositions());
+                sorted.sort(null);
+                assertEquals(file.getValue(), sorted);
+            }
+        }
+    }
+}
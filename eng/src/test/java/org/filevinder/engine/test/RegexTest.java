@@ -0,0 +1,243 @@
+/*
+ * Copyright (C) 2017 Gregory Clarke
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.filevinder.engine.test;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.regex.Pattern;
+import org.filevinder.core.FileVinderException;
+import org.filevinder.core.IndexUpdater;
+import org.filevinder.core.PostingSource;
+import org.filevinder.core.RegexLiterals;
+import org.filevinder.core.RegexQuery;
+import org.filevinder.core.SearchImpl;
+import org.filevinder.core.SegmentedIndex;
+import static org.filevinder.common.Utils.UTF8;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ *
+ * @author Gregory Clarke
+ */
+public final class RegexTest {
+
+    private static final int MAPPED_SIZE = 60000;
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    @Test
+    public void testLiterals() {
+        assertEquals(clauses(set("hello world")), required("hello world"));
+        assertEquals(clauses(set("foo"), set("bar")), required("foo\\d+bar"));
+        assertEquals(clauses(set("foo", "bar")), required("foo|bar"));
+        assertEquals(clauses(set("color", "colour")), required("colou?r"));
+        assertEquals(clauses(set("error: "), set("fatal", "panic")), required("^error: .*(fatal|panic)"));
+        assertEquals(clauses(set("abc")), required("(?:abc)+x*"));
+        assertEquals(clauses(set("a.b")), required("\\Qa.b\\E"));
+        assertEquals(clauses(set("\tab")), required("\\x09ab"));
+        assertEquals(clauses(set("key=val")), required("(?<k>key)=(?=v)val\\b"));
+        assertEquals(clauses(set("abcx", "abcy")), required("abc[xy]"));
+    }
+
+    @Test
+    public void testNoLiterals() {
+        assertEquals(Collections.emptyList(), required("\\d+"));
+        assertEquals(Collections.emptyList(), required("(?i)hello"));
+        assertEquals(Collections.emptyList(), required("(abc)?def|x"));
+        assertEquals(Collections.emptyList(), required("ab.cd"));
+        assertEquals(Collections.emptyList(), required("(foo)*"));
+        assertEquals(Collections.emptyList(), RegexLiterals.required("hello", Pattern.CASE_INSENSITIVE));
+    }
+
+    /**
+     * Whenever an expression matches random text, the text must satisfy
+     * every clause extracted from the expression.
+     */
+    @Test
+    public void testLiteralsAreRequired() {
+        List<String> regexes = Arrays.asList("aab", "a(ab|ba)b", "ab+a", "(aba|bb)c?bba", "a[bc]a",
+                "(aab)+", "b(a|bb)*aab", "aa.bb", "(ab){2}ab", "c(ab|bc|ca)(ab|bc)", "a\\b?ab\\w", "abc|bca|cab");
+        Random rnd = new Random(5);
+        for (String regex : regexes) {
+            Pattern pat = Pattern.compile(regex);
+            List<Set<String>> clauses = required(regex);
+            for (int iter = 0; iter < 2000; iter++) {
+                char[] text = new char[rnd.nextInt(30)];
+                for (int i = 0; i < text.length; i++) {
+                    text[i] = (char) ('a' + rnd.nextInt(3));
+                }
+                String str = new String(text);
+                if (pat.matcher(str).find()) {
+                    for (Set<String> clause : clauses) {
+                        assertTrue(regex + " " + str, clause.stream().anyMatch(str::contains));
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testPrefilterSelection() {
+        RegexQuery single = new RegexQuery("foo\\d+barbaz", UTF8);
+        assertNotNull(single.literal());
+        assertNull(single.alternatives());
+
+        RegexQuery multi = new RegexQuery("(alpha|beta)\\s(gamma|delta)", UTF8);
+        assertNull(multi.literal());
+        assertNotNull(multi.alternatives());
+
+        RegexQuery none = new RegexQuery("[0-9]+", UTF8);
+        assertNull(none.literal());
+        assertNull(none.alternatives());
+    }
+
+    @Test
+    public void testFindRegex() throws IOException {
+        Path a = write("a.txt", "first line\nuser=alice id=42\n");
+        Path b = write("b.txt", "user=bob\n");
+        Path c = write("c.txt", "nothing relevant here\n");
+        char[] pad = new char[MAPPED_SIZE];
+        Arrays.fill(pad, 'x');
+        Path d = write("d.txt", new String(pad) + "user=carol id=7" + new String(pad));
+        Path e = write("e.txt", new String(pad) + "user=dave id=");
+
+        List<Path> res = new SearchImpl().findRegex(tmp.getRoot().getPath(), "user=\\w+ id=\\d+", UTF8);
+        assertEquals(new HashSet<>(Arrays.asList(a, d)), new HashSet<>(res));
+        assertFalse(res.contains(b) || res.contains(c) || res.contains(e));
+    }
+
+    @Test
+    public void testCharsets() throws IOException {
+        Path f = tmp.newFile("latin.txt").toPath();
+        Files.write(f, "café crème".getBytes(StandardCharsets.ISO_8859_1));
+
+        SearchImpl search = new SearchImpl();
+        assertTrue(search.searchFile(f, new RegexQuery("café\\s+cr.me", StandardCharsets.ISO_8859_1)));
+        assertFalse(search.searchFile(f, new RegexQuery("café\\s+cr.me", UTF8)));
+
+        Path g = write("utf.txt", "naïve résumé");
+        assertTrue(search.searchFile(g, new RegexQuery("naïve\\sr.sumé", UTF8)));
+    }
+
+    @Test
+    public void testIndexedRegex() throws IOException, FileVinderException {
+        Path root = tmp.newFolder("root").toPath();
+        Path a = Files.write(root.resolve("a.txt"), "user=alice id=42\n".getBytes(UTF8));
+        Path b = Files.write(root.resolve("b.txt"), "user=bob\nid=7\n".getBytes(UTF8));
+        Path c = Files.write(root.resolve("c.txt"), "id=3 user=carol\n".getBytes(UTF8));
+        Path d = Files.write(root.resolve("d.txt"), "user=dave, id=9\n".getBytes(UTF8));
+        Path indexDir = tmp.getRoot().toPath().resolve("index");
+        new IndexUpdater(SegmentedIndex.open(indexDir), UTF8).update(root.toString());
+        SearchImpl search = new SearchImpl();
+
+        //files lacking a literal clause are never read
+        RegexQuery query = new RegexQuery("user=\\w+,? id=\\d+", UTF8);
+        try (PostingSource source = PostingSource.open(indexDir)) {
+            assertEquals(2, query.candidates(source).cardinality());
+            assertEquals(2, new RegexQuery("(alice|dave).*id", UTF8).candidates(source).cardinality());
+            assertNull(new RegexQuery("\\d+", UTF8).candidates(source));
+        }
+        for (String regex : new String[]{"user=\\w+,? id=\\d+", "(alice|dave).*id", "\\d+ user", "\\d{2}"}) {
+            assertEquals(regex, new HashSet<>(search.findRegex(root.toString(), regex, UTF8)),
+                    new HashSet<>(search.findIndexedRegex(root.toString(), regex, List.of(indexDir), UTF8)));
+        }
+        assertEquals(Set.of(a, d), new HashSet<>(search.findIndexedRegex(root.toString(), "user=\\w+,? id=\\d+",
+                List.of(indexDir), UTF8)));
+        assertEquals(List.of(c), search.findIndexedRegex(root.toString(), "\\d user", List.of(indexDir), UTF8));
+        assertFalse(search.findIndexedRegex(root.toString(), "\\d user", List.of(indexDir), UTF8).contains(b));
+    }
+
+    @Test
+    public void testDecodedWindows() throws IOException {
+        Random rnd = new Random(3);
+        StringBuilder sb = new StringBuilder();
+        String[] words = {"caf\u00E9", "na\u00EFve", "\u65E5\u672C", "\uD83D\uDE00", "plain", "\n"};
+        while (sb.length() < 300000) {
+            sb.append(words[rnd.nextInt(words.length)]).append(' ');
+        }
+        //matches straddling the window boundaries at each multiple of 65536 chars
+        for (int at : new int[]{65530, 131068, 196600}) {
+            sb.insert(at, "<begin \u00E9t\u00E9 end>");
+        }
+        sb.append("tail\u00E9");
+        String text = sb.toString();
+
+        SearchImpl search = new SearchImpl();
+        String[] regexes = {"<begin [^>]*end>", "end>\\s\\S+ \\S+", "tail\u00E9$", "\u65E5\u672C \uD83D\uDE00 plain",
+            "absent\\d", "(?s)<begin.{65000,}end>"};
+        for (Charset cs : new Charset[]{UTF8, StandardCharsets.UTF_16, StandardCharsets.UTF_16LE}) {
+            Path f = tmp.newFile("big-" + cs.name() + ".txt").toPath();
+            byte[] bytes = text.getBytes(cs);
+            if (cs.equals(StandardCharsets.UTF_16LE)) {
+                //a little endian byte order mark, read as UTF-16
+                byte[] bom = {(byte) 0xFF, (byte) 0xFE};
+                Files.write(f, bom);
+                Files.write(f, bytes, StandardOpenOption.APPEND);
+                cs = StandardCharsets.UTF_16;
+            } else {
+                Files.write(f, bytes);
+            }
+            for (String regex : regexes) {
+                assertEquals(cs + " " + regex, Pattern.compile(regex).matcher(text).find(),
+                        search.searchFile(f, new RegexQuery(regex, cs)));
+            }
+        }
+    }
+
+    private Path write(final String name, final String content) throws IOException {
+        Path path = tmp.newFile(name).toPath();
+        Files.write(path, content.getBytes(UTF8));
+        return path;
+    }
+
+    private static List<Set<String>> required(final String regex) {
+        return RegexLiterals.required(regex, 0);
+    }
+
+    @SafeVarargs
+    private static List<Set<String>> clauses(final Set<String>... clauses) {
+        List<Set<String>> list = new ArrayList<>();
+        for (Set<String> clause : clauses) {
+            list.add(clause);
+        }
+        return list;
+    }
+
+    private static Set<String> set(final String... strs) {
+        return new LinkedHashSet<>(Arrays.asList(strs));
+    }
+}
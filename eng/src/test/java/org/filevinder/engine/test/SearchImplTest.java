@@ -0,0 +1,215 @@
+/*
+ * Copyright (C) 2017 Gregory Clarke
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.filevinder.engine.test;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import org.filevinder.core.SearchImpl;
+import org.filevinder.types.Match;
+import static org.filevinder.common.Utils.UTF8;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Regression corpus for the buffered and mapped search paths. Files at or
+ * above MAPPED_SIZE are searched in mapped windows of WINDOW bytes.
+ *
+ * @author Gregory Clarke
+ */
+public final class SearchImplTest {
+
+    private static final int MAPPED_SIZE = 60000;
+    private static final int WINDOW = 4096;
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private final SearchImpl search = new SearchImpl(WINDOW);
+
+    @Test
+    public void testBacktrackAfterPartialMatch() throws IOException {
+        assertTrue(search.searchFile(write("xaaab"), "aab", UTF8));
+        assertTrue(search.searchFile(write("ababac"), "abac", UTF8));
+
+        byte[] big = filler(MAPPED_SIZE, 'a');
+        System.arraycopy("ab".getBytes(UTF8), 0, big, big.length - 2, 2);
+        assertTrue(search.searchFile(write(big), "aaab", UTF8));
+    }
+
+    @Test
+    public void testMatchAtEdgesOfFile() throws IOException {
+        for (int size : new int[]{10, MAPPED_SIZE}) {
+            byte[] ba = filler(size, '.');
+            put(ba, 0, "start");
+            put(ba, size - 3, "end");
+            Path path = write(ba);
+            assertTrue(search.searchFile(path, "start", UTF8));
+            assertTrue(search.searchFile(path, "end", UTF8));
+            assertFalse(search.searchFile(path, "endx", UTF8));
+        }
+    }
+
+    @Test
+    public void testMatchStraddlingWindows() throws IOException {
+        final String pat = "foobar";
+        final int step = WINDOW - (pat.length() - 1);
+        for (int boundary : new int[]{WINDOW, step + WINDOW, 2 * step + WINDOW}) {
+            for (int at = boundary - pat.length() - 1; at <= boundary + 1; at++) {
+                byte[] ba = filler(MAPPED_SIZE, 'o');
+                put(ba, at, pat);
+                assertTrue("Missed match at " + at, search.searchFile(write(ba), pat, UTF8));
+            }
+        }
+    }
+
+    @Test
+    public void testMultiByteCharStraddlingWindow() throws IOException {
+        final String pat = "foobar£🜁";
+        byte[] ba = filler(MAPPED_SIZE, ' ');
+        put(ba, WINDOW - 8, pat);
+        assertTrue(search.searchFile(write(ba), pat, UTF8));
+        assertFalse(search.searchFile(write(ba), pat, Charset.forName("UTF-16LE")));
+    }
+
+    @Test
+    public void testWindowSmallerThanPattern() throws IOException {
+        final String pat = "a pattern longer than the window";
+        byte[] ba = filler(MAPPED_SIZE, '-');
+        put(ba, MAPPED_SIZE / 2, pat);
+        assertTrue(new SearchImpl(8).searchFile(write(ba), pat, UTF8));
+    }
+
+    @Test
+    public void testNoMatch() throws IOException {
+        assertFalse(search.searchFile(write(""), "foo", UTF8));
+        assertFalse(search.searchFile(write("fo"), "foo", UTF8));
+        assertFalse(search.searchFile(write(filler(MAPPED_SIZE, 'f')), "foo", UTF8));
+    }
+
+    @Test
+    public void testMatchLocations() throws IOException {
+        Path small = write("ab\nxabab\n\nab");
+        assertEquals(Arrays.asList(
+                new Match(small.toString(), 0, 1, 1),
+                new Match(small.toString(), 4, 2, 2),
+                new Match(small.toString(), 6, 2, 4),
+                new Match(small.toString(), 10, 4, 1)),
+                search.searchMatches(small, "ab", UTF8).collect(Collectors.toList()));
+    }
+
+    @Test
+    public void testMatchLocationsAcrossWindows() throws IOException {
+        Random rnd = new Random(11);
+        byte[] ba = new byte[MAPPED_SIZE];
+        for (int i = 0; i < ba.length; i++) {
+            ba[i] = (byte) "aab\n".charAt(rnd.nextInt(4));
+        }
+        Path path = write(ba);
+        for (String pat : new String[]{"ab", "aaba", "b\nab", "abaabaa"}) {
+            List<Match> expected = reference(path, ba, pat.getBytes(UTF8));
+            for (int window : new int[]{3, 7, WINDOW}) {
+                assertEquals(pat + " " + window, expected,
+                        new SearchImpl(window).searchMatches(path, pat, UTF8).collect(Collectors.toList()));
+            }
+        }
+    }
+
+    @Test
+    public void testMatchesAreFoundAsPulled() throws IOException {
+        byte[] ba = filler(MAPPED_SIZE, 'x');
+        put(ba, 10, "foo");
+        put(ba, 50000, "foo");
+        Path path = write(ba);
+
+        try (Stream<Match> matches = search.searchMatches(path, "foo", UTF8)) {
+            Iterator<Match> it = matches.iterator();
+            assertEquals(10, it.next().getLocation());
+            //the later windows are not read until the stream is pulled
+            try (RandomAccessFile file = new RandomAccessFile(path.toFile(), "rw")) {
+                file.seek(50000);
+                file.write("bar".getBytes(UTF8));
+                file.seek(55000);
+                file.write("foo".getBytes(UTF8));
+            }
+            assertEquals(55000, it.next().getLocation());
+            assertFalse(it.hasNext());
+        }
+    }
+
+    @Test
+    public void testFindMatches() throws IOException {
+        Path a = write("one\ntwo foo\n");
+        Path b = write("nothing");
+        Path c = write("foofoo");
+        List<Match> res = search.findMatches(tmp.getRoot().getPath(), "foo", UTF8)
+                .collect(Collectors.toList());
+        assertEquals(3, res.size());
+        assertTrue(res.contains(new Match(a.toString(), 8, 2, 5)));
+        assertTrue(res.contains(new Match(c.toString(), 3, 1, 4)));
+        assertFalse(res.stream().anyMatch(m -> m.getPath().equals(b.toString())));
+    }
+
+    private static List<Match> reference(final Path path, final byte[] text, final byte[] pat) {
+        List<Match> res = new ArrayList<>();
+        long line = 1, lineStart = 0;
+        for (int i = 0; i + pat.length <= text.length; i++) {
+            if (i > 0 && text[i - 1] == '\n') {
+                line++;
+                lineStart = i;
+            }
+            if (Arrays.equals(Arrays.copyOfRange(text, i, i + pat.length), pat)) {
+                res.add(new Match(path.toString(), i, line, i - lineStart + 1));
+            }
+        }
+        return res;
+    }
+
+    private static byte[] filler(final int size, final char c) {
+        byte[] ba = new byte[size];
+        Arrays.fill(ba, (byte) c);
+        return ba;
+    }
+
+    private static void put(final byte[] ba, final int at, final String str) {
+        byte[] src = str.getBytes(UTF8);
+        System.arraycopy(src, 0, ba, at, src.length);
+    }
+
+    private Path write(final String str) throws IOException {
+        return write(str.getBytes(UTF8));
+    }
+
+    private Path write(final byte[] ba) throws IOException {
+        Path path = tmp.newFile().toPath();
+        Files.write(path, ba);
+        return path;
+    }
+}
@@ -0,0 +1,240 @@
+/*
+ * Copyright (C) 2017 Gregory Clarke
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.filevinder.engine.test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.stream.Stream;
+import org.filevinder.core.PostingListImpl;
+import org.filevinder.core.SegmentCompactor;
+import org.filevinder.core.SegmentedIndex;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ *
+ * @author Gregory Clarke
+ */
+public final class SegmentedIndexTest {
+
+    private static final int FILES = 40;
+    private static final int TRIGRAMS = 60;
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private Path dir;
+    private Random rnd;
+    private final Map<Integer, Integer> live = new HashMap<>();
+
+    @Before
+    public void setUp() throws IOException {
+        dir = tmp.newFolder("index").toPath();
+        rnd = new Random(11);
+    }
+
+    @Test
+    public void testCompactionMatchesSegments() throws IOException {
+        SegmentedIndex index = SegmentedIndex.open(dir);
+        for (int c = 0; c < 8; c++) {
+            commit(index, c, 10);
+        }
+        assertEquals(8, index.segmentFiles().size());
+        final String expected = expected();
+        assertEquals(expected, load(index));
+
+        int merges = 0;
+        while (index.compact(0)) {
+            merges++;
+            assertEquals(expected, load(index));
+        }
+        assertTrue(merges > 0);
+        assertTrue(index.segmentFiles().size() < 8);
+
+        //only the live segments and the manifest are left
+        try (Stream<Path> files = Files.list(dir)) {
+            assertEquals(index.segmentFiles().size() + 1, files.count());
+        }
+        assertEquals(expected, load(SegmentedIndex.open(dir)));
+    }
+
+    @Test
+    public void testMergesSmallSegments() throws IOException {
+        SegmentedIndex index = SegmentedIndex.open(dir);
+        commit(index, 0, FILES);
+        commit(index, 1, 1);
+        assertFalse(index.compact(0));
+
+        commit(index, 2, 1);
+        assertTrue(index.compact(0));
+        assertEquals(2, index.segmentFiles().size());
+        assertEquals(expected(), load(index));
+    }
+
+    @Test
+    public void testCompactionIsThrottled() throws IOException {
+        SegmentedIndex index = SegmentedIndex.open(dir);
+        commit(index, 0, 20);
+        commit(index, 1, 20);
+        final long budget = index.size() * 4;
+
+        long start = System.nanoTime();
+        assertTrue(index.compact(budget));
+        long elapsed = (System.nanoTime() - start) / 1_000_000;
+        //the merged segment is close to the size of its inputs
+        assertTrue("Compacted in " + elapsed + "ms", elapsed >= 150);
+        assertEquals(expected(), load(index));
+    }
+
+    @Test
+    public void testBackgroundCompaction() throws IOException, InterruptedException {
+        SegmentedIndex index = SegmentedIndex.open(dir);
+        try (SegmentCompactor compactor = new SegmentCompactor(index, 0, 5)) {
+            for (int c = 0; c < 30; c++) {
+                commit(index, c, 3);
+                compactor.wake();
+                //queries see a consistent set of segments while merges complete
+                assertEquals(expected(), load(index));
+            }
+            for (int wait = 0; wait < 200 && index.segmentFiles().size() > 8; wait++) {
+                Thread.sleep(50);
+            }
+            assertTrue(compactor.merges() > 0);
+        }
+        assertTrue(index.segmentFiles().size() <= 8);
+        assertEquals(expected(), load(index));
+    }
+
+    @Test
+    public void testSnapshotAfterCompactionByAnotherInstance() throws IOException {
+        SegmentedIndex writer = SegmentedIndex.open(dir);
+        for (int c = 0; c < 3; c++) {
+            commit(writer, c, 10);
+        }
+        //as a query opens the index, before a compaction by the writer
+        SegmentedIndex reader = SegmentedIndex.open(dir);
+        assertTrue(writer.compactAll(0));
+        assertEquals(1, writer.segmentFiles().size());
+
+        reader.snapshot().close();
+        assertEquals(writer.segmentFiles(), reader.segmentFiles());
+        assertEquals(expected(), load(reader));
+    }
+
+    @Test
+    public void testFileInSeveralSegmentsIsOneRun() throws IOException {
+        SegmentedIndex index = SegmentedIndex.open(dir);
+        PostingListImpl first = new PostingListImpl();
+        first.appendRun(5, 1, new int[]{1, 7}, 2);
+        first.appendRun(5, 2, new int[]{3}, 1);
+        index.commit(first, Collections.emptyList());
+        //the rest of file 1, as committed by a SegmentBuffer
+        PostingListImpl second = new PostingListImpl();
+        second.appendRun(5, 1, new int[]{4, 20}, 2);
+        second.appendRun(5, 3, new int[]{2}, 1);
+        index.commit(second, Collections.emptyList());
+
+        Map<Integer, List<Integer>> expected = new HashMap<>();
+        expected.put(1, List.of(1, 4, 7, 20));
+        expected.put(2, List.of(3));
+        expected.put(3, List.of(2));
+        assertEquals(expected, runs(index, 5));
+        assertTrue(index.compactAll(0));
+        assertEquals(expected, runs(index, 5));
+    }
+
+    //the runs of a trigram by file, each file has one run
+    private static Map<Integer, List<Integer>> runs(final SegmentedIndex index, final int trigram)
+            throws IOException {
+        Map<Integer, List<Integer>> runs = new HashMap<>();
+        try (SegmentedIndex.Snapshot snapshot = index.snapshot()) {
+            snapshot.read(trigram, (code, fid, positions, count) -> {
+                List<Integer> run = new ArrayList<>();
+                for (int i = 0; i < count; i++) {
+                    run.add(positions[i]);
+                }
+                assertEquals(null, runs.put(fid, run));
+            });
+        }
+        return runs;
+    }
+
+    //replaces or deletes files, each commit holds a new version of the files it changes
+    private void commit(final SegmentedIndex index, final int version, final int changes) throws IOException {
+        List<Integer> fids = new ArrayList<>();
+        for (int fid = 1; fid <= FILES; fid++) {
+            fids.add(fid);
+        }
+        Collections.shuffle(fids, rnd);
+
+        PostingListImpl postings = new PostingListImpl();
+        Set<Integer> deletes = new HashSet<>();
+        for (int fid : fids.subList(0, changes)) {
+            if (live.containsKey(fid)) {
+                deletes.add(fid);
+            }
+            if (version > 0 && rnd.nextInt(4) == 0) {
+                live.remove(fid);
+            } else {
+                live.put(fid, version);
+                add(postings, fid, version);
+            }
+        }
+        index.commit(postings, deletes);
+    }
+
+    private static void add(final PostingListImpl postings, final int fid, final int version) {
+        Random content = new Random(fid * 1000L + version);
+        for (int trigram = 0; trigram < TRIGRAMS; trigram++) {
+            if (content.nextBoolean()) {
+                int[] positions = new int[1 + content.nextInt(5)];
+                int pos = 0;
+                for (int p = 0; p < positions.length; p++) {
+                    pos += 1 + content.nextInt(100);
+                    positions[p] = pos;
+                }
+                postings.appendRun(trigram, fid, positions, positions.length);
+            }
+        }
+    }
+
+    private String expected() {
+        PostingListImpl postings = new PostingListImpl();
+        live.forEach((fid, version) -> add(postings, fid, version));
+        return postings.toEncodedString();
+    }
+
+    private static String load(final SegmentedIndex index) throws IOException {
+        PostingListImpl loaded = new PostingListImpl();
+        index.readAll(loaded::appendRun);
+        return loaded.toEncodedString();
+    }
+}
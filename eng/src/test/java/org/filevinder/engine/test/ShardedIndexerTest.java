@@ -0,0 +1,101 @@
+/*
+ * Copyright (C) 2017 Gregory Clarke
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.filevinder.engine.test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import org.filevinder.core.FileVinderException;
+import org.filevinder.core.InMemoryIndex;
+import org.filevinder.core.PostingListImpl;
+import org.filevinder.core.SegmentedIndex;
+import org.filevinder.core.ShardedIndexer;
+import static org.filevinder.common.Utils.UTF8;
+import static org.filevinder.common.Utils.readEntireFile;
+import static org.junit.Assert.assertEquals;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ *
+ * @author Gregory Clarke
+ */
+public final class ShardedIndexerTest {
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    @Test
+    public void testMatchesSequentialBuild() throws IOException, FileVinderException {
+        Random rnd = new Random(3);
+        List<Path> files = new ArrayList<>();
+        for (int f = 0; f < 60; f++) {
+            StringBuilder sb = new StringBuilder();
+            for (int i = rnd.nextInt(2000); i > 0; i--) {
+                sb.append((char) (rnd.nextInt(10) == 0 ? '\n' : 'a' + rnd.nextInt(6)));
+            }
+            Path file = tmp.newFile("f" + f + ".txt").toPath();
+            Files.write(file, sb.toString().getBytes(UTF8));
+            files.add(file);
+        }
+
+        InMemoryIndex sequential = new InMemoryIndex();
+        files.forEach(file -> sequential.mergeIndex(readEntireFile(file, UTF8)));
+        final String expected = sequential.getPostingList().toEncodedString();
+
+        for (int workers : new int[]{1, 2, 7}) {
+            InMemoryIndex sharded = new ShardedIndexer(workers).index(files, UTF8);
+            assertEquals(sequential.getPostingList().size(), sharded.getPostingList().size());
+            assertEquals(expected, sharded.getPostingList().toEncodedString());
+        }
+    }
+
+    @Test
+    public void testBuildsSegmentsWithinBudget() throws IOException, FileVinderException {
+        Random rnd = new Random(4);
+        List<Path> files = new ArrayList<>();
+        InMemoryIndex sequential = new InMemoryIndex();
+        for (int f = 0; f < 30; f++) {
+            StringBuilder sb = new StringBuilder();
+            for (int i = 200 + rnd.nextInt(2000); i > 0; i--) {
+                sb.append((char) (rnd.nextInt(10) == 0 ? '\n' : 'a' + rnd.nextInt(6)));
+            }
+            Path file = tmp.newFile("s" + f + ".txt").toPath();
+            Files.write(file, sb.toString().getBytes(UTF8));
+            files.add(file);
+            sequential.mergeIndex(readEntireFile(file, UTF8));
+        }
+
+        SegmentedIndex segmented = SegmentedIndex.open(tmp.newFolder("index").toPath());
+        //a budget too small for a file, so each worker commits a segment per file
+        new ShardedIndexer(3).index(files, UTF8, segmented, 3);
+        assertEquals(files.size(), segmented.segmentFiles().size());
+
+        PostingListImpl loaded = new PostingListImpl();
+        segmented.readAll(loaded::appendRun);
+        assertEquals(sequential.getPostingList().toEncodedString(), loaded.toEncodedString());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testRejectsNoWorkers() {
+        new ShardedIndexer(0);
+    }
+}
@@ -0,0 +1,184 @@
+/*
+ * Copyright (C) 2017 Gregory Clarke
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.filevinder.engine.test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import org.filevinder.core.FileIdSet;
+import org.filevinder.core.FilterCatalog;
+import org.filevinder.core.SearchImpl;
+import org.filevinder.core.TrigramFilter;
+import org.filevinder.core.Trigrams;
+import static org.filevinder.common.Utils.UTF8;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ *
+ * @author Gregory Clarke
+ */
+public final class TrigramFilterTest {
+
+    private static final int TRIGRAMS = 1 << 24;
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    @Test
+    public void testFalsePositiveRate() throws IOException {
+        Random rnd = new Random(5);
+        FileIdSet trigrams = new FileIdSet();
+        for (int i = 0; i < 5000; i++) {
+            trigrams.add(rnd.nextInt(TRIGRAMS));
+        }
+
+        int previousSize = Integer.MAX_VALUE;
+        for (double fpr : new double[]{0.001, 0.01, 0.1}) {
+            TrigramFilter filter = TrigramFilter.of(trigrams, fpr);
+            trigrams.forEach(trigram -> assertTrue(filter.mightContain(trigram)));
+            int falsePositives = 0, tries = 0;
+            while (tries < 100000) {
+                final int trigram = rnd.nextInt(TRIGRAMS);
+                if (!trigrams.contains(trigram)) {
+                    tries++;
+                    falsePositives += filter.mightContain(trigram) ? 1 : 0;
+                }
+            }
+            assertTrue(fpr + ": " + falsePositives, falsePositives < tries * fpr * 1.5);
+            //a higher rate takes fewer bits
+            assertTrue(filter.getSize() < previousSize);
+            previousSize = filter.getSize();
+
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            filter.write(new DataOutputStream(bytes));
+            TrigramFilter read = TrigramFilter.read(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())));
+            assertEquals(filter.getSize(), read.getSize());
+            trigrams.forEach(trigram -> assertTrue(read.mightContain(trigram)));
+        }
+    }
+
+    @Test
+    public void testExactFilter() {
+        Random rnd = new Random(6);
+        FileIdSet trigrams = new FileIdSet();
+        for (int i = 0; i < 20000; i++) {
+            trigrams.add(rnd.nextInt(TRIGRAMS));
+        }
+        //a rate needing more bits than there are trigrams
+        TrigramFilter filter = TrigramFilter.of(trigrams, 1e-300);
+        assertEquals(0, filter.getHashes());
+        assertEquals(TRIGRAMS / Byte.SIZE, filter.getSize());
+        for (int trigram = 0; trigram < TRIGRAMS; trigram += 7) {
+            assertEquals(trigrams.contains(trigram), filter.mightContain(trigram));
+        }
+    }
+
+    @Test
+    public void testBuildFromFile() throws IOException {
+        Random rnd = new Random(7);
+        byte[] text = new byte[200000];
+        for (int i = 0; i < text.length; i++) {
+            text[i] = (byte) (rnd.nextInt(20) == 0 ? '\n' : 'a' + rnd.nextInt(26));
+        }
+        Path file = tmp.newFile("text.txt").toPath();
+        Files.write(file, text);
+
+        //trigrams spanning the reads of the file are found
+        TrigramFilter filter = TrigramFilter.build(file, TrigramFilter.DEFAULT_FPR);
+        Trigrams.extract(text, 0, text.length, 0, (trigram, pos) -> assertTrue(filter.mightContain(trigram)));
+        assertFalse(filter.mightContainAll(new int[]{Trigrams.code("aÿb")}));
+    }
+
+    @Test
+    public void testSearchSkipsFilteredFiles() throws IOException {
+        Random rnd = new Random(8);
+        Path dir = tmp.newFolder("files").toPath();
+        List<Path> expected = new ArrayList<>();
+        for (int i = 0; i < 50; i++) {
+            StringBuilder sb = new StringBuilder();
+            for (int j = 0; j < 2000; j++) {
+                sb.append((char) (rnd.nextInt(15) == 0 ? '\n' : 'a' + rnd.nextInt(20)));
+            }
+            if (i % 10 == 0) {
+                sb.append("zygote\n");
+            }
+            Path file = dir.resolve("f" + i + ".txt");
+            Files.write(file, sb.toString().getBytes(UTF8));
+            if (i % 10 == 0) {
+                expected.add(file);
+            }
+        }
+        Path sidecar = tmp.getRoot().toPath().resolve("files" + FilterCatalog.SUFFIX);
+        SearchImpl search = new SearchImpl();
+
+        //the first search builds the filters, later searches read them
+        FilterCatalog filters = FilterCatalog.open(sidecar);
+        assertEquals(expected, sorted(search.findPattern(dir.toString(), "zygote", UTF8, filters)));
+        assertTrue(Files.exists(sidecar));
+
+        filters = FilterCatalog.open(sidecar, 0.5);
+        assertEquals(expected, sorted(search.findPattern(dir.toString(), "zygote", UTF8, filters)));
+        assertTrue(filters.filesSkipped() >= 35);
+        long total = 0;
+        for (int i = 0; i < 50; i++) {
+            total += Files.size(dir.resolve("f" + i + ".txt"));
+        }
+        assertEquals(total, filters.bytesSkipped() + filters.bytesScanned());
+        assertTrue(filters.bytesSkipped() > filters.bytesScanned());
+
+        //a changed file has its filter rebuilt, a deleted one has it dropped
+        Path changed = dir.resolve("f1.txt");
+        Files.write(changed, "a zygote\n".getBytes(UTF8));
+        expected.add(changed);
+        Files.delete(dir.resolve("f2.txt"));
+        filters = FilterCatalog.open(sidecar);
+        assertEquals(sorted(expected), sorted(search.findPattern(dir.toString(), "zygote", UTF8, filters)));
+        long saved = Files.size(sidecar);
+
+        //no file holds every trigram, and an unchanged catalog is not rewritten
+        filters = FilterCatalog.open(sidecar);
+        assertEquals(Collections.emptyList(), search.findPattern(dir.toString(), "zygotez", UTF8, filters));
+        assertEquals(saved, Files.size(sidecar));
+
+        //a pattern without a trigram searches every file, and leaves the catalog alone
+        Files.write(dir.resolve("f3.txt"), "zy\n".getBytes(UTF8));
+        expected.add(dir.resolve("f3.txt"));
+        filters = FilterCatalog.open(sidecar);
+        assertEquals(sorted(expected), sorted(search.findPattern(dir.toString(), "zy", UTF8, filters)));
+        assertEquals(0, filters.filesSkipped() + filters.bytesSkipped() + filters.bytesScanned());
+        assertEquals(saved, Files.size(sidecar));
+    }
+
+    private static List<Path> sorted(final List<Path> paths) {
+        List<Path> copy = new ArrayList<>(paths);
+        Collections.sort(copy);
+        return copy;
+    }
+}
@@ -0,0 +1,108 @@
+/*
+ * Copyright (C) 2017 Gregory Clarke
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.filevinder.engine.test;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import org.filevinder.core.Trigrams;
+import static org.filevinder.common.Utils.UTF8;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+/**
+ *
+ * @author Gregory Clarke
+ */
+public final class TrigramsTest {
+
+    @Test
+    public void testExtractAgainstReference() {
+        Random rnd = new Random(9);
+        for (int iter = 0; iter < 500; iter++) {
+            byte[] text = new byte[rnd.nextInt(50)];
+            for (int i = 0; i < text.length; i++) {
+                text[i] = (byte) (rnd.nextInt(5) == 0 ? '\n' : rnd.nextInt(256));
+            }
+            int from = text.length == 0 ? 0 : rnd.nextInt(text.length);
+
+            List<int[]> expected = new ArrayList<>();
+            for (int i = from; i + 3 <= text.length; i++) {
+                if (!isBreak(text[i]) && !isBreak(text[i + 1]) && !isBreak(text[i + 2])) {
+                    expected.add(new int[]{Trigrams.code(text, i), 100 + i - from});
+                }
+            }
+
+            List<int[]> actual = new ArrayList<>();
+            Trigrams.extract(text, from, text.length, 100, (tri, pos) -> actual.add(new int[]{tri, pos}));
+
+            assertEquals(expected.size(), actual.size());
+            for (int i = 0; i < expected.size(); i++) {
+                assertArrayEquals(expected.get(i), actual.get(i));
+            }
+        }
+    }
+
+    @Test
+    public void testNames() {
+        byte[] ba = {(byte) 0xC3, (byte) 0xAF, 'v', 0, (byte) 0xFF};
+        for (int off = 0; off + 3 <= ba.length; off++) {
+            int code = Trigrams.code(ba, off);
+            assertEquals(code, Trigrams.code(Trigrams.name(code)));
+        }
+        assertEquals("Sed", Trigrams.name(Trigrams.code("Sed".getBytes(UTF8), 0)));
+    }
+
+    @Test
+    public void testQueryOffsets() {
+        assertArrayEquals(new int[]{0}, offsets("abc"));
+        assertArrayEquals(new int[]{0, 1}, offsets("abcd"));
+        assertArrayEquals(new int[]{0, 3, 4}, offsets("abcdefg"));
+        assertArrayEquals(new int[]{0, 3, 6}, offsets("abcdefghi"));
+        assertArrayEquals(new int[]{0, 4}, offsets("abc\ndef"));
+        assertArrayEquals(new int[]{0, 5}, offsets("abc\r\ndef"));
+        assertArrayEquals(new int[]{}, offsets("ab"));
+        assertArrayEquals(new int[]{}, offsets("a\nbc"));
+    }
+
+    @Test
+    public void testCaseVariants() {
+        assertEquals(Set.of("abc", "Abc", "aBc", "abC", "ABc", "AbC", "aBC", "ABC"), names("aBc"));
+        assertEquals(Set.of("a1b", "A1b", "a1B", "A1B"), names("a1b"));
+        assertEquals(Set.of("@[`"), names("@[`"));
+    }
+
+    private static Set<String> names(final String trigram) {
+        Set<String> names = new HashSet<>();
+        for (int code : Trigrams.caseVariants(Trigrams.code(trigram))) {
+            assertTrue(names.add(Trigrams.name(code)));
+        }
+        return names;
+    }
+
+    private static boolean isBreak(final byte b) {
+        return b == '\n' || b == '\r';
+    }
+
+    private static int[] offsets(final String pat) {
+        return Trigrams.queryOffsets(pat.getBytes(UTF8));
+    }
+}